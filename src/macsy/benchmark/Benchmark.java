@@ -0,0 +1,152 @@
+package macsy.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * A minimal micro-benchmark runner.
+ *
+ * Each benchmark is a Task that performs a fixed number of operations per call.
+ * The runner calls it repeatedly during a number of warm-up iterations (so that
+ * the JIT compiles the hot paths) and then during the measured iterations, and
+ * reports the mean throughput in operations per second and its standard deviation.
+ *
+ * Tasks return a value which is accumulated in a sink, so that the JIT can not
+ * remove the work as dead code.
+ *
+ * Options (command line, see parseArgs()):
+ * -wi N	Number of warm-up iterations. Default 5.
+ * -i N		Number of measured iterations. Default 5.
+ * -t MS	Duration of each iteration in ms. Default 1000.
+ * -f REGEX	Run only the benchmarks whose name contains a match of REGEX.
+ *
+ */
+public class Benchmark {
+
+	/**
+	 * A benchmarked operation.
+	 */
+	public interface Task {
+		/**
+		 * Performs the operations.
+		 *
+		 * @return Any value that depends on the work done.
+		 * @throws Exception
+		 */
+		double run() throws Exception;
+	}
+
+	private int warmupIterations = 5;
+	private int iterations = 5;
+	private long iterationMs = 1000;
+	private Pattern filter = null;
+
+	private final List<String> results = new ArrayList<String>();
+
+	/**
+	 * Keeps the results of the tasks alive.
+	 */
+	private volatile double sink = 0;
+
+	/**
+	 * Reads the options of the runner. Unknown arguments are ignored.
+	 *
+	 * @param args The command line arguments.
+	 * @throws Exception
+	 */
+	public void parseArgs(String[] args) throws Exception
+	{
+		for(int i=0; i<args.length-1; i++)
+		{
+			if(args[i].equals("-wi"))
+				warmupIterations = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-i"))
+				iterations = Math.max(1, Integer.parseInt(args[++i]));
+			else if(args[i].equals("-t"))
+				iterationMs = Long.parseLong(args[++i]);
+			else if(args[i].equals("-f"))
+				filter = Pattern.compile(args[++i]);
+		}
+	}
+
+	/**
+	 * Returns true if the benchmark with that name should run.
+	 */
+	public boolean isSelected(String name)
+	{
+		return filter==null || filter.matcher(name).find();
+	}
+
+	/**
+	 * Runs a benchmark (if selected) and prints its throughput.
+	 *
+	 * @param name The name of the benchmark.
+	 * @param opsPerCall The number of operations performed by each call of the task.
+	 * @param task The task.
+	 * @throws Exception
+	 */
+	public void run(String name, int opsPerCall, Task task) throws Exception
+	{
+		if(!isSelected(name))
+			return;
+
+		System.out.println("# "+name);
+		for(int i=0; i<warmupIterations; i++)
+			System.out.printf("Warm-up %d: %.1f ops/s\n", i+1, iteration(opsPerCall, task));
+
+		double[] opsPerSec = new double[iterations];
+		for(int i=0; i<iterations; i++)
+		{
+			opsPerSec[i] = iteration(opsPerCall, task);
+			System.out.printf("Iteration %d: %.1f ops/s\n", i+1, opsPerSec[i]);
+		}
+
+		double mean = 0;
+		for(double v : opsPerSec)
+			mean += v;
+		mean /= iterations;
+
+		double var = 0;
+		for(double v : opsPerSec)
+			var += (v-mean)*(v-mean);
+		double std = iterations>1 ? Math.sqrt(var/(iterations-1)) : 0;
+
+		results.add(String.format("%-50s %15.1f %12.1f", name, mean, std));
+	}
+
+	/**
+	 * Calls the task until the iteration time has passed.
+	 *
+	 * @return The operations per second.
+	 */
+	private double iteration(int opsPerCall, Task task) throws Exception
+	{
+		long ops = 0;
+		double acc = 0;
+		long start = System.nanoTime();
+		long end = start + iterationMs*1000000L;
+		long now;
+		do {
+			acc += task.run();
+			ops += opsPerCall;
+			now = System.nanoTime();
+		} while(now < end);
+
+		sink += acc;
+		return ops * 1e9 / (now - start);
+	}
+
+	/**
+	 * Prints the results of all benchmarks that were run.
+	 */
+	public void printSummary()
+	{
+		System.out.println();
+		System.out.println(String.format("%-50s %15s %12s", "Benchmark", "ops/s", "stddev"));
+		for(String line : results)
+			System.out.println(line);
+		if(sink==Double.MIN_VALUE)		//Practically never, but the JIT does not know
+			System.out.println(sink);
+	}
+}
@@ -0,0 +1,384 @@
+package macsy.benchmark;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import macsy.lib.BasicLinearModel;
+import macsy.lib.DataPoint;
+import macsy.lib.DenseLinearModel;
+import macsy.lib.Helpers.SGDLoss;
+import macsy.lib.LinearModel;
+import macsy.lib.LinearModelFactory;
+import macsy.lib.onlineLearning.OnlineAdatron;
+import macsy.lib.onlineLearning.OnlineLearning;
+import macsy.lib.onlineLearning.OnlinePerceptron;
+import macsy.lib.onlineLearning.PocketPerceptron;
+import macsy.lib.onlineLearning.SGD;
+import macsy.lib.preprocessing.NGPreprocessing;
+import macsy.module.featuresExtractorTFIDF.NGIndexer;
+
+/**
+ * Benchmarks of the learning and feature extraction hot paths:
+ *
+ * - Preprocessing (tokenise + stem) and NGIndexer.CreateBOW_Map() (tokenise + stem + index),
+ *   single pass and through the preprocessed String
+ * - DataPoint dot product, cosine similarity and euclidean distance
+ * - train() of OnlinePerceptron, OnlineAdatron, PocketPerceptron and SGD (each SGDLoss,
+ *   with the regularisation of the loss applied eagerly and lazily)
+ * - Save and load of BasicLinearModel / DenseLinearModel
+ *
+ * The corpus, the vocabulary and the samples are synthetic and generated at start-up
+ * with a fixed seed, so the benchmarks run offline and are comparable between runs.
+ * Temporary files are written in the system temp directory and deleted on exit.
+ *
+ * Usage: java macsy.benchmark.LearningBenchmarks [-wi N] [-i N] [-t MS] [-f REGEX]
+ * e.g. -f SGD runs only the SGD benchmarks (see Benchmark).
+ *
+ */
+public class LearningBenchmarks {
+
+	private static final long SEED = 42;
+
+	//Corpus
+	private static final int NUM_WORDS = 20000;
+	private static final int NUM_DOCS = 500;
+	private static final int WORDS_PER_DOC = 300;
+
+	//Samples
+	private static final int NUM_FEATURES = 50000;
+	private static final int NUM_SAMPLES = 2000;
+	private static final int FEATURES_PER_SAMPLE = 100;
+	private static final int TRAIN_SAMPLES_PER_CALL = 100;
+
+	private final Random rand = new Random(SEED);
+	private final File tempDir;
+
+	private String[] docs;
+	private String vocabularyFile;
+	private DataPoint[] samples;
+
+	public LearningBenchmarks() throws Exception
+	{
+		tempDir = File.createTempFile("macsy-bench", "");
+		tempDir.delete();
+		if(!tempDir.mkdir())
+			throw new Exception("Can not create "+tempDir);
+		tempDir.deleteOnExit();
+	}
+
+	/**
+	 * Generates the synthetic corpus, its vocabulary and the samples.
+	 */
+	void setUp() throws Exception
+	{
+		System.out.print("Generating corpus...");
+		String[] words = new String[NUM_WORDS];
+		for(int i=0; i<NUM_WORDS; i++)
+			words[i] = randomWord(4 + rand.nextInt(8));
+
+		docs = new String[NUM_DOCS];
+		for(int d=0; d<NUM_DOCS; d++)
+		{
+			StringBuilder doc = new StringBuilder();
+			for(int k=0; k<WORDS_PER_DOC; k++)
+			{
+				//Skewed towards the first words, as in natural text
+				double r = rand.nextDouble();
+				doc.append(words[(int) (NUM_WORDS * r * r * r)]);
+				doc.append(k%15==14 ? ". " : " ");
+			}
+			docs[d] = doc.toString();
+		}
+		System.out.println("\t[ DONE ]");
+
+		System.out.print("Generating vocabulary...");
+		vocabularyFile = tempFile("voc.txt");
+		writeVocabulary(vocabularyFile);
+		System.out.println("\t[ DONE ]");
+
+		System.out.print("Generating samples...");
+		//Labels come from a random hyperplane, with 5% label noise
+		double[] hidden = new double[NUM_FEATURES+1];
+		for(int i=1; i<=NUM_FEATURES; i++)
+			hidden[i] = rand.nextGaussian();
+
+		samples = new DataPoint[NUM_SAMPLES];
+		for(int s=0; s<NUM_SAMPLES; s++)
+		{
+			Map<Integer,Double> features = new TreeMap<Integer,Double>();
+			double score = 0;
+			while(features.size() < FEATURES_PER_SAMPLE)
+			{
+				int id = 1 + rand.nextInt(NUM_FEATURES);
+				double value = rand.nextDouble();
+				if(features.put(id, value)==null)
+					score += hidden[id] * value;
+			}
+			int label = score > 0 ? 1 : -1;
+			if(rand.nextDouble() < 0.05)
+				label = -label;
+
+			samples[s] = new DataPoint(features, label);
+			samples[s].normalize();
+		}
+		System.out.println("\t[ DONE ]");
+	}
+
+	private String randomWord(int length)
+	{
+		char[] w = new char[length];
+		for(int i=0; i<length; i++)
+			w[i] = (char) ('a' + rand.nextInt(26));
+		return new String(w);
+	}
+
+	/**
+	 * Writes the vocabulary of the stemmed corpus in the format of NGVoc.
+	 */
+	private void writeVocabulary(String fileName) throws Exception
+	{
+		NGPreprocessing pre = new NGPreprocessing(null);
+		Map<String,Integer> df = new HashMap<String,Integer>();
+		for(String doc : docs)
+		{
+			Map<String,Boolean> seen = new HashMap<String,Boolean>();
+			for(String stem : pre.doPreprocess(doc).split(" "))
+				if(seen.put(stem, Boolean.TRUE)==null)
+				{
+					Integer n = df.get(stem);
+					df.put(stem, n==null ? 1 : n+1);
+				}
+		}
+
+		BufferedWriter out = new BufferedWriter(new FileWriter(fileName));
+		out.write("Documents\t"+NUM_DOCS+"\tWords\t"+df.size()+"\n");
+		for(Map.Entry<String,Integer> e : df.entrySet())
+			out.write(e.getKey()+"\t"+e.getValue()+"\n");
+		out.close();
+	}
+
+	private String tempFile(String name)
+	{
+		File f = new File(tempDir, name);
+		f.deleteOnExit();
+		return f.getPath();
+	}
+
+	void runFeatureExtraction(Benchmark bench) throws Exception
+	{
+		final NGPreprocessing pre = new NGPreprocessing(null);
+		bench.run("NGPreprocessing.doPreprocess", NUM_DOCS, new Benchmark.Task() {
+			public double run() throws Exception {
+				double len = 0;
+				for(String doc : docs)
+					len += pre.doPreprocess(doc).length();
+				return len;
+			}
+		});
+
+		if(!bench.isSelected("NGIndexer.CreateBOW_Map") && !bench.isSelected("NGIndexer.CreateBOW_Map[strings]"))
+			return;
+		final NGIndexer indexer = new NGIndexer(vocabularyFile, null);
+		bench.run("NGIndexer.CreateBOW_Map", NUM_DOCS, new Benchmark.Task() {
+			public double run() throws Exception {
+				double size = 0;
+				for(String doc : docs)
+					size += indexer.CreateBOW_Map(doc).size();
+				return size;
+			}
+		});
+
+		final NGIndexer stringIndexer = new NGIndexer(vocabularyFile, null);
+		stringIndexer.setSinglePass(false);
+		bench.run("NGIndexer.CreateBOW_Map[strings]", NUM_DOCS, new Benchmark.Task() {
+			public double run() throws Exception {
+				double size = 0;
+				for(String doc : docs)
+					size += stringIndexer.CreateBOW_Map(doc).size();
+				return size;
+			}
+		});
+	}
+
+	void runDataPoint(Benchmark bench) throws Exception
+	{
+		bench.run("DataPoint.getDotProduct", NUM_SAMPLES-1, new Benchmark.Task() {
+			public double run() throws Exception {
+				double sum = 0;
+				for(int s=1; s<NUM_SAMPLES; s++)
+					sum += samples[s-1].getDotProduct(samples[s]);
+				return sum;
+			}
+		});
+
+		bench.run("DataPoint.getCosineSimilarity", NUM_SAMPLES-1, new Benchmark.Task() {
+			public double run() throws Exception {
+				double sum = 0;
+				for(int s=1; s<NUM_SAMPLES; s++)
+					sum += samples[s-1].getCosineSimilarity(samples[s]);
+				return sum;
+			}
+		});
+
+		bench.run("DataPoint.getEuclideanDistance", NUM_SAMPLES-1, new Benchmark.Task() {
+			public double run() throws Exception {
+				double sum = 0;
+				for(int s=1; s<NUM_SAMPLES; s++)
+					sum += samples[s-1].getEuclideanDistance(samples[s]);
+				return sum;
+			}
+		});
+	}
+
+	/**
+	 * Benchmarks train() on the samples, cycling through them.
+	 * The learner keeps learning across passes, as in a long online run.
+	 */
+	private void runTrain(Benchmark bench, String name, final OnlineLearning learner) throws Exception
+	{
+		bench.run(name, TRAIN_SAMPLES_PER_CALL, new Benchmark.Task() {
+			int next = 0;
+
+			public double run() throws Exception {
+				for(int s=0; s<TRAIN_SAMPLES_PER_CALL; s++)
+				{
+					learner.train(samples[next]);
+					next = (next+1) % NUM_SAMPLES;
+				}
+				return learner.getBias();
+			}
+		});
+	}
+
+	void runLearners(Benchmark bench) throws Exception
+	{
+		if(bench.isSelected("OnlinePerceptron.train"))
+			runTrain(bench, "OnlinePerceptron.train", new OnlinePerceptron(tempFile("perceptron")));
+		if(bench.isSelected("OnlineAdatron.train"))
+			runTrain(bench, "OnlineAdatron.train", new OnlineAdatron(tempFile("adatron")));
+		if(bench.isSelected("PocketPerceptron.train"))
+			runTrain(bench, "PocketPerceptron.train", new PocketPerceptron(tempFile("pocket")));
+
+		for(SGDLoss loss : SGDLoss.values())
+		{
+			String name = "SGD.train["+loss+"]";
+			if(bench.isSelected(name))
+			{
+				SGD sgd = new SGD(tempFile("sgd-"+loss), 100);
+				sgd.setLamdaReg(1e-4);
+				sgd.setLoss(loss);
+				runTrain(bench, name, sgd);
+			}
+
+			name = "SGD.train["+loss+",lazy]";
+			if(bench.isSelected(name))
+			{
+				SGD sgd = new SGD(tempFile("sgd-lazy-"+loss), 100);
+				sgd.setLamdaReg(1e-4);
+				sgd.setLoss(loss);
+				sgd.setLazyRegularization(true);
+				runTrain(bench, name, sgd);
+			}
+		}
+	}
+
+	/**
+	 * Returns a model with a weight for every feature.
+	 */
+	private LinearModel fillModel(LinearModel model)
+	{
+		Random r = new Random(SEED);
+		for(int i=1; i<=NUM_FEATURES; i++)
+			model.setWi(i, r.nextGaussian());
+		model.setB(0.5);
+		return model;
+	}
+
+	void runModelIO(Benchmark bench) throws Exception
+	{
+		//saveModel() of BasicLinearModel writes to the file the model was created with
+		final String basicFile = tempFile("basic.model");
+		final LinearModel basic = fillModel(new BasicLinearModel(basicFile));
+		bench.run("BasicLinearModel.saveModel", 1, new Benchmark.Task() {
+			public double run() throws Exception {
+				basic.saveModel(basicFile);
+				return new File(basicFile).length();
+			}
+		});
+
+		final LinearModel dense = fillModel(new DenseLinearModel(NUM_FEATURES));
+		final String denseFile = tempFile("dense.model");
+		bench.run("DenseLinearModel.saveModel", 1, new Benchmark.Task() {
+			public double run() throws Exception {
+				dense.saveModel(denseFile);
+				return new File(denseFile).length();
+			}
+		});
+
+		//Both write the same format
+		dense.saveModel(denseFile);
+		bench.run("BasicLinearModel.loadModel", 1, new Benchmark.Task() {
+			public double run() throws Exception {
+				LinearModel m = new BasicLinearModel();
+				m.loadModel(denseFile);
+				return m.getB();
+			}
+		});
+
+		bench.run("DenseLinearModel.loadModel", 1, new Benchmark.Task() {
+			public double run() throws Exception {
+				LinearModel m = new DenseLinearModel(NUM_FEATURES);
+				m.loadModel(denseFile);
+				return m.getB();
+			}
+		});
+
+		bench.run("LinearModelFactory.loadModel", 1, new Benchmark.Task() {
+			public double run() throws Exception {
+				return LinearModelFactory.loadModel(denseFile).getB();
+			}
+		});
+
+		final String binaryFile = tempFile("dense.bin");
+		dense.setBinaryFormat(true);
+		bench.run("DenseLinearModel.saveModel[binary]", 1, new Benchmark.Task() {
+			public double run() throws Exception {
+				dense.saveModel(binaryFile);
+				return new File(binaryFile).length();
+			}
+		});
+
+		bench.run("DenseLinearModel.loadModel[binary]", 1, new Benchmark.Task() {
+			public double run() throws Exception {
+				LinearModel m = new DenseLinearModel(NUM_FEATURES);
+				m.loadModel(binaryFile);
+				return m.getB();
+			}
+		});
+	}
+
+	/**
+	 * @param args The options of the runner (see Benchmark).
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		Benchmark bench = new Benchmark();
+		bench.parseArgs(args);
+
+		LearningBenchmarks benchmarks = new LearningBenchmarks();
+		benchmarks.setUp();
+
+		benchmarks.runFeatureExtraction(bench);
+		benchmarks.runDataPoint(bench);
+		benchmarks.runLearners(bench);
+		benchmarks.runModelIO(bench);
+
+		bench.printSummary();
+	}
+}
@@ -0,0 +1,481 @@
+package macsy.blackBoardsSystem;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+
+/**
+ * Collects tag and field annotations for documents of a Black Board and
+ * writes them in bulk.
+ *
+ * All $set/$unset/$addToSet/$pull operations for a document are merged into a
+ * single update. A second update for the same document is needed only when two
+ * operations touch the same field with a different operator (e.g. removing a FOR> tag
+ * and then adding a POST> tag), in which case the order of the operations is preserved.
+ *
+ * Updates are sent as unordered bulk writes, one per collection (i.e. per year
+ * for BlackBoardDateBased), every maxDocs documents or when the oldest pending
+ * operation is older than maxDelayMs. The latter is checked by a background timer,
+ * so the updates of a module that stops queueing are written too. If a flush of
+ * the timer fails, its updates are queued again and the failure is thrown to the
+ * caller by its next queueing operation (the operation itself is queued), unless
+ * a flush() writes the updates meanwhile.
+ * Call flush() at the end to write the remaining ones.
+ *
+ * Documents are not read back before flush(), so queries issued before flush()
+ * do not see the pending annotations.
+ *
+ * Obtain one through BlackBoard.newAnnotationBatch().
+ *
+ */
+public final class AnnotationBatch {
+
+	public static final int DEFAULT_MAX_DOCS = 1000;
+	public static final long DEFAULT_MAX_DELAY_MS = 5000;
+
+	private static final String OP_SET = "$set";
+	private static final String OP_UNSET = "$unset";
+	private static final String OP_ADD_TO_SET = "$addToSet";
+	private static final String OP_PULL = "$pullAll";
+
+	private final BlackBoard bb;
+	private final int maxDocs;
+	private final long maxDelayMs;
+	private final WriteConcern writeConcern;
+
+	/**
+	 * DocID to pending updates, in the order they should be applied.
+	 */
+	private Map<Object,List<PendingUpdate>> pending = new LinkedHashMap<Object,List<PendingUpdate>>();
+	private long oldestPendingTime = 0;
+
+	/**
+	 * Flushes the batches after maxDelayMs. Shared by all batches, and a daemon
+	 * so that it does not keep the JVM running.
+	 */
+	private static Timer flushTimer = null;
+	private TimerTask scheduledFlush = null;
+	/**
+	 * The failure of the last flush of the timer, for the caller.
+	 */
+	private Exception timerFailure = null;
+
+	private long numFlushes = 0;
+	private long numUpdatesWritten = 0;
+
+	/**
+	 * @param bb The Black Board the documents belong to.
+	 * @param maxDocs Flush when that many documents have pending updates.
+	 * @param maxDelayMs Flush when the oldest pending operation is that old. Set to 0 to disable.
+	 * @param writeConcern The write concern of the bulk writes.
+	 */
+	AnnotationBatch(BlackBoard bb, int maxDocs, long maxDelayMs, WriteConcern writeConcern)
+	{
+		this.bb = bb;
+		this.maxDocs = maxDocs;
+		this.maxDelayMs = maxDelayMs;
+		this.writeConcern = writeConcern;
+	}
+
+	/**
+	 * Queues a field to be set in a document.
+	 *
+	 * @param docID The ID of the doc which will be updated.
+	 * @param fieldName The name of the field.
+	 * @param fieldValue The value to enter to the named field.
+	 * @throws Exception
+	 */
+	public void addFieldToDoc(Object docID, String fieldName, Object fieldValue) throws Exception
+	{
+		if(bb.isNotUpdateableField(fieldName))
+			throw new Exception("Can not update field "+fieldName);
+
+		queue(docID, OP_SET, fieldName, fieldValue);
+	}
+
+	/**
+	 * Queues a real number field to be set in a document.
+	 *
+	 * @param docID The ID of the doc which will be updated.
+	 * @param fieldName The name of the field.
+	 * @param fieldValue The value to enter to the named field.
+	 * @throws Exception
+	 */
+	public void addRealFieldToDoc(Object docID, String fieldName, double fieldValue) throws Exception
+	{
+		if(Double.isNaN(fieldValue) || Double.isInfinite(fieldValue))
+			throw new Exception("NaN is not acceptable");
+
+		addFieldToDoc(docID, fieldName, fieldValue);
+	}
+
+	/**
+	 * Queues a value to be added to the list of a document field.
+	 *
+	 * @param docID	The ID of the document which will be updated.
+	 * @param fieldName The name of the field that stores the list.
+	 * @param fieldValue The value to add to the list.
+	 * @throws Exception
+	 */
+	public void appendToFieldList(Object docID, String fieldName, Object fieldValue) throws Exception
+	{
+		if(bb.isNotUpdateableField(fieldName))
+			throw new Exception("Can not update field "+fieldName);
+
+		queue(docID, OP_ADD_TO_SET, fieldName, fieldValue);
+	}
+
+	/**
+	 * Queues a field to be removed from a document.
+	 *
+	 * @param docID The ID of the doc from which we want to remove the field.
+	 * @param fieldName	The name of field to be removed.
+	 * @throws Exception
+	 */
+	public void removeFieldFromDoc(Object docID, String fieldName) throws Exception
+	{
+		if(bb.isNotUpdateableField(fieldName))
+			throw new Exception("Can not remove field "+fieldName);
+
+		queue(docID, OP_UNSET, fieldName, 1);
+	}
+
+	/**
+	 * Queues a tag to be added to a document.
+	 *
+	 * @param docID The ID of doc to which the tag will be added.
+	 * @param tagID The ID of the tag.
+	 * @throws Exception
+	 */
+	public void addTagToDoc(Object docID, int tagID) throws Exception
+	{
+		if(tagID<=0)
+			throw new Exception("TagID should be >0");
+
+		queue(docID, OP_ADD_TO_SET, bb.getTagsFieldName(tagID), tagID);
+	}
+
+	/**
+	 * Queues a number of tags to be added to a document.
+	 *
+	 * @param docID The ID of doc to which the tags will be added.
+	 * @param tagIDs The IDs of the tags.
+	 * @throws Exception
+	 */
+	public void addTagsToDoc(Object docID, List<Integer> tagIDs) throws Exception
+	{
+		for(int tagID : tagIDs)
+			addTagToDoc(docID, tagID);
+	}
+
+	/**
+	 * Queues a tag to be removed from a document.
+	 *
+	 * @param docID The ID of the document from which we want to remove a tag.
+	 * @param tagID The ID of the tag we want to remove.
+	 * @throws Exception
+	 */
+	public void removeTagFromDoc(Object docID, int tagID) throws Exception
+	{
+		queue(docID, OP_PULL, bb.getTagsFieldName(tagID), tagID);
+	}
+
+	/**
+	 * Queues a number of tags to be removed from a document.
+	 *
+	 * @param docID The ID of the document from which we want to remove the tags.
+	 * @param tagIDs The IDs of the tags we want to remove.
+	 * @throws Exception
+	 */
+	public void removeTagsFromDoc(Object docID, List<Integer> tagIDs) throws Exception
+	{
+		for(int tagID : tagIDs)
+			removeTagFromDoc(docID, tagID);
+	}
+
+	/**
+	 * Writes all pending updates to the DB.
+	 *
+	 * If a bulk write fails, the updates it did not acknowledge are queued again,
+	 * ahead of any later ones, and an Exception with their doc IDs is thrown. A next 
+	 * flush() writes them again, which is safe as all the operators of a batch are 
+	 * idempotent, even for the updates the failed bulk did apply.
+	 *
+	 * @throws Exception
+	 */
+	public synchronized void flush() throws Exception
+	{
+		if(scheduledFlush!=null)
+		{
+			scheduledFlush.cancel();
+			scheduledFlush = null;
+		}
+		//The updates of a failed flush of the timer are written now, or fail again
+		timerFailure = null;
+		if(pending.isEmpty())
+			return;
+
+		Map<Object,List<PendingUpdate>> toWrite = pending;
+		pending = new LinkedHashMap<Object,List<PendingUpdate>>();
+		oldestPendingTime = 0;
+
+		//Level i contains the i-th update of each doc.
+		//Levels are written one after the other to keep the order of updates per doc.
+		int level = 0;
+		boolean moreLevels = true;
+		//The docs whose update of the current level has been acknowledged
+		List<Object> levelWritten = new ArrayList<Object>();
+		try {
+			while(moreLevels)
+			{
+				moreLevels = false;
+				levelWritten.clear();
+				Map<DocCollection,List<DBObject>> queries = new LinkedHashMap<DocCollection,List<DBObject>>();
+				Map<DocCollection,List<DBObject>> updates = new LinkedHashMap<DocCollection,List<DBObject>>();
+				Map<DocCollection,List<Object>> docIDs = new LinkedHashMap<DocCollection,List<Object>>();
+
+				for(Map.Entry<Object,List<PendingUpdate>> e : toWrite.entrySet())
+				{
+					List<PendingUpdate> docUpdates = e.getValue();
+					if(docUpdates.size() <= level)
+						continue;
+					if(docUpdates.size() > level + 1)
+						moreLevels = true;
+
+					DocCollection coll = bb.getCollDocsByDocID(e.getKey());
+					if(!queries.containsKey(coll))
+					{
+						queries.put(coll, new ArrayList<DBObject>());
+						updates.put(coll, new ArrayList<DBObject>());
+						docIDs.put(coll, new ArrayList<Object>());
+					}
+					queries.get(coll).add(new BasicDBObject(BlackBoard.DOC_ID, e.getKey()));
+					updates.get(coll).add(docUpdates.get(level).toDBObject());
+					docIDs.get(coll).add(e.getKey());
+				}
+
+				//One bulk operation per collection
+				for(DocCollection coll : queries.keySet())
+				{
+					coll.updateEach(queries.get(coll), updates.get(coll), writeConcern);
+					levelWritten.addAll(docIDs.get(coll));
+					numUpdatesWritten += docIDs.get(coll).size();
+				}
+
+				level++;
+			}
+		}
+		catch(Exception e) {
+			List<Object> failedDocIDs = requeue(toWrite, level, levelWritten);
+			throw new Exception("Failed to write the annotations of "+failedDocIDs.size()
+					+" docs, which are queued again: "+failedDocIDs, e);
+		}
+		finally {
+			//Even a failed bulk may have updated some of the docs
+			for(Object docID : toWrite.keySet())
+				bb.docUpdated(docID);
+		}
+
+		numFlushes++;
+	}
+
+	/**
+	 * Returns the number of documents with pending updates.
+	 */
+	public synchronized int getNumPendingDocs()
+	{
+		return pending.size();
+	}
+
+	/**
+	 * Returns the number of bulk flushes so far.
+	 */
+	public synchronized long getNumFlushes()
+	{
+		return numFlushes;
+	}
+
+	/**
+	 * Returns the number of single-document updates written so far.
+	 */
+	public synchronized long getNumUpdatesWritten()
+	{
+		return numUpdatesWritten;
+	}
+
+	/**
+	 * Queues again the updates of a failed flush(), from the given level on,
+	 * ahead of the updates queued since.
+	 *
+	 * @param failed The updates of the failed flush().
+	 * @param level The level that failed.
+	 * @param levelWritten The docs whose update of that level has been written.
+	 * @return The IDs of the docs with updates that are queued again.
+	 */
+	private List<Object> requeue(Map<Object,List<PendingUpdate>> failed, int level, List<Object> levelWritten)
+	{
+		Map<Object,List<PendingUpdate>> requeued = new LinkedHashMap<Object,List<PendingUpdate>>();
+		Set<Object> written = new HashSet<Object>(levelWritten);
+		for(Map.Entry<Object,List<PendingUpdate>> e : failed.entrySet())
+		{
+			List<PendingUpdate> docUpdates = e.getValue();
+			int from = written.contains(e.getKey()) ? level + 1 : level;
+			if(docUpdates.size() > from)
+				requeued.put(e.getKey(), new LinkedList<PendingUpdate>(docUpdates.subList(from, docUpdates.size())));
+		}
+		List<Object> failedDocIDs = new ArrayList<Object>(requeued.keySet());
+
+		for(Map.Entry<Object,List<PendingUpdate>> e : pending.entrySet())
+		{
+			List<PendingUpdate> docUpdates = requeued.get(e.getKey());
+			if(docUpdates==null)
+				requeued.put(e.getKey(), e.getValue());
+			else
+				docUpdates.addAll(e.getValue());
+		}
+		pending = requeued;
+		if(!pending.isEmpty())
+			pendingQueued();
+		return failedDocIDs;
+	}
+
+	/**
+	 * Called when the first pending update is queued, to flush it after maxDelayMs.
+	 */
+	private void pendingQueued()
+	{
+		oldestPendingTime = System.currentTimeMillis();
+		if(maxDelayMs <= 0)
+			return;
+
+		scheduledFlush = new TimerTask() {
+			@Override
+			public void run() {
+				try {
+					flush();
+				}
+				catch(Exception e) {
+					//The failed updates are queued again, and flushed with the next ones
+					synchronized(AnnotationBatch.this) {
+						timerFailure = e;
+					}
+				}
+			}
+		};
+		getFlushTimer().schedule(scheduledFlush, maxDelayMs);
+	}
+
+	private static synchronized Timer getFlushTimer()
+	{
+		if(flushTimer==null)
+			flushTimer = new Timer("AnnotationBatch flush", true);
+		return flushTimer;
+	}
+
+	private void queue(Object docID, String op, String fieldName, Object value) throws Exception
+	{
+		synchronized(this)
+		{
+			if(pending.isEmpty())
+				pendingQueued();
+
+			List<PendingUpdate> updates = pending.get(docID);
+			if(updates==null)
+			{
+				updates = new LinkedList<PendingUpdate>();
+				pending.put(docID, updates);
+			}
+
+			PendingUpdate current = updates.isEmpty() ? null : updates.get(updates.size()-1);
+			if(current==null || !current.accepts(op, fieldName))
+			{
+				current = new PendingUpdate();
+				updates.add(current);
+			}
+			current.add(op, fieldName, value);
+
+			Exception failure = timerFailure;
+			timerFailure = null;
+			if(pending.size() < maxDocs &&
+					(maxDelayMs <= 0 || System.currentTimeMillis() - oldestPendingTime < maxDelayMs))
+			{
+				if(failure!=null)
+					throw new Exception("A background flush of the annotations failed, its updates are queued again", failure);
+				return;
+			}
+		}
+		flush();
+	}
+
+	/**
+	 * A single update of a document. Each field appears under one operator only.
+	 */
+	private static final class PendingUpdate {
+
+		private final Map<String,String> fieldOps = new HashMap<String,String>();
+		private final Map<String,BasicDBObject> opFields = new LinkedHashMap<String,BasicDBObject>();
+
+		boolean accepts(String op, String fieldName)
+		{
+			String currentOp = fieldOps.get(fieldName);
+			return currentOp==null || currentOp.equals(op);
+		}
+
+		@SuppressWarnings("unchecked")
+		void add(String op, String fieldName, Object value)
+		{
+			fieldOps.put(fieldName, op);
+
+			BasicDBObject fields = opFields.get(op);
+			if(fields==null)
+			{
+				fields = new BasicDBObject();
+				opFields.put(op, fields);
+			}
+
+			if(op.equals(OP_SET) || op.equals(OP_UNSET))
+			{
+				fields.put(fieldName, value);
+			}
+			else if(op.equals(OP_ADD_TO_SET))
+			{
+				BasicDBObject each = (BasicDBObject) fields.get(fieldName);
+				if(each==null)
+				{
+					each = new BasicDBObject("$each", new LinkedList<Object>());
+					fields.put(fieldName, each);
+				}
+				((List<Object>) each.get("$each")).add(value);
+			}
+			else	//OP_PULL
+			{
+				List<Object> values = (List<Object>) fields.get(fieldName);
+				if(values==null)
+				{
+					values = new LinkedList<Object>();
+					fields.put(fieldName, values);
+				}
+				values.add(value);
+			}
+		}
+
+		DBObject toDBObject()
+		{
+			BasicDBObject update = new BasicDBObject();
+			for(Map.Entry<String,BasicDBObject> e : opFields.entrySet())
+				update.put(e.getKey(), e.getValue());
+			return update;
+		}
+	}
+}
@@ -1,6 +1,8 @@
 package macsy.blackBoardsSystem;
 
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
@@ -8,6 +10,7 @@ import java.util.Set;
 import org.bson.types.ObjectId;
 
 import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
 
 /**
  * A generic Black Board record class.
@@ -26,6 +29,13 @@ public class BBDoc extends Object
 	 */
 	BasicDBObject dataObject;
 
+	/**
+	 * The top level fields fetched by the query that returned the document,
+	 * or null if all fields were fetched.
+	 * Reading a field that was not fetched throws an IllegalStateException.
+	 */
+	Set<String> fetchedFields = null;
+
 
 	/**
 	 * Constructor of a new document. 
@@ -47,9 +57,65 @@ public class BBDoc extends Object
 	}
 
 
+	/**
+	 * Constructor of a document that was fetched with a projection.
+	 * @param fetchedFields The fetched fields (see getFetchedFields()) or null if all.
+	 */
+	BBDoc(Object data, Set<String> fetchedFields) 
+	{
+		dataObject = (BasicDBObject) data;
+		this.fetchedFields = fetchedFields;
+	}
+
 	BBDoc(BBDoc clone) 
 	{
 		this.dataObject = clone.dataObject; 
+		this.fetchedFields = clone.fetchedFields;
+	}
+
+	/**
+	 * Returns the top level fields fetched by a query with the given projection
+	 * (e.g. DBCursor.getKeysWanted()), or null if all fields are fetched or 
+	 * if the projection excludes fields.
+	 */
+	static Set<String> getFetchedFields(DBObject keysWanted)
+	{
+		if(keysWanted==null || keysWanted.keySet().isEmpty())
+			return null;
+
+		Set<String> fields = new HashSet<String>();
+		fields.add(BlackBoard.DOC_ID);	//Returned unless excluded
+		for(String key : keysWanted.keySet())
+		{
+			Object value = keysWanted.get(key);
+			boolean excluded = Boolean.FALSE.equals(value) 
+					|| (value instanceof Number && ((Number) value).intValue()==0);
+			if(excluded && key.equals(BlackBoard.DOC_ID))
+				fields.remove(key);
+			else if(excluded || value instanceof DBObject)	//Exclusions and operators ($slice...)
+				return null;
+			else
+			{
+				int dot = key.indexOf('.');
+				fields.add(dot < 0 ? key : key.substring(0, dot));
+			}
+		}
+		return Collections.unmodifiableSet(fields);
+	}
+
+	/**
+	 * Fails if the field was not fetched by the query that returned the document.
+	 * Fields set after the query can be read.
+	 */
+	private void checkFetched(String fieldName)
+	{
+		if(fetchedFields==null)
+			return;
+
+		int dot = fieldName.indexOf('.');
+		String topField = (dot < 0 ? fieldName : fieldName.substring(0, dot));
+		if(!fetchedFields.contains(topField) && !dataObject.containsField(topField))
+			throw new IllegalStateException("Field "+fieldName+" was not fetched. Fetched fields: "+fetchedFields);
 	}
 
 	/** 
@@ -73,7 +139,7 @@ public class BBDoc extends Object
 	 * Gets the ID of the document.
 	 * @return The object ID
 	 */
-	public Object				getID()			{	return dataObject.get(  BlackBoard.DOC_ID ); 		}
+	public Object				getID()			{	checkFetched(BlackBoard.DOC_ID);	return dataObject.get(  BlackBoard.DOC_ID ); 		}
 
 	/**
 	 * Gets the list of the tag IDs of the document.
@@ -82,6 +148,7 @@ public class BBDoc extends Object
 	@SuppressWarnings("unchecked")
 	public List<Integer> getTagIDs()		
 	{	
+		checkFetched(BlackBoard.DOC_TAGS);
 		List<Integer> tags = new LinkedList<Integer>();
 		List<Integer> t = ( List<Integer> )dataObject.get( BlackBoard.DOC_TAGS );
 		if(t!=null)
@@ -96,6 +163,7 @@ public class BBDoc extends Object
 	@SuppressWarnings("unchecked")
 	public List<Integer> getCtrlTagIDs()		
 	{	
+		checkFetched(BlackBoard.DOC_FOR_TAGS);
 		List<Integer> tags = new LinkedList<Integer>();
 		List<Integer> t  = ( List<Integer> )dataObject.get( BlackBoard.DOC_FOR_TAGS );
 		
@@ -113,6 +181,8 @@ public class BBDoc extends Object
 	@SuppressWarnings("unchecked")
 	public List<Integer> getAllTagIDs()		
 	{	
+		checkFetched(BlackBoard.DOC_TAGS);
+		checkFetched(BlackBoard.DOC_FOR_TAGS);
 		List<Integer> allTags = new LinkedList<Integer>();
 		
 		List<Integer> tags = ( List<Integer> )dataObject.get( BlackBoard.DOC_TAGS );
@@ -147,6 +217,7 @@ public class BBDoc extends Object
 	 */
 	public Object getField(String fieldName)
 	{		
+		checkFetched(fieldName);
 		try
 		{
 			return dataObject.get( fieldName );
@@ -165,6 +236,7 @@ public class BBDoc extends Object
 	 */
 	public Object getSubField(String fieldName, String subfieldName)
 	{		
+		checkFetched(fieldName);
 		try
 		{
 			return ((BasicDBObject)dataObject.get( fieldName )).get(subfieldName); 
@@ -183,6 +255,7 @@ public class BBDoc extends Object
 	 */
 	public Integer getFieldInt(String fieldName)
 	{	
+		checkFetched(fieldName);
 		try
 		{
 			return dataObject.getInt( fieldName ); 
@@ -201,6 +274,7 @@ public class BBDoc extends Object
 	 */
 	public Double getFieldDouble(String fieldName)
 	{		
+		checkFetched(fieldName);
 		try 
 		{
 			return dataObject.getDouble( fieldName ); 
@@ -219,6 +293,7 @@ public class BBDoc extends Object
 	 */
 	public String getFieldString(String fieldName)
 	{		
+		checkFetched(fieldName);
 		try
 		{
 			return dataObject.getString( fieldName );
@@ -250,6 +325,7 @@ public class BBDoc extends Object
 	 */
 	public List<String> getAllSubFieldNames(String fieldName)
 	{
+		checkFetched(fieldName);
 		Set<String> fields_set = ((BasicDBObject) dataObject.get(fieldName)).keySet();
 
 		return new LinkedList<String>(fields_set);
@@ -361,6 +437,7 @@ public class BBDoc extends Object
 
 	
 	public Date getIDasDate() {
+		checkFetched(BlackBoard.DOC_ID);
 		return new Date(dataObject.getObjectId( BlackBoard.DOC_ID ).getTime()); 
 	}
 
@@ -2,8 +2,8 @@ package macsy.blackBoardsSystem;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
-import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 
 /**
@@ -23,20 +23,26 @@ public class BBDocSet {
 	/**
 	 * A list of cursor results. 
 	 */
-	List<DBCursor> cursors = null;
+	List<DocCursor> cursors = null;
 
 	/**
 	 * A pointer to the cursor from witch the next article will be returned.
 	 */
 	int currentCursor = 0; 
 
+	/**
+	 * The fields fetched by the current cursor (see BBDoc.getFetchedFields()).
+	 */
+	private Set<String> fetchedFields = null;
+	private int fetchedFieldsCursor = -1;
+
 	/**
 	 * Creates a new BBDocArticleSet populated with cursor result.
 	 * @param cursor 
 	 */
-	BBDocSet(DBCursor cursor)
+	BBDocSet(DocCursor cursor)
 	{
-		this.cursors =  new ArrayList<DBCursor>();
+		this.cursors =  new ArrayList<DocCursor>();
 
 		if(cursor!=null) {
 			cursor.batchSize(MONGO_DB_BATCH_SIZE);
@@ -57,22 +63,22 @@ public class BBDocSet {
 	 * Creates a new BBDocArticleSet populated with all cursor results.
 	 * @param cursors A list of cursors
 	 */
-	BBDocSet(List<DBCursor> cursors)
+	BBDocSet(List<DocCursor> cursors)
 	{
 		this.cursors = cursors;
-		for(DBCursor c : this.cursors) {
+		for(DocCursor c : this.cursors) {
 			c.batchSize(MONGO_DB_BATCH_SIZE);
 		}
 		
 		currentCursor = 0;
 	}
 
-//	private static BBDocSet getInstance(List<DBCursor> cursors)
+//	private static BBDocSet getInstance(List<DocCursor> cursors)
 //	{
 //		return new BBDocSet(cursors);
 //	}
 //	
-//	public static BBDocSet getInstance(DBCursor cursor)
+//	public static BBDocSet getInstance(DocCursor cursor)
 //	{
 //		return new BBDocSet(cursor);
 //	}
@@ -89,18 +95,85 @@ public class BBDocSet {
 		{
 			if(cursors.get(currentCursor).hasNext())
 			{
+				if(fetchedFieldsCursor!=currentCursor)
+				{
+					fetchedFields = BBDoc.getFetchedFields(cursors.get(currentCursor).getKeysWanted());
+					fetchedFieldsCursor = currentCursor;
+				}
 				DBObject art = cursors.get(currentCursor).next();
-				return new BBDoc(art);
+				return new BBDoc(art, fetchedFields);
 			}
 			currentCursor ++;
 		}
 		return null;
 	}
 
+	/**
+	 * Splits the remaining docs in one set per cursor, e.g. one per year collection 
+	 * for BlackBoardDateBased. The new sets share the cursors of this one, so 
+	 * this set should not be used afterwards.
+	 * 
+	 * This is used to process the parts of a result in parallel.
+	 * 
+	 * @return The sets.
+	 */
+	public List<BBDocSet> split()
+	{
+		List<BBDocSet> parts = new ArrayList<BBDocSet>();
+		for(int c=currentCursor; c<cursors.size(); c++)
+		{
+			List<DocCursor> part = new ArrayList<DocCursor>();
+			part.add(cursors.get(c));
+			parts.add(new BBDocSet(part));
+		}
+		currentCursor = cursors.size();
+		return parts;
+	}
+
+	/**
+	 * Returns a set with the remaining docs that are read in the background 
+	 * (see PrefetchingBBDocSet), one cursor after the other. 
+	 * This set should not be used afterwards.
+	 * 
+	 * @return The prefetching set.
+	 */
+	public BBDocSet prefetch()
+	{
+		return prefetch(PrefetchingBBDocSet.DEFAULT_BATCH_SIZE, PrefetchingBBDocSet.DEFAULT_QUEUE_DEPTH, 1);
+	}
+
+	/**
+	 * Returns a set with the remaining docs that are read in the background 
+	 * (see PrefetchingBBDocSet). This set should not be used afterwards.
+	 * 
+	 * @param batchSize The number of docs fetched from the database in each round trip.
+	 * @param queueDepth The max number of docs fetched ahead.
+	 * @param numReaders The number of cursors (e.g. years) read concurrently. 
+	 * With more than one, docs of different cursors are interleaved.
+	 * @return The prefetching set.
+	 */
+	public BBDocSet prefetch(int batchSize, int queueDepth, int numReaders)
+	{
+		List<DocCursor> remaining = new ArrayList<DocCursor>(cursors.subList(currentCursor, cursors.size()));
+		currentCursor = cursors.size();
+		return new PrefetchingBBDocSet(remaining, batchSize, queueDepth, numReaders);
+	}
+
+	/**
+	 * Closes the cursors of the docs that were not read. 
+	 * Call it when a set is not read to the end.
+	 */
+	public void close()
+	{
+		for(int c=currentCursor; c<cursors.size(); c++)
+			cursors.get(c).close();
+		currentCursor = cursors.size();
+	}
+
 	public BBDocSet clone()
 	{
-		List<DBCursor> cursors_copy = new ArrayList<DBCursor>();
-		for(DBCursor c: cursors) {
+		List<DocCursor> cursors_copy = new ArrayList<DocCursor>();
+		for(DocCursor c: cursors) {
 			cursors_copy.add( c.copy() );
 			c.batchSize(MONGO_DB_BATCH_SIZE);
 		}
@@ -1,18 +1,18 @@
 package macsy.blackBoardsSystem;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.UUID;
 
 import org.bson.types.ObjectId;
 
 import com.mongodb.BasicDBObject;
 import com.mongodb.BasicDBObjectBuilder;
 import com.mongodb.DB;
-import com.mongodb.DBCollection;
-import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.WriteConcern;
 
@@ -39,18 +39,20 @@ public class BlackBoard {
 	//	public boolean DB_WriteConcern = true; 
 	boolean adminMode = false;
 
-	DB mongo_db = null;
+	BlackBoardStorage storage = null;
 	String BB_NAME = null;	//The name of the BB / or the BB prefix if BB is splitted by year.
 
-	//YEar to DBCollection or 0 for single Collection Blackboard
-	Map<Integer,DBCollection> collDocs = null;
-	//	DBCollection collDocs = null;	//Assumes one Collection for documents.
+	//YEar to DocCollection or 0 for single Collection Blackboard
+	Map<Integer,DocCollection> collDocs = null;
+	//	DocCollection collDocs = null;	//Assumes one Collection for documents.
 
 	public final static String DOC_ID = "_id";
 	public final static String DOC_TAGS = "Tg"; //binary tags
-	final static String DOC_FOR_TAGS = "FOR"; //binary control tags
+	public final static String DOC_FOR_TAGS = "FOR"; //binary control tags
+	final static String DOC_LEASE_OWNER = "LsO"; //worker that claimed the doc from a WorkQueue
+	final static String DOC_LEASE_EXPIRY = "LsE"; //when the claim of the worker expires
 
-	DBCollection collTags = null;
+	DocCollection collTags = null;
 	final static String TAG_ID = "_id"; 	// 	"Tag ID"
 	final static String TAG_NAME = "Nm"; 	// 	"Tag Name
 
@@ -77,7 +79,7 @@ public class BlackBoard {
 	 */	
 	final static String CONTROL_TAGS_PREFIX2 = 	"POST>";
 
-	DBCollection collCounter = null;
+	DocCollection collCounter = null;
 	static final String NEXT_ID = "NEXT_ID";
 	static final String BLACKBOARD_TYPE = "BLACKBOARD_TYPE";
 	static final String BLACKBOARD_TYPE_STANDARD = "STANDARD";
@@ -85,16 +87,28 @@ public class BlackBoard {
 
 
 
+	/**
+	 * Returns the storage of a connection to the database: a BlackBoardStorage, 
+	 * or a MongoDB DB that is wrapped in a MongoStorage.
+	 * @param dbConnection
+	 * @return
+	 */
+	static BlackBoardStorage toStorage(Object dbConnection)
+	{
+		if(dbConnection instanceof BlackBoardStorage)
+			return (BlackBoardStorage)dbConnection;
+		return new MongoStorage((DB)dbConnection);
+	}
+
 	/**
 	 * Returns Black Board Type. If no BBType is set then the default "STANDARD" is set and returned.
-	 * @param mongo_db
+	 * @param storage
 	 * @param bbName
 	 * @return
 	 */
-	static String getBlackBoardType(DB mongo_db, String bbName, String defaultType)
+	static String getBlackBoardType(BlackBoardStorage storage, String bbName, String defaultType)
 	{
-		DBCollection collCounter = mongo_db.getCollection(bbName+"_COUNTER");
-		collCounter.setObjectClass(BasicDBObject.class);
+		DocCollection collCounter = storage.getCollection(bbName+"_COUNTER");
 
 		String bbType = null;
 		try
@@ -130,10 +144,24 @@ public class BlackBoard {
 	/**
 	 * CACHE 
 	 * 
-	 * Currently only last accessed Document.
+	 * The most recently accessed Documents (see DocCache).
 	 * 
 	 */
-	BasicDBObject lastQueryResult = null;
+	final DocCache docCache = new DocCache();
+
+	/**
+	 * The ID of the last Document fetched from the DB,
+	 * checked first by the searches by field value.
+	 */
+	volatile Object lastFetchedDocID = null;
+
+	/**
+	 * CACHE
+	 * 
+	 * In-memory copy of the tags collection.
+	 * 
+	 */
+	TagDictionary tagDictionary = null;
 
 
 
@@ -142,11 +170,40 @@ public class BlackBoard {
 
 	}
 
-	DBCollection getCollDocs()
+	DocCollection getCollDocs()
 	{
 		return collDocs.get(0);
 	}
 
+	/**
+	 * Returns the collection that stores the document with given ID.
+	 */
+	DocCollection getCollDocsByDocID(Object docID)
+	{
+		return getCollDocs();
+	}
+
+	/**
+	 * Returns the collections of the documents in _id order, starting from 
+	 * the one that stores the document with given ID.
+	 * 
+	 * @param docID The ID of a document, or null to start from the first collection.
+	 */
+	List<DocCollection> getCollDocsFrom(Object docID)
+	{
+		List<DocCollection> colls = new ArrayList<DocCollection>();
+		colls.add(getCollDocs());
+		return colls;
+	}
+
+	/**
+	 * Called after a document was changed in the DB by an AnnotationBatch or a WorkQueue.
+	 */
+	void docUpdated(Object docID)
+	{
+		docCache.invalidate(docID);
+	}
+
 
 	
 	/**
@@ -177,7 +234,7 @@ public class BlackBoard {
 	 * If BlackBoard with given name already exists it is used as is, 
 	 * otherwise a new Black Board is created.
 	 * 
-	 * @param dbConnection	The connection to the database. This can be obtained from NewsJunkieAPI main class.
+	 * @param dbConnection	The connection to the database: a BlackBoardStorage, or a MongoDB DB. This can be obtained from NewsJunkieAPI main class.
 	 * @param blackBoardName A string that represents the name of the BlackBoard.
 	 * @param adminMode True if there going to be a lot of inserts.
 	 * 
@@ -192,20 +249,17 @@ public class BlackBoard {
 		System.out.println("Initialising "+ blackBoardName+ " Black Board." );
 
 		this.adminMode = adminMode;
-		this.mongo_db = (DB)dbConnection;
+		this.storage = toStorage(dbConnection);
 		this.BB_NAME  = blackBoardName;
 
-		DBCollection singleCollection = mongo_db.getCollection(BB_NAME);
-		singleCollection.setObjectClass(BasicDBObject.class);
-		collDocs = new TreeMap<Integer,DBCollection>();
+		DocCollection singleCollection = storage.getCollection(BB_NAME);
+		collDocs = new TreeMap<Integer,DocCollection>();
 		collDocs.put(0,singleCollection );
 
-		collTags = mongo_db.getCollection(BB_NAME+"_TAGS");
-		collTags.setObjectClass(BasicDBObject.class);
+		collTags = storage.getCollection(BB_NAME+"_TAGS");
 
 
-		collCounter = mongo_db.getCollection(BB_NAME+"_COUNTER");
-		collCounter.setObjectClass(BasicDBObject.class);
+		collCounter = storage.getCollection(BB_NAME+"_COUNTER");
 
 		BasicDBObject isThereNextIDQuery = new BasicDBObject();
 		isThereNextIDQuery.put( "_id", NEXT_ID);
@@ -231,7 +285,7 @@ public class BlackBoard {
 			collCounter.insert( docID );
 		}
 
-
+		tagDictionary = new TagDictionary(collTags, collCounter);
 
 		//MAINTAIN A LIST OF FIELD NAMES THAT SHOULD NOT CHANGE
 		if(FINAL_FIELDS==null)
@@ -239,6 +293,8 @@ public class BlackBoard {
 		FINAL_FIELDS.add(DOC_ID);
 		FINAL_FIELDS.add(DOC_TAGS);
 		FINAL_FIELDS.add(DOC_FOR_TAGS);
+		FINAL_FIELDS.add(DOC_LEASE_OWNER);
+		FINAL_FIELDS.add(DOC_LEASE_EXPIRY);
 
 
 		//	long bef;
@@ -294,7 +350,7 @@ public class BlackBoard {
 	 * @throws Exception
 	 */
 	public int getNumberOfDocs() throws Exception {
-		return (int) getCollDocs().getCount();
+		return (int) getCollDocs().count();
 	}
 
 	/**
@@ -306,7 +362,7 @@ public class BlackBoard {
 	 * @throws Exception
 	 */
 	public int getNumberOfTags() throws Exception {
-		return (int) collTags.getCount();
+		return (int) collTags.count();
 	}
 
 	//	/**
@@ -341,6 +397,7 @@ public class BlackBoard {
 
 		getCollDocs().update(	new BasicDBObject(DOC_ID,docID),
 				new BasicDBObject("$set",new BasicDBObject(fieldName,fieldValue)));
+		docCache.invalidate(docID);
 	}
 
 
@@ -363,6 +420,7 @@ public class BlackBoard {
 
 		getCollDocs().update(	new BasicDBObject(DOC_ID,docID),
 				new BasicDBObject("$set",new BasicDBObject(fieldName,fieldValue)));
+		docCache.invalidate(docID);
 	}
 
 
@@ -385,7 +443,7 @@ public class BlackBoard {
 
 		getCollDocs().update(	new BasicDBObject(DOC_ID, docID),
 				new BasicDBObject("$addToSet", new BasicDBObject(fieldName, fieldValue)));
-
+		docCache.invalidate(docID);
 	}
 
 
@@ -414,6 +472,7 @@ public class BlackBoard {
 			getCollDocs().update(	new BasicDBObject(DOC_ID, docID),
 					new BasicDBObject("$addToSet", new BasicDBObject(DOC_FOR_TAGS, tagID)));
 		}
+		docCache.invalidate(docID);
 	}
 
 
@@ -455,7 +514,7 @@ public class BlackBoard {
 					new BasicDBObject("$addToSet", new BasicDBObject(DOC_FOR_TAGS, 
 							new BasicDBObject("$each", ctrlTags))));
 		}
-		
+		docCache.invalidate(docID);
 	}
 
 
@@ -467,9 +526,7 @@ public class BlackBoard {
 	 * @throws Exception
 	 */
 	public int getTagID(String tagName) throws Exception {
-		BasicDBObject query = new BasicDBObject();
-		query.put(TAG_NAME, tagName); 
-		BasicDBObject res = (BasicDBObject) collTags.findOne(query);
+		BasicDBObject res = tagDictionary.getTag(tagName);
 
 		if(res==null)
 			return TAG_NOT_FOUND;	
@@ -486,9 +543,7 @@ public class BlackBoard {
 	 * @throws Exception
 	 */
 	public String getTagName(int tagID) throws Exception {
-		BasicDBObject query = new BasicDBObject();
-		query.put(TAG_ID, tagID); 
-		BasicDBObject res = (BasicDBObject) collTags.findOne(query);
+		BasicDBObject res = tagDictionary.getTag(tagID);
 
 		if(res==null)
 			return null;	
@@ -506,9 +561,7 @@ public class BlackBoard {
 	 * @throws Exception
 	 */
 	public int getTagProperty(int tagID, String tagPropertyName) throws Exception {
-		BasicDBObject query = new BasicDBObject();
-		query.put(TAG_ID, tagID); 
-		BasicDBObject res = (BasicDBObject) collTags.findOne(query);
+		BasicDBObject res = tagDictionary.getTag(tagID);
 
 		if(res==null)
 			return -1;	//Tag not found
@@ -526,6 +579,19 @@ public class BlackBoard {
 		return (Integer)propValue;
 	}
 
+	/**
+	 * Returns the name of the doc field that stores the given tag,
+	 * i.e. DOC_FOR_TAGS for control tags and DOC_TAGS for all others.
+	 * 
+	 * @param tagID The ID of the tag.
+	 * @throws Exception
+	 */
+	String getTagsFieldName(int tagID) throws Exception {
+		if(getTagProperty(tagID, TAG_PROPERTY_CONTROL) == 1)
+			return DOC_FOR_TAGS;
+		return DOC_TAGS;
+	}
+
 	/**
 	 * Sets the property of a tag.
 	 * Value -1 is reserved to mark unset property.
@@ -540,6 +606,7 @@ public class BlackBoard {
 	{
 		collTags.findAndModify(new BasicDBObject(TAG_ID,tagID), 
 				new BasicDBObject("$set", new BasicDBObject(tagPropertyName, tagPropertyValue) ));
+		tagDictionary.tagPropertySet(tagID, tagPropertyName, tagPropertyValue);
 		return;
 	}
 
@@ -560,10 +627,9 @@ public class BlackBoard {
 	public Object findDocByIDGetField(Object docID, String fieldName) throws Exception
 	{
 		//SEARCH CACHE
-		if((lastQueryResult!=null) && (lastQueryResult.get(BlackBoard.DOC_ID).equals( docID ) ))
-		{
-			return lastQueryResult.get( fieldName ); 
-		}
+		BasicDBObject cached = docCache.get(docID);
+		if(cached!=null)
+			return cached.get( fieldName ); 
 
 		//SEARCH DB
 		BBDoc res = findDocByID(docID);
@@ -587,8 +653,9 @@ public class BlackBoard {
 	public BBDoc findDocByID(Object docID) throws Exception
 	{
 		//SEARCH CACHE
-		if( (lastQueryResult!=null) && (lastQueryResult.get(BlackBoard.DOC_ID).equals(docID)) )
-			return new BBDoc(lastQueryResult);
+		BasicDBObject cached = docCache.get(docID);
+		if(cached!=null)
+			return new BBDoc(cached.copy());
 
 		//SEARCH DB
 		BasicDBObject where = new BasicDBObject();
@@ -600,9 +667,48 @@ public class BlackBoard {
 		if(res==null)
 			return DOC_NOT_FOUND;
 
-		lastQueryResult = res;
+		cacheDoc(res);
+
+		return new BBDoc(res.copy());
+	}
+
+	/**
+	 * Returns the cache of the documents of this Black Board,
+	 * e.g. to read its counters or change its capacity.
+	 */
+	public DocCache getDocCache()
+	{
+		return docCache;
+	}
+
+	/**
+	 * Saves a document fetched from the DB to the cache.
+	 */
+	void cacheDoc(BasicDBObject res)
+	{
+		docCache.put(res);
+		lastFetchedDocID = res.get(DOC_ID);
+	}
 
-		return new BBDoc(lastQueryResult);
+	/**
+	 * Returns the last fetched document if it is still cached and its field
+	 * has the given value, or null.
+	 */
+	BasicDBObject findCachedDocByFieldValue(String fieldName, Object fieldValue)
+	{
+		Object docID = lastFetchedDocID;
+		if(docID==null)
+			return null;
+
+		BasicDBObject cached = docCache.peek(docID);
+		if(cached==null)
+			return null;
+
+		Object storedField = cached.get( fieldName );
+		if(		(storedField!=null) && // Field may not be there
+				(storedField.equals(fieldValue)) )
+			return docCache.get(docID);	//Counts the hit
+		return null;
 	}
 
 
@@ -652,13 +758,13 @@ public class BlackBoard {
 
 		if(resSize!=0)
 		{
-			for(DBCursor cur = getCollDocs().find(query, new BasicDBObject().append(DOC_ID,"1") ).limit(resSize); cur.hasNext(); )
+			for(DocCursor cur = getCollDocs().find(query, new BasicDBObject().append(DOC_ID,"1") ).limit(resSize); cur.hasNext(); )
 				res.add(  ((BasicDBObject)cur.next()).get(DOC_ID)  );
 
 		}
 		else
 		{
-			for(DBCursor cur = getCollDocs().find(query, new BasicDBObject().append(DOC_ID,"1") ); cur.hasNext(); )
+			for(DocCursor cur = getCollDocs().find(query, new BasicDBObject().append(DOC_ID,"1") ); cur.hasNext(); )
 				res.add(  ((BasicDBObject)cur.next()).get(DOC_ID)  );
 		}
 
@@ -713,6 +819,7 @@ public class BlackBoard {
 		doc.put(TAG_NAME, tagName );
 
 		collTags.insert(doc);
+		tagDictionary.tagInserted(doc);
 
 		if(tagName.startsWith(CONTROL_TAGS_PREFIX) || tagName.startsWith(CONTROL_TAGS_PREFIX2))
 			setTagProperty(tagID, TAG_PROPERTY_CONTROL, 1 );
@@ -756,6 +863,7 @@ public class BlackBoard {
 		doc.put(TAG_NAME, tagName );
 
 		collTags.insert(doc);
+		tagDictionary.tagInserted(doc);
 
 		if(tagName.startsWith(CONTROL_TAGS_PREFIX) || tagName.startsWith(CONTROL_TAGS_PREFIX2))
 		{
@@ -803,6 +911,7 @@ public class BlackBoard {
 		}
 
 		collTags.insert(tags);
+		tagDictionary.tagsInserted(tags);
 
 		//UPDATE NEXT TAG ID
 		DBObject c = collCounter.findOne( new BasicDBObject("_id",NEXT_ID) );
@@ -824,7 +933,7 @@ public class BlackBoard {
 
 		BasicDBObject query = new BasicDBObject();
 
-		for(DBCursor cur = getCollDocs().find(query, new BasicDBObject().append(DOC_ID,"1") );
+		for(DocCursor cur = getCollDocs().find(query, new BasicDBObject().append(DOC_ID,"1") );
 				cur.hasNext(); )
 			res.add(  cur.next().get(DOC_ID)  );			
 
@@ -838,7 +947,7 @@ public class BlackBoard {
 	 */
 	public BBDocSet getAllDocs()  throws Exception
 	{
-		DBCursor cur = getCollDocs().find();
+		DocCursor cur = getCollDocs().find();
 		return new BBDocSet(cur);
 	}
 
@@ -858,7 +967,7 @@ public class BlackBoard {
 
 		//	BasicDBObject query = new BasicDBObject();
 
-		for(DBCursor cur = collTags.find().limit(1000);	cur.hasNext(); )
+		for(DocCursor cur = collTags.find().limit(1000);	cur.hasNext(); )
 			res.add( ((BasicDBObject) cur.next()).getInt(TAG_ID)  );			
 
 		return res;
@@ -878,7 +987,7 @@ public class BlackBoard {
 
 		//BasicDBObject query = new BasicDBObject();
 
-		for(DBCursor cur = collTags.find().limit(1000); cur.hasNext(); )
+		for(DocCursor cur = collTags.find().limit(1000); cur.hasNext(); )
 			res.add( ((BasicDBObject) cur.next()).getString(TAG_NAME)  );			
 
 		return res;
@@ -892,7 +1001,7 @@ public class BlackBoard {
 	 */
 	public BBDocTagSet getAllTags()  throws Exception
 	{
-		DBCursor cur = collTags.find();
+		DocCursor cur = collTags.find();
 
 		return new BBDocTagSet(cur);
 	}
@@ -914,6 +1023,63 @@ public class BlackBoard {
 
 		getCollDocs().update(	new BasicDBObject(DOC_ID, docID),
 				new BasicDBObject("$unset",new BasicDBObject(fieldName, 1 )));
+		docCache.invalidate(docID);
+	}
+
+	/**
+	 * Returns a new AnnotationBatch that collects tag and field updates for docs of
+	 * this BlackBoard and writes them in bulk.
+	 * 
+	 * @param maxDocs Flush when that many documents have pending updates.
+	 * @param maxDelayMs Flush when the oldest pending update is that old (ms). Set to 0 to disable.
+	 * @param writeConcern The write concern of the bulk writes.
+	 * @return The new batch. Call flush() on it when done.
+	 */
+	public AnnotationBatch newAnnotationBatch(int maxDocs, long maxDelayMs, WriteConcern writeConcern)
+	{
+		return new AnnotationBatch(this, maxDocs, maxDelayMs, writeConcern);
+	}
+
+	/**
+	 * Returns a new AnnotationBatch with the default settings.
+	 * 
+	 * @return The new batch. Call flush() on it when done.
+	 */
+	public AnnotationBatch newAnnotationBatch()
+	{
+		return newAnnotationBatch(AnnotationBatch.DEFAULT_MAX_DOCS, 
+				AnnotationBatch.DEFAULT_MAX_DELAY_MS, WriteConcern.ACKNOWLEDGED);
+	}
+
+	/**
+	 * Returns a new WorkQueue over the documents that carry a FOR> tag, 
+	 * so that several workers can process them without overlap.
+	 * 
+	 * @param forTagID The FOR> tag that marks the documents to process.
+	 * @param postTagID The POST> tag that replaces it when a document is acked, or 0 for none.
+	 * @param owner The name of the worker, unique among the workers of the queue.
+	 * @param leaseMs For how long a claimed document is kept from the other workers (ms).
+	 * @return The new queue.
+	 * @throws Exception If the tags are not control tags.
+	 */
+	public WorkQueue newWorkQueue(int forTagID, int postTagID, String owner, long leaseMs) throws Exception
+	{
+		return new WorkQueue(this, forTagID, postTagID, owner, leaseMs);
+	}
+
+	/**
+	 * Returns a new WorkQueue with the default lease and an owner name that is
+	 * unique to this queue.
+	 * 
+	 * @param forTagID The FOR> tag that marks the documents to process.
+	 * @param postTagID The POST> tag that replaces it when a document is acked, or 0 for none.
+	 * @return The new queue.
+	 * @throws Exception If the tags are not control tags.
+	 */
+	public WorkQueue newWorkQueue(int forTagID, int postTagID) throws Exception
+	{
+		String owner = ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID();
+		return newWorkQueue(forTagID, postTagID, owner, WorkQueue.DEFAULT_LEASE_MS);
 	}
 
 	/**
@@ -931,8 +1097,7 @@ public class BlackBoard {
 		else
 			getCollDocs().update(	new BasicDBObject(DOC_ID, docID),
 					new BasicDBObject("$pull",new BasicDBObject(DOC_TAGS, tagID )));
-
-
+		docCache.invalidate(docID);
 	}
 
 
@@ -1040,13 +1205,9 @@ public class BlackBoard {
 	public BBDoc findDocByFieldValue(String fieldName, Object fieldValue) throws Exception
 	{
 		//	SEARCH CACHE
-		if(lastQueryResult!=null) {
-			//	try{
-			Object storedField = lastQueryResult.get( fieldName );	
-			if(		(storedField!=null) && // Field may not be there
-					(storedField.equals(fieldValue)) )
-				return new BBDoc(lastQueryResult);
-		}
+		BasicDBObject cached = findCachedDocByFieldValue(fieldName, fieldValue);
+		if(cached!=null)
+			return new BBDoc(cached.copy());
 
 		//SEARCH DB
 		BasicDBObject query = new BasicDBObject();
@@ -1059,8 +1220,8 @@ public class BlackBoard {
 			return DOC_NOT_FOUND;	
 
 		//		FOUND 
-		lastQueryResult = res;		//SAVE RES TO CACHE
-		return new BBDoc(lastQueryResult);
+		cacheDoc(res);		//SAVE RES TO CACHE
+		return new BBDoc(res.copy());
 	}
 
 
@@ -1076,12 +1237,9 @@ public class BlackBoard {
 	public Object findDocIDByFieldValue(String fieldName, Object fieldValue) throws Exception
 	{
 		//	SEARCH CACHE
-		if(lastQueryResult!=null) {
-			Object storedField = lastQueryResult.get(fieldName);	
-			if(		(storedField!=null) && // Field may not be there
-					(storedField.equals(fieldValue)) )
-				return lastQueryResult.get( DOC_ID );
-		}
+		BasicDBObject cached = findCachedDocByFieldValue(fieldName, fieldValue);
+		if(cached!=null)
+			return cached.get( DOC_ID );
 
 		//SEARCH DB
 		BasicDBObject query = new BasicDBObject();
@@ -1093,7 +1251,7 @@ public class BlackBoard {
 			return DOC_NOT_FOUND;
 
 		//FOUND IN DB
-		lastQueryResult = res;		//SAVE RES TO CACHE
+		cacheDoc(res);		//SAVE RES TO CACHE
 
 		return res.get( DOC_ID );
 	}
@@ -1136,6 +1294,7 @@ public class BlackBoard {
 			getCollDocs().update(	new BasicDBObject(DOC_ID,docIDs.get(i)),
 					new BasicDBObject("$unset",new BasicDBObject(fieldName, 1 )));
 		}
+		docCache.clear();
 	}
 
 	/**
@@ -1190,13 +1349,13 @@ public class BlackBoard {
 
 		List<Object> res = new LinkedList<Object>();
 		if(maxDocs>0)
-			for(DBCursor cur = getCollDocs().find(query, return_field).limit( maxDocs ) ;	cur.hasNext(); ) 
+			for(DocCursor cur = getCollDocs().find(query, return_field).limit( maxDocs ) ;	cur.hasNext(); ) 
 			{
 				Object id =   ((BasicDBObject) cur.next()).get(DOC_ID); 
 				res.add( id );
 			}
 		else
-			for(DBCursor cur = getCollDocs().find(query, return_field) ;	cur.hasNext(); ) 
+			for(DocCursor cur = getCollDocs().find(query, return_field) ;	cur.hasNext(); ) 
 			{
 				Object id =   ((BasicDBObject) cur.next()).get(DOC_ID); 
 				res.add( id );
@@ -1207,11 +1366,47 @@ public class BlackBoard {
 
 	
 	
+	/**
+	 * Returns the projection that fetches the ID and the specified fields.
+	 * 
+	 * @param fields The field names, or null for all fields.
+	 * @return The projection, or null to fetch all fields.
+	 */
+	BasicDBObject getProjection(List<String> fields)
+	{
+		if(fields==null)
+			return null;
+
+		BasicDBObject projection = new BasicDBObject().append(DOC_ID, 1);
+		for(String f : fields)
+			projection.put(f, 1);
+		return projection;
+	}
+
 	public BBDocSet findDocIDsByTags( 
 			List<Integer> withTags,
 			int maxDocs
 			) throws Exception 
 			{	
+		return findDocIDsByTags(withTags, null, maxDocs);
+			}
+
+	/**
+	 * Searches for documents that carry all the specified tags, 
+	 * and fetches only their IDs and the specified fields.
+	 * 
+	 * @param withTags Return documents that have all specified tags.
+	 * @param fields The fields to fetch. Set to null to fetch only the IDs.
+	 * @param maxDocs Set to zero to get all. 
+	 * @return A BBDocSet with the results.
+	 * @throws Exception 
+	 */
+	public BBDocSet findDocIDsByTags( 
+			List<Integer> withTags,
+			List<String> fields,
+			int maxDocs
+			) throws Exception 
+			{	
 		BasicDBObject query = new  BasicDBObject();
 		
 		List<Integer> normalTags = new LinkedList<Integer>();
@@ -1236,11 +1431,11 @@ public class BlackBoard {
 		}
 		
 		
-		BasicDBObject return_field = new BasicDBObject().append(DOC_ID, 1);
-
-		
+		BasicDBObject return_field = getProjection(fields);
+		if(return_field==null)
+			return_field = new BasicDBObject().append(DOC_ID, 1);
 		
-		DBCursor cur;
+		DocCursor cur;
 		if(maxDocs>0) 
 			cur = getCollDocs().find(query, return_field).limit( maxDocs ); 
 		else {
@@ -1270,6 +1465,30 @@ public class BlackBoard {
 			int maxDocs
 			) throws Exception 
 			{	
+		return findDocsByTagsSet(withTags, withoutTags, null, maxDocs);
+			}
+
+	/**
+	 * Searches for documents that carry the specified tags, 
+	 * and fetches only the specified fields.
+	 * 
+	 * Reading any other field from the returned docs throws an IllegalStateException,
+	 * so that a module does not silently work on missing data.
+	 * 
+	 * @param withTags Return articles that have all specified tags.
+	 * @param withoutTags  Return articles that have none of the specified tags.
+	 * @param fields The fields to fetch (the ID is always fetched). Set to null to fetch all.
+	 * @param maxDocs Set to zero to get all. 
+	 * @return A BBDocSet with the results.
+	 * @throws Exception 
+	 */
+	public BBDocSet findDocsByTagsSet(	
+			List<Integer> withTags,
+			List<Integer> withoutTags,
+			List<String> fields,
+			int maxDocs
+			) throws Exception 
+			{	
 		BasicDBObject query = new  BasicDBObject();
 		if(withTags!=null)
 		{
@@ -1288,11 +1507,11 @@ public class BlackBoard {
 
 		//System.out.println( query );
 
-		DBCursor cur = null;
+		DocCursor cur = null;
 		if(maxDocs>0)
-			cur = getCollDocs().find(query).limit( maxDocs );
+			cur = getCollDocs().find(query, getProjection(fields)).limit( maxDocs );
 		else
-			cur = getCollDocs().find(query);
+			cur = getCollDocs().find(query, getProjection(fields));
 		
 		System.out.println( cur );
 
@@ -1324,7 +1543,7 @@ public class BlackBoard {
 		System.out.println("DONE");
 
 
-		DBCursor cur = null;
+		DocCursor cur = null;
 		if(maxDocs>0)
 			cur = getCollDocs().find().sort(new BasicDBObject( fieldName , -1)).limit( maxDocs );
 		else
@@ -1370,7 +1589,7 @@ public class BlackBoard {
 
 		query.put(DOC_TAGS,new BasicDBObject("$all", withTagIDs));
 
-		DBCursor cur = null;
+		DocCursor cur = null;
 		if(maxDocs>0)
 			cur = getCollDocs().find(query).sort(new BasicDBObject( fieldName , -1)).limit( maxDocs );
 		else
@@ -1425,6 +1644,7 @@ public class BlackBoard {
 			getCollDocs().update(	new BasicDBObject(DOC_ID,docIDs.get(i)),
 					new BasicDBObject("$rename",new BasicDBObject(oldFieldName,newFieldName)));
 		}
+		docCache.clear();
 	}
 
 
@@ -1444,6 +1664,7 @@ public class BlackBoard {
 			throw new Exception("Function insertNewDoc() can be used only from BlackBoard class.");
 
 		getCollDocs().insert( doc.dataObject , new WriteConcern(true));
+		docCache.invalidate(doc.dataObject.get(DOC_ID));	//It may have replaced a cached doc
 	}
 
 	/**
@@ -1467,6 +1688,8 @@ public class BlackBoard {
 			docsData.add(doc.dataObject);
 
 		getCollDocs().insert( docsData , new WriteConcern(true));
+		for(DBObject data : docsData)
+			docCache.invalidate(data.get(DOC_ID));
 	}
 
 
@@ -1503,7 +1726,7 @@ public class BlackBoard {
 			throw new Exception("This function is for admin purposes only.");
 
 		getCollDocs().remove( new BasicDBObject(DOC_ID, docID) );
-
+		docCache.invalidate(docID);
 	}
 
 	/**
@@ -1543,13 +1766,13 @@ public class BlackBoard {
 	
 		if(resSize!=0)
 		{
-			DBCursor cur = getCollDocs().find(query).limit(resSize);
+			DocCursor cur = getCollDocs().find(query).limit(resSize);
 			return new BBDocSet(cur);
 
 		}
 		else
 		{
-			DBCursor cur = getCollDocs().find(query);
+			DocCursor cur = getCollDocs().find(query);
 			return new BBDocSet(cur);
 		}
 	}
@@ -12,11 +12,7 @@ import java.util.TreeMap;
 import org.bson.types.ObjectId;
 import com.mongodb.BasicDBObject;
 import com.mongodb.BasicDBObjectBuilder;
-import com.mongodb.DB;
-import com.mongodb.DBCollection;
-import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
-import com.mongodb.MapReduceCommand;
 import com.mongodb.MongoException;
 import com.mongodb.WriteConcern;
 
@@ -41,6 +37,11 @@ public class BlackBoardDateBased extends BlackBoard {
 	static final int ORDER_RECENT_FIRST = -1;
 	static final int ORDER_OLD_FIRST = 1;
 
+	/**
+	 * Bitmaps of the tags of the docs of each year (see TagIndex).
+	 */
+	final TagIndex tagIndex = new TagIndex();
+
 	/**
 	 * Returns the collection of the specified year. It returns a collection
 	 * object even if data do not exist at that year (this is useful in order to
@@ -50,47 +51,133 @@ public class BlackBoardDateBased extends BlackBoard {
 	 *            The year of interest.
 	 * @return A collection of the data for the specified year.
 	 */
-	protected DBCollection getCollDocs(int yearOfInterest) {
-		DBCollection coll = collDocs.get(yearOfInterest);
+	protected DocCollection getCollDocs(int yearOfInterest) {
+		DocCollection coll = collDocs.get(yearOfInterest);
 		if (coll == null) {
 			// Creates a new collection year
-			coll = mongo_db.getCollection(BB_NAME + "_" + yearOfInterest);
-			coll.setObjectClass(BasicDBObject.class);
+			coll = storage.getCollection(BB_NAME + "_" + yearOfInterest);
 			collDocs.put(yearOfInterest, coll);
 		}
 		return coll;
 	}
 
+	/**
+	 * Returns the collection of the year the document with given ID belongs to.
+	 */
+	@Override
+	DocCollection getCollDocsByDocID(Object docID) {
+		return getCollDocs(getYearOfInterestByDocID(docID));
+	}
+
+	/**
+	 * Returns the collections of the years from the year of the document with
+	 * given ID (or the first year) up to the current year. Years added since
+	 * the BB was loaded are included if this process has used them.
+	 */
+	@Override
+	List<DocCollection> getCollDocsFrom(Object docID) {
+		TreeMap<Integer, DocCollection> years = (TreeMap<Integer, DocCollection>) collDocs;
+		int lastYear = Math.max(MAX_ARTICLES_YEAR_IN_DB,
+				getYearOfInterestByDate(new Date()));
+		if (!years.isEmpty())
+			lastYear = Math.max(lastYear, years.lastKey());
+		int firstYear;
+		if (docID != null)
+			firstYear = getYearOfInterestByDocID(docID);
+		else if (!years.isEmpty())
+			firstYear = Math.min(MIN_ARTICLES_YEAR_IN_DB, years.firstKey());
+		else
+			firstYear = MIN_ARTICLES_YEAR_IN_DB;
+		List<DocCollection> colls = new ArrayList<DocCollection>();
+		for (int year = Math.min(firstYear, lastYear); year <= lastYear; year++)
+			colls.add(getCollDocs(year));
+		return colls;
+	}
+
+	@Override
+	void docUpdated(Object docID) {
+		super.docUpdated(docID);
+		tagIndex.invalidate(getYearOfInterestByDocID(docID), docID);
+	}
+
+	/**
+	 * Returns the tag index of this Black Board, e.g. to enable it or read its
+	 * counters.
+	 */
+	public TagIndex getTagIndex() {
+		return tagIndex;
+	}
+
+	/**
+	 * Counts the docs of a year that match a query, with the tag index if it
+	 * can answer the query, or else with the DB.
+	 */
+	private long countDocsInYear(int yearOfInterest, DBObject query) {
+		DocCollection coll = getCollDocs(yearOfInterest);
+		long count = tagIndex.count(yearOfInterest, coll, query);
+		if (count < 0)
+			count = coll.count(query);
+		return count;
+	}
+
+	/**
+	 * Finds the docs of a year that match a query, with the tag index if it
+	 * can answer the query, or else with the DB.
+	 * 
+	 * @param projection
+	 *            The fields to fetch, or null to fetch all.
+	 * @param order
+	 *            0 = no order / -1 recent first / 1 old first
+	 * @param maxDocs
+	 *            The max number of docs, 0 for all.
+	 */
+	private DocCursor findDocsInYear(int yearOfInterest, DBObject query,
+			DBObject projection, int order, int maxDocs) {
+		DocCollection coll = getCollDocs(yearOfInterest);
+		// Not limited by the index: the docs are checked again by the cursor
+		List<ObjectId> ids = tagIndex.findIDs(yearOfInterest, coll, query,
+				order, 0);
+		if (ids != null) {
+			DocCursor cursor = new TagIndexDocCursor(coll, query, ids,
+					projection);
+			return maxDocs > 0 ? cursor.limit(maxDocs) : cursor;
+		}
+
+		DocCursor cursor = coll.find(query, projection);
+		if (order != ORDER_NONE)
+			cursor = cursor.sort(new BasicDBObject(DOC_ID, order));
+		if (maxDocs > 0)
+			cursor = cursor.limit(maxDocs);
+		return cursor;
+	}
+
 	/**
 	 * Constructor
 	 * 
 	 * @param dbConnection
-	 *            The mongo database
+	 *            The database: a BlackBoardStorage, or a MongoDB DB
 	 * @param blackBoardName
 	 * @param adminMode
 	 *            Is this a bulk job?
 	 * @throws Exception
 	 */
-	public BlackBoardDateBased(DB dbConnection, String blackBoardName,
+	public BlackBoardDateBased(Object dbConnection, String blackBoardName,
 			boolean adminMode) throws Exception {
 		// super(mongo_database, blackBoardName, adminMode);
 
 		System.out.println("Initialising " + blackBoardName + " Black Board.");
 
 		this.adminMode = adminMode;
-		this.mongo_db = (DB) dbConnection;
+		this.storage = toStorage(dbConnection);
 		this.BB_NAME = blackBoardName;
 
-		DBCollection singleCollection = mongo_db.getCollection(BB_NAME);
-		singleCollection.setObjectClass(BasicDBObject.class);
-		collDocs = new TreeMap<Integer, DBCollection>();
+		DocCollection singleCollection = storage.getCollection(BB_NAME);
+		collDocs = new TreeMap<Integer, DocCollection>();
 		collDocs.put(0, singleCollection);
 
-		collTags = mongo_db.getCollection(BB_NAME + "_TAGS");
-		collTags.setObjectClass(BasicDBObject.class);
+		collTags = storage.getCollection(BB_NAME + "_TAGS");
 
-		collCounter = mongo_db.getCollection(BB_NAME + "_COUNTER");
-		collCounter.setObjectClass(BasicDBObject.class);
+		collCounter = storage.getCollection(BB_NAME + "_COUNTER");
 
 		// /////////////////////////////////
 		BasicDBObject isThereNextIDQuery = new BasicDBObject();
@@ -118,12 +205,16 @@ public class BlackBoardDateBased extends BlackBoard {
 			collCounter.insert(docID);
 		}
 
+		tagDictionary = new TagDictionary(collTags, collCounter);
+
 		// MAINTAIN A LIST OF FIELD NAMES THAT SHOULD NOT CHANGE
 		if (FINAL_FIELDS == null)
 			FINAL_FIELDS = new LinkedList<String>();
 		FINAL_FIELDS.add(DOC_ID);
 		FINAL_FIELDS.add(DOC_TAGS);
 		FINAL_FIELDS.add(DOC_FOR_TAGS);
+		FINAL_FIELDS.add(DOC_LEASE_OWNER);
+		FINAL_FIELDS.add(DOC_LEASE_EXPIRY);
 
 		// long bef;
 		BasicDBObject index;
@@ -140,7 +231,7 @@ public class BlackBoardDateBased extends BlackBoard {
 		// bef));
 
 		// Check how many years are really in DB
-		Set<String> existingDBs = mongo_db.getCollectionNames();
+		Set<String> existingDBs = storage.getCollectionNames();
 		for (String coll_n : existingDBs) {
 			if (coll_n.startsWith(BB_NAME)) {
 				String suffix = coll_n.split("_")[1];
@@ -203,6 +294,18 @@ public class BlackBoardDateBased extends BlackBoard {
 		return dt.get(Calendar.YEAR);
 	}
 
+	/**
+	 * Returns the Year of the last moment before the end of a period, i.e. a
+	 * period that ends at 1/1 00:00:00 is within the previous year.
+	 * 
+	 * @param toDate
+	 *            The end of the period (excluded).
+	 * @return The year part of the end of the period.
+	 */
+	int getYearOfInterestByEndDate(Date toDate) {
+		return getYearOfInterestByDate(new Date(toDate.getTime() - 1));
+	}
+
 	/**
 	 * Searches for a document that has a field with a specific value.
 	 * 
@@ -223,12 +326,9 @@ public class BlackBoardDateBased extends BlackBoard {
 		int YearOfInterest = cal.get(Calendar.YEAR);
 
 		// SEARCH CACHE
-		if (lastQueryResult != null) {
-			Object storedField = lastQueryResult.get(fieldName);
-			if ((storedField != null) && // Field may not be there
-					(storedField.equals(fieldValue)))
-				return lastQueryResult.get(DOC_ID);
-		}
+		BasicDBObject cached = findCachedDocByFieldValue(fieldName, fieldValue);
+		if (cached != null)
+			return cached.get(DOC_ID);
 
 		// SEARCH DB
 		BasicDBObject query = new BasicDBObject();
@@ -263,7 +363,7 @@ public class BlackBoardDateBased extends BlackBoard {
 		if (res == null)
 			return DOC_NOT_FOUND;
 		// FOUND IN DB
-		lastQueryResult = res; // SAVE RES TO CACHE
+		cacheDoc(res); // SAVE RES TO CACHE
 
 		return res.get(DOC_ID);
 	}
@@ -281,12 +381,9 @@ public class BlackBoardDateBased extends BlackBoard {
 	public final Object findDocIDByFieldValue(int yearOfInterest,
 			String fieldName, Object fieldValue) throws Exception {
 		// SEARCH CACHE
-		if (lastQueryResult != null) {
-			Object storedField = lastQueryResult.get(fieldName);
-			if ((storedField != null) && // Field may not be there
-					(storedField.equals(fieldValue)))
-				return lastQueryResult.get(DOC_ID);
-		}
+		BasicDBObject cached = findCachedDocByFieldValue(fieldName, fieldValue);
+		if (cached != null)
+			return cached.get(DOC_ID);
 
 		// SEARCH DB
 		BasicDBObject query = new BasicDBObject();
@@ -299,7 +396,7 @@ public class BlackBoardDateBased extends BlackBoard {
 		if (res == null)
 			return DOC_NOT_FOUND;
 		// FOUND IN DB
-		lastQueryResult = res; // SAVE RES TO CACHE
+		cacheDoc(res); // SAVE RES TO CACHE
 
 		return res.get(DOC_ID);
 	}
@@ -317,13 +414,9 @@ public class BlackBoardDateBased extends BlackBoard {
 	public final BBDoc findDocByFieldValue(Date fromDate, String fieldName,
 			Object fieldValue) throws Exception {
 		// SEARCH CACHE
-		if (lastQueryResult != null) {
-			// try{
-			Object storedField = lastQueryResult.get(fieldName);
-			if ((storedField != null) && // Field may not be there
-					(storedField.equals(fieldValue)))
-				return new BBDoc(lastQueryResult);
-		}
+		BasicDBObject cached = findCachedDocByFieldValue(fieldName, fieldValue);
+		if (cached != null)
+			return new BBDoc(cached.copy());
 
 		// SEARCH DB
 		BasicDBObject query = new BasicDBObject();
@@ -336,8 +429,8 @@ public class BlackBoardDateBased extends BlackBoard {
 			return (BBDoc) DOC_NOT_FOUND;
 
 		// FOUND
-		lastQueryResult = res; // SAVE RES TO CACHE
-		return new BBDoc(lastQueryResult);
+		cacheDoc(res); // SAVE RES TO CACHE
+		return new BBDoc(res.copy());
 	}
 
 	/**
@@ -365,7 +458,7 @@ public class BlackBoardDateBased extends BlackBoard {
 	 */
 	public final Date getMinDocDate() throws Exception {
 
-		DBCursor cur = getCollDocs(MIN_ARTICLES_YEAR_IN_DB).find()
+		DocCursor cur = getCollDocs(MIN_ARTICLES_YEAR_IN_DB).find()
 				.sort(new BasicDBObject("_id", 1)).limit(1);
 
 		if (cur == null)
@@ -387,7 +480,7 @@ public class BlackBoardDateBased extends BlackBoard {
 	 */
 	public final Date getMaxDocDate() throws Exception {
 
-		DBCursor cur = getCollDocs(MAX_ARTICLES_YEAR_IN_DB).find()
+		DocCursor cur = getCollDocs(MAX_ARTICLES_YEAR_IN_DB).find()
 				.sort(new BasicDBObject("_id", -1)).limit(1);
 
 		if (cur == null)
@@ -455,9 +548,9 @@ public class BlackBoardDateBased extends BlackBoard {
 	 */
 	public BBDoc findDocByID(Object docID) throws Exception {
 		// SEARCH CACHE
-		if ((lastQueryResult != null)
-				&& (lastQueryResult.get(BlackBoard.DOC_ID).equals(docID)))
-			return new BBDoc(lastQueryResult);
+		BasicDBObject cached = docCache.get(docID);
+		if (cached != null)
+			return new BBDoc(cached.copy());
 
 		// SEARCH DB
 		BasicDBObject where = new BasicDBObject();
@@ -468,9 +561,9 @@ public class BlackBoardDateBased extends BlackBoard {
 		if (res == null)
 			return (BBDoc) BlackBoard.DOC_NOT_FOUND;
 
-		lastQueryResult = res;
+		cacheDoc(res);
 
-		return new BBDoc(lastQueryResult);
+		return new BBDoc(res.copy());
 	}
 
 	/**
@@ -489,17 +582,22 @@ public class BlackBoardDateBased extends BlackBoard {
 		if (tagID <= 0)
 			throw new Exception("TagID should be >0");
 
+		String field;
 		if (getTagProperty(tagID, TAG_PROPERTY_CONTROL) == 1) {
+			field = DOC_FOR_TAGS;
 			getCollDocs(getYearOfInterestByDocID(docID)).update(
 					new BasicDBObject(DOC_ID, docID),
 					new BasicDBObject("$addToSet", new BasicDBObject(
 							DOC_FOR_TAGS, tagID)));
 		} else {
+			field = DOC_TAGS;
 			getCollDocs(getYearOfInterestByDocID(docID)).update(
 					new BasicDBObject(DOC_ID, docID),
 					new BasicDBObject("$addToSet", new BasicDBObject(DOC_TAGS,
 							tagID)));
 		}
+		docCache.invalidate(docID);
+		tagIndex.tagAdded(getYearOfInterestByDocID(docID), docID, field, tagID);
 	}
 
 	/**
@@ -518,22 +616,28 @@ public class BlackBoardDateBased extends BlackBoard {
 		getCollDocs(getYearOfInterestByDocID(docID)).update(
 				new BasicDBObject(DOC_ID, docID),
 				new BasicDBObject("$unset", new BasicDBObject(fieldName, 1)));
-
+		docCache.invalidate(docID);
 	}
 
 	@Override
 	public void removeTagFromDoc(Object docID, int tagID) throws Exception {
+		String field;
 		if (getTagProperty(tagID, TAG_PROPERTY_CONTROL) == 1) {
+			field = DOC_FOR_TAGS;
 			getCollDocs(getYearOfInterestByDocID(docID)).update(
 					new BasicDBObject(DOC_ID, docID),
 					new BasicDBObject("$pull", new BasicDBObject(DOC_FOR_TAGS,
 							tagID)));
 		} else {
+			field = DOC_TAGS;
 			getCollDocs(getYearOfInterestByDocID(docID)).update(
 					new BasicDBObject(DOC_ID, docID),
 					new BasicDBObject("$pull", new BasicDBObject(DOC_TAGS,
 							tagID)));
 		}
+		docCache.invalidate(docID);
+		tagIndex.tagRemoved(getYearOfInterestByDocID(docID), docID, field,
+				tagID);
 	}
 
 	/**
@@ -571,6 +675,7 @@ public class BlackBoardDateBased extends BlackBoard {
 				new BasicDBObject(DOC_ID, docID),
 				new BasicDBObject("$set", new BasicDBObject(fieldName,
 						fieldValue)));
+		docCache.invalidate(docID);
 	}
 
 	/**
@@ -597,6 +702,7 @@ public class BlackBoardDateBased extends BlackBoard {
 				new BasicDBObject(DOC_ID, docID),
 				new BasicDBObject("$set", new BasicDBObject(fieldName,
 						fieldValue)));
+		docCache.invalidate(docID);
 	}
 
 	/**
@@ -623,7 +729,7 @@ public class BlackBoardDateBased extends BlackBoard {
 				new BasicDBObject(DOC_ID, docID),
 				new BasicDBObject("$addToSet", new BasicDBObject(fieldName,
 						fieldValue)));
-
+		docCache.invalidate(docID);
 	}
 
 	/**
@@ -691,7 +797,7 @@ public class BlackBoardDateBased extends BlackBoard {
 
 		query.put(fieldName, fieldValue);
 		// System.out.println(query);
-		DBCursor res = getCollDocs(YearOfInterest).find(query);
+		DocCursor res = getCollDocs(YearOfInterest).find(query);
 
 		return new BBDocSet(res);
 	}
@@ -733,7 +839,7 @@ public class BlackBoardDateBased extends BlackBoard {
 
 		 //System.out.println(query);
 
-		DBCursor res;
+		DocCursor res;
 		if (null != maxDocs) {
 			res = getCollDocs(YearOfInterest).find(query).sort(new BasicDBObject(DOC_ID, ORDER_RECENT_FIRST)).limit(maxDocs);
 		} else {
@@ -797,7 +903,7 @@ public class BlackBoardDateBased extends BlackBoard {
 
 		// System.out.println(query);
 
-		DBCursor res;
+		DocCursor res;
 		if (null != maxDocs) {
 			res = getCollDocs(YearOfInterest).find(query).limit(maxDocs);
 		} else {
@@ -814,6 +920,12 @@ public class BlackBoardDateBased extends BlackBoard {
 	@Override
 	public BBDocSet findDocIDsByTags(List<Integer> withTags, int maxDocs)
 			throws Exception {
+		return findDocIDsByTags(withTags, null, maxDocs);
+	}
+
+	@Override
+	public BBDocSet findDocIDsByTags(List<Integer> withTags,
+			List<String> fields, int maxDocs) throws Exception {
 		// QUERY
 		BasicDBObject query = new BasicDBObject();
 
@@ -838,22 +950,19 @@ public class BlackBoardDateBased extends BlackBoard {
 		}
 
 		// RETURN FIELDS
-		BasicDBObject return_field = new BasicDBObject().append(DOC_ID, 1);
+		BasicDBObject return_field = getProjection(fields);
+		if (return_field == null)
+			return_field = new BasicDBObject().append(DOC_ID, 1);
 
 		// RESULTS
-		List<DBCursor> cursors = new ArrayList<DBCursor>();
+		List<DocCursor> cursors = new ArrayList<DocCursor>();
 
 		for (int year = MAX_ARTICLES_YEAR_IN_DB; year >= MIN_ARTICLES_YEAR_IN_DB; year--)// Most
 																							// recent
 																							// first
 		{
-			DBCursor cur;
-			if (maxDocs > 0)
-				cur = getCollDocs(year).find(query, return_field)
-						.limit(maxDocs);
-			else
-				cur = getCollDocs(year).find(query, return_field);
-			cursors.add(cur);
+			cursors.add(findDocsInYear(year, query, return_field, ORDER_NONE,
+					maxDocs));
 		}
 
 		return new BBDocSet(cursors);
@@ -898,7 +1007,7 @@ public class BlackBoardDateBased extends BlackBoard {
 	// throws Exception
 	// {
 
-	// List<DBCursor> results = new LinkedList<DBCursor>();
+	// List<DocCursor> results = new LinkedList<DocCursor>();
 
 	// //if dates are not specified
 	// if((fromDate==null) && (toDate==null))
@@ -911,7 +1020,7 @@ public class BlackBoardDateBased extends BlackBoard {
 
 	// for(int year = toYear; year>=fromYear; year--)
 	// {
-	// DBCursor res = findRecentDocsByFieldsTagsSetFullYear(year,
+	// DocCursor res = findRecentDocsByFieldsTagsSetFullYear(year,
 	// withFields,withoutFields, withTags, withoutTags,maxArticles );
 	// results.add(res);
 	// }
@@ -924,7 +1033,7 @@ public class BlackBoardDateBased extends BlackBoard {
 	// //Dates within same year
 	// if(fromYear == toYear)
 	// {
-	// DBCursor r = findRecentDocsByFieldsTagsSetSingleYear( fromDate,
+	// DocCursor r = findRecentDocsByFieldsTagsSetSingleYear( fromDate,
 	// toDate,withFields, withoutFields,
 	// withTags, withoutTags,maxArticles );
 
@@ -997,6 +1106,10 @@ public class BlackBoardDateBased extends BlackBoard {
 	 * @param withoutTags
 	 *            A list of type List<Integer> with the IDs of the tags that
 	 *            articles should not carry.
+	 * @param fields
+	 *            The fields to fetch, or null to fetch all. The _id is always
+	 *            fetched. Reading other fields from the docs throws an
+	 *            IllegalStateException.
 	 * @param maxArticles
 	 *            The maximum number of articles to return (Upper limit =
 	 *            MAX_ARICLEIDS_IN_RESULT_LIST).
@@ -1004,9 +1117,9 @@ public class BlackBoardDateBased extends BlackBoard {
 	 */
 	public BBDocSet findDocsByFieldsTagsSet(Date fromDate, Date toDate,
 			List<String> withFields, List<String> withoutFields,
-			List<Integer> withTags, List<Integer> withoutTags, int maxArticles)
-			throws Exception {
-		List<DBCursor> results = new LinkedList<DBCursor>();
+			List<Integer> withTags, List<Integer> withoutTags,
+			List<String> fields, int maxArticles) throws Exception {
+		List<DocCursor> results = new LinkedList<DocCursor>();
 
 		// if dates are not specified
 		if ((fromDate == null) && (toDate == null)) {
@@ -1017,21 +1130,21 @@ public class BlackBoardDateBased extends BlackBoard {
 			int toYear = getYearOfInterestByDate(toDate);
 
 			for (int year = fromYear; year <= toYear; year++) {
-				DBCursor res = findDocsByFieldsTagsSetFullYear(year,
+				DocCursor res = findDocsByFieldsTagsSetFullYear(year,
 						withFields, withoutFields, withTags, withoutTags,
-						maxArticles, ORDER_OLD_FIRST);
+						fields, maxArticles, ORDER_OLD_FIRST);
 
 				results.add(res);
 			}
 		} else // There are dates
 		{
 			int fromYear = getYearOfInterestByDate(fromDate);
-			int toYear = getYearOfInterestByDate(toDate);
+			int toYear = Math.max(fromYear, getYearOfInterestByEndDate(toDate));
 
 			if (fromYear == toYear) {
-				DBCursor r = findDocsByFieldsTagsSetSingleYear(fromDate,
+				DocCursor r = findDocsByFieldsTagsSetSingleYear(fromDate,
 						toDate, withFields, withoutFields, withTags,
-						withoutTags, maxArticles, ORDER_OLD_FIRST);
+						withoutTags, fields, maxArticles, ORDER_OLD_FIRST);
 
 				// return returnType.cast(new BBDocSet(r) );
 				return new BBDocSet(r);
@@ -1045,13 +1158,13 @@ public class BlackBoardDateBased extends BlackBoard {
 
 			results.add(findDocsByFieldsTagsSetSingleYear(fromDate,
 					endFirstYear, withFields, withoutFields, withTags,
-					withoutTags, maxArticles, ORDER_OLD_FIRST));
+					withoutTags, fields, maxArticles, ORDER_OLD_FIRST));
 
 			// B) sum all full years
 			for (int year = fromYear + 1; year <= toYear - 1; year++) {
 				results.add(findDocsByFieldsTagsSetFullYear(year, withFields,
-						withoutFields, withTags, withoutTags, maxArticles,
-						ORDER_OLD_FIRST));
+						withoutFields, withTags, withoutTags, fields,
+						maxArticles, ORDER_OLD_FIRST));
 			}
 
 			// C) rest of year
@@ -1060,13 +1173,76 @@ public class BlackBoardDateBased extends BlackBoard {
 
 			results.add(findDocsByFieldsTagsSetSingleYear(startFinalYear,
 					toDate, withFields, withoutFields, withTags, withoutTags,
-					maxArticles, ORDER_OLD_FIRST));
+					fields, maxArticles, ORDER_OLD_FIRST));
 
 		}
 
 		return new BBDocSet(results);
 	}
 
+	/**
+	 * Finds docs with specific annotations (see
+	 * findDocsByFieldsTagsSet(Date, Date, List, List, List, List, List, int)).
+	 * All the fields of the docs are fetched.
+	 */
+	public BBDocSet findDocsByFieldsTagsSet(Date fromDate, Date toDate,
+			List<String> withFields, List<String> withoutFields,
+			List<Integer> withTags, List<Integer> withoutTags, int maxArticles)
+			throws Exception {
+		return findDocsByFieldsTagsSet(fromDate, toDate, withFields,
+				withoutFields, withTags, withoutTags, null, maxArticles);
+	}
+
+	/**
+	 * Splits the period [fromDate, toDate) in about n periods of equal length,
+	 * none of which spans more than one year. The _id ranges of the periods do
+	 * not overlap, so the docs of each period can be processed in parallel.
+	 * 
+	 * @param fromDate
+	 *            The start of the period. If null, the date of the first doc.
+	 * @param toDate
+	 *            The end of the period (excluded). If null, just after the
+	 *            last doc.
+	 * @param n
+	 *            The number of periods.
+	 * @return A list of {fromDate, toDate} pairs in chronological order.
+	 * @throws Exception
+	 */
+	public List<Date[]> splitDateRange(Date fromDate, Date toDate, int n)
+			throws Exception {
+		if (fromDate == null)
+			fromDate = getMinDocDate();
+		if (toDate == null)// IDs have a resolution of one second
+			toDate = new Date(getMaxDocDate().getTime() + 1000);
+
+		List<Date[]> ranges = new ArrayList<Date[]>();
+		if (!fromDate.before(toDate))
+			return ranges;
+
+		long total = toDate.getTime() - fromDate.getTime();
+		Date start = fromDate;
+		while (start.before(toDate)) {
+			// the part of the period within the year of start
+			Date end = new GregorianCalendar(
+					getYearOfInterestByDate(start) + 1, 0, 1, 0, 0, 0)
+					.getTime();
+			if (end.after(toDate))
+				end = toDate;
+
+			long length = end.getTime() - start.getTime();
+			int parts = (int) Math.max(1, Math.round((double) n * length / total));
+			long step = length / parts;
+			long partStart = start.getTime();
+			for (int p = 0; p < parts; p++) {
+				Date partEnd = (p == parts - 1) ? end : new Date(partStart
+						+ (p + 1) * step);
+				ranges.add(new Date[] { start, partEnd });
+				start = partEnd;
+			}
+		}
+		return ranges;
+	}
+
 	/**
 	 * Searches for documents that carry the specified tags. The order of tags
 	 * is important for speed: use the more rare tags first and the most
@@ -1090,6 +1266,14 @@ public class BlackBoardDateBased extends BlackBoard {
 				withoutTags, maxDocs);
 	}
 
+	@Override
+	public BBDocSet findDocsByTagsSet(List<Integer> withTags,
+			List<Integer> withoutTags, List<String> fields, int maxDocs)
+			throws Exception {
+		return this.findDocsByFieldsTagsSet(null, null, null, null, withTags,
+				withoutTags, fields, maxDocs);
+	}
+
 	/**
 	 * Use when dates are from the same year.
 	 * 
@@ -1099,14 +1283,16 @@ public class BlackBoardDateBased extends BlackBoard {
 	 * @param withoutFields
 	 * @param withTags
 	 * @param withoutTags
+	 * @param fields
+	 *            The fields to fetch, or null to fetch all.
 	 * @param maxArticles
-	 * @return DBCursor
+	 * @return DocCursor
 	 * @throws Exception
 	 */
-	private DBCursor findDocsByFieldsTagsSetSingleYear(Date fromDate,
+	private DocCursor findDocsByFieldsTagsSetSingleYear(Date fromDate,
 			Date toDate, List<String> withFields, List<String> withoutFields,
-			List<Integer> withTags, List<Integer> withoutTags, int maxArticles,
-			int order) throws Exception {
+			List<Integer> withTags, List<Integer> withoutTags,
+			List<String> fields, int maxArticles, int order) throws Exception {
 		if (withTags != null && withoutTags != null)
 			throw new Exception(
 					"findDocsByFieldsTagsSetSingleYear() should select either withTags or withoutTags");
@@ -1126,7 +1312,8 @@ public class BlackBoardDateBased extends BlackBoard {
 		int YearOfInterest = -1;
 		if ((fromID != null) && (toID != null)) {
 			int fromYear = getYearOfInterestByDocID(fromID);
-			int toYear = getYearOfInterestByDocID(toID);
+			int toYear = Math.max(fromYear,
+					getYearOfInterestByEndDate(toDate));
 			if (fromYear != toYear)
 				throw new Exception(
 						"Year field of fromDate and toDate must be equal");
@@ -1182,29 +1369,11 @@ public class BlackBoardDateBased extends BlackBoard {
 
 		// System.out.println(query);
 
-		DBCursor cursor = null;
-
-		if (order == ORDER_NONE) {
-			if (maxArticles > 0)
-				cursor = getCollDocs(YearOfInterest).find(query).limit(
-						maxArticles);
-			else
-				cursor = getCollDocs(YearOfInterest).find(query);
-		} else if ((order == ORDER_RECENT_FIRST) || (order == ORDER_OLD_FIRST)) // recent
-		{
-			if (maxArticles > 0)
-				cursor = getCollDocs(YearOfInterest).find(query)
-						.sort(new BasicDBObject(DOC_ID, order))
-						.limit(maxArticles);
-			else
-				cursor = getCollDocs(YearOfInterest).find(query).sort(
-						new BasicDBObject(DOC_ID, order));
-		}
-
-		return cursor;
+		return findDocsInYear(YearOfInterest, query, getProjection(fields),
+				order, maxArticles);
 	}
 
-	DBCursor findDocsByDatesSingleYearOnlyTags(Date fromDate, Date toDate,
+	DocCursor findDocsByDatesSingleYearOnlyTags(Date fromDate, Date toDate,
 			int maxArticles) throws Exception {
 		ObjectId fromID = null;
 		ObjectId toID = null;
@@ -1235,7 +1404,7 @@ public class BlackBoardDateBased extends BlackBoard {
 		else if (toID != null)
 			query.put(DOC_ID, new BasicDBObject("$lt", toID));
 
-		DBCursor cursor = null;
+		DocCursor cursor = null;
 
 		BasicDBObject results = new BasicDBObject();
 		results.put(DOC_TAGS, 1);
@@ -1257,16 +1426,18 @@ public class BlackBoardDateBased extends BlackBoard {
 	 * @param withoutFields
 	 * @param withTags
 	 * @param withoutTags
+	 * @param fields
+	 *            The fields to fetch, or null to fetch all.
 	 * @param maxArticles
 	 * @param order
 	 *            : 0 = no order / -1 recent first / 1 old first
-	 * @return DBCursor
+	 * @return DocCursor
 	 * @throws Exception
 	 */
-	private DBCursor findDocsByFieldsTagsSetFullYear(int yearOfInterest,
+	private DocCursor findDocsByFieldsTagsSetFullYear(int yearOfInterest,
 			List<String> withFields, List<String> withoutFields,
-			List<Integer> withTags, List<Integer> withoutTags, int maxArticles,
-			int order) throws Exception {
+			List<Integer> withTags, List<Integer> withoutTags,
+			List<String> fields, int maxArticles, int order) throws Exception {
 		if (withTags != null && withoutTags != null)
 			throw new Exception(
 					"findArticlesByFieldsTags() should select either withTags or withoutTags");
@@ -1313,26 +1484,12 @@ public class BlackBoardDateBased extends BlackBoard {
 				query.put(DOC_TAGS, new BasicDBObject("$nin", withoutTags));
 		}
 
-		DBCursor cursor = null;
-		if (order == ORDER_NONE) {
-			if (maxArticles > 0)
-				cursor = getCollDocs(yearOfInterest).find(query).limit(
-						maxArticles);
-			else
-				cursor = getCollDocs(yearOfInterest).find(query);
-		} else if ((order == ORDER_RECENT_FIRST) || (order == ORDER_OLD_FIRST)) // recent
-		{
-			if (maxArticles > 0)
-				cursor = getCollDocs(yearOfInterest).find(query)
-						.sort(new BasicDBObject(DOC_ID, order))
-						.limit(maxArticles);
-			else
-				cursor = getCollDocs(yearOfInterest).find(query).sort(
-						new BasicDBObject(DOC_ID, order));
-		} else
+		if (order != ORDER_NONE && order != ORDER_RECENT_FIRST
+				&& order != ORDER_OLD_FIRST)
 			throw new Exception("Wrong order");
 
-		return cursor;
+		return findDocsInYear(yearOfInterest, query, getProjection(fields),
+				order, maxArticles);
 	}
 
 	/**
@@ -1425,7 +1582,7 @@ public class BlackBoardDateBased extends BlackBoard {
 				query.put(DOC_TAGS, new BasicDBObject("$nin", withoutTags));
 		}
 
-		DBCursor cur;
+		DocCursor cur;
 		if (maxArticles > 0)
 			cur = getCollDocs(YearOfInterest).find(query)
 					.sort(new BasicDBObject(DOC_ID, -1)).limit(maxArticles);
@@ -1448,7 +1605,8 @@ public class BlackBoardDateBased extends BlackBoard {
 
 		getCollDocs(getYearOfInterestByDocID(docID)).remove(
 				new BasicDBObject(DOC_ID, docID));
-
+		docCache.invalidate(docID);
+		tagIndex.docRemoved(getYearOfInterestByDocID(docID), docID);
 	}
 
 	/**
@@ -1519,7 +1677,9 @@ public class BlackBoardDateBased extends BlackBoard {
 	}
 
 	/**
-	 * Parses docs one-by-one and checks if they have all tags.
+	 * Counts the docs that have all tags, in Tg or in FOR. With the tag index
+	 * enabled the count is computed from its bitmaps, otherwise the docs are
+	 * parsed one-by-one.
 	 * 
 	 * @param fromDate
 	 * @param toDate
@@ -1538,6 +1698,12 @@ public class BlackBoardDateBased extends BlackBoard {
 		if (fromYear != toYear)
 			throw new Exception("Accespts only dates from same year");
 
+		long indexCount = tagIndex.countWithAllTags(fromYear,
+				getCollDocs(fromYear), new ObjectId(fromDate), new ObjectId(
+						toDate), withTags);
+		if (indexCount >= 0)
+			return indexCount;
+
 		BBDocSet articles = new BBDocSet(findDocsByDatesSingleYearOnlyTags(
 				fromDate, toDate, 0));
 		BBDoc article;
@@ -1616,7 +1782,7 @@ public class BlackBoardDateBased extends BlackBoard {
 			query.add(DOC_TAGS, new BasicDBObject("$nin", withoutTags));
 
 		// System.out.println( query.get() );
-		long count = getCollDocs(YearOfInterest).count(query.get());
+		long count = countDocsInYear(YearOfInterest, query.get());
 
 		return count;
 	}
@@ -1674,7 +1840,7 @@ public class BlackBoardDateBased extends BlackBoard {
 
 		// System.out.println( query.get() );
 
-		long count = getCollDocs(YearOfInterest).count(query.get());
+		long count = countDocsInYear(YearOfInterest, query.get());
 
 		return count;
 	}
@@ -1695,7 +1861,7 @@ public class BlackBoardDateBased extends BlackBoard {
 
 		// System.out.println( query.get() );
 
-		long count = getCollDocs(YearOfInterest).count(query.get());
+		long count = countDocsInYear(YearOfInterest, query.get());
 
 		return count;
 	}
@@ -1713,20 +1879,23 @@ public class BlackBoardDateBased extends BlackBoard {
 	 * @param reduce
 	 *            The reduce function in Javascript
 	 * @throws MongoException
+	 * @throws UnsupportedOperationException
+	 *             If the storage is not a MongoStorage, before any job runs.
 	 */
 	public void runMapReduce(String name, String map, String reduce)
 			throws MongoException {
+		if (!(storage instanceof MongoStorage))
+			throw new UnsupportedOperationException(
+					"Map/Reduce is only supported by the MongoDB storage");
 		String fullCollName = BB_NAME + "_MapReduce_" + name;
-		// DBCollection mapReduceColl = mongo_db.getCollection( fullCollName );
+		// DocCollection mapReduceColl = storage.getCollection( fullCollName );
 		// mapReduceColl.drop();
 
 		for (int yearOfInterest = MIN_ARTICLES_YEAR_IN_DB; yearOfInterest <= MAX_ARTICLES_YEAR_IN_DB; yearOfInterest++) {
 			System.out.println("Submitting Map/Reduce for year="
 					+ yearOfInterest);
-			MapReduceCommand cmd = new MapReduceCommand(
-					getCollDocs(yearOfInterest), map, reduce, fullCollName,
-					MapReduceCommand.OutputType.REDUCE, new BasicDBObject());
-			getCollDocs(yearOfInterest).mapReduce(cmd);
+			((MongoDocCollection) getCollDocs(yearOfInterest)).mapReduce(map,
+					reduce, fullCollName);
 		}
 	}
 
@@ -1738,7 +1907,7 @@ public class BlackBoardDateBased extends BlackBoard {
 	 */
 	public void deleteMapReduceResult(String name) throws MongoException {
 		String fullCollName = BB_NAME + "_MapReduce_" + name;
-		DBCollection mapReduceColl = mongo_db.getCollection(fullCollName);
+		DocCollection mapReduceColl = storage.getCollection(fullCollName);
 		mapReduceColl.drop();
 	}
 
@@ -1750,7 +1919,7 @@ public class BlackBoardDateBased extends BlackBoard {
 	 */
 	public List<String> listMapReduceResults() throws MongoException {
 		List<String> results = new LinkedList<String>();
-		Set<String> existingDBs = mongo_db.getCollectionNames();
+		Set<String> existingDBs = storage.getCollectionNames();
 		for (String coll_n : existingDBs) {
 			if (coll_n.contains(BB_NAME + "_MapReduce_"))
 				results.add(coll_n);
@@ -1769,9 +1938,9 @@ public class BlackBoardDateBased extends BlackBoard {
 	public BBDocSet getMapReduce(String name) throws MongoException {
 		String fullCollName = BB_NAME + "_MapReduce_" + name;
 
-		DBCollection mapReduceColl = mongo_db.getCollection(fullCollName);
+		DocCollection mapReduceColl = storage.getCollection(fullCollName);
 
-		DBCursor cursor = mapReduceColl.find();
+		DocCursor cursor = mapReduceColl.find();
 
 		return new BBDocSet(cursor);
 	}
@@ -1790,7 +1959,7 @@ public class BlackBoardDateBased extends BlackBoard {
 			throws MongoException {
 		String fullCollName = BB_NAME + "_MapReduce_" + name;
 
-		DBCollection mapReduceColl = mongo_db.getCollection(fullCollName);
+		DocCollection mapReduceColl = storage.getCollection(fullCollName);
 
 		BasicDBObject where = new BasicDBObject();
 		where.put(DOC_ID, docID);
@@ -1888,10 +2057,10 @@ public class BlackBoardDateBased extends BlackBoard {
 		int min_year = getYearOfInterestByDate(this.getMinDocDate());
 		int max_year = getYearOfInterestByDate(this.getMaxDocDate());
 
-		List<DBCursor> cursors = new LinkedList<DBCursor>();
+		List<DocCursor> cursors = new LinkedList<DocCursor>();
 
 		for (int year = min_year; year <= max_year; year++) {
-			DBCursor cur = getCollDocs(year).find();
+			DocCursor cur = getCollDocs(year).find();
 			cursors.add(cur);
 		}
 
@@ -1937,6 +2106,8 @@ public class BlackBoardDateBased extends BlackBoard {
 
 		getCollDocs(yearOfInterest).insert(doc.dataObject,
 				new WriteConcern(true));
+		docCache.invalidate(doc.getID()); // It may have replaced a cached doc
+		tagIndex.docInserted(yearOfInterest, doc.getID(), doc.dataObject);
 
 		// /////////////TWEETS
 		// int yearOfInterest = getYearOfInterestByDocID(tweet.getID());
@@ -2052,12 +2223,12 @@ public class BlackBoardDateBased extends BlackBoard {
 		// System.out.println(query);
 
 		if (resSize != 0) {
-			DBCursor cur = getCollDocs(YearOfInterest).find(query).limit(
+			DocCursor cur = getCollDocs(YearOfInterest).find(query).limit(
 					resSize);
 			return new BBDocSet(cur);
 
 		} else {
-			DBCursor cur = getCollDocs(YearOfInterest).find(query);
+			DocCursor cur = getCollDocs(YearOfInterest).find(query);
 			return new BBDocSet(cur);
 		}
 	}
@@ -0,0 +1,48 @@
+package macsy.blackBoardsSystem;
+
+import java.util.Set;
+
+/**
+ * The database behind the Black Boards: a set of named collections of docs.
+ *
+ * A Black Board keeps its docs, tags and counters in collections named after
+ * it (BB_NAME, BB_NAME_TAGS, BB_NAME_COUNTER, and BB_NAME_year for a
+ * BlackBoardDateBased). Queries and updates are DBObjects with the MongoDB
+ * operators used by the Black Boards (see DocCollection).
+ *
+ * Implementations:
+ * MongoStorage	- a MongoDB database (the default).
+ * LocalStorage	- log-structured files in a local directory, for a single process
+ * (e.g. modules run on a laptop, in tests, or replays of a snapshot).
+ *
+ * BlackBoardsAPI selects the storage with the settings storage and storage_path.
+ */
+public interface BlackBoardStorage {
+
+	/**
+	 * Returns the named collection, creating it if it does not exist.
+	 * The same object is returned for the same name.
+	 *
+	 * @param name The name of the collection.
+	 * @return The collection.
+	 */
+	DocCollection getCollection(String name);
+
+	/**
+	 * Returns the names of the existing collections.
+	 */
+	Set<String> getCollectionNames();
+
+	/**
+	 * Reads only from the primary copy of the data, if there are replicas.
+	 *
+	 * @param readPrimaries true to read only from primaries, false to allow
+	 * reading from secondaries.
+	 */
+	void setReadPrimaries(boolean readPrimaries);
+
+	/**
+	 * Writes any pending change and releases the resources of the storage.
+	 */
+	void close();
+}
@@ -9,7 +9,6 @@ import java.util.Properties;
 import com.mongodb.DB;
 import com.mongodb.Mongo;
 import com.mongodb.MongoURI;
-import com.mongodb.ReadPreference;
 
 /**
  * This class is the entry point for the Black Board (BB) API.
@@ -31,9 +30,14 @@ import com.mongodb.ReadPreference;
  * Version 1.30	- Redesign of internal classes: Introduction of BlackBoardIntID / BlackBoardDateID / BBDocSet
  * Version 1.31 - Bug fixes
  * Version 1.32 - Update to support Mongo 2.2.0
+ * Version 1.33 - In-memory tag dictionary in BlackBoard
+ * Version 1.34 - LRU document cache in BlackBoard (doccache_docs / doccache_mb settings)
+ * Version 1.35 - Storage SPI: MongoDB or local files (storage / storage_path settings)
+ * Version 1.36 - Tag bitmap index in BlackBoardDateBased (tagindex_max_age_s setting)
+ * Version 1.37 - WorkQueue: leased claims of the docs of a FOR> tag
  * 
  * @author      Ilias Flaounas, Tom Welfare
- * @version     1.32
+ * @version     1.37
  * @since       2014-03-12
  * 
  */
@@ -43,7 +47,7 @@ public final class BlackBoardsAPI {
 	/**
 	 * Version of API
 	 */
-	public final static String API_VERSION = "1.32";
+	public final static String API_VERSION = "1.37";
 
 	/**
 	 * The connection to the mongo DB
@@ -65,7 +69,13 @@ public final class BlackBoardsAPI {
 	 * Should not be used for any other reason. 
 	 * 
 	 */
-	private DB mongo_db = null;
+	private BlackBoardStorage storage = null;
+
+	/**
+	 * Value of the storage setting for a LocalStorage, in the directory set by storage_path.
+	 * The default is "mongo".
+	 */
+	public final static String STORAGE_LOCAL = "local";
 
 //	/**
 //	 * Returns a direct connection to the Database.
@@ -108,26 +118,27 @@ public final class BlackBoardsAPI {
 	//All user BBs are prefixed with this
 	private String USER_BB_PREFIX = "";
 	
+	//Capacity of the document cache of each loaded BB (see DocCache)
+	private int docCacheMaxDocs = DocCache.DEFAULT_MAX_DOCS;
+	private long docCacheMaxBytes = DocCache.DEFAULT_MAX_BYTES;
+
+	//Max age of the tag index of each loaded date based BB, 0 to disable it (see TagIndex)
+	private long tagIndexMaxAgeMs = 0;
+	
 //	private boolean FORCE_READ_PRIMARIES = false;
 	
  	public BlackBoardsAPI(String dbsettingsFileName,  boolean adminMode, boolean forceReadPrimaries) throws Exception 
 	{
 		System.out.println("Initializing NewsAgentAPI...");
 
-		BBProtectedNames = new ArrayList<String>();
-		BBProtectedNames.add("ARTICLE");
-		BBProtectedNames.add("FEED");
-		BBProtectedNames.add("OUTLET");
-		BBProtectedNames.add("URL");
-		BBProtectedNames.add("MODULE");
-		BBProtectedNames.add("MODULE_RUN");
-		//BBProtectedNames.add("GEONAMES");
-		
+		initProtectedNames();
 
 		String dburl  = "mongodb://127.0.0.1:27017";
 		String dbname = "Macsy";
 		String dbuser = "dbadmin";
 		String dbpass = "";
+		String storageType = "mongo";
+		String storagePath = null;
 
 		
 		Properties props = new Properties();
@@ -137,6 +148,17 @@ public final class BlackBoardsAPI {
 			dbname = props.getProperty("dbname");
 			dbuser = props.getProperty("dbuser");
 			dbpass = props.getProperty("dbpassword");
+			
+			//Optional
+			if(props.getProperty("doccache_docs")!=null)
+				docCacheMaxDocs = Integer.parseInt(props.getProperty("doccache_docs").trim());
+			if(props.getProperty("doccache_mb")!=null)
+				docCacheMaxBytes = Long.parseLong(props.getProperty("doccache_mb").trim()) << 20;
+			if(props.getProperty("tagindex_max_age_s")!=null)
+				tagIndexMaxAgeMs = Long.parseLong(props.getProperty("tagindex_max_age_s").trim()) * 1000;
+			if(props.getProperty("storage")!=null)
+				storageType = props.getProperty("storage").trim();
+			storagePath = props.getProperty("storage_path");
 		}
 		
 		//Check for admin username
@@ -150,6 +172,16 @@ public final class BlackBoardsAPI {
 		else//SET ADMIN MODE
 			this.adminMode = true;//adminMode;
 
+		//LOCAL FILES - no server, no authentication
+		if(STORAGE_LOCAL.equalsIgnoreCase(storageType))
+		{
+			if(storagePath==null)
+				throw new Exception("The storage_path setting is needed for storage="+STORAGE_LOCAL);
+			System.out.println("Using local storage in "+storagePath);
+			storage = new LocalStorage(storagePath.trim());
+			System.out.println("DONE");
+			return;
+		}
 		
 		//TRY TO CONNECT TO MONGO DB
 		if(mongo_connection == null) {
@@ -159,13 +191,11 @@ public final class BlackBoardsAPI {
 
 		
 		//SELECT DATABASE
-		mongo_db = mongo_connection.getDB( dbname );
+		DB mongo_db = mongo_connection.getDB( dbname );
+		storage = new MongoStorage(mongo_db);
 		
 	//	FORCE_READ_PRIMARIES = forceReadPrimaries;
-		if(forceReadPrimaries)
-			mongo_db.setReadPreference(ReadPreference.primary());
-		else
-			mongo_db.setReadPreference(ReadPreference.secondaryPreferred());
+		storage.setReadPrimaries(forceReadPrimaries);
 
 
 		//SET READ SLAVE-OK for all 
@@ -211,8 +241,48 @@ public final class BlackBoardsAPI {
  	 * Force reading only primaries and not seconderies.   
  	 */
  	public void forceReadPrimaries() {
-		mongo_db.setReadPreference(ReadPreference.primary());
+		storage.setReadPrimaries(true);
  	}
+
+	/**
+	 * Creates the API object on a given storage, e.g. a LocalStorage.
+	 * 
+	 * @param storage The storage of the Black Boards.
+	 * @param adminMode Set to true iff you are an administrator.
+	 * @return The API object.
+	 */
+	public static BlackBoardsAPI forStorage(BlackBoardStorage storage, boolean adminMode)
+	{
+		return new BlackBoardsAPI(storage, adminMode);
+	}
+
+	//Private, as new BlackBoardsAPI(null, adminMode) would be ambiguous
+	private BlackBoardsAPI(BlackBoardStorage storage, boolean adminMode)
+	{
+		initProtectedNames();
+		this.storage = storage;
+		this.adminMode = adminMode;
+	}
+
+	private void initProtectedNames()
+	{
+		BBProtectedNames = new ArrayList<String>();
+		BBProtectedNames.add("ARTICLE");
+		BBProtectedNames.add("FEED");
+		BBProtectedNames.add("OUTLET");
+		BBProtectedNames.add("URL");
+		BBProtectedNames.add("MODULE");
+		BBProtectedNames.add("MODULE_RUN");
+		//BBProtectedNames.add("GEONAMES");
+	}
+
+	/**
+	 * Returns the storage of the Black Boards.
+	 */
+	public BlackBoardStorage getStorage()
+	{
+		return storage;
+	}
  	
 	/**
 	 * Creates the API object that provides access to specific Black Boards.
@@ -288,13 +358,20 @@ public final class BlackBoardsAPI {
 		else
 		{
 			fullBB =  USER_BB_PREFIX + BBname;
-			bbType = BlackBoard.getBlackBoardType(mongo_db, fullBB, null);	//Discover BB Type or set to some default if value is not set.
+			bbType = BlackBoard.getBlackBoardType(storage, fullBB, null);	//Discover BB Type or set to some default if value is not set.
 		}
 		
+		BlackBoard bb;
 		if(bbType.equals( BlackBoard.BLACKBOARD_TYPE_DATE_BASED  ))
-			return new BlackBoardDateBased(mongo_db, fullBB, adminMode);
+		{
+			bb = new BlackBoardDateBased(storage, fullBB, adminMode);
+			((BlackBoardDateBased) bb).getTagIndex().setMaxAge(tagIndexMaxAgeMs);
+		}
+		else
+			bb = new BlackBoard(storage, fullBB, adminMode);
 		
-		return new BlackBoard(mongo_db, fullBB, adminMode);
+		bb.getDocCache().setCapacity(docCacheMaxDocs, docCacheMaxBytes);
+		return bb;
 	}
 	
 	/**
@@ -316,12 +393,14 @@ public final class BlackBoardsAPI {
 		
 		String fullBB = bbPrefix + BBname;
 		
-		String 	bbType = BlackBoard.getBlackBoardType(mongo_db, fullBB,	BlackBoard.BLACKBOARD_TYPE_DATE_BASED );	//Discover BB Type or set default to DataBased
+		String 	bbType = BlackBoard.getBlackBoardType(storage, fullBB,	BlackBoard.BLACKBOARD_TYPE_DATE_BASED );	//Discover BB Type or set default to DataBased
 		
 		if(bbType.equals( BlackBoard.BLACKBOARD_TYPE_STANDARD ))
 			throw new Exception("Blackbord "+ BBname + " is Standard Type, not DateBased. Use blackBoardLoad() to load it, or fix its type.");
 		
-		BlackBoardDateBased bb = new BlackBoardDateBased(mongo_db, fullBB, adminMode);
+		BlackBoardDateBased bb = new BlackBoardDateBased(storage, fullBB, adminMode);
+		bb.getDocCache().setCapacity(docCacheMaxDocs, docCacheMaxBytes);
+		bb.getTagIndex().setMaxAge(tagIndexMaxAgeMs);
 		return bb; 
 	}
 	
@@ -0,0 +1,236 @@
+package macsy.blackBoardsSystem;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.mongodb.BasicDBObject;
+
+/**
+ * LRU cache of the documents of a Black Board, keyed by _id.
+ *
+ * The cache is bounded both by the number of documents and by their
+ * estimated size in memory, so that a few large articles can not fill
+ * the heap. The least recently used documents are evicted first.
+ *
+ * The BlackBoard invalidates a document each time it is modified through
+ * the API (including AnnotationBatch flushes). Changes made by other
+ * processes are not seen until the document is evicted.
+ *
+ * The capacity can be set in the DB settings file with the properties
+ * doccache_docs and doccache_mb (see BlackBoardsAPI). Set doccache_docs=0
+ * to disable the cache.
+ */
+public final class DocCache {
+
+	public static final int DEFAULT_MAX_DOCS = 1000;
+	public static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+	private int maxDocs;
+	private long maxBytes;
+
+	/**
+	 * _id to document, in access order (least recently used first).
+	 */
+	private final LinkedHashMap<Object,Entry> docs = new LinkedHashMap<Object,Entry>(16, 0.75f, true);
+	private long sizeBytes = 0;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long invalidations = 0;
+
+	private static final class Entry {
+		final BasicDBObject doc;
+		final long size;
+
+		Entry(BasicDBObject doc, long size)
+		{
+			this.doc = doc;
+			this.size = size;
+		}
+	}
+
+	DocCache()
+	{
+		this(DEFAULT_MAX_DOCS, DEFAULT_MAX_BYTES);
+	}
+
+	DocCache(int maxDocs, long maxBytes)
+	{
+		this.maxDocs = maxDocs;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Sets the capacity of the cache, evicting documents if needed.
+	 *
+	 * @param maxDocs The max number of documents. Set to 0 to disable the cache.
+	 * @param maxBytes The max estimated size of the documents in bytes.
+	 */
+	public synchronized void setCapacity(int maxDocs, long maxBytes)
+	{
+		this.maxDocs = maxDocs;
+		this.maxBytes = maxBytes;
+		evict();
+	}
+
+	/**
+	 * Returns the document with given ID or null if it is not cached.
+	 * The document should not be modified.
+	 */
+	synchronized BasicDBObject get(Object docID)
+	{
+		Entry e = docs.get(docID);
+		if(e==null)
+		{
+			misses++;
+			return null;
+		}
+		hits++;
+		return e.doc;
+	}
+
+	/**
+	 * Returns the document with given ID or null if it is not cached,
+	 * without counting a hit or miss.
+	 */
+	synchronized BasicDBObject peek(Object docID)
+	{
+		Entry e = docs.get(docID);
+		if(e==null)
+			return null;
+		return e.doc;
+	}
+
+	/**
+	 * Caches a document fetched from the DB.
+	 * The document should not be modified afterwards.
+	 */
+	synchronized void put(BasicDBObject doc)
+	{
+		if(maxDocs <= 0)
+			return;
+
+		Object docID = doc.get(BlackBoard.DOC_ID);
+		if(docID==null)
+			return;
+
+		long size = estimateSize(doc);
+		if(size > maxBytes)
+			return;	//Would evict everything else
+
+		Entry old = docs.put(docID, new Entry(doc, size));
+		if(old!=null)
+			sizeBytes -= old.size;
+		sizeBytes += size;
+		evict();
+	}
+
+	/**
+	 * Removes the document with given ID, e.g. because it was modified.
+	 */
+	synchronized void invalidate(Object docID)
+	{
+		Entry old = docs.remove(docID);
+		if(old!=null)
+		{
+			sizeBytes -= old.size;
+			invalidations++;
+		}
+	}
+
+	/**
+	 * Removes all documents, e.g. after a change to many documents.
+	 */
+	public synchronized void clear()
+	{
+		invalidations += docs.size();
+		docs.clear();
+		sizeBytes = 0;
+	}
+
+	private void evict()
+	{
+		Iterator<Map.Entry<Object,Entry>> it = docs.entrySet().iterator();
+		while((docs.size() > maxDocs || sizeBytes > maxBytes) && it.hasNext())
+		{
+			sizeBytes -= it.next().getValue().size;
+			it.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Returns a rough estimate of the memory used by a value of a document.
+	 */
+	static long estimateSize(Object value)
+	{
+		if(value==null)
+			return 8;
+		if(value instanceof String)
+			return 40 + 2L * ((String) value).length();
+		if(value instanceof byte[])
+			return 16 + ((byte[]) value).length;
+		if(value instanceof Map)
+		{
+			long size = 48;
+			for(Map.Entry<?,?> e : ((Map<?,?>) value).entrySet())
+				size += 32 + estimateSize(e.getKey()) + estimateSize(e.getValue());
+			return size;
+		}
+		if(value instanceof Collection)
+		{
+			long size = 40;
+			for(Object o : (Collection<?>) value)
+				size += 8 + estimateSize(o);
+			return size;
+		}
+		return 24;	//Numbers, dates, ObjectIds...
+	}
+
+	/**
+	 * Returns the number of cached documents.
+	 */
+	public synchronized int size()
+	{
+		return docs.size();
+	}
+
+	/**
+	 * Returns the estimated size of the cached documents in bytes.
+	 */
+	public synchronized long getSizeBytes()
+	{
+		return sizeBytes;
+	}
+
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	public synchronized long getEvictions()
+	{
+		return evictions;
+	}
+
+	public synchronized long getInvalidations()
+	{
+		return invalidations;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "DocCache: "+docs.size()+" docs, "+(sizeBytes>>10)+" KB, "
+				+hits+" hits, "+misses+" misses, "+evictions+" evictions, "
+				+invalidations+" invalidations";
+	}
+}
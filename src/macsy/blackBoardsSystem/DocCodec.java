@@ -0,0 +1,336 @@
+package macsy.blackBoardsSystem;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.BSONObject;
+import org.bson.types.ObjectId;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+
+/**
+ * Binary encoding of the docs of LocalStorage.
+ *
+ * A doc is encoded as:
+ * int			Number of fields n
+ * n times		Field name (int length, UTF-8 bytes), value
+ *
+ * A value is a type byte followed by:
+ * NULL					-
+ * FALSE, TRUE			-
+ * INT					int
+ * LONG					long
+ * DOUBLE				double
+ * STRING				int length, UTF-8 bytes
+ * DATE					long (ms)
+ * OBJECT_ID			12 bytes
+ * BINARY				int length, bytes
+ * LIST					int length of the rest, int number of elements, the elements
+ * DOC					int length of the rest, the doc
+ *
+ * The lengths allow decoding only some fields of a doc (e.g. the indexed ones,
+ * or a projection) without decoding the others. Docs are decoded as
+ * BasicDBObjects and lists as BasicDBLists, as the MongoDB driver does.
+ */
+final class DocCodec {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte NULL = 0;
+	private static final byte FALSE = 1;
+	private static final byte TRUE = 2;
+	private static final byte INT = 3;
+	private static final byte LONG = 4;
+	private static final byte DOUBLE = 5;
+	private static final byte STRING = 6;
+	private static final byte DATE = 7;
+	private static final byte OBJECT_ID = 8;
+	private static final byte BINARY = 9;
+	private static final byte LIST = 10;
+	private static final byte DOC = 11;
+
+	private DocCodec()
+	{
+	}
+
+	/**
+	 * A growable byte array to encode into.
+	 */
+	static final class Output {
+		private byte[] buf = new byte[256];
+		private int size = 0;
+
+		void ensure(int n)
+		{
+			if(size + n > buf.length)
+				buf = Arrays.copyOf(buf, Math.max(size + n, 2 * buf.length));
+		}
+
+		void put(byte b)
+		{
+			ensure(1);
+			buf[size++] = b;
+		}
+
+		void put(byte[] b)
+		{
+			ensure(b.length);
+			System.arraycopy(b, 0, buf, size, b.length);
+			size += b.length;
+		}
+
+		void putInt(int v)
+		{
+			ensure(4);
+			putIntAt(size, v);
+			size += 4;
+		}
+
+		void putIntAt(int pos, int v)
+		{
+			buf[pos] = (byte) (v >>> 24);
+			buf[pos + 1] = (byte) (v >>> 16);
+			buf[pos + 2] = (byte) (v >>> 8);
+			buf[pos + 3] = (byte) v;
+		}
+
+		void putLong(long v)
+		{
+			putInt((int) (v >>> 32));
+			putInt((int) v);
+		}
+
+		int size()
+		{
+			return size;
+		}
+
+		byte[] array()
+		{
+			return buf;
+		}
+
+		void reset()
+		{
+			size = 0;
+		}
+	}
+
+	/**
+	 * Encodes a doc.
+	 *
+	 * @throws StorageException If a value is of a type that can not be encoded.
+	 */
+	static void encodeDoc(BSONObject doc, Output out)
+	{
+		Set<String> keys = doc.keySet();
+		out.putInt(keys.size());
+		for(String key : keys)
+		{
+			putString(key, out);
+			encodeValue(doc.get(key), out);
+		}
+	}
+
+	/**
+	 * Encodes a value, e.g. an _id.
+	 */
+	@SuppressWarnings("rawtypes")
+	static void encodeValue(Object value, Output out)
+	{
+		if(value==null)
+			out.put(NULL);
+		else if(value instanceof Boolean)
+			out.put(((Boolean) value).booleanValue() ? TRUE : FALSE);
+		else if(value instanceof Integer || value instanceof Short || value instanceof Byte)
+		{
+			out.put(INT);
+			out.putInt(((Number) value).intValue());
+		}
+		else if(value instanceof Long)
+		{
+			out.put(LONG);
+			out.putLong((Long) value);
+		}
+		else if(value instanceof Double || value instanceof Float)
+		{
+			out.put(DOUBLE);
+			out.putLong(Double.doubleToRawLongBits(((Number) value).doubleValue()));
+		}
+		else if(value instanceof String)
+		{
+			out.put(STRING);
+			putString((String) value, out);
+		}
+		else if(value instanceof Date)
+		{
+			out.put(DATE);
+			out.putLong(((Date) value).getTime());
+		}
+		else if(value instanceof ObjectId)
+		{
+			out.put(OBJECT_ID);
+			out.put(((ObjectId) value).toByteArray());
+		}
+		else if(value instanceof byte[])
+		{
+			out.put(BINARY);
+			out.putInt(((byte[]) value).length);
+			out.put((byte[]) value);
+		}
+		else if(value instanceof List)
+		{
+			out.put(LIST);
+			int lengthPos = out.size();
+			out.putInt(0);
+			List list = (List) value;
+			out.putInt(list.size());
+			for(Object element : list)
+				encodeValue(element, out);
+			out.putIntAt(lengthPos, out.size() - lengthPos - 4);
+		}
+		else if(value instanceof BSONObject || value instanceof Map)
+		{
+			out.put(DOC);
+			int lengthPos = out.size();
+			out.putInt(0);
+			if(value instanceof BSONObject)
+				encodeDoc((BSONObject) value, out);
+			else
+				encodeDoc(new BasicDBObject((Map) value), out);
+			out.putIntAt(lengthPos, out.size() - lengthPos - 4);
+		}
+		else
+			throw new StorageException("Can not store values of type "+value.getClass().getName());
+	}
+
+	private static void putString(String s, Output out)
+	{
+		byte[] bytes = s.getBytes(UTF8);
+		out.putInt(bytes.length);
+		out.put(bytes);
+	}
+
+	/**
+	 * Decodes a doc.
+	 *
+	 * @param in The encoded doc, from its position.
+	 * @param fields The fields to decode, or null for all.
+	 * @return The doc.
+	 */
+	static BasicDBObject decodeDoc(ByteBuffer in, Set<String> fields)
+	{
+		BasicDBObject doc = new BasicDBObject();
+		int n = in.getInt();
+		for(int i=0; i<n; i++)
+		{
+			String key = getString(in);
+			if(fields==null || fields.contains(key))
+				doc.put(key, decodeValue(in));
+			else
+				skipValue(in);
+		}
+		return doc;
+	}
+
+	/**
+	 * Decodes a value.
+	 */
+	static Object decodeValue(ByteBuffer in)
+	{
+		byte type = in.get();
+		switch(type)
+		{
+		case NULL:
+			return null;
+		case FALSE:
+			return Boolean.FALSE;
+		case TRUE:
+			return Boolean.TRUE;
+		case INT:
+			return in.getInt();
+		case LONG:
+			return in.getLong();
+		case DOUBLE:
+			return in.getDouble();
+		case STRING:
+			return getString(in);
+		case DATE:
+			return new Date(in.getLong());
+		case OBJECT_ID:
+		{
+			byte[] id = new byte[12];
+			in.get(id);
+			return new ObjectId(id);
+		}
+		case BINARY:
+		{
+			byte[] data = new byte[in.getInt()];
+			in.get(data);
+			return data;
+		}
+		case LIST:
+		{
+			in.getInt();
+			int n = in.getInt();
+			BasicDBList list = new BasicDBList();
+			for(int i=0; i<n; i++)
+				list.add(decodeValue(in));
+			return list;
+		}
+		case DOC:
+			in.getInt();
+			return decodeDoc(in, null);
+		default:
+			throw new StorageException("Corrupted doc: unknown type "+type);
+		}
+	}
+
+	private static void skipValue(ByteBuffer in)
+	{
+		byte type = in.get();
+		int skip;
+		switch(type)
+		{
+		case NULL:
+		case FALSE:
+		case TRUE:
+			skip = 0;
+			break;
+		case INT:
+			skip = 4;
+			break;
+		case LONG:
+		case DOUBLE:
+		case DATE:
+			skip = 8;
+			break;
+		case OBJECT_ID:
+			skip = 12;
+			break;
+		case STRING:
+		case BINARY:
+		case LIST:
+		case DOC:
+			skip = in.getInt();
+			break;
+		default:
+			throw new StorageException("Corrupted doc: unknown type "+type);
+		}
+		in.position(in.position() + skip);
+	}
+
+	private static String getString(ByteBuffer in)
+	{
+		int length = in.getInt();
+		String s = new String(in.array(), in.arrayOffset() + in.position(), length, UTF8);
+		in.position(in.position() + length);
+		return s;
+	}
+}
@@ -0,0 +1,141 @@
+package macsy.blackBoardsSystem;
+
+import java.util.List;
+
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+
+/**
+ * A collection of docs of a BlackBoardStorage.
+ *
+ * Queries, updates, projections and sort orders follow the MongoDB syntax.
+ * All storages support the operators used by the Black Boards:
+ * queries		- equality, $exists, $in, $nin, $all, $ne, $gt, $gte, $lt, $lte, $and, $or
+ * updates		- $set, $unset, $inc, $addToSet (with $each), $push, $pull, $pullAll, $rename
+ * projections	- the fields to include (or exclude), _id is included unless excluded
+ *
+ * Errors are thrown as RuntimeExceptions (MongoException, StorageException).
+ */
+public interface DocCollection {
+
+	/**
+	 * Returns the name of the collection.
+	 */
+	String getName();
+
+	/**
+	 * Returns the number of docs in the collection.
+	 */
+	long count();
+
+	/**
+	 * Returns the number of docs that match the query.
+	 */
+	long count(DBObject query);
+
+	/**
+	 * Returns a doc that matches the query, or null if there is none.
+	 */
+	DBObject findOne(DBObject query);
+
+	/**
+	 * Returns the fields of a doc that matches the query, or null if there is none.
+	 *
+	 * @param query
+	 * @param fields The projection, or null for all fields.
+	 */
+	DBObject findOne(DBObject query, DBObject fields);
+
+	/**
+	 * Returns a cursor over all docs.
+	 */
+	DocCursor find();
+
+	/**
+	 * Returns a cursor over the docs that match the query.
+	 */
+	DocCursor find(DBObject query);
+
+	/**
+	 * Returns a cursor over the fields of the docs that match the query.
+	 *
+	 * @param query
+	 * @param fields The projection, or null for all fields.
+	 */
+	DocCursor find(DBObject query, DBObject fields);
+
+	/**
+	 * Inserts a doc. An _id is added to the doc if it has none.
+	 */
+	void insert(DBObject doc);
+
+	void insert(DBObject doc, WriteConcern writeConcern);
+
+	/**
+	 * Inserts the docs. An _id is added to the docs that have none.
+	 */
+	void insert(List<DBObject> docs);
+
+	void insert(List<DBObject> docs, WriteConcern writeConcern);
+
+	/**
+	 * Updates the first doc that matches the query.
+	 */
+	void update(DBObject query, DBObject update);
+
+	/**
+	 * Updates the docs that match the query.
+	 *
+	 * @param query
+	 * @param update
+	 * @param upsert If no doc matches, insert one made of the equality fields of the query, updated.
+	 * @param multi Update all the docs that match, instead of the first one.
+	 */
+	void update(DBObject query, DBObject update, boolean upsert, boolean multi);
+
+	/**
+	 * Applies each update to the first doc that matches the corresponding query.
+	 * The updates may be sent to the database together, in any order.
+	 *
+	 * @param queries
+	 * @param updates
+	 * @param writeConcern
+	 */
+	void updateEach(List<DBObject> queries, List<DBObject> updates, WriteConcern writeConcern);
+
+	/**
+	 * Removes the docs that match the query.
+	 */
+	void remove(DBObject query);
+
+	/**
+	 * Updates the first doc that matches the query, atomically.
+	 *
+	 * @return The doc before the update, or null if no doc matches.
+	 */
+	DBObject findAndModify(DBObject query, DBObject update);
+
+	/**
+	 * Updates the first doc that matches the query, atomically.
+	 *
+	 * @param query
+	 * @param update
+	 * @param returnNew Return the doc after the update instead of before it.
+	 * @param upsert If no doc matches, insert one (see update()).
+	 * @return The doc, or null.
+	 */
+	DBObject findAndModify(DBObject query, DBObject update, boolean returnNew, boolean upsert);
+
+	/**
+	 * Creates an index on the given fields, if there is none.
+	 *
+	 * @param keys The fields, e.g. {field: 1}.
+	 * @param options e.g. {background: true}, or null.
+	 */
+	void ensureIndex(DBObject keys, DBObject options);
+
+	/**
+	 * Removes the collection and its docs.
+	 */
+	void drop();
+}
@@ -0,0 +1,76 @@
+package macsy.blackBoardsSystem;
+
+import java.util.Iterator;
+
+import com.mongodb.DBObject;
+
+/**
+ * A cursor over the docs that match a query of a DocCollection.
+ *
+ * As with MongoDB cursors the query runs when the first doc is read, so
+ * sort(), limit(), skip() and batchSize() must be called before that.
+ */
+public interface DocCursor extends Iterator<DBObject> {
+
+	/**
+	 * Sorts the docs, e.g. {_id: -1} for the most recent first.
+	 */
+	DocCursor sort(DBObject orderBy);
+
+	/**
+	 * Returns at most n docs (0 for all).
+	 */
+	DocCursor limit(int n);
+
+	/**
+	 * Skips the first n docs.
+	 */
+	DocCursor skip(int n);
+
+	/**
+	 * Sets the number of docs fetched from the database in each round trip.
+	 */
+	DocCursor batchSize(int n);
+
+	/**
+	 * Returns a new cursor, not read yet, with the query, projection, sort, skip and limit of this one.
+	 */
+	DocCursor copy();
+
+	/**
+	 * Makes the cursor resumable with resumeAfter(): a cursor that has no sort
+	 * is sorted by _id. Must be called before the cursor is read.
+	 *
+	 * @return This cursor.
+	 */
+	DocCursor resumable();
+
+	/**
+	 * Returns a new cursor, not read yet, over the docs of this one that come
+	 * after the doc lastID, e.g. to go on after this one timed out on the
+	 * server. Unlike skipping the docs already read, it does not pass over
+	 * docs when some of the docs read no longer match the query. The skip is
+	 * not applied again, and the limit counts the docs already read.
+	 *
+	 * @param lastID The _id of the last doc read, or null if none was read.
+	 * @param read The number of docs read from this cursor.
+	 * @return The new cursor, or null if the limit has been reached.
+	 * @throws UnsupportedOperationException If the docs are sorted on other fields than _id.
+	 */
+	DocCursor resumeAfter(Object lastID, int read);
+
+	/**
+	 * Returns the number of docs of the cursor, taking skip and limit into account.
+	 */
+	int size();
+
+	/**
+	 * Returns the projection of the cursor, or null if all fields are fetched.
+	 */
+	DBObject getKeysWanted();
+
+	/**
+	 * Releases the resources of the cursor.
+	 */
+	void close();
+}
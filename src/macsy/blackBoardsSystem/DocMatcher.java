@@ -0,0 +1,680 @@
+package macsy.blackBoardsSystem;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.BSONObject;
+import org.bson.types.ObjectId;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Evaluates the MongoDB queries, updates, projections and sort orders of the
+ * Black Boards on docs in memory, for LocalStorage.
+ *
+ * As in MongoDB, a condition on a field that holds a list matches if it
+ * matches an element of the list (or the list itself, for equality), numbers
+ * are compared by value whatever their type, and dotted field names refer to
+ * fields of embedded docs.
+ */
+final class DocMatcher {
+
+	private DocMatcher()
+	{
+	}
+
+	/**
+	 * Orders values as MongoDB does across types: null, numbers, strings,
+	 * docs, lists, binary, ObjectIds, booleans, dates.
+	 */
+	static final Comparator<Object> VALUE_ORDER = new Comparator<Object>() {
+		@Override
+		public int compare(Object a, Object b)
+		{
+			return compareValues(a, b);
+		}
+	};
+
+	private static int typeRank(Object v)
+	{
+		if(v==null)
+			return 0;
+		if(v instanceof Number)
+			return 1;
+		if(v instanceof String)
+			return 2;
+		if(v instanceof List)
+			return 4;
+		if(v instanceof BSONObject || v instanceof Map)
+			return 3;
+		if(v instanceof byte[])
+			return 5;
+		if(v instanceof ObjectId)
+			return 6;
+		if(v instanceof Boolean)
+			return 7;
+		if(v instanceof Date)
+			return 8;
+		return 9;
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static int compareValues(Object a, Object b)
+	{
+		int ra = typeRank(a);
+		int rb = typeRank(b);
+		if(ra!=rb)
+			return ra < rb ? -1 : 1;
+		switch(ra)
+		{
+		case 0:
+			return 0;
+		case 1:
+			return compareNumbers((Number) a, (Number) b);
+		case 2:
+			return ((String) a).compareTo((String) b);
+		case 4:
+		{
+			List la = (List) a;
+			List lb = (List) b;
+			for(int i=0; i<Math.min(la.size(), lb.size()); i++)
+			{
+				int c = compareValues(la.get(i), lb.get(i));
+				if(c!=0)
+					return c;
+			}
+			return la.size() - lb.size();
+		}
+		case 5:
+		{
+			byte[] ba = (byte[]) a;
+			byte[] bb = (byte[]) b;
+			for(int i=0; i<Math.min(ba.length, bb.length); i++)
+				if(ba[i]!=bb[i])
+					return (ba[i] & 0xff) - (bb[i] & 0xff);
+			return ba.length - bb.length;
+		}
+		case 6:
+			return ((ObjectId) a).compareTo((ObjectId) b);
+		case 7:
+			return ((Boolean) a).compareTo((Boolean) b);
+		case 8:
+			return ((Date) a).compareTo((Date) b);
+		default:
+			if(a instanceof Comparable && a.getClass()==b.getClass())
+				return ((Comparable) a).compareTo(b);
+			return a.toString().compareTo(b.toString());
+		}
+	}
+
+	private static int compareNumbers(Number a, Number b)
+	{
+		if(isIntegral(a) && isIntegral(b))
+		{
+			long la = a.longValue();
+			long lb = b.longValue();
+			return la < lb ? -1 : (la == lb ? 0 : 1);
+		}
+		return Double.compare(a.doubleValue(), b.doubleValue());
+	}
+
+	private static boolean isIntegral(Number n)
+	{
+		return n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte;
+	}
+
+	static boolean valuesEqual(Object a, Object b)
+	{
+		if(a==null || b==null)
+			return a==b;
+		if(a instanceof Number && b instanceof Number)
+			return compareNumbers((Number) a, (Number) b)==0;
+		if(typeRank(a)!=typeRank(b))
+			return false;
+		return compareValues(a, b)==0 && (typeRank(a)!=3 || a.equals(b));
+	}
+
+	/**
+	 * Returns the key of a value in an inverted index: numbers are Longs if
+	 * they are integers, Doubles otherwise, so that equal numbers of
+	 * different types have the same key.
+	 */
+	static Object indexKey(Object value)
+	{
+		if(value instanceof Number && !(value instanceof Long))
+		{
+			Number n = (Number) value;
+			if(isIntegral(n))
+				return Long.valueOf(n.longValue());
+			double d = n.doubleValue();
+			if(d==Math.rint(d) && !Double.isInfinite(d) && Math.abs(d) < 9.0e15)
+				return Long.valueOf((long) d);
+			return Double.valueOf(d);
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the value of a field, following dotted names into embedded docs,
+	 * or MISSING if the doc does not have it.
+	 */
+	static Object getField(BSONObject doc, String field)
+	{
+		int dot = field.indexOf('.');
+		if(dot<0)
+			return doc.containsField(field) ? doc.get(field) : MISSING;
+		Object inner = doc.get(field.substring(0, dot));
+		if(inner instanceof BSONObject && !(inner instanceof List))
+			return getField((BSONObject) inner, field.substring(dot + 1));
+		return MISSING;
+	}
+
+	/**
+	 * The value of a field that does not exist.
+	 */
+	static final Object MISSING = new Object();
+
+	/**
+	 * Returns true if the doc matches the query.
+	 */
+	@SuppressWarnings("rawtypes")
+	static boolean matches(BSONObject doc, BSONObject query)
+	{
+		if(query==null)
+			return true;
+		for(String key : query.keySet())
+		{
+			Object cond = query.get(key);
+			if(key.equals("$and") || key.equals("$or"))
+			{
+				boolean and = key.equals("$and");
+				boolean any = false;
+				for(Object sub : (List) cond)
+				{
+					boolean m = matches(doc, (BSONObject) sub);
+					if(and && !m)
+						return false;
+					any |= m;
+				}
+				if(!and && !any)
+					return false;
+				continue;
+			}
+			if(!matchesField(getField(doc, key), cond))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if the condition is a doc of operators, e.g. {$gt: 1}.
+	 */
+	static boolean isOperatorDoc(Object cond)
+	{
+		if(!(cond instanceof BSONObject) || cond instanceof List)
+			return false;
+		Set<String> keys = ((BSONObject) cond).keySet();
+		return !keys.isEmpty() && keys.iterator().next().startsWith("$");
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static boolean matchesField(Object value, Object cond)
+	{
+		if(!isOperatorDoc(cond))
+			return equalsOrContains(value, cond);
+
+		BSONObject ops = (BSONObject) cond;
+		for(String op : ops.keySet())
+		{
+			Object arg = ops.get(op);
+			boolean m;
+			if(op.equals("$exists"))
+				m = (value!=MISSING) == isTrue(arg);
+			else if(op.equals("$ne"))
+				m = !equalsOrContains(value, arg);
+			else if(op.equals("$in"))
+			{
+				m = false;
+				for(Object a : (Collection) arg)
+					if(equalsOrContains(value, a))
+					{
+						m = true;
+						break;
+					}
+			}
+			else if(op.equals("$nin"))
+			{
+				m = true;
+				for(Object a : (Collection) arg)
+					if(equalsOrContains(value, a))
+					{
+						m = false;
+						break;
+					}
+			}
+			else if(op.equals("$all"))
+			{
+				m = value!=MISSING;
+				for(Object a : (Collection) arg)
+					if(!equalsOrContains(value, a))
+					{
+						m = false;
+						break;
+					}
+			}
+			else if(op.equals("$gt") || op.equals("$gte") || op.equals("$lt") || op.equals("$lte"))
+				m = matchesRange(value, op, arg);
+			else if(op.equals("$size"))
+				m = value instanceof List && ((List) value).size()==((Number) arg).intValue();
+			else if(op.equals("$not"))
+				m = !matchesField(value, arg);
+			else
+				throw new StorageException("Query operator "+op+" is not supported");
+			if(!m)
+				return false;
+		}
+		return true;
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static boolean equalsOrContains(Object value, Object cond)
+	{
+		if(value==MISSING)
+			return cond==null;
+		if(valuesEqual(value, cond))
+			return true;
+		if(value instanceof List && !(cond instanceof List))
+			for(Object element : (List) value)
+				if(valuesEqual(element, cond))
+					return true;
+		return false;
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static boolean matchesRange(Object value, String op, Object arg)
+	{
+		if(value==MISSING)
+			return false;
+		if(value instanceof List)
+		{
+			for(Object element : (List) value)
+				if(matchesRange(element, op, arg))
+					return true;
+			return false;
+		}
+		//Only values of the same kind are compared
+		if(typeRank(value)!=typeRank(arg))
+			return false;
+		int c = compareValues(value, arg);
+		if(op.equals("$gt"))
+			return c > 0;
+		if(op.equals("$gte"))
+			return c >= 0;
+		if(op.equals("$lt"))
+			return c < 0;
+		return c <= 0;
+	}
+
+	private static boolean isTrue(Object arg)
+	{
+		if(arg instanceof Boolean)
+			return (Boolean) arg;
+		if(arg instanceof Number)
+			return ((Number) arg).doubleValue()!=0;
+		return arg!=null;
+	}
+
+	/**
+	 * Returns true if the update is a doc of update operators rather than a replacement doc.
+	 */
+	static boolean isOperatorUpdate(BSONObject update)
+	{
+		return isOperatorDoc(update);
+	}
+
+	/**
+	 * Applies an update to a doc.
+	 *
+	 * @param doc The doc, changed in place.
+	 * @param update The update operators, or a doc that replaces all the fields but _id.
+	 * @param inserting true if the doc is being inserted by an upsert
+	 * @return true if the doc changed.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static boolean applyUpdate(BasicDBObject doc, BSONObject update, boolean inserting)
+	{
+		if(!isOperatorUpdate(update))
+		{
+			Object id = doc.get(BlackBoard.DOC_ID);
+			doc.clear();
+			if(id!=null)
+				doc.put(BlackBoard.DOC_ID, id);
+			for(String key : update.keySet())
+				if(!key.equals(BlackBoard.DOC_ID) || id==null)
+					doc.put(key, copyValue(update.get(key)));
+			return true;
+		}
+
+		boolean changed = false;
+		for(String op : update.keySet())
+		{
+			BSONObject fields = (BSONObject) update.get(op);
+			for(String field : fields.keySet())
+			{
+				Object arg = fields.get(field);
+				Object value = getField(doc, field);
+				if(op.equals("$set"))
+				{
+					if(!valuesEqual(value, arg) || value==MISSING)
+					{
+						setField(doc, field, copyValue(arg));
+						changed = true;
+					}
+				}
+				else if(op.equals("$setOnInsert"))
+				{
+					if(inserting)
+					{
+						setField(doc, field, copyValue(arg));
+						changed = true;
+					}
+				}
+				else if(op.equals("$unset"))
+				{
+					if(value!=MISSING)
+					{
+						unsetField(doc, field);
+						changed = true;
+					}
+				}
+				else if(op.equals("$inc"))
+				{
+					setField(doc, field, add(value==MISSING ? null : value, (Number) arg));
+					changed = true;
+				}
+				else if(op.equals("$rename"))
+				{
+					if(value!=MISSING)
+					{
+						unsetField(doc, field);
+						setField(doc, (String) arg, value);
+						changed = true;
+					}
+				}
+				else if(op.equals("$addToSet") || op.equals("$push"))
+				{
+					List list = listField(doc, field, value);
+					List toAdd;
+					if(isOperatorDoc(arg) && ((BSONObject) arg).containsField("$each"))
+						toAdd = (List) ((BSONObject) arg).get("$each");
+					else
+					{
+						toAdd = new ArrayList();
+						toAdd.add(arg);
+					}
+					for(Object a : toAdd)
+						if(op.equals("$push") || !containsValue(list, a))
+						{
+							list.add(copyValue(a));
+							changed = true;
+						}
+				}
+				else if(op.equals("$pull") || op.equals("$pullAll"))
+				{
+					if(!(value instanceof List))
+						continue;
+					List list = (List) value;
+					for(int i=list.size()-1; i>=0; i--)
+					{
+						boolean remove;
+						if(op.equals("$pullAll"))
+							remove = containsValue((List) arg, list.get(i));
+						else if(isOperatorDoc(arg))
+							remove = matchesField(list.get(i), arg);
+						else
+							remove = valuesEqual(list.get(i), arg);
+						if(remove)
+						{
+							list.remove(i);
+							changed = true;
+						}
+					}
+				}
+				else
+					throw new StorageException("Update operator "+op+" is not supported");
+			}
+		}
+		return changed;
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static boolean containsValue(List list, Object value)
+	{
+		for(Object element : list)
+			if(valuesEqual(element, value))
+				return true;
+		return false;
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static List listField(BasicDBObject doc, String field, Object value)
+	{
+		if(value instanceof List)
+			return (List) value;
+		if(value!=MISSING && value!=null)
+			throw new StorageException("Field "+field+" is not a list");
+		BasicDBList list = new BasicDBList();
+		setField(doc, field, list);
+		return list;
+	}
+
+	private static Number add(Object value, Number inc)
+	{
+		if(value!=null && !(value instanceof Number))
+			throw new StorageException("Can not increment a value that is not a number");
+		Number n = value==null ? Integer.valueOf(0) : (Number) value;
+		if(n instanceof Double || n instanceof Float || inc instanceof Double || inc instanceof Float)
+			return n.doubleValue() + inc.doubleValue();
+		if(n instanceof Long || inc instanceof Long)
+			return n.longValue() + inc.longValue();
+		return n.intValue() + inc.intValue();
+	}
+
+	private static void setField(BSONObject doc, String field, Object value)
+	{
+		int dot = field.indexOf('.');
+		if(dot<0)
+		{
+			doc.put(field, value);
+			return;
+		}
+		String head = field.substring(0, dot);
+		Object inner = doc.get(head);
+		if(!(inner instanceof BSONObject) || inner instanceof List)
+		{
+			inner = new BasicDBObject();
+			doc.put(head, inner);
+		}
+		setField((BSONObject) inner, field.substring(dot + 1), value);
+	}
+
+	private static void unsetField(BSONObject doc, String field)
+	{
+		int dot = field.indexOf('.');
+		if(dot<0)
+		{
+			doc.removeField(field);
+			return;
+		}
+		Object inner = doc.get(field.substring(0, dot));
+		if(inner instanceof BSONObject && !(inner instanceof List))
+			unsetField((BSONObject) inner, field.substring(dot + 1));
+	}
+
+	/**
+	 * Copies lists and docs, so that a stored doc does not share them with the caller.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static Object copyValue(Object value)
+	{
+		if(value instanceof List)
+		{
+			BasicDBList copy = new BasicDBList();
+			for(Object element : (List) value)
+				copy.add(copyValue(element));
+			return copy;
+		}
+		if(value instanceof BSONObject)
+		{
+			BSONObject doc = (BSONObject) value;
+			BasicDBObject copy = new BasicDBObject();
+			for(String key : doc.keySet())
+				copy.put(key, copyValue(doc.get(key)));
+			return copy;
+		}
+		if(value instanceof Map)
+		{
+			BasicDBObject copy = new BasicDBObject();
+			for(Object e : ((Map) value).entrySet())
+				copy.put(String.valueOf(((Map.Entry) e).getKey()), copyValue(((Map.Entry) e).getValue()));
+			return copy;
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the doc made of the equality fields of a query, for an upsert.
+	 */
+	static BasicDBObject upsertDoc(BSONObject query)
+	{
+		BasicDBObject doc = new BasicDBObject();
+		if(query==null)
+			return doc;
+		for(String key : query.keySet())
+		{
+			Object cond = query.get(key);
+			if(!key.startsWith("$") && !isOperatorDoc(cond))
+				setField(doc, key, copyValue(cond));
+		}
+		return doc;
+	}
+
+	/**
+	 * Returns the top level fields needed for a projection, or null for all fields.
+	 * The fields of an exclusion projection can not be known in advance, so it returns null.
+	 */
+	static Set<String> projectedFields(BSONObject fields)
+	{
+		if(fields==null || fields.keySet().isEmpty() || isExclusion(fields))
+			return null;
+		Set<String> top = new HashSet<String>();
+		top.add(BlackBoard.DOC_ID);
+		for(String key : fields.keySet())
+		{
+			int dot = key.indexOf('.');
+			top.add(dot<0 ? key : key.substring(0, dot));
+		}
+		return top;
+	}
+
+	private static boolean isExclusion(BSONObject fields)
+	{
+		for(String key : fields.keySet())
+			if(!key.equals(BlackBoard.DOC_ID))
+				return !isTrue(fields.get(key));
+		return !isTrue(fields.get(BlackBoard.DOC_ID));
+	}
+
+	/**
+	 * Applies a projection to a doc, e.g. {field: 1} or {field: 0}.
+	 *
+	 * @return The doc with the projected fields.
+	 */
+	static BasicDBObject project(BasicDBObject doc, BSONObject fields)
+	{
+		if(fields==null || fields.keySet().isEmpty())
+			return doc;
+		boolean exclusion = isExclusion(fields);
+		BasicDBObject result;
+		if(exclusion)
+		{
+			result = doc;
+			for(String key : fields.keySet())
+				unsetField(result, key);
+			return result;
+		}
+		result = new BasicDBObject();
+		if(doc.containsField(BlackBoard.DOC_ID))
+			result.put(BlackBoard.DOC_ID, doc.get(BlackBoard.DOC_ID));
+		for(String key : fields.keySet())
+		{
+			if(key.equals(BlackBoard.DOC_ID))
+			{
+				if(!isTrue(fields.get(key)))
+					result.removeField(key);
+				continue;
+			}
+			Object value = getField(doc, key);
+			if(value!=MISSING)
+				setField(result, key, value);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns a comparator of docs for a sort order, e.g. {_id: -1}.
+	 */
+	static Comparator<DBObject> docOrder(final BSONObject orderBy)
+	{
+		final List<String> keys = new ArrayList<String>(orderBy.keySet());
+		final int[] directions = new int[keys.size()];
+		for(int k=0; k<keys.size(); k++)
+			directions[k] = ((Number) orderBy.get(keys.get(k))).intValue() < 0 ? -1 : 1;
+		return new Comparator<DBObject>() {
+			@Override
+			public int compare(DBObject a, DBObject b)
+			{
+				for(int k=0; k<keys.size(); k++)
+				{
+					Object va = getField(a, keys.get(k));
+					Object vb = getField(b, keys.get(k));
+					int c = compareValues(va==MISSING ? null : va, vb==MISSING ? null : vb);
+					if(c!=0)
+						return directions[k] * c;
+				}
+				return 0;
+			}
+		};
+	}
+
+	/**
+	 * Returns the query restricted to the docs that come after lastID in a
+	 * sort order on _id, e.g. {$and: [query, {_id: {$gt: lastID}}]} for
+	 * {_id: 1}.
+	 *
+	 * @throws UnsupportedOperationException If the order is not on _id alone.
+	 */
+	static DBObject queryAfterID(DBObject query, Object lastID, BSONObject orderBy)
+	{
+		if(orderBy==null || orderBy.keySet().size()!=1 || !orderBy.containsField(BlackBoard.DOC_ID))
+			throw new UnsupportedOperationException("The docs are not sorted by "+BlackBoard.DOC_ID+": "+orderBy);
+		boolean descending = ((Number) orderBy.get(BlackBoard.DOC_ID)).intValue() < 0;
+		DBObject after = new BasicDBObject(BlackBoard.DOC_ID,
+				new BasicDBObject(descending ? "$lt" : "$gt", lastID));
+		if(query==null || query.keySet().isEmpty())
+			return after;
+
+		BasicDBList and = new BasicDBList();
+		and.add(query);
+		and.add(after);
+		return new BasicDBObject("$and", and);
+	}
+}
@@ -0,0 +1,1069 @@
+package macsy.blackBoardsSystem;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.bson.BSONObject;
+import org.bson.types.ObjectId;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+
+/**
+ * A DocCollection of LocalStorage, kept in a log-structured file.
+ *
+ * Each insert, update or removal of a doc appends a record with the new
+ * version of the doc (or the _id of the removed doc) to the file; the older
+ * versions are dead space, which is reclaimed (the file is rewritten with the
+ * live docs only) when there are more dead than live bytes, on open or after a
+ * write.
+ *
+ * Record format (big-endian):
+ *
+ * int			MAGIC
+ * int			Length of the body
+ * byte		PUT or DELETE
+ * ...			PUT: the doc, DELETE: the _id (see DocCodec)
+ * int			CRC32 of the body (from the PUT/DELETE byte)
+ *
+ * Opening the collection reads the file once. In memory are kept, per doc:
+ * its slot (an ordinal, in order of first insert), the position of its last
+ * version in the file, and its _id in a sorted map, for _id ranges (e.g. the
+ * dates of ObjectIds) and sorts. Docs are read from the file when they are
+ * fetched, with positional reads.
+ *
+ * Fields can be indexed (ensureIndex(), and the tag fields of the Black
+ * Boards by default) with an inverted index: value (or element of a list) to
+ * the set of the slots of the docs that have it. A query is first narrowed down
+ * with the _id map and the inverted indexes ($all, $in, $nin and equality on
+ * indexed fields). If these cover all its conditions, a count does not read any
+ * doc, and a cursor reads only the projected fields. The other conditions are
+ * checked on the docs.
+ *
+ * A record cut short by a crash is dropped, with anything after it.
+ */
+final class LocalDocCollection implements DocCollection {
+
+	static final String FILE_SUFFIX = ".bbl";
+
+	private static final int MAGIC = 0x4242444f; // "BBDO"
+	private static final byte PUT = 1;
+	private static final byte DELETE = 2;
+	private static final int RECORD_OVERHEAD = 4 + 4 + 1 + 4;
+
+	/**
+	 * The collection is compacted when it has more dead bytes than live ones,
+	 * and at least this many.
+	 */
+	private static final long MIN_COMPACTION_BYTES = 1L << 20;
+
+	private final String name;
+	private final File file;
+	private final Set<String> defaultIndexedFields;
+
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private long end;
+	private long liveBytes;
+	private long deadBytes;
+
+	//Per slot
+	private int slots;
+	private long[] offsets = new long[0];
+	private int[] lengths = new int[0];
+	private Object[] ids = new Object[0];
+	private final BitSet live = new BitSet();
+
+	//_id to slot
+	private final TreeMap<Object,Integer> idIndex = new TreeMap<Object,Integer>(DocMatcher.VALUE_ORDER);
+
+	//Field to value to slots
+	private final Map<String,Map<Object,BitSet>> indexes = new HashMap<String,Map<Object,BitSet>>();
+
+	private final DocCodec.Output out = new DocCodec.Output();
+	private final CRC32 crc = new CRC32();
+
+	LocalDocCollection(File dir, String name, Set<String> defaultIndexedFields)
+	{
+		this.name = name;
+		this.file = new File(dir, name + FILE_SUFFIX);
+		this.defaultIndexedFields = defaultIndexedFields;
+		try {
+			open();
+			if(needsCompaction())
+				compact();
+		}
+		catch(IOException e) {
+			throw new StorageException("Can not open "+file, e);
+		}
+	}
+
+	private boolean needsCompaction()
+	{
+		return deadBytes > liveBytes && deadBytes >= MIN_COMPACTION_BYTES;
+	}
+
+	private void open() throws IOException
+	{
+		slots = 0;
+		offsets = new long[1024];
+		lengths = new int[1024];
+		ids = new Object[1024];
+		live.clear();
+		idIndex.clear();
+		indexes.clear();
+		liveBytes = 0;
+		deadBytes = 0;
+
+		raf = null;
+		channel = null;
+		end = 0;
+		if(file.exists())
+		{
+			long validLength = replay();
+			openFile();
+			if(validLength < raf.length())
+			{
+				System.out.println("Dropping " + (raf.length() - validLength)
+						+ " bytes at the end of " + file);
+				raf.setLength(validLength);
+			}
+			end = validLength;
+		}
+
+		buildIndexes(defaultIndexedFields);
+	}
+
+	/**
+	 * Opens the file for reading and writing, creating it if it does not exist
+	 * (a collection gets a file with its first write).
+	 */
+	private void openFile() throws IOException
+	{
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+	}
+
+	/**
+	 * Reads the records of the file (only the _ids of the docs), and returns
+	 * the length of the valid ones.
+	 */
+	private long replay() throws IOException
+	{
+		final Set<String> idOnly = Collections.singleton(BlackBoard.DOC_ID);
+		return scan(new RecordVisitor() {
+			@Override
+			public boolean visit(long offset, byte op, ByteBuffer body)
+			{
+				int length = body.limit();
+				if(op==PUT)
+					setSlot(DocCodec.decodeDoc(body, idOnly).get(BlackBoard.DOC_ID),
+							offset + 9, length);
+				else
+				{
+					Integer slot = idIndex.get(DocCodec.decodeValue(body));
+					if(slot!=null)
+						clearSlot(slot);
+					deadBytes += RECORD_OVERHEAD + length;
+				}
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * A record of the file, see scan().
+	 */
+	private interface RecordVisitor {
+		/**
+		 * @param offset The position of the record in the file.
+		 * @param op PUT or DELETE.
+		 * @param body The doc or _id, from its position to its limit.
+		 * @return false to stop the scan, as if the record was not valid.
+		 */
+		boolean visit(long offset, byte op, ByteBuffer body);
+	}
+
+	/**
+	 * Reads the valid records of the file in order.
+	 *
+	 * @return The length of the valid records.
+	 */
+	private long scan(RecordVisitor visitor) throws IOException
+	{
+		long validLength = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file), 1 << 16));
+		try {
+			byte[] body = new byte[1024];
+			while(true)
+			{
+				int length;
+				int expectedCRC;
+				try {
+					if(in.readInt()!=MAGIC)
+						break;
+					length = in.readInt();
+					if(length < 1 || length > file.length())
+						break;
+					if(body.length < length)
+						body = new byte[Math.max(length, 2 * body.length)];
+					in.readFully(body, 0, length);
+					expectedCRC = in.readInt();
+				}
+				catch(EOFException e) {
+					break;
+				}
+				crc.reset();
+				crc.update(body, 0, length);
+				if((int) crc.getValue()!=expectedCRC)
+					break;
+
+				ByteBuffer buf = ByteBuffer.wrap(body, 1, length - 1).slice();
+				if(!visitor.visit(validLength, body[0], buf))
+					break;
+				validLength += RECORD_OVERHEAD - 1 + length;
+			}
+		}
+		finally {
+			in.close();
+		}
+		return validLength;
+	}
+
+	/**
+	 * Adds inverted indexes on the fields, reading the live docs from the file
+	 * (only the fields) in order.
+	 */
+	private void buildIndexes(Collection<String> fields) throws IOException
+	{
+		final Map<String,Map<Object,BitSet>> built = new HashMap<String,Map<Object,BitSet>>();
+		final Set<String> topFields = new HashSet<String>();
+		for(String field : fields)
+		{
+			built.put(field, new HashMap<Object,BitSet>());
+			int dot = field.indexOf('.');
+			topFields.add(dot<0 ? field : field.substring(0, dot));
+		}
+		if(!live.isEmpty())
+		{
+			topFields.add(BlackBoard.DOC_ID);
+			scan(new RecordVisitor() {
+				@Override
+				public boolean visit(long offset, byte op, ByteBuffer body)
+				{
+					if(op!=PUT)
+						return true;
+					BasicDBObject doc = DocCodec.decodeDoc(body, topFields);
+					Integer slot = idIndex.get(doc.get(BlackBoard.DOC_ID));
+					//Only the last version of a doc is indexed
+					if(slot!=null && offsets[slot]==offset + 9)
+						index(built, slot, doc);
+					return true;
+				}
+			});
+		}
+		indexes.putAll(built);
+	}
+
+	private Set<String> indexedFields()
+	{
+		Set<String> fields = new HashSet<String>();
+		for(String field : indexes.keySet())
+		{
+			int dot = field.indexOf('.');
+			fields.add(dot<0 ? field : field.substring(0, dot));
+		}
+		fields.add(BlackBoard.DOC_ID);
+		return fields;
+	}
+
+	/**
+	 * Points the slot of a doc (a new one if its _id is new) to a version in the file.
+	 * The slots keep the order of the first insert of the docs.
+	 *
+	 * @return The slot.
+	 */
+	private int setSlot(Object id, long offset, int length)
+	{
+		Integer slot = idIndex.get(id);
+		if(slot==null)
+		{
+			slot = slots++;
+			if(slot==offsets.length)
+			{
+				offsets = Arrays.copyOf(offsets, 2 * slot);
+				lengths = Arrays.copyOf(lengths, 2 * slot);
+				ids = Arrays.copyOf(ids, 2 * slot);
+			}
+			idIndex.put(id, slot);
+			ids[slot] = id;
+			live.set(slot);
+		}
+		else
+		{
+			deadBytes += RECORD_OVERHEAD + lengths[slot];
+			liveBytes -= RECORD_OVERHEAD + lengths[slot];
+		}
+		offsets[slot] = offset;
+		lengths[slot] = length;
+		liveBytes += RECORD_OVERHEAD + length;
+		return slot;
+	}
+
+	private void clearSlot(int slot)
+	{
+		idIndex.remove(ids[slot]);
+		ids[slot] = null;
+		live.clear(slot);
+		deadBytes += RECORD_OVERHEAD + lengths[slot];
+		liveBytes -= RECORD_OVERHEAD + lengths[slot];
+	}
+
+	private static void index(Map<String,Map<Object,BitSet>> indexes, int slot, BSONObject doc)
+	{
+		for(Map.Entry<String,Map<Object,BitSet>> e : indexes.entrySet())
+			for(Object key : indexKeys(doc, e.getKey()))
+			{
+				BitSet set = e.getValue().get(key);
+				if(set==null)
+				{
+					set = new BitSet();
+					e.getValue().put(key, set);
+				}
+				set.set(slot);
+			}
+	}
+
+	private void unindex(int slot, BSONObject doc)
+	{
+		for(Map.Entry<String,Map<Object,BitSet>> e : indexes.entrySet())
+			for(Object key : indexKeys(doc, e.getKey()))
+			{
+				BitSet set = e.getValue().get(key);
+				if(set!=null)
+				{
+					set.clear(slot);
+					if(set.isEmpty())
+						e.getValue().remove(key);
+				}
+			}
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static Collection<Object> indexKeys(BSONObject doc, String field)
+	{
+		Object value = DocMatcher.getField(doc, field);
+		if(value==DocMatcher.MISSING)
+			return Collections.emptyList();
+		if(value instanceof List)
+		{
+			Set<Object> keys = new LinkedHashSet<Object>();
+			for(Object element : (List) value)
+				keys.add(DocMatcher.indexKey(element));
+			return keys;
+		}
+		return Collections.singletonList(DocMatcher.indexKey(value));
+	}
+
+	/**
+	 * Rewrites the file with the live versions of the docs only.
+	 * The docs keep their slots (the cursors and the indexes refer to them),
+	 * only their positions in the file change.
+	 */
+	synchronized void compact() throws IOException
+	{
+		File tmp = new File(file.getPath() + ".tmp");
+		long[] compactedOffsets = new long[slots];
+		long position = 0;
+		RandomAccessFile compacted = new RandomAccessFile(tmp, "rw");
+		try {
+			compacted.setLength(0);
+			FileChannel target = compacted.getChannel();
+			for(int slot=live.nextSetBit(0); slot>=0; slot=live.nextSetBit(slot+1))
+			{
+				compactedOffsets[slot] = position + 9;
+				ByteBuffer record = ByteBuffer.allocate(lengths[slot] + RECORD_OVERHEAD);
+				record.putInt(MAGIC).putInt(lengths[slot] + 1).put(PUT);
+				record.limit(9 + lengths[slot]);
+				readFully(record, offsets[slot]);
+				record.limit(record.capacity());
+				crc.reset();
+				crc.update(record.array(), 8, lengths[slot] + 1);
+				record.putInt((int) crc.getValue());
+				record.flip();
+				while(record.hasRemaining())
+					position += target.write(record, position);
+			}
+			target.force(true);
+		}
+		finally {
+			compacted.close();
+		}
+
+		if(raf!=null)
+			raf.close();
+		raf = null;
+		channel = null;
+		if(!tmp.renameTo(file))
+		{
+			file.delete();
+			if(!tmp.renameTo(file))
+				throw new IOException("Can not replace "+file+" with "+tmp);
+		}
+		openFile();
+		for(int slot=live.nextSetBit(0); slot>=0; slot=live.nextSetBit(slot+1))
+			offsets[slot] = compactedOffsets[slot];
+		end = position;
+		deadBytes = 0;
+	}
+
+	/**
+	 * Compacts the collection during a run, when a write has left more dead
+	 * bytes than live ones.
+	 */
+	private void compactIfNeeded()
+	{
+		if(!needsCompaction())
+			return;
+		try {
+			compact();
+		}
+		catch(IOException e) {
+			throw new StorageException("Error compacting "+file, e);
+		}
+	}
+
+	private void readFully(ByteBuffer buf, long position) throws IOException
+	{
+		while(buf.hasRemaining())
+		{
+			int n = channel.read(buf, position);
+			if(n < 0)
+				throw new EOFException("Unexpected end of "+file);
+			position += n;
+		}
+	}
+
+	/**
+	 * Reads the fields of the doc in the slot, or returns null if it was removed.
+	 */
+	private BasicDBObject read(int slot, Set<String> fields)
+	{
+		if(!live.get(slot))
+			return null;
+		ByteBuffer buf = ByteBuffer.allocate(lengths[slot]);
+		try {
+			readFully(buf, offsets[slot]);
+		}
+		catch(IOException e) {
+			throw new StorageException("Error reading "+file, e);
+		}
+		buf.flip();
+		return DocCodec.decodeDoc(buf, fields);
+	}
+
+	/**
+	 * Appends a version of the doc to the file, and indexes it.
+	 */
+	private void write(BasicDBObject doc)
+	{
+		Object id = doc.get(BlackBoard.DOC_ID);
+		Integer old = idIndex.get(id);
+		if(old!=null && !indexes.isEmpty())
+			unindex(old, read(old, indexedFields()));
+
+		out.reset();
+		out.putInt(MAGIC);
+		out.putInt(0);
+		out.put(PUT);
+		DocCodec.encodeDoc(doc, out);
+		long offset = append();
+
+		int slot = setSlot(id, offset + 9, out.size() - RECORD_OVERHEAD);
+		index(indexes, slot, doc);
+		compactIfNeeded();
+	}
+
+	private void delete(int slot)
+	{
+		if(!indexes.isEmpty())
+			unindex(slot, read(slot, indexedFields()));
+
+		out.reset();
+		out.putInt(MAGIC);
+		out.putInt(0);
+		out.put(DELETE);
+		DocCodec.encodeValue(ids[slot], out);
+		append();
+
+		clearSlot(slot);
+		deadBytes += out.size();
+		compactIfNeeded();
+	}
+
+	/**
+	 * Completes the record in out (length and CRC) and appends it to the file.
+	 *
+	 * @return The position of the record in the file.
+	 */
+	private long append()
+	{
+		int bodyLength = out.size() - 8;
+		out.putIntAt(4, bodyLength);
+		crc.reset();
+		crc.update(out.array(), 8, bodyLength);
+		out.putInt((int) crc.getValue());
+
+		long offset = end;
+		ByteBuffer buf = ByteBuffer.wrap(out.array(), 0, out.size());
+		try {
+			if(channel==null)
+				openFile();
+			long position = offset;
+			while(buf.hasRemaining())
+				position += channel.write(buf, position);
+		}
+		catch(IOException e) {
+			throw new StorageException("Error writing "+file, e);
+		}
+		end = offset + out.size();
+		return offset;
+	}
+
+	private void force()
+	{
+		if(channel==null)
+			return;
+		try {
+			channel.force(false);
+		}
+		catch(IOException e) {
+			throw new StorageException("Error writing "+file, e);
+		}
+	}
+
+	/**
+	 * The slots of the docs that may match a query.
+	 */
+	static final class Candidates {
+		final BitSet slots;
+		/**
+		 * True if all the conditions of the query were checked with the indexes.
+		 */
+		final boolean covered;
+
+		Candidates(BitSet slots, boolean covered)
+		{
+			this.slots = slots;
+			this.covered = covered;
+		}
+	}
+
+	/**
+	 * Narrows down a query with the _id map and the inverted indexes.
+	 */
+	@SuppressWarnings("rawtypes")
+	synchronized Candidates candidates(BSONObject query)
+	{
+		BitSet result = (BitSet) live.clone();
+		boolean covered = true;
+		if(query==null)
+			return new Candidates(result, true);
+
+		for(String key : query.keySet())
+		{
+			Object cond = query.get(key);
+			if(key.equals(BlackBoard.DOC_ID))
+				covered &= narrowById(result, cond);
+			else if(indexes.containsKey(key))
+			{
+				Map<Object,BitSet> index = indexes.get(key);
+				if(!DocMatcher.isOperatorDoc(cond))
+				{
+					if(cond==null || cond instanceof List || cond instanceof BSONObject)
+						covered = false;
+					else
+						result.and(lookup(index, cond));
+					continue;
+				}
+				BSONObject ops = (BSONObject) cond;
+				for(String op : ops.keySet())
+				{
+					Object arg = ops.get(op);
+					if(!(arg instanceof Collection) || containsNullOrList((Collection) arg))
+						covered = false;
+					else if(op.equals("$all"))
+					{
+						if(((Collection) arg).isEmpty())
+							result.clear();
+						for(Object a : (Collection) arg)
+							result.and(lookup(index, a));
+					}
+					else if(op.equals("$in"))
+						result.and(union(index, (Collection) arg));
+					else if(op.equals("$nin"))
+						result.andNot(union(index, (Collection) arg));
+					else
+						covered = false;
+				}
+			}
+			else
+				covered = false;
+		}
+		return new Candidates(result, covered);
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static boolean containsNullOrList(Collection values)
+	{
+		for(Object v : values)
+			if(v==null || v instanceof List || v instanceof BSONObject)
+				return true;
+		return false;
+	}
+
+	private static BitSet lookup(Map<Object,BitSet> index, Object value)
+	{
+		BitSet set = index.get(DocMatcher.indexKey(value));
+		return set==null ? new BitSet() : set;
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static BitSet union(Map<Object,BitSet> index, Collection values)
+	{
+		BitSet set = new BitSet();
+		for(Object value : values)
+			set.or(lookup(index, value));
+		return set;
+	}
+
+	/**
+	 * Narrows down the slots with a condition on _id.
+	 *
+	 * @return true if the condition was fully checked.
+	 */
+	@SuppressWarnings("rawtypes")
+	private boolean narrowById(BitSet result, Object cond)
+	{
+		if(!DocMatcher.isOperatorDoc(cond))
+		{
+			if(cond instanceof List || cond instanceof BSONObject)
+				return false;
+			Integer slot = idIndex.get(cond);
+			boolean found = slot!=null && result.get(slot);
+			result.clear();
+			if(found)
+				result.set(slot);
+			return true;
+		}
+
+		BSONObject ops = (BSONObject) cond;
+		Object from = null;
+		boolean fromInclusive = false;
+		Object to = null;
+		boolean toInclusive = false;
+		boolean covered = true;
+		for(String op : ops.keySet())
+		{
+			Object arg = ops.get(op);
+			if(op.equals("$gt") || op.equals("$gte"))
+			{
+				from = arg;
+				fromInclusive = op.equals("$gte");
+			}
+			else if(op.equals("$lt") || op.equals("$lte"))
+			{
+				to = arg;
+				toInclusive = op.equals("$lte");
+			}
+			else if(op.equals("$in") && arg instanceof Collection)
+			{
+				BitSet in = new BitSet();
+				for(Object id : (Collection) arg)
+				{
+					Integer slot = idIndex.get(id);
+					if(slot!=null)
+						in.set(slot);
+				}
+				result.and(in);
+			}
+			else
+				covered = false;
+		}
+		if(from==null && to==null)
+			return covered;
+
+		//Ranges compare values of the same type only
+		NavigableMap<Object,Integer> range = idIndex;
+		if(from!=null)
+			range = range.tailMap(from, fromInclusive);
+		if(to!=null)
+			range = range.headMap(to, toInclusive);
+		BitSet inRange = new BitSet();
+		Class<?> type = (from!=null ? from : to).getClass();
+		for(Map.Entry<Object,Integer> e : range.entrySet())
+			if(sameType(e.getKey(), type))
+				inRange.set(e.getValue());
+		result.and(inRange);
+		return covered && (from==null || to==null || sameType(to, from.getClass()));
+	}
+
+	private static boolean sameType(Object value, Class<?> type)
+	{
+		if(value instanceof Number)
+			return Number.class.isAssignableFrom(type);
+		return value.getClass()==type;
+	}
+
+	/**
+	 * Returns the slots of the docs that may match a query, in the order of a sort.
+	 * If the sort is on other fields than _id, the docs are read and checked.
+	 *
+	 * @param query
+	 * @param orderBy The sort, or null for the order of insert.
+	 * @param candidates The result of candidates(query).
+	 */
+	synchronized int[] plan(BSONObject query, BSONObject orderBy, Candidates candidates)
+	{
+		BitSet slots = candidates.slots;
+		int[] plan = new int[slots.cardinality()];
+		if(orderBy==null || orderBy.keySet().isEmpty())
+		{
+			int k = 0;
+			for(int slot=slots.nextSetBit(0); slot>=0; slot=slots.nextSetBit(slot+1))
+				plan[k++] = slot;
+			return plan;
+		}
+
+		if(orderBy.keySet().size()==1 && orderBy.containsField(BlackBoard.DOC_ID))
+		{
+			boolean descending = ((Number) orderBy.get(BlackBoard.DOC_ID)).intValue() < 0;
+			int k = 0;
+			if(plan.length < slots.size() / 8)
+			{
+				//Few candidates: sort them by _id
+				Integer[] sorted = new Integer[plan.length];
+				for(int slot=slots.nextSetBit(0); slot>=0; slot=slots.nextSetBit(slot+1))
+					sorted[k++] = slot;
+				final Object[] slotIds = ids;
+				Arrays.sort(sorted, new Comparator<Integer>() {
+					@Override
+					public int compare(Integer a, Integer b)
+					{
+						return DocMatcher.compareValues(slotIds[a], slotIds[b]);
+					}
+				});
+				for(k=0; k<plan.length; k++)
+					plan[k] = sorted[descending ? plan.length - 1 - k : k];
+			}
+			else
+			{
+				Collection<Integer> ordered = descending ? idIndex.descendingMap().values() : idIndex.values();
+				for(Integer slot : ordered)
+					if(slots.get(slot))
+						plan[k++] = slot;
+			}
+			return plan;
+		}
+
+		//Other sorts: read and sort the docs that match
+		final List<BasicDBObject> docs = new ArrayList<BasicDBObject>();
+		List<Integer> docSlots = new ArrayList<Integer>();
+		for(int slot=slots.nextSetBit(0); slot>=0; slot=slots.nextSetBit(slot+1))
+		{
+			BasicDBObject doc = read(slot, null);
+			if(candidates.covered || DocMatcher.matches(doc, query))
+			{
+				docs.add(doc);
+				docSlots.add(slot);
+			}
+		}
+		Integer[] order = new Integer[docs.size()];
+		for(int k=0; k<order.length; k++)
+			order[k] = k;
+		final Comparator<DBObject> docOrder = DocMatcher.docOrder(orderBy);
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b)
+			{
+				return docOrder.compare(docs.get(a), docs.get(b));
+			}
+		});
+		plan = new int[order.length];
+		for(int k=0; k<plan.length; k++)
+			plan[k] = docSlots.get(order[k]);
+		return plan;
+	}
+
+	/**
+	 * Returns the doc in the slot if it matches the query, or null.
+	 *
+	 * @param slot
+	 * @param query
+	 * @param fields The projection, or null.
+	 * @param covered true if the query was checked by candidates().
+	 */
+	synchronized DBObject fetch(int slot, BSONObject query, BSONObject fields, boolean covered)
+	{
+		BasicDBObject doc = read(slot, covered ? DocMatcher.projectedFields(fields) : null);
+		if(doc==null || (!covered && !DocMatcher.matches(doc, query)))
+			return null;
+		return DocMatcher.project(doc, fields);
+	}
+
+	@Override
+	public String getName()
+	{
+		return name;
+	}
+
+	@Override
+	public synchronized long count()
+	{
+		return idIndex.size();
+	}
+
+	@Override
+	public synchronized long count(DBObject query)
+	{
+		Candidates candidates = candidates(query);
+		if(candidates.covered)
+			return candidates.slots.cardinality();
+		long count = 0;
+		BitSet slots = candidates.slots;
+		for(int slot=slots.nextSetBit(0); slot>=0; slot=slots.nextSetBit(slot+1))
+			if(DocMatcher.matches(read(slot, null), query))
+				count++;
+		return count;
+	}
+
+	@Override
+	public DBObject findOne(DBObject query)
+	{
+		return findOne(query, null);
+	}
+
+	@Override
+	public DBObject findOne(DBObject query, DBObject fields)
+	{
+		DocCursor cursor = find(query, fields).limit(1);
+		return cursor.hasNext() ? cursor.next() : null;
+	}
+
+	@Override
+	public DocCursor find()
+	{
+		return new LocalDocCursor(this, null, null);
+	}
+
+	@Override
+	public DocCursor find(DBObject query)
+	{
+		return new LocalDocCursor(this, query, null);
+	}
+
+	@Override
+	public DocCursor find(DBObject query, DBObject fields)
+	{
+		return new LocalDocCursor(this, query, fields);
+	}
+
+	@Override
+	public void insert(DBObject doc)
+	{
+		insert(doc, null);
+	}
+
+	/**
+	 * Inserts a doc, replacing the doc with the same _id if any.
+	 * With a WriteConcern the file is forced to disk.
+	 */
+	@Override
+	public synchronized void insert(DBObject doc, WriteConcern writeConcern)
+	{
+		if(doc.get(BlackBoard.DOC_ID)==null)
+			doc.put(BlackBoard.DOC_ID, new ObjectId());
+		write(toBasic(doc));
+		if(writeConcern!=null)
+			force();
+	}
+
+	@Override
+	public void insert(List<DBObject> docs)
+	{
+		insert(docs, null);
+	}
+
+	@Override
+	public synchronized void insert(List<DBObject> docs, WriteConcern writeConcern)
+	{
+		for(DBObject doc : docs)
+			insert(doc, null);
+		if(writeConcern!=null)
+			force();
+	}
+
+	private static BasicDBObject toBasic(DBObject doc)
+	{
+		if(doc instanceof BasicDBObject)
+			return (BasicDBObject) doc;
+		return (BasicDBObject) DocMatcher.copyValue(doc);
+	}
+
+	@Override
+	public void update(DBObject query, DBObject update)
+	{
+		update(query, update, false, false);
+	}
+
+	@Override
+	public synchronized void update(DBObject query, DBObject update, boolean upsert, boolean multi)
+	{
+		boolean found = false;
+		Candidates candidates = candidates(query);
+		BitSet slots = candidates.slots;
+		for(int slot=slots.nextSetBit(0); slot>=0; slot=slots.nextSetBit(slot+1))
+		{
+			BasicDBObject doc = read(slot, null);
+			if(!candidates.covered && !DocMatcher.matches(doc, query))
+				continue;
+			found = true;
+			if(DocMatcher.applyUpdate(doc, update, false))
+				write(doc);
+			if(!multi)
+				break;
+		}
+		if(!found && upsert)
+			upsert(query, update);
+	}
+
+	private BasicDBObject upsert(DBObject query, DBObject update)
+	{
+		BasicDBObject doc = DocMatcher.upsertDoc(query);
+		DocMatcher.applyUpdate(doc, update, true);
+		if(doc.get(BlackBoard.DOC_ID)==null)
+			doc.put(BlackBoard.DOC_ID, new ObjectId());
+		write(doc);
+		return doc;
+	}
+
+	@Override
+	public synchronized void updateEach(List<DBObject> queries, List<DBObject> updates, WriteConcern writeConcern)
+	{
+		for(int i=0; i<queries.size(); i++)
+			update(queries.get(i), updates.get(i), false, false);
+		if(writeConcern!=null)
+			force();
+	}
+
+	@Override
+	public synchronized void remove(DBObject query)
+	{
+		Candidates candidates = candidates(query);
+		BitSet slots = candidates.slots;
+		for(int slot=slots.nextSetBit(0); slot>=0; slot=slots.nextSetBit(slot+1))
+			if(candidates.covered || DocMatcher.matches(read(slot, null), query))
+				delete(slot);
+	}
+
+	@Override
+	public DBObject findAndModify(DBObject query, DBObject update)
+	{
+		return findAndModify(query, update, false, false);
+	}
+
+	@Override
+	public synchronized DBObject findAndModify(DBObject query, DBObject update, boolean returnNew, boolean upsert)
+	{
+		Candidates candidates = candidates(query);
+		BitSet slots = candidates.slots;
+		for(int slot=slots.nextSetBit(0); slot>=0; slot=slots.nextSetBit(slot+1))
+		{
+			BasicDBObject doc = read(slot, null);
+			if(!candidates.covered && !DocMatcher.matches(doc, query))
+				continue;
+			BasicDBObject old = returnNew ? null : (BasicDBObject) DocMatcher.copyValue(doc);
+			if(DocMatcher.applyUpdate(doc, update, false))
+				write(doc);
+			return returnNew ? doc : old;
+		}
+		if(!upsert)
+			return null;
+		BasicDBObject doc = upsert(query, update);
+		return returnNew ? doc : null;
+	}
+
+	/**
+	 * Builds an inverted index on the first field of the keys, if there is none.
+	 * Indexes are not saved, they are built again each time the collection is opened.
+	 */
+	@Override
+	public synchronized void ensureIndex(DBObject keys, DBObject options)
+	{
+		String field = keys.keySet().iterator().next();
+		if(field.equals(BlackBoard.DOC_ID) || indexes.containsKey(field))
+			return;
+		try {
+			buildIndexes(Collections.singleton(field));
+		}
+		catch(IOException e) {
+			throw new StorageException("Error reading "+file, e);
+		}
+	}
+
+	@Override
+	public synchronized void drop()
+	{
+		close();
+		if(file.exists() && !file.delete())
+			throw new StorageException("Can not delete "+file);
+		try {
+			open();
+		}
+		catch(IOException e) {
+			throw new StorageException("Can not open "+file, e);
+		}
+	}
+
+	/**
+	 * Forces the file to disk and closes it.
+	 */
+	synchronized void close()
+	{
+		if(channel==null)
+			return;
+		try {
+			channel.force(true);
+			raf.close();
+			raf = null;
+			channel = null;
+		}
+		catch(IOException e) {
+			throw new StorageException("Error closing "+file, e);
+		}
+	}
+}
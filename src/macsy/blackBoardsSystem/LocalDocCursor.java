@@ -0,0 +1,181 @@
+package macsy.blackBoardsSystem;
+
+import java.util.NoSuchElementException;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * A DocCursor of a LocalDocCollection.
+ *
+ * When the first doc is read, the slots of the docs that may match are taken
+ * from the indexes of the collection, in the order of the sort. The docs are
+ * then read from the file one at a time, so a doc changed meanwhile is read
+ * in its current version, and a removed doc is skipped.
+ */
+final class LocalDocCursor implements DocCursor {
+
+	private final LocalDocCollection coll;
+	private final DBObject query;
+	private final DBObject fields;
+	private DBObject orderBy = null;
+	private int skip = 0;
+	private int limit = 0;
+
+	//Set when the first doc is read
+	private int[] plan = null;
+	private boolean covered;
+	private int position = 0;
+	private int skipped = 0;
+	private int returned = 0;
+	private DBObject nextDoc = null;
+
+	LocalDocCursor(LocalDocCollection coll, DBObject query, DBObject fields)
+	{
+		this.coll = coll;
+		this.query = query;
+		this.fields = fields;
+	}
+
+	private void checkNotStarted()
+	{
+		if(plan!=null)
+			throw new IllegalStateException("The cursor has already been read");
+	}
+
+	@Override
+	public DocCursor sort(DBObject orderBy)
+	{
+		checkNotStarted();
+		this.orderBy = orderBy;
+		return this;
+	}
+
+	@Override
+	public DocCursor limit(int n)
+	{
+		checkNotStarted();
+		limit = Math.abs(n);
+		return this;
+	}
+
+	@Override
+	public DocCursor skip(int n)
+	{
+		checkNotStarted();
+		skip = n;
+		return this;
+	}
+
+	/**
+	 * Docs are read one at a time, the batch size is ignored.
+	 */
+	@Override
+	public DocCursor batchSize(int n)
+	{
+		return this;
+	}
+
+	@Override
+	public boolean hasNext()
+	{
+		if(nextDoc!=null)
+			return true;
+		if(plan==null)
+		{
+			LocalDocCollection.Candidates candidates = coll.candidates(query);
+			covered = candidates.covered;
+			plan = coll.plan(query, orderBy, candidates);
+			//A sort on other fields than _id checks the query
+			if(orderBy!=null && !orderBy.keySet().isEmpty()
+					&& !(orderBy.keySet().size()==1 && orderBy.containsField(BlackBoard.DOC_ID)))
+				covered = true;
+		}
+		while(nextDoc==null && position < plan.length && (limit==0 || returned < limit))
+		{
+			DBObject doc = coll.fetch(plan[position++], query, fields, covered);
+			if(doc==null)
+				continue;
+			if(skipped < skip)
+			{
+				skipped++;
+				continue;
+			}
+			nextDoc = doc;
+			returned++;
+		}
+		return nextDoc!=null;
+	}
+
+	@Override
+	public DBObject next()
+	{
+		if(!hasNext())
+			throw new NoSuchElementException();
+		DBObject doc = nextDoc;
+		nextDoc = null;
+		return doc;
+	}
+
+	@Override
+	public void remove()
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public DocCursor copy()
+	{
+		LocalDocCursor copy = new LocalDocCursor(coll, query, fields);
+		copy.orderBy = orderBy;
+		copy.skip = skip;
+		copy.limit = limit;
+		return copy;
+	}
+
+	@Override
+	public DocCursor resumable()
+	{
+		if(orderBy==null)
+			sort(new BasicDBObject(BlackBoard.DOC_ID, 1));
+		return this;
+	}
+
+	@Override
+	public DocCursor resumeAfter(Object lastID, int read)
+	{
+		if(limit > 0 && read >= limit)
+			return null;
+		if(lastID==null)
+			return copy();
+
+		LocalDocCursor resumed = new LocalDocCursor(coll,
+				DocMatcher.queryAfterID(query, lastID, orderBy), fields);
+		resumed.orderBy = orderBy;
+		if(limit > 0)
+			resumed.limit = limit - read;
+		return resumed;
+	}
+
+	@Override
+	public int size()
+	{
+		long n = Math.max(0, coll.count(query) - skip);
+		if(limit > 0)
+			n = Math.min(n, limit);
+		return (int) n;
+	}
+
+	@Override
+	public DBObject getKeysWanted()
+	{
+		return fields;
+	}
+
+	@Override
+	public void close()
+	{
+		plan = new int[0];
+		nextDoc = null;
+	}
+}
@@ -0,0 +1,148 @@
+package macsy.blackBoardsSystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A BlackBoardStorage in a local directory, for a single process.
+ *
+ * Each collection is a log-structured file (see LocalDocCollection), so the
+ * year collections of a BlackBoardDateBased are partitions of its docs in
+ * separate files, and a query on a date range reads only the files of its
+ * years. The tag fields of the docs have inverted indexes, so queries by tags
+ * and tag counts do not read the docs that do not have the tags.
+ *
+ * A collection is opened (its file read once, to build the indexes) the first
+ * time it is used. Writes go to the files at each call; they are forced to
+ * disk by writes with a WriteConcern and by close().
+ *
+ * The directory is locked (an exclusive lock on its LOCK_FILE) until close(),
+ * so a second LocalStorage on it, in this or another process, fails at once
+ * instead of corrupting the files.
+ *
+ * Map/Reduce (BlackBoardDateBased.runMapReduce()) needs the MongoDB storage.
+ */
+public final class LocalStorage implements BlackBoardStorage {
+
+	/**
+	 * The fields indexed in all collections.
+	 */
+	static final Set<String> DEFAULT_INDEXED_FIELDS = Collections.unmodifiableSet(
+			new HashSet<String>(Arrays.asList(BlackBoard.DOC_TAGS, BlackBoard.DOC_FOR_TAGS)));
+
+	static final String LOCK_FILE = "storage.lock";
+
+	private final File dir;
+	private final RandomAccessFile lockFile;
+	private FileLock lock;
+
+	private final Map<String,LocalDocCollection> collections = new HashMap<String,LocalDocCollection>();
+
+	/**
+	 * @param path The directory of the files, created if it does not exist.
+	 * @throws StorageException If the directory can not be created, or it is
+	 * used by another LocalStorage.
+	 */
+	public LocalStorage(String path)
+	{
+		dir = new File(path);
+		if(!dir.isDirectory() && !dir.mkdirs())
+			throw new StorageException("Can not create directory "+path);
+
+		try {
+			lockFile = new RandomAccessFile(new File(dir, LOCK_FILE), "rw");
+		}
+		catch(IOException e) {
+			throw new StorageException("Can not lock directory "+path, e);
+		}
+		try {
+			lock = lockFile.getChannel().tryLock();
+		}
+		catch(OverlappingFileLockException e) {
+			lock = null;	//Locked by this process
+		}
+		catch(IOException e) {
+			closeLockFile();
+			throw new StorageException("Can not lock directory "+path, e);
+		}
+		if(lock==null)
+		{
+			closeLockFile();
+			throw new StorageException("Directory "+path+" is used by another LocalStorage");
+		}
+	}
+
+	@Override
+	public synchronized DocCollection getCollection(String name)
+	{
+		LocalDocCollection coll = collections.get(name);
+		if(coll==null)
+		{
+			if(name.contains(File.separator) || name.contains("/"))
+				throw new StorageException("Wrong chars in collection name "+name);
+			coll = new LocalDocCollection(dir, name, DEFAULT_INDEXED_FIELDS);
+			collections.put(name, coll);
+		}
+		return coll;
+	}
+
+	/**
+	 * Returns the names of the collections that have a file.
+	 */
+	@Override
+	public synchronized Set<String> getCollectionNames()
+	{
+		Set<String> names = new TreeSet<String>();
+		String[] files = dir.list();
+		if(files!=null)
+			for(String f : files)
+				if(f.endsWith(LocalDocCollection.FILE_SUFFIX))
+					names.add(f.substring(0, f.length() - LocalDocCollection.FILE_SUFFIX.length()));
+		return names;
+	}
+
+	/**
+	 * There are no replicas.
+	 */
+	@Override
+	public void setReadPrimaries(boolean readPrimaries)
+	{
+	}
+
+	/**
+	 * Closes the collections and releases the lock of the directory.
+	 */
+	@Override
+	public synchronized void close()
+	{
+		for(LocalDocCollection coll : collections.values())
+			coll.close();
+		collections.clear();
+
+		if(lock!=null)
+		{
+			closeLockFile();	//Releases the lock
+			lock = null;
+		}
+	}
+
+	private void closeLockFile()
+	{
+		try {
+			lockFile.close();
+		}
+		catch(IOException e) {
+			throw new StorageException("Can not unlock directory "+dir, e);
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package macsy.blackBoardsSystem;
+
+import java.util.List;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MapReduceCommand;
+import com.mongodb.WriteConcern;
+
+/**
+ * A DocCollection on a MongoDB collection.
+ */
+final class MongoDocCollection implements DocCollection {
+
+	private final DBCollection coll;
+
+	MongoDocCollection(DBCollection coll)
+	{
+		this.coll = coll;
+	}
+
+	@Override
+	public String getName()
+	{
+		return coll.getName();
+	}
+
+	@Override
+	public long count()
+	{
+		return coll.count();
+	}
+
+	@Override
+	public long count(DBObject query)
+	{
+		return coll.count(query);
+	}
+
+	@Override
+	public DBObject findOne(DBObject query)
+	{
+		return coll.findOne(query);
+	}
+
+	@Override
+	public DBObject findOne(DBObject query, DBObject fields)
+	{
+		return coll.findOne(query, fields);
+	}
+
+	@Override
+	public DocCursor find()
+	{
+		return new MongoDocCursor(coll.find());
+	}
+
+	@Override
+	public DocCursor find(DBObject query)
+	{
+		return new MongoDocCursor(coll.find(query));
+	}
+
+	@Override
+	public DocCursor find(DBObject query, DBObject fields)
+	{
+		return new MongoDocCursor(coll.find(query, fields));
+	}
+
+	@Override
+	public void insert(DBObject doc)
+	{
+		coll.insert(doc);
+	}
+
+	@Override
+	public void insert(DBObject doc, WriteConcern writeConcern)
+	{
+		coll.insert(doc, writeConcern);
+	}
+
+	@Override
+	public void insert(List<DBObject> docs)
+	{
+		coll.insert(docs);
+	}
+
+	@Override
+	public void insert(List<DBObject> docs, WriteConcern writeConcern)
+	{
+		coll.insert(docs, writeConcern);
+	}
+
+	@Override
+	public void update(DBObject query, DBObject update)
+	{
+		coll.update(query, update);
+	}
+
+	@Override
+	public void update(DBObject query, DBObject update, boolean upsert, boolean multi)
+	{
+		coll.update(query, update, upsert, multi);
+	}
+
+	/**
+	 * Sends the updates in one unordered bulk operation.
+	 */
+	@Override
+	public void updateEach(List<DBObject> queries, List<DBObject> updates, WriteConcern writeConcern)
+	{
+		if(queries.isEmpty())
+			return;
+		BulkWriteOperation bulk = coll.initializeUnorderedBulkOperation();
+		for(int i=0; i<queries.size(); i++)
+			bulk.find(queries.get(i)).updateOne(updates.get(i));
+		bulk.execute(writeConcern);
+	}
+
+	@Override
+	public void remove(DBObject query)
+	{
+		coll.remove(query);
+	}
+
+	@Override
+	public DBObject findAndModify(DBObject query, DBObject update)
+	{
+		return coll.findAndModify(query, update);
+	}
+
+	@Override
+	public DBObject findAndModify(DBObject query, DBObject update, boolean returnNew, boolean upsert)
+	{
+		return coll.findAndModify(query, null, null, false, update, returnNew, upsert);
+	}
+
+	@Override
+	public void ensureIndex(DBObject keys, DBObject options)
+	{
+		if(options==null)
+			coll.ensureIndex(keys);
+		else
+			coll.ensureIndex(keys, options);
+	}
+
+	/**
+	 * Runs a Map/Reduce job on the docs, reducing the results into the output collection.
+	 *
+	 * @param map The map function (JavaScript).
+	 * @param reduce The reduce function (JavaScript).
+	 * @param outputCollection The name of the output collection.
+	 */
+	public void mapReduce(String map, String reduce, String outputCollection)
+	{
+		MapReduceCommand cmd = new MapReduceCommand(coll, map, reduce, outputCollection,
+				MapReduceCommand.OutputType.REDUCE, new BasicDBObject());
+		coll.mapReduce(cmd);
+	}
+
+	@Override
+	public void drop()
+	{
+		coll.drop();
+	}
+}
@@ -0,0 +1,122 @@
+package macsy.blackBoardsSystem;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * A DocCursor on a MongoDB cursor.
+ *
+ * The sort and the limit are kept as well, as resumeAfter() needs them.
+ */
+final class MongoDocCursor implements DocCursor {
+
+	private final DBCursor cursor;
+	private DBObject orderBy = null;
+	private int limit = 0;
+
+	MongoDocCursor(DBCursor cursor)
+	{
+		this.cursor = cursor;
+	}
+
+	@Override
+	public boolean hasNext()
+	{
+		return cursor.hasNext();
+	}
+
+	@Override
+	public DBObject next()
+	{
+		return cursor.next();
+	}
+
+	@Override
+	public void remove()
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public DocCursor sort(DBObject orderBy)
+	{
+		cursor.sort(orderBy);
+		this.orderBy = orderBy;
+		return this;
+	}
+
+	@Override
+	public DocCursor limit(int n)
+	{
+		cursor.limit(n);
+		limit = Math.abs(n);
+		return this;
+	}
+
+	@Override
+	public DocCursor skip(int n)
+	{
+		cursor.skip(n);
+		return this;
+	}
+
+	@Override
+	public DocCursor batchSize(int n)
+	{
+		cursor.batchSize(n);
+		return this;
+	}
+
+	@Override
+	public DocCursor copy()
+	{
+		MongoDocCursor copy = new MongoDocCursor(cursor.copy());
+		copy.orderBy = orderBy;
+		copy.limit = limit;
+		return copy;
+	}
+
+	@Override
+	public DocCursor resumable()
+	{
+		if(orderBy==null)
+			sort(new BasicDBObject(BlackBoard.DOC_ID, 1));
+		return this;
+	}
+
+	@Override
+	public DocCursor resumeAfter(Object lastID, int read)
+	{
+		if(limit > 0 && read >= limit)
+			return null;
+		if(lastID==null)
+			return copy();
+
+		DBObject query = DocMatcher.queryAfterID(cursor.getQuery(), lastID, orderBy);
+		MongoDocCursor resumed = new MongoDocCursor(
+				cursor.getCollection().find(query, cursor.getKeysWanted()));
+		resumed.sort(orderBy);
+		if(limit > 0)
+			resumed.limit(limit - read);
+		return resumed;
+	}
+
+	@Override
+	public int size()
+	{
+		return cursor.size();
+	}
+
+	@Override
+	public DBObject getKeysWanted()
+	{
+		return cursor.getKeysWanted();
+	}
+
+	@Override
+	public void close()
+	{
+		cursor.close();
+	}
+}
@@ -0,0 +1,75 @@
+package macsy.blackBoardsSystem;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.ReadPreference;
+
+/**
+ * A BlackBoardStorage on a MongoDB database.
+ *
+ * Docs are read as BasicDBObjects.
+ */
+public final class MongoStorage implements BlackBoardStorage {
+
+	private final DB mongo_db;
+
+	private final Map<String,MongoDocCollection> collections = new HashMap<String,MongoDocCollection>();
+
+	/**
+	 * @param mongo_db The database, connected and authenticated.
+	 */
+	public MongoStorage(DB mongo_db)
+	{
+		this.mongo_db = mongo_db;
+	}
+
+	/**
+	 * Returns the database.
+	 */
+	public DB getDB()
+	{
+		return mongo_db;
+	}
+
+	@Override
+	public synchronized DocCollection getCollection(String name)
+	{
+		MongoDocCollection coll = collections.get(name);
+		if(coll==null)
+		{
+			DBCollection dbCollection = mongo_db.getCollection(name);
+			dbCollection.setObjectClass(BasicDBObject.class);
+			coll = new MongoDocCollection(dbCollection);
+			collections.put(name, coll);
+		}
+		return coll;
+	}
+
+	@Override
+	public Set<String> getCollectionNames()
+	{
+		return mongo_db.getCollectionNames();
+	}
+
+	@Override
+	public void setReadPrimaries(boolean readPrimaries)
+	{
+		if(readPrimaries)
+			mongo_db.setReadPreference(ReadPreference.primary());
+		else
+			mongo_db.setReadPreference(ReadPreference.secondaryPreferred());
+	}
+
+	/**
+	 * The connection is shared, it is closed with the Mongo object.
+	 */
+	@Override
+	public void close()
+	{
+	}
+}
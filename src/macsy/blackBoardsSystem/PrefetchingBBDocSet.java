@@ -0,0 +1,264 @@
+package macsy.blackBoardsSystem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.DBObject;
+import com.mongodb.MongoCursorNotFoundException;
+
+/**
+ * A set of docs that is read in the background.
+ *
+ * Reader threads pull the docs from the cursors (network and BSON decoding) and
+ * put them in a bounded queue, so that getNext() rarely waits for the database.
+ *
+ * With more than one reader the cursors (e.g. the year collections of a
+ * BlackBoardDateBased) are read concurrently. The docs of each cursor keep their
+ * order, but docs of different cursors are interleaved.
+ *
+ * The cursors that have no sort are sorted by _id, so that a cursor that times out
+ * on the server can be re-opened after the _id of the last doc read (see
+ * DocCursor.resumeAfter()). Skipping the docs already read instead would pass over
+ * docs when the query selects on a tag that processing removes (e.g. FOR>).
+ * After MAX_CURSOR_RECOVERIES timeouts getNext() throws.
+ *
+ * Call close() if the set is not read to the end, to stop the readers.
+ * Obtain one through BBDocSet.prefetch().
+ *
+ */
+public class PrefetchingBBDocSet extends BBDocSet {
+
+	public static final int DEFAULT_BATCH_SIZE = 500;
+	public static final int DEFAULT_QUEUE_DEPTH = 2000;
+
+	private static final int MAX_CURSOR_RECOVERIES = 3;
+	private static final long OFFER_TIMEOUT_MS = 100;
+
+	/**
+	 * Put in the queue by each reader when it has finished.
+	 */
+	private static final BBDoc END_OF_READER = new BBDoc();
+
+	private final int batchSize;
+	private final BlockingQueue<BBDoc> queue;
+	private final List<Thread> readers = new ArrayList<Thread>();
+
+	/**
+	 * The readers whose END_OF_READER has not been taken yet.
+	 */
+	private int activeReaders;
+
+	private volatile boolean closed = false;
+	private volatile RuntimeException failure = null;
+
+	/**
+	 * Starts reading the cursors.
+	 *
+	 * @param cursors The cursors. They should not have been read. If they are sorted, it
+	 * must be by _id for a cursor that times out to be resumed.
+	 * @param batchSize The number of docs fetched from the database in each round trip.
+	 * @param queueDepth The max number of docs read but not yet returned by getNext().
+	 * @param numReaders The number of reader threads. Each reads a subset of the cursors.
+	 */
+	PrefetchingBBDocSet(List<DocCursor> cursors, int batchSize, int queueDepth, int numReaders)
+	{
+		super(cursors);
+		currentCursor = cursors.size();	//The cursors are read by the readers
+
+		this.batchSize = batchSize;
+		for(DocCursor c : cursors)
+			c.resumable().batchSize(batchSize);
+
+		queue = new ArrayBlockingQueue<BBDoc>(queueDepth);
+
+		numReaders = Math.max(1, Math.min(numReaders, cursors.size()));
+		for(int r=0; r<numReaders; r++)
+		{
+			final List<DocCursor> assigned = new ArrayList<DocCursor>();
+			for(int c=r; c<cursors.size(); c+=numReaders)
+				assigned.add(cursors.get(c));
+
+			Thread reader = new Thread(new Runnable() {
+				public void run() {
+					readCursors(assigned);
+				}
+			}, "BBDocSet-reader-"+r);
+			reader.setDaemon(true);
+			readers.add(reader);
+		}
+
+		activeReaders = readers.size();
+		for(Thread reader : readers)
+			reader.start();
+	}
+
+	/**
+	 * Each time it is called it returns the next doc, or null if no more docs are found.
+	 * Waits if the readers have not fetched the next doc yet.
+	 *
+	 * @return The next doc as BBDoc or null if next doc doesn't exist.
+	 */
+	@Override
+	public BBDoc getNext()
+	{
+		while(activeReaders > 0 && !closed)
+		{
+			BBDoc doc;
+			try {
+				doc = queue.take();
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				close();
+				return null;
+			}
+
+			if(doc!=END_OF_READER)
+				return doc;
+
+			activeReaders--;
+			if(failure!=null)
+			{
+				close();
+				throw failure;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The docs are already read in parallel, so the set is not split.
+	 *
+	 * @return A list with this set.
+	 */
+	@Override
+	public List<BBDocSet> split()
+	{
+		List<BBDocSet> parts = new ArrayList<BBDocSet>();
+		parts.add(this);
+		return parts;
+	}
+
+	@Override
+	public BBDocSet prefetch(int batchSize, int queueDepth, int numReaders)
+	{
+		return this;
+	}
+
+	/**
+	 * Stops the readers and closes the cursors.
+	 * Waits for any database round trip in progress to finish.
+	 */
+	@Override
+	public void close()
+	{
+		closed = true;
+		queue.clear();
+		for(Thread reader : readers)
+		{
+			try {
+				reader.join();
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Reads the cursors one after the other. Runs in a reader thread.
+	 */
+	private void readCursors(List<DocCursor> assigned)
+	{
+		try {
+			for(DocCursor cursor : assigned)
+			{
+				if(closed)
+					break;
+				readCursor(cursor);
+			}
+		}
+		catch(RuntimeException e) {
+			failure = e;
+		}
+		finally {
+			for(DocCursor cursor : assigned)
+				cursor.close();
+			offer(END_OF_READER);
+		}
+	}
+
+	/**
+	 * Puts the docs of a cursor in the queue.
+	 * If the cursor times out it is re-opened after the last doc read.
+	 */
+	private void readCursor(DocCursor cursor)
+	{
+		DocCursor current = cursor;
+		int read = 0;			//Docs of the cursor put in the queue
+		Object lastID = null;	//_id of the last of them
+		int recoveries = 0;
+		Set<String> fetchedFields = BBDoc.getFetchedFields(cursor.getKeysWanted());
+
+		try {
+			while(!closed && current!=null)
+			{
+				DBObject obj;
+				try {
+					if(!current.hasNext())
+						break;
+					obj = current.next();
+				}
+				catch(MongoCursorNotFoundException e) {
+					if(++recoveries > MAX_CURSOR_RECOVERIES)
+						throw new RuntimeException("Cursor timed out "+recoveries+" times, after "+read+" docs", e);
+
+					if(read > 0 && lastID==null)
+						throw new RuntimeException("Cursor timed out after "+read+" docs without "+BlackBoard.DOC_ID, e);
+
+					if(current!=cursor)
+						current.close();
+					//null if the limit of the cursor has been reached
+					current = cursor.resumeAfter(lastID, read);
+					if(current!=null)
+						current.batchSize(batchSize);
+					continue;
+				}
+
+				if(!offer(new BBDoc(obj, fetchedFields)))
+					return;
+				read++;
+				lastID = obj.get(BlackBoard.DOC_ID);
+			}
+		}
+		finally {
+			if(current!=null && current!=cursor)
+				current.close();
+		}
+	}
+
+	/**
+	 * Puts a doc in the queue, waiting while it is full.
+	 *
+	 * @return false if the set was closed.
+	 */
+	private boolean offer(BBDoc doc)
+	{
+		try {
+			while(!closed)
+			{
+				if(queue.offer(doc, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+					return true;
+			}
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+}
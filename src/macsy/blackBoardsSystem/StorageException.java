@@ -0,0 +1,21 @@
+package macsy.blackBoardsSystem;
+
+/**
+ * An error of a BlackBoardStorage other than MongoDB, e.g. an I/O error of LocalStorage.
+ *
+ * It is unchecked, as MongoException, so that cursors can be Iterators.
+ */
+public class StorageException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public StorageException(String message)
+	{
+		super(message);
+	}
+
+	public StorageException(String message, Throwable cause)
+	{
+		super(message, cause);
+	}
+}
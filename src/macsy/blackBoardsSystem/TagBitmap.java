@@ -0,0 +1,612 @@
+package macsy.blackBoardsSystem;
+
+import java.util.Arrays;
+
+/**
+ * A compressed set of non-negative ints (the ordinals of docs), laid out as a
+ * Roaring bitmap: the ints are split in chunks of 2^16 by their high 16 bits,
+ * and each chunk is stored as a sorted array of its low 16 bits while it has
+ * up to 4096 ints, or as a bitmap of 2^16 bits when it has more. A rare tag
+ * thus takes 2 bytes per doc and a frequent one 1 bit per doc of its chunks.
+ *
+ * The set operations return new bitmaps and do not change their arguments.
+ * Not thread safe.
+ */
+final class TagBitmap {
+
+	static final int ARRAY_MAX = 4096;
+
+	private static final int BITMAP_WORDS = 1 << 10;
+
+	/**
+	 * The high 16 bits of the chunks, ascending, and their containers.
+	 */
+	private int[] keys;
+	private Container[] containers;
+	private int size = 0;
+
+	TagBitmap()
+	{
+		this(4);
+	}
+
+	private TagBitmap(int capacity)
+	{
+		keys = new int[capacity];
+		containers = new Container[capacity];
+	}
+
+	/**
+	 * Adds an int, in O(1) when it is larger than all the others.
+	 */
+	void add(int x)
+	{
+		int key = x >>> 16;
+		int i = findKey(key);
+		if(i < 0)
+		{
+			i = -i - 1;
+			insertContainer(i, key, new ArrayContainer());
+		}
+		containers[i] = containers[i].add(x & 0xFFFF);
+	}
+
+	void remove(int x)
+	{
+		int i = findKey(x >>> 16);
+		if(i < 0)
+			return;
+		containers[i] = containers[i].remove(x & 0xFFFF);
+		if(containers[i].cardinality()==0)
+			removeContainer(i);
+	}
+
+	boolean contains(int x)
+	{
+		int i = findKey(x >>> 16);
+		return i >= 0 && containers[i].contains(x & 0xFFFF);
+	}
+
+	boolean isEmpty()
+	{
+		return size==0;
+	}
+
+	int cardinality()
+	{
+		int n = 0;
+		for(int i=0; i<size; i++)
+			n += containers[i].cardinality();
+		return n;
+	}
+
+	/**
+	 * Returns the ints of the bitmap, ascending.
+	 */
+	int[] toArray()
+	{
+		int[] out = new int[cardinality()];
+		int pos = 0;
+		for(int i=0; i<size; i++)
+			pos = containers[i].toArray(keys[i] << 16, out, pos);
+		return out;
+	}
+
+	/**
+	 * Returns the ints of the bitmap in [from, to).
+	 */
+	TagBitmap clip(int from, int to)
+	{
+		TagBitmap result = new TagBitmap();
+		if(from >= to)
+			return result;
+		int fromKey = from >>> 16;
+		int toKey = (to - 1) >>> 16;
+		for(int i=0; i<size; i++)
+		{
+			int key = keys[i];
+			if(key < fromKey || key > toKey)
+				continue;
+			int lo = key==fromKey ? from & 0xFFFF : 0;
+			int hi = key==toKey ? ((to - 1) & 0xFFFF) + 1 : 1 << 16;
+			result.append(key, containers[i].clip(lo, hi));
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the ints that are in both a and b.
+	 */
+	static TagBitmap and(TagBitmap a, TagBitmap b)
+	{
+		TagBitmap result = new TagBitmap(Math.max(1, Math.min(a.size, b.size)));
+		int i = 0, j = 0;
+		while(i < a.size && j < b.size)
+		{
+			if(a.keys[i] < b.keys[j])
+				i++;
+			else if(a.keys[i] > b.keys[j])
+				j++;
+			else
+			{
+				result.append(a.keys[i], a.containers[i].and(b.containers[j]));
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the ints that are in a and not in b.
+	 */
+	static TagBitmap andNot(TagBitmap a, TagBitmap b)
+	{
+		TagBitmap result = new TagBitmap(Math.max(1, a.size));
+		int j = 0;
+		for(int i=0; i<a.size; i++)
+		{
+			while(j < b.size && b.keys[j] < a.keys[i])
+				j++;
+			if(j < b.size && b.keys[j]==a.keys[i])
+				result.append(a.keys[i], a.containers[i].andNot(b.containers[j]));
+			else
+				result.append(a.keys[i], a.containers[i].copy());
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the ints that are in a or in b.
+	 */
+	static TagBitmap or(TagBitmap a, TagBitmap b)
+	{
+		TagBitmap result = new TagBitmap(Math.max(1, a.size + b.size));
+		int i = 0, j = 0;
+		while(i < a.size || j < b.size)
+		{
+			if(j==b.size || (i < a.size && a.keys[i] < b.keys[j]))
+			{
+				result.append(a.keys[i], a.containers[i].copy());
+				i++;
+			}
+			else if(i==a.size || a.keys[i] > b.keys[j])
+			{
+				result.append(b.keys[j], b.containers[j].copy());
+				j++;
+			}
+			else
+			{
+				result.append(a.keys[i], a.containers[i].or(b.containers[j]));
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the estimated memory used by the bitmap in bytes.
+	 */
+	long getSizeBytes()
+	{
+		long bytes = 32 + 12L * keys.length;
+		for(int i=0; i<size; i++)
+			bytes += containers[i].getSizeBytes();
+		return bytes;
+	}
+
+	private int findKey(int key)
+	{
+		//Ints are mostly added in ascending order
+		if(size > 0 && keys[size - 1]==key)
+			return size - 1;
+		return Arrays.binarySearch(keys, 0, size, key);
+	}
+
+	private void insertContainer(int i, int key, Container c)
+	{
+		if(size==keys.length)
+		{
+			keys = Arrays.copyOf(keys, 2 * size);
+			containers = Arrays.copyOf(containers, 2 * size);
+		}
+		System.arraycopy(keys, i, keys, i + 1, size - i);
+		System.arraycopy(containers, i, containers, i + 1, size - i);
+		keys[i] = key;
+		containers[i] = c;
+		size++;
+	}
+
+	private void removeContainer(int i)
+	{
+		System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+		System.arraycopy(containers, i + 1, containers, i, size - i - 1);
+		size--;
+		containers[size] = null;
+	}
+
+	/**
+	 * Appends the container of a key larger than all others, if not empty.
+	 */
+	private void append(int key, Container c)
+	{
+		if(c.cardinality() > 0)
+			insertContainer(size, key, c);
+	}
+
+	/**
+	 * The low 16 bits of the ints of a chunk.
+	 */
+	private static abstract class Container {
+
+		abstract int cardinality();
+
+		abstract boolean contains(int low);
+
+		/**
+		 * Adds an int, returning this container or the one that replaces it.
+		 */
+		abstract Container add(int low);
+
+		abstract Container remove(int low);
+
+		abstract Container and(Container other);
+
+		abstract Container andNot(Container other);
+
+		abstract Container or(Container other);
+
+		/**
+		 * Returns a new container with the ints in [from, to).
+		 */
+		abstract Container clip(int from, int to);
+
+		abstract int toArray(int high, int[] out, int pos);
+
+		abstract Container copy();
+
+		abstract BitmapContainer toBitmap();
+
+		abstract long getSizeBytes();
+	}
+
+	private static final class ArrayContainer extends Container {
+		private char[] values;
+		private int cardinality;
+
+		ArrayContainer()
+		{
+			this(new char[4], 0);
+		}
+
+		ArrayContainer(char[] values, int cardinality)
+		{
+			this.values = values;
+			this.cardinality = cardinality;
+		}
+
+		@Override
+		int cardinality()
+		{
+			return cardinality;
+		}
+
+		@Override
+		boolean contains(int low)
+		{
+			return Arrays.binarySearch(values, 0, cardinality, (char) low) >= 0;
+		}
+
+		@Override
+		Container add(int low)
+		{
+			int i;
+			if(cardinality==0 || values[cardinality - 1] < low)
+				i = cardinality;
+			else
+			{
+				i = Arrays.binarySearch(values, 0, cardinality, (char) low);
+				if(i >= 0)
+					return this;
+				i = -i - 1;
+			}
+			if(cardinality==ARRAY_MAX)
+				return toBitmap().add(low);
+			if(cardinality==values.length)
+				values = Arrays.copyOf(values, Math.min(ARRAY_MAX, Math.max(4, 2 * cardinality)));
+			System.arraycopy(values, i, values, i + 1, cardinality - i);
+			values[i] = (char) low;
+			cardinality++;
+			return this;
+		}
+
+		@Override
+		Container remove(int low)
+		{
+			int i = Arrays.binarySearch(values, 0, cardinality, (char) low);
+			if(i >= 0)
+			{
+				System.arraycopy(values, i + 1, values, i, cardinality - i - 1);
+				cardinality--;
+			}
+			return this;
+		}
+
+		@Override
+		Container and(Container other)
+		{
+			char[] out = new char[Math.min(cardinality, other.cardinality())];
+			int n = 0;
+			for(int i=0; i<cardinality; i++)
+				if(other.contains(values[i]))
+					out[n++] = values[i];
+			return new ArrayContainer(out, n);
+		}
+
+		@Override
+		Container andNot(Container other)
+		{
+			char[] out = new char[cardinality];
+			int n = 0;
+			for(int i=0; i<cardinality; i++)
+				if(!other.contains(values[i]))
+					out[n++] = values[i];
+			return new ArrayContainer(out, n);
+		}
+
+		@Override
+		Container or(Container other)
+		{
+			if(other instanceof BitmapContainer)
+				return other.or(this);
+			ArrayContainer o = (ArrayContainer) other;
+			if(cardinality + o.cardinality > ARRAY_MAX)
+				return toBitmap().orInPlace(o);
+			char[] out = new char[cardinality + o.cardinality];
+			int i = 0, j = 0, n = 0;
+			while(i < cardinality || j < o.cardinality)
+			{
+				if(j==o.cardinality || (i < cardinality && values[i] < o.values[j]))
+					out[n++] = values[i++];
+				else if(i==cardinality || values[i] > o.values[j])
+					out[n++] = o.values[j++];
+				else
+				{
+					out[n++] = values[i++];
+					j++;
+				}
+			}
+			return new ArrayContainer(out, n);
+		}
+
+		@Override
+		Container clip(int from, int to)
+		{
+			int lo = Arrays.binarySearch(values, 0, cardinality, (char) from);
+			if(lo < 0)
+				lo = -lo - 1;
+			int hi = cardinality;
+			if(to <= 0xFFFF)
+			{
+				hi = Arrays.binarySearch(values, 0, cardinality, (char) to);
+				if(hi < 0)
+					hi = -hi - 1;
+			}
+			return new ArrayContainer(Arrays.copyOfRange(values, lo, Math.max(lo, hi)), Math.max(0, hi - lo));
+		}
+
+		@Override
+		int toArray(int high, int[] out, int pos)
+		{
+			for(int i=0; i<cardinality; i++)
+				out[pos++] = high | values[i];
+			return pos;
+		}
+
+		@Override
+		Container copy()
+		{
+			return new ArrayContainer(Arrays.copyOf(values, cardinality), cardinality);
+		}
+
+		@Override
+		BitmapContainer toBitmap()
+		{
+			BitmapContainer bitmap = new BitmapContainer();
+			for(int i=0; i<cardinality; i++)
+				bitmap.words[values[i] >>> 6] |= 1L << values[i];
+			bitmap.cardinality = cardinality;
+			return bitmap;
+		}
+
+		@Override
+		long getSizeBytes()
+		{
+			return 32 + 2L * values.length;
+		}
+	}
+
+	private static final class BitmapContainer extends Container {
+		private final long[] words;
+		private int cardinality = 0;
+
+		BitmapContainer()
+		{
+			words = new long[BITMAP_WORDS];
+		}
+
+		private BitmapContainer(long[] words)
+		{
+			this.words = words;
+			for(long w : words)
+				cardinality += Long.bitCount(w);
+		}
+
+		@Override
+		int cardinality()
+		{
+			return cardinality;
+		}
+
+		@Override
+		boolean contains(int low)
+		{
+			return (words[low >>> 6] & (1L << low)) != 0;
+		}
+
+		@Override
+		Container add(int low)
+		{
+			long w = words[low >>> 6];
+			long bit = 1L << low;
+			if((w & bit)==0)
+			{
+				words[low >>> 6] = w | bit;
+				cardinality++;
+			}
+			return this;
+		}
+
+		@Override
+		Container remove(int low)
+		{
+			long w = words[low >>> 6];
+			long bit = 1L << low;
+			if((w & bit)!=0)
+			{
+				words[low >>> 6] = w & ~bit;
+				cardinality--;
+				if(cardinality <= ARRAY_MAX / 2)
+					return toArrayContainer();
+			}
+			return this;
+		}
+
+		@Override
+		Container and(Container other)
+		{
+			if(other instanceof ArrayContainer)
+				return other.and(this);
+			long[] o = ((BitmapContainer) other).words;
+			long[] out = new long[BITMAP_WORDS];
+			for(int i=0; i<BITMAP_WORDS; i++)
+				out[i] = words[i] & o[i];
+			return new BitmapContainer(out).normalize();
+		}
+
+		@Override
+		Container andNot(Container other)
+		{
+			long[] out = words.clone();
+			if(other instanceof ArrayContainer)
+			{
+				ArrayContainer a = (ArrayContainer) other;
+				for(int i=0; i<a.cardinality; i++)
+					out[a.values[i] >>> 6] &= ~(1L << a.values[i]);
+			}
+			else
+			{
+				long[] o = ((BitmapContainer) other).words;
+				for(int i=0; i<BITMAP_WORDS; i++)
+					out[i] &= ~o[i];
+			}
+			return new BitmapContainer(out).normalize();
+		}
+
+		@Override
+		Container or(Container other)
+		{
+			return new BitmapContainer(words.clone()).orInPlace(other);
+		}
+
+		BitmapContainer orInPlace(Container other)
+		{
+			if(other instanceof ArrayContainer)
+			{
+				ArrayContainer a = (ArrayContainer) other;
+				for(int i=0; i<a.cardinality; i++)
+					add(a.values[i]);
+			}
+			else
+			{
+				long[] o = ((BitmapContainer) other).words;
+				cardinality = 0;
+				for(int i=0; i<BITMAP_WORDS; i++)
+				{
+					words[i] |= o[i];
+					cardinality += Long.bitCount(words[i]);
+				}
+			}
+			return this;
+		}
+
+		@Override
+		Container clip(int from, int to)
+		{
+			long[] out = new long[BITMAP_WORDS];
+			int first = from >>> 6;
+			int last = (to - 1) >>> 6;
+			for(int i=first; i<=last; i++)
+				out[i] = words[i];
+			out[first] &= -1L << from;
+			if((to & 63)!=0)
+				out[last] &= -1L >>> (64 - (to & 63));
+			return new BitmapContainer(out).normalize();
+		}
+
+		@Override
+		int toArray(int high, int[] out, int pos)
+		{
+			for(int i=0; i<BITMAP_WORDS; i++)
+			{
+				long w = words[i];
+				while(w!=0)
+				{
+					out[pos++] = high | (i << 6) | Long.numberOfTrailingZeros(w);
+					w &= w - 1;
+				}
+			}
+			return pos;
+		}
+
+		@Override
+		Container copy()
+		{
+			return new BitmapContainer(words.clone());
+		}
+
+		@Override
+		BitmapContainer toBitmap()
+		{
+			return this;
+		}
+
+		private Container normalize()
+		{
+			return cardinality <= ARRAY_MAX ? toArrayContainer() : this;
+		}
+
+		private ArrayContainer toArrayContainer()
+		{
+			char[] values = new char[Math.max(4, cardinality)];
+			int n = 0;
+			for(int i=0; i<BITMAP_WORDS; i++)
+			{
+				long w = words[i];
+				while(w!=0)
+				{
+					values[n++] = (char) ((i << 6) | Long.numberOfTrailingZeros(w));
+					w &= w - 1;
+				}
+			}
+			return new ArrayContainer(values, n);
+		}
+
+		@Override
+		long getSizeBytes()
+		{
+			return 24 + 8L * BITMAP_WORDS;
+		}
+	}
+}
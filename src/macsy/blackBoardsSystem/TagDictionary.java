@@ -0,0 +1,192 @@
+package macsy.blackBoardsSystem;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * In-memory copy of the tags collection of a Black Board.
+ *
+ * Holds tagID to tag, and tag name to tagID, so that tag lookups
+ * (including tag properties like Ctrl) do not need a round trip to the DB.
+ *
+ * Every change to the tags collection made through the API bumps a version
+ * stamp kept in the _COUNTER collection. Other processes check that stamp
+ * at most every REVALIDATE_INTERVAL_MS and reload their copy if it changed.
+ *
+ * Tags not found locally are looked up in the DB, so tags inserted by
+ * other processes are picked up immediately.
+ */
+final class TagDictionary {
+
+	/**
+	 * The _id of the version stamp doc in the _COUNTER collection.
+	 */
+	static final String TAG_VERSION = "TAG_VERSION";
+	static final String TAG_VERSION_FIELD = "version";
+
+	/**
+	 * How often (ms) the version stamp is checked against the DB.
+	 */
+	static final long REVALIDATE_INTERVAL_MS = 30000;
+
+	private final DocCollection collTags;
+	private final DocCollection collCounter;
+
+	private Map<Integer,BasicDBObject> id2Tag = new HashMap<Integer,BasicDBObject>();
+	private Map<String,Integer> name2ID = new HashMap<String,Integer>();
+
+	private long version = -1;
+	private long lastValidated = 0;
+
+	TagDictionary(DocCollection collTags, DocCollection collCounter)
+	{
+		this.collTags = collTags;
+		this.collCounter = collCounter;
+		reload();
+	}
+
+	/**
+	 * Returns the tag doc with given ID or null if there is no such tag.
+	 * @param tagID
+	 * @return
+	 */
+	synchronized BasicDBObject getTag(int tagID)
+	{
+		revalidate();
+
+		BasicDBObject tag = id2Tag.get(tagID);
+		if(tag==null)
+		{
+			tag = (BasicDBObject) collTags.findOne(new BasicDBObject(BlackBoard.TAG_ID, tagID));
+			if(tag!=null)
+				cache(tag);
+		}
+		return tag;
+	}
+
+	/**
+	 * Returns the tag doc with given name or null if there is no such tag.
+	 * @param tagName
+	 * @return
+	 */
+	synchronized BasicDBObject getTag(String tagName)
+	{
+		revalidate();
+
+		Integer tagID = name2ID.get(tagName);
+		if(tagID!=null)
+			return id2Tag.get(tagID);
+
+		BasicDBObject tag = (BasicDBObject) collTags.findOne(new BasicDBObject(BlackBoard.TAG_NAME, tagName));
+		if(tag!=null)
+			cache(tag);
+		return tag;
+	}
+
+	/**
+	 * Must be called after a tag is inserted in the DB.
+	 * @param tag The tag doc as it was inserted.
+	 */
+	synchronized void tagInserted(BasicDBObject tag)
+	{
+		cache(tag);
+		bumpVersion();
+	}
+
+	/**
+	 * Must be called after a number of tags are inserted in the DB.
+	 * @param tags The tag docs as they were inserted.
+	 */
+	synchronized void tagsInserted(List<DBObject> tags)
+	{
+		for(DBObject tag : tags)
+			cache((BasicDBObject) tag);
+		bumpVersion();
+	}
+
+	/**
+	 * Must be called after a tag property is set in the DB.
+	 */
+	synchronized void tagPropertySet(int tagID, String tagPropertyName, int tagPropertyValue)
+	{
+		BasicDBObject tag = id2Tag.get(tagID);
+		if(tag!=null)
+			tag.put(tagPropertyName, tagPropertyValue);
+		bumpVersion();
+	}
+
+	/**
+	 * Forces a full reload at next access.
+	 */
+	synchronized void invalidate()
+	{
+		version = -1;
+		lastValidated = 0;
+	}
+
+	private void cache(BasicDBObject tag)
+	{
+		int tagID = tag.getInt(BlackBoard.TAG_ID);
+		BasicDBObject old = id2Tag.put(tagID, tag);
+		if(old!=null)
+			name2ID.remove(old.getString(BlackBoard.TAG_NAME));
+		name2ID.put(tag.getString(BlackBoard.TAG_NAME), tagID);
+	}
+
+	private void revalidate()
+	{
+		long now = System.currentTimeMillis();
+		if(now - lastValidated < REVALIDATE_INTERVAL_MS)
+			return;
+
+		if(readVersion() != version)
+			reload();
+		else
+			lastValidated = now;
+	}
+
+	private void reload()
+	{
+		long newVersion = readVersion();
+
+		Map<Integer,BasicDBObject> newID2Tag = new HashMap<Integer,BasicDBObject>();
+		Map<String,Integer> newName2ID = new HashMap<String,Integer>();
+		DocCursor cur = collTags.find();
+		while(cur.hasNext())
+		{
+			BasicDBObject tag = (BasicDBObject) cur.next();
+			int tagID = tag.getInt(BlackBoard.TAG_ID);
+			newID2Tag.put(tagID, tag);
+			newName2ID.put(tag.getString(BlackBoard.TAG_NAME), tagID);
+		}
+		cur.close();
+
+		id2Tag = newID2Tag;
+		name2ID = newName2ID;
+		version = newVersion;
+		lastValidated = System.currentTimeMillis();
+	}
+
+	private long readVersion()
+	{
+		DBObject v = collCounter.findOne(new BasicDBObject("_id", TAG_VERSION));
+		if(v==null || v.get(TAG_VERSION_FIELD)==null)
+			return 0;
+		return ((Number) v.get(TAG_VERSION_FIELD)).longValue();
+	}
+
+	private void bumpVersion()
+	{
+		DBObject v = collCounter.findAndModify(new BasicDBObject("_id", TAG_VERSION),
+				new BasicDBObject("$inc", new BasicDBObject(TAG_VERSION_FIELD, 1)), true, true);
+
+		//If our copy was up to date before this change it is still up to date.
+		long newVersion = ((Number) v.get(TAG_VERSION_FIELD)).longValue();
+		if(newVersion == version + 1)
+			version = newVersion;
+	}
+}
@@ -0,0 +1,843 @@
+package macsy.blackBoardsSystem;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.BSONObject;
+import org.bson.types.ObjectId;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * In-memory index of the tags of the docs of a BlackBoardDateBased, to count
+ * and find docs by tags without scanning them in the DB.
+ *
+ * The docs of each year are numbered (their ordinals) in the order of their
+ * _id, i.e. of their date, so that a date range is a range of ordinals. For
+ * each tag of the Tg and FOR fields there is a TagBitmap of the ordinals of
+ * the docs that carry it. A query on a date range and on tags that the docs
+ * must all carry ($all) or must not carry ($nin) is then answered with
+ * intersections and differences of bitmaps. Queries on other fields are
+ * answered by the DB.
+ *
+ * The index of a year is built with one scan of the _id, Tg and FOR fields of
+ * its docs the first time it is queried, and then kept up to date by the
+ * methods of the Black Board that add or remove tags and docs. Docs inserted
+ * later are numbered after the others; when too many of them are out of date
+ * order, the year is renumbered. Docs changed by an AnnotationBatch are read
+ * again at the next query. Changes made by other processes are not seen until
+ * the index of the year is built again, which happens at the first query after
+ * it is older than the max age.
+ *
+ * The index is disabled by default. Enable it with setMaxAge(), or in the DB
+ * settings file with the property tagindex_max_age_s (see BlackBoardsAPI).
+ */
+public final class TagIndex {
+
+	/**
+	 * The "field" of the tags that may be in Tg or in FOR.
+	 */
+	static final String ANY_TAGS_FIELD = "*";
+
+	private static final int BUILD_BATCH_SIZE = 10000;
+	private static final int REFRESH_BATCH_SIZE = 1000;
+
+	private static final DBObject TAG_FIELDS = new BasicDBObject(BlackBoard.DOC_ID, 1)
+			.append(BlackBoard.DOC_TAGS, 1)
+			.append(BlackBoard.DOC_FOR_TAGS, 1);
+
+	private long maxAgeMs = 0;
+
+	private final Map<Integer,YearIndex> years = new HashMap<Integer,YearIndex>();
+
+	private long queries = 0;
+	private long builds = 0;
+	private long refreshedDocs = 0;
+
+	TagIndex()
+	{
+	}
+
+	/**
+	 * Sets how long the index of a year is used before it is built again.
+	 *
+	 * @param maxAgeMs The max age in ms. Set to 0 to disable the index.
+	 */
+	public synchronized void setMaxAge(long maxAgeMs)
+	{
+		this.maxAgeMs = maxAgeMs;
+		if(maxAgeMs <= 0)
+			years.clear();
+	}
+
+	public synchronized long getMaxAge()
+	{
+		return maxAgeMs;
+	}
+
+	public synchronized boolean isEnabled()
+	{
+		return maxAgeMs > 0;
+	}
+
+	/**
+	 * Drops the indexes of all years, which are built again at the next query.
+	 */
+	public synchronized void clear()
+	{
+		years.clear();
+	}
+
+	/**
+	 * Counts the docs of a year that match a query.
+	 *
+	 * @param year The year of the docs.
+	 * @param coll The collection of the year.
+	 * @param query The query.
+	 * @return The number of docs, or -1 if the index is disabled or can not answer the query.
+	 */
+	synchronized long count(int year, DocCollection coll, DBObject query)
+	{
+		if(maxAgeMs <= 0)
+			return -1;
+		Conditions conditions = Conditions.parse(query);
+		if(conditions==null)
+			return -1;
+		YearIndex index = getYearIndex(year, coll);
+		if(index==null)
+			return -1;
+		queries++;
+		return index.select(conditions).cardinality();
+	}
+
+	/**
+	 * Counts the docs of a year in [fromID, toID) that carry all the given
+	 * tags, each in Tg or in FOR.
+	 *
+	 * @return The number of docs, or -1 if the index is disabled.
+	 */
+	synchronized long countWithAllTags(int year, DocCollection coll, ObjectId fromID,
+			ObjectId toID, List<Integer> withTags)
+	{
+		if(maxAgeMs <= 0)
+			return -1;
+		YearIndex index = getYearIndex(year, coll);
+		if(index==null)
+			return -1;
+		queries++;
+		Conditions conditions = new Conditions();
+		conditions.fromID = fromID;
+		conditions.toID = toID;
+		if(withTags!=null)
+			conditions.withTags.put(ANY_TAGS_FIELD, withTags);
+		return index.select(conditions).cardinality();
+	}
+
+	/**
+	 * Finds the IDs of the docs of a year that match a query.
+	 *
+	 * @param order 1 for the oldest docs first, -1 for the most recent first, 0 for any order.
+	 * @param maxDocs The max number of IDs, 0 for all.
+	 * @return The IDs in the given order, or null if the index is disabled or can not answer the query.
+	 */
+	synchronized List<ObjectId> findIDs(int year, DocCollection coll, DBObject query,
+			int order, int maxDocs)
+	{
+		if(maxAgeMs <= 0)
+			return null;
+		Conditions conditions = Conditions.parse(query);
+		if(conditions==null)
+			return null;
+		YearIndex index = getYearIndex(year, coll);
+		if(index==null)
+			return null;
+		queries++;
+
+		int[] ordinals = index.sortByID(index.select(conditions).toArray());
+		int n = maxDocs > 0 ? Math.min(maxDocs, ordinals.length) : ordinals.length;
+		List<ObjectId> ids = new ArrayList<ObjectId>(n);
+		for(int i=0; i<n; i++)
+			ids.add(index.getID(ordinals[order < 0 ? ordinals.length - 1 - i : i]));
+		return ids;
+	}
+
+	/**
+	 * Updates the index after a doc was inserted (or replaced).
+	 */
+	synchronized void docInserted(int year, Object docID, DBObject doc)
+	{
+		YearIndex index = years.get(year);
+		if(index!=null && index.usable && docID instanceof ObjectId)
+			index.put((ObjectId) docID, doc);
+	}
+
+	/**
+	 * Updates the index after a doc was removed.
+	 */
+	synchronized void docRemoved(int year, Object docID)
+	{
+		YearIndex index = years.get(year);
+		if(index==null || !index.usable || !(docID instanceof ObjectId))
+			return;
+		index.dirty.remove(docID);
+		int ordinal = index.getOrdinal((ObjectId) docID);
+		if(ordinal >= 0)
+			index.remove(ordinal);
+	}
+
+	/**
+	 * Updates the index after a tag was added to a doc.
+	 *
+	 * @param field The field of the tag, Tg or FOR.
+	 */
+	synchronized void tagAdded(int year, Object docID, String field, int tagID)
+	{
+		YearIndex index = years.get(year);
+		if(index==null || !index.usable || !(docID instanceof ObjectId))
+			return;
+		int ordinal = index.getOrdinal((ObjectId) docID);
+		if(ordinal < 0 || !index.live.contains(ordinal))
+			index.dirty.add((ObjectId) docID);	//May have been inserted by another process
+		else
+			index.getBitmap(field, tagID, true).add(ordinal);
+	}
+
+	/**
+	 * Updates the index after a tag was removed from a doc.
+	 *
+	 * @param field The field of the tag, Tg or FOR.
+	 */
+	synchronized void tagRemoved(int year, Object docID, String field, int tagID)
+	{
+		YearIndex index = years.get(year);
+		if(index==null || !index.usable || !(docID instanceof ObjectId))
+			return;
+		int ordinal = index.getOrdinal((ObjectId) docID);
+		if(ordinal < 0 || !index.live.contains(ordinal))
+			index.dirty.add((ObjectId) docID);
+		else
+		{
+			TagBitmap bitmap = index.getBitmap(field, tagID, false);
+			if(bitmap!=null)
+				bitmap.remove(ordinal);
+		}
+	}
+
+	/**
+	 * Marks a doc to be read again from the DB at the next query,
+	 * e.g. after its tags were changed by an AnnotationBatch.
+	 */
+	synchronized void invalidate(int year, Object docID)
+	{
+		YearIndex index = years.get(year);
+		if(index!=null && index.usable && docID instanceof ObjectId)
+			index.dirty.add((ObjectId) docID);
+	}
+
+	/**
+	 * Returns the index of a year, built or refreshed if needed,
+	 * or null if the year can not be indexed.
+	 */
+	private YearIndex getYearIndex(int year, DocCollection coll)
+	{
+		YearIndex index = years.get(year);
+		long now = System.currentTimeMillis();
+		if(index==null || now - index.builtAt > maxAgeMs)
+		{
+			index = build(coll, now);
+			years.put(year, index);
+			builds++;
+		}
+		if(!index.usable)
+			return null;
+		if(!index.dirty.isEmpty())
+			refresh(index, coll);
+		return index;
+	}
+
+	private static YearIndex build(DocCollection coll, long now)
+	{
+		YearIndex index = new YearIndex(now);
+		DocCursor cursor = coll.find(new BasicDBObject(), TAG_FIELDS)
+				.sort(new BasicDBObject(BlackBoard.DOC_ID, 1))
+				.batchSize(BUILD_BATCH_SIZE);
+		try {
+			while(cursor.hasNext())
+			{
+				DBObject doc = cursor.next();
+				Object docID = doc.get(BlackBoard.DOC_ID);
+				if(!(docID instanceof ObjectId))
+				{
+					//Not a date based ID: the ordinals would not follow the dates
+					index = new YearIndex(now);
+					index.usable = false;
+					break;
+				}
+				index.setTags(index.append((ObjectId) docID), doc, false);
+			}
+		}
+		finally {
+			cursor.close();
+		}
+		return index;
+	}
+
+	/**
+	 * Reads again the tags of the dirty docs.
+	 */
+	private void refresh(YearIndex index, DocCollection coll)
+	{
+		List<ObjectId> dirty = new ArrayList<ObjectId>(index.dirty);
+		index.dirty.clear();
+		for(int from=0; from<dirty.size(); from+=REFRESH_BATCH_SIZE)
+		{
+			List<ObjectId> batch = new ArrayList<ObjectId>(
+					dirty.subList(from, Math.min(dirty.size(), from + REFRESH_BATCH_SIZE)));
+			Set<ObjectId> missing = new HashSet<ObjectId>(batch);
+
+			DocCursor cursor = coll.find(
+					new BasicDBObject(BlackBoard.DOC_ID, new BasicDBObject("$in", batch)), TAG_FIELDS);
+			try {
+				while(cursor.hasNext())
+				{
+					DBObject doc = cursor.next();
+					ObjectId docID = (ObjectId) doc.get(BlackBoard.DOC_ID);
+					missing.remove(docID);
+					index.put(docID, doc);
+				}
+			}
+			finally {
+				cursor.close();
+			}
+
+			for(ObjectId docID : missing)
+			{
+				int ordinal = index.getOrdinal(docID);
+				if(ordinal >= 0)
+					index.remove(ordinal);
+			}
+			refreshedDocs += batch.size();
+		}
+	}
+
+	/**
+	 * Returns the number of indexed docs of all years.
+	 */
+	public synchronized int size()
+	{
+		int n = 0;
+		for(YearIndex index : years.values())
+			n += index.live.cardinality();
+		return n;
+	}
+
+	/**
+	 * Returns the estimated memory used by the index in bytes.
+	 */
+	public synchronized long getSizeBytes()
+	{
+		long bytes = 0;
+		for(YearIndex index : years.values())
+			bytes += index.getSizeBytes();
+		return bytes;
+	}
+
+	public synchronized long getQueries()
+	{
+		return queries;
+	}
+
+	public synchronized long getBuilds()
+	{
+		return builds;
+	}
+
+	public synchronized long getRefreshedDocs()
+	{
+		return refreshedDocs;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "TagIndex: "+years.size()+" years, "+size()+" docs, "+(getSizeBytes()>>10)+" KB, "
+				+queries+" queries, "+builds+" builds, "+refreshedDocs+" refreshed docs";
+	}
+
+	/**
+	 * The conditions of a query that the index can answer.
+	 */
+	private static final class Conditions {
+		ObjectId fromID = null;
+		boolean fromInclusive = true;
+		ObjectId toID = null;
+		boolean toInclusive = false;
+
+		/**
+		 * Field to the tags that the docs must all carry in it.
+		 */
+		final Map<String,List<Integer>> withTags = new HashMap<String,List<Integer>>();
+
+		/**
+		 * Field to the tags that the docs must not carry in it.
+		 */
+		final Map<String,List<Integer>> withoutTags = new HashMap<String,List<Integer>>();
+
+		/**
+		 * Returns the conditions of a query on _id ranges and on $all/$nin of
+		 * Tg and FOR, or null if the query has other conditions.
+		 */
+		static Conditions parse(DBObject query)
+		{
+			Conditions conditions = new Conditions();
+			for(String key : query.keySet())
+			{
+				Object value = query.get(key);
+				if(key.equals(BlackBoard.DOC_ID))
+				{
+					if(!conditions.parseIDRange(value))
+						return null;
+				}
+				else if(key.equals(BlackBoard.DOC_TAGS) || key.equals(BlackBoard.DOC_FOR_TAGS))
+				{
+					if(!conditions.parseTags(key, value))
+						return null;
+				}
+				else
+					return null;
+			}
+			return conditions;
+		}
+
+		private boolean parseIDRange(Object value)
+		{
+			if(!(value instanceof BSONObject))
+				return false;
+			BSONObject range = (BSONObject) value;
+			for(String op : range.keySet())
+			{
+				Object id = range.get(op);
+				if(!(id instanceof ObjectId))
+					return false;
+				if(op.equals("$gte") || op.equals("$gt"))
+				{
+					fromID = (ObjectId) id;
+					fromInclusive = op.equals("$gte");
+				}
+				else if(op.equals("$lt") || op.equals("$lte"))
+				{
+					toID = (ObjectId) id;
+					toInclusive = op.equals("$lte");
+				}
+				else
+					return false;
+			}
+			return true;
+		}
+
+		private boolean parseTags(String field, Object value)
+		{
+			if(value instanceof Integer)
+			{
+				withTags.put(field, Arrays.asList((Integer) value));
+				return true;
+			}
+			if(!(value instanceof BSONObject))
+				return false;
+			BSONObject ops = (BSONObject) value;
+			for(String op : ops.keySet())
+			{
+				List<Integer> tags = toTagList(ops.get(op));
+				if(tags==null)
+					return false;
+				if(op.equals("$all") && !tags.isEmpty())	//{$all: []} is left to the DB
+					withTags.put(field, tags);
+				else if(op.equals("$nin"))
+					withoutTags.put(field, tags);
+				else
+					return false;
+			}
+			return true;
+		}
+
+		private static List<Integer> toTagList(Object value)
+		{
+			if(!(value instanceof List))
+				return null;
+			List<Integer> tags = new ArrayList<Integer>();
+			for(Object tag : (List<?>) value)
+			{
+				if(!(tag instanceof Integer))
+					return null;
+				tags.add((Integer) tag);
+			}
+			return tags;
+		}
+	}
+
+	/**
+	 * The index of the docs of a year.
+	 */
+	private static final class YearIndex {
+
+		final long builtAt;
+
+		/**
+		 * False if the docs do not have ObjectIds.
+		 */
+		boolean usable = true;
+
+		/**
+		 * The _id of each ordinal, as 3 ints.
+		 */
+		private int[] ids = new int[3 * 1024];
+		private int count = 0;
+
+		/**
+		 * The ordinals [0, sortedCount) are in the order of their _id.
+		 * The others are in tail.
+		 */
+		private int sortedCount = 0;
+		private final Map<ObjectId,Integer> tail = new HashMap<ObjectId,Integer>();
+
+		/**
+		 * The ordinals of the docs that are in the DB.
+		 */
+		TagBitmap live = new TagBitmap();
+
+		/**
+		 * Field (Tg or FOR) to tag to the ordinals of the docs that carry it.
+		 */
+		private final Map<String,Map<Integer,TagBitmap>> tags = new HashMap<String,Map<Integer,TagBitmap>>();
+
+		/**
+		 * The docs to read again from the DB.
+		 */
+		final Set<ObjectId> dirty = new HashSet<ObjectId>();
+
+		YearIndex(long builtAt)
+		{
+			this.builtAt = builtAt;
+			tags.put(BlackBoard.DOC_TAGS, new HashMap<Integer,TagBitmap>());
+			tags.put(BlackBoard.DOC_FOR_TAGS, new HashMap<Integer,TagBitmap>());
+		}
+
+		TagBitmap getBitmap(String field, int tagID, boolean create)
+		{
+			Map<Integer,TagBitmap> fieldTags = tags.get(field);
+			TagBitmap bitmap = fieldTags.get(tagID);
+			if(bitmap==null && create)
+			{
+				bitmap = new TagBitmap();
+				fieldTags.put(tagID, bitmap);
+			}
+			return bitmap;
+		}
+
+		/**
+		 * Returns the ordinals of the docs that match the conditions.
+		 */
+		TagBitmap select(Conditions conditions)
+		{
+			TagBitmap result = range(conditions);
+			for(Map.Entry<String,List<Integer>> e : conditions.withTags.entrySet())
+			{
+				for(int tagID : e.getValue())
+				{
+					TagBitmap bitmap;
+					if(e.getKey().equals(ANY_TAGS_FIELD))
+						bitmap = or(getBitmap(BlackBoard.DOC_TAGS, tagID, false),
+								getBitmap(BlackBoard.DOC_FOR_TAGS, tagID, false));
+					else
+						bitmap = getBitmap(e.getKey(), tagID, false);
+					if(bitmap==null)
+						return new TagBitmap();
+					result = TagBitmap.and(result, bitmap);
+				}
+			}
+			for(Map.Entry<String,List<Integer>> e : conditions.withoutTags.entrySet())
+			{
+				for(int tagID : e.getValue())
+				{
+					TagBitmap bitmap = getBitmap(e.getKey(), tagID, false);
+					if(bitmap!=null)
+						result = TagBitmap.andNot(result, bitmap);
+				}
+			}
+			return result;
+		}
+
+		private static TagBitmap or(TagBitmap a, TagBitmap b)
+		{
+			if(a==null)
+				return b;
+			if(b==null)
+				return a;
+			return TagBitmap.or(a, b);
+		}
+
+		/**
+		 * Returns the ordinals of the docs in the _id range of the conditions.
+		 */
+		private TagBitmap range(Conditions conditions)
+		{
+			int from = 0;
+			int to = sortedCount;
+			int[] fromWords = null;
+			int[] toWords = null;
+			if(conditions.fromID!=null)
+			{
+				fromWords = toWords(conditions.fromID);
+				from = search(fromWords, !conditions.fromInclusive);
+			}
+			if(conditions.toID!=null)
+			{
+				toWords = toWords(conditions.toID);
+				to = search(toWords, conditions.toInclusive);
+			}
+			TagBitmap result = live.clip(from, to);
+
+			for(int ordinal : tail.values())
+			{
+				if(!live.contains(ordinal))
+					continue;
+				if(fromWords!=null)
+				{
+					int c = compare(ordinal, fromWords);
+					if(c < 0 || (c==0 && !conditions.fromInclusive))
+						continue;
+				}
+				if(toWords!=null)
+				{
+					int c = compare(ordinal, toWords);
+					if(c > 0 || (c==0 && !conditions.toInclusive))
+						continue;
+				}
+				result.add(ordinal);
+			}
+			return result;
+		}
+
+		/**
+		 * Returns the first sorted ordinal with an _id larger than (or equal
+		 * to, if not after) the given one, or sortedCount if there is none.
+		 */
+		private int search(int[] words, boolean after)
+		{
+			int lo = 0;
+			int hi = sortedCount;
+			while(lo < hi)
+			{
+				int mid = (lo + hi) >>> 1;
+				int c = compare(mid, words);
+				if(c < 0 || (c==0 && after))
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+
+		int getOrdinal(ObjectId docID)
+		{
+			int[] words = toWords(docID);
+			int ordinal = search(words, false);
+			if(ordinal < sortedCount && compare(ordinal, words)==0)
+				return ordinal;
+			Integer tailOrdinal = tail.get(docID);
+			return tailOrdinal==null ? -1 : tailOrdinal;
+		}
+
+		ObjectId getID(int ordinal)
+		{
+			ByteBuffer bytes = ByteBuffer.allocate(12);
+			bytes.putInt(ids[3 * ordinal]).putInt(ids[3 * ordinal + 1]).putInt(ids[3 * ordinal + 2]);
+			return new ObjectId(bytes.array());
+		}
+
+		/**
+		 * Numbers a new doc.
+		 */
+		int append(ObjectId docID)
+		{
+			int[] words = toWords(docID);
+			if(3 * count==ids.length)
+				ids = Arrays.copyOf(ids, 2 * ids.length);
+			System.arraycopy(words, 0, ids, 3 * count, 3);
+			if(count==sortedCount && (count==0 || compare(count - 1, words) < 0))
+				sortedCount++;
+			else
+				tail.put(docID, count);
+			live.add(count);
+			return count++;
+		}
+
+		/**
+		 * Sets the tags of a doc read from the DB, numbering it if it is new.
+		 */
+		void put(ObjectId docID, DBObject doc)
+		{
+			int ordinal = getOrdinal(docID);
+			if(ordinal < 0)
+			{
+				setTags(append(docID), doc, false);
+				if(tail.size() > Math.max(TagBitmap.ARRAY_MAX, count / 16))
+					renumber();
+			}
+			else
+			{
+				live.add(ordinal);
+				setTags(ordinal, doc, true);
+			}
+		}
+
+		void setTags(int ordinal, DBObject doc, boolean clear)
+		{
+			if(clear)
+				for(Map<Integer,TagBitmap> fieldTags : tags.values())
+					for(TagBitmap bitmap : fieldTags.values())
+						bitmap.remove(ordinal);
+
+			for(Map.Entry<String,Map<Integer,TagBitmap>> e : tags.entrySet())
+			{
+				Object value = doc.get(e.getKey());
+				if(value instanceof List)
+				{
+					for(Object tag : (List<?>) value)
+						if(tag instanceof Integer)
+							getBitmap(e.getKey(), (Integer) tag, true).add(ordinal);
+				}
+				else if(value instanceof Integer)
+					getBitmap(e.getKey(), (Integer) value, true).add(ordinal);
+			}
+		}
+
+		void remove(int ordinal)
+		{
+			live.remove(ordinal);
+			for(Map<Integer,TagBitmap> fieldTags : tags.values())
+				for(TagBitmap bitmap : fieldTags.values())
+					bitmap.remove(ordinal);
+		}
+
+		/**
+		 * Sorts ordinals by _id.
+		 */
+		int[] sortByID(int[] ordinals)
+		{
+			//The sorted ordinals are first, and already in order
+			int firstTail = 0;
+			while(firstTail < ordinals.length && ordinals[firstTail] < sortedCount)
+				firstTail++;
+			if(firstTail==ordinals.length)
+				return ordinals;
+
+			Integer[] tailOrdinals = new Integer[ordinals.length - firstTail];
+			for(int i=0; i<tailOrdinals.length; i++)
+				tailOrdinals[i] = ordinals[firstTail + i];
+			Arrays.sort(tailOrdinals, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b)
+				{
+					return YearIndex.this.compare(a, ids, 3 * b);
+				}
+			});
+
+			int[] sorted = new int[ordinals.length];
+			int i = 0, j = 0, n = 0;
+			while(i < firstTail || j < tailOrdinals.length)
+			{
+				if(j==tailOrdinals.length || (i < firstTail
+						&& compare(ordinals[i], ids, 3 * tailOrdinals[j]) < 0))
+					sorted[n++] = ordinals[i++];
+				else
+					sorted[n++] = tailOrdinals[j++];
+			}
+			return sorted;
+		}
+
+		/**
+		 * Numbers again the docs in the order of their _id, dropping the removed ones.
+		 */
+		private void renumber()
+		{
+			int[] order = sortByID(live.toArray());
+			int[] newOrdinals = new int[count];
+			Arrays.fill(newOrdinals, -1);
+			int[] newIDs = new int[Math.max(3 * 1024, 3 * order.length)];
+			for(int i=0; i<order.length; i++)
+			{
+				newOrdinals[order[i]] = i;
+				System.arraycopy(ids, 3 * order[i], newIDs, 3 * i, 3);
+			}
+
+			for(Map<Integer,TagBitmap> fieldTags : tags.values())
+			{
+				for(Map.Entry<Integer,TagBitmap> e : fieldTags.entrySet())
+				{
+					int[] old = e.getValue().toArray();
+					int[] renumbered = new int[old.length];
+					for(int i=0; i<old.length; i++)
+						renumbered[i] = newOrdinals[old[i]];
+					Arrays.sort(renumbered);
+					TagBitmap bitmap = new TagBitmap();
+					for(int ordinal : renumbered)
+						bitmap.add(ordinal);
+					e.setValue(bitmap);
+				}
+			}
+
+			ids = newIDs;
+			count = order.length;
+			sortedCount = count;
+			tail.clear();
+			live = new TagBitmap();
+			for(int i=0; i<count; i++)
+				live.add(i);
+		}
+
+		private int compare(int ordinal, int[] words)
+		{
+			return compare(ordinal, words, 0);
+		}
+
+		/**
+		 * Compares the _id of an ordinal with the one at words[offset],
+		 * as unsigned ints like ObjectId.compareTo().
+		 */
+		private int compare(int ordinal, int[] words, int offset)
+		{
+			for(int k=0; k<3; k++)
+			{
+				int a = ids[3 * ordinal + k] ^ Integer.MIN_VALUE;
+				int b = words[offset + k] ^ Integer.MIN_VALUE;
+				if(a!=b)
+					return a < b ? -1 : 1;
+			}
+			return 0;
+		}
+
+		private static int[] toWords(ObjectId docID)
+		{
+			ByteBuffer bytes = ByteBuffer.wrap(docID.toByteArray());
+			return new int[] { bytes.getInt(), bytes.getInt(), bytes.getInt() };
+		}
+
+		long getSizeBytes()
+		{
+			long bytes = 4L * ids.length + 64L * tail.size() + live.getSizeBytes();
+			for(Map<Integer,TagBitmap> fieldTags : tags.values())
+				for(TagBitmap bitmap : fieldTags.values())
+					bytes += bitmap.getSizeBytes();
+			return bytes;
+		}
+	}
+}
@@ -0,0 +1,285 @@
+package macsy.blackBoardsSystem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.bson.types.ObjectId;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * A DocCursor over the docs found by a TagIndex.
+ *
+ * The IDs of the docs are already sorted by the TagIndex. The docs are read
+ * from the collection in batches by their _id, with the conditions of the
+ * query, so a doc whose tags were changed by another process since the index
+ * was built is skipped. The skip and the limit count the docs that are
+ * returned, so IDs are read past the limit until it is reached. When only the
+ * _id is wanted the docs are not read.
+ */
+final class TagIndexDocCursor implements DocCursor {
+
+	private static final int DEFAULT_BATCH_SIZE = 500;
+
+	private final DocCollection coll;
+	private final DBObject query;
+	private final List<ObjectId> ids;
+	private final DBObject fields;
+	private int skip = 0;
+	private int limit = 0;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	private boolean started = false;
+	private int position = 0;
+	private int toSkip;
+	private int returned = 0;
+	private Iterator<DBObject> batch = Collections.<DBObject>emptyList().iterator();
+
+	/**
+	 * @param coll The collection of the docs.
+	 * @param query The query the IDs were found with.
+	 * @param ids The IDs of the docs, in the order of the cursor.
+	 * @param fields The projection, or null for all fields.
+	 */
+	TagIndexDocCursor(DocCollection coll, DBObject query, List<ObjectId> ids, DBObject fields)
+	{
+		this.coll = coll;
+		this.query = query;
+		this.ids = ids;
+		this.fields = fields;
+	}
+
+	private void checkNotStarted()
+	{
+		if(started)
+			throw new IllegalStateException("The cursor has already been read");
+	}
+
+	/**
+	 * The docs are sorted by the TagIndex.
+	 */
+	@Override
+	public DocCursor sort(DBObject orderBy)
+	{
+		throw new UnsupportedOperationException("The docs of a TagIndex are already sorted");
+	}
+
+	@Override
+	public DocCursor limit(int n)
+	{
+		checkNotStarted();
+		limit = Math.abs(n);
+		return this;
+	}
+
+	@Override
+	public DocCursor skip(int n)
+	{
+		checkNotStarted();
+		skip = n;
+		return this;
+	}
+
+	@Override
+	public DocCursor batchSize(int n)
+	{
+		if(n > 0)
+			batchSize = n;
+		return this;
+	}
+
+	@Override
+	public boolean hasNext()
+	{
+		if(!started)
+		{
+			started = true;
+			if(isOnlyID(fields))
+			{
+				position = Math.min(skip, ids.size());
+				toSkip = 0;
+			}
+			else
+				toSkip = skip;
+		}
+		if(limit > 0 && returned >= limit)
+			return false;
+		while(!batch.hasNext() && position < ids.size())
+			batch = fetchBatch();
+		return batch.hasNext();
+	}
+
+	@Override
+	public DBObject next()
+	{
+		if(!hasNext())
+			throw new NoSuchElementException();
+		returned++;
+		return batch.next();
+	}
+
+	@Override
+	public void remove()
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Reads the next batch of docs, in the order of their IDs, and drops the
+	 * docs that are still to be skipped.
+	 */
+	private Iterator<DBObject> fetchBatch()
+	{
+		List<ObjectId> batchIDs = nextBatchIDs();
+
+		List<DBObject> docs = new ArrayList<DBObject>(batchIDs.size());
+		if(isOnlyID(fields))
+		{
+			for(ObjectId docID : batchIDs)
+				docs.add(new BasicDBObject(BlackBoard.DOC_ID, docID));
+			return docs.iterator();
+		}
+
+		BasicDBObject batchQuery = batchQuery(batchIDs);
+		Map<Object,DBObject> found = new HashMap<Object,DBObject>();
+		DocCursor cursor = coll.find(batchQuery, fields).batchSize(batchIDs.size());
+		try {
+			while(cursor.hasNext())
+			{
+				DBObject doc = cursor.next();
+				found.put(doc.get(BlackBoard.DOC_ID), doc);
+			}
+		}
+		finally {
+			cursor.close();
+		}
+
+		for(ObjectId docID : batchIDs)
+		{
+			DBObject doc = found.get(docID);
+			if(doc==null)
+				continue;
+			if(toSkip > 0)
+				toSkip--;
+			else
+				docs.add(doc);
+		}
+		return docs.iterator();
+	}
+
+	/**
+	 * The IDs of the next batch, from position. When there is a limit a batch
+	 * is not larger than the docs that are still wanted (with the ones to skip).
+	 */
+	private List<ObjectId> nextBatchIDs()
+	{
+		int n = batchSize;
+		if(limit > 0)
+			n = Math.min(n, toSkip + limit - returned);
+		List<ObjectId> batchIDs = new ArrayList<ObjectId>(
+				ids.subList(position, Math.min(ids.size(), position + n)));
+		position += batchIDs.size();
+		return batchIDs;
+	}
+
+	/**
+	 * The query, restricted to some IDs.
+	 */
+	private BasicDBObject batchQuery(List<ObjectId> batchIDs)
+	{
+		BasicDBObject batchQuery = new BasicDBObject();
+		for(String key : query.keySet())
+			batchQuery.put(key, query.get(key));
+		batchQuery.put(BlackBoard.DOC_ID, new BasicDBObject("$in", batchIDs));
+		return batchQuery;
+	}
+
+	private static boolean isOnlyID(DBObject fields)
+	{
+		return fields!=null && fields.keySet().size()==1 && fields.containsField(BlackBoard.DOC_ID);
+	}
+
+	@Override
+	public DocCursor copy()
+	{
+		TagIndexDocCursor copy = new TagIndexDocCursor(coll, query, ids, fields);
+		copy.skip = skip;
+		copy.limit = limit;
+		copy.batchSize = batchSize;
+		return copy;
+	}
+
+	/**
+	 * The IDs are already in order, so the cursor resumes from the position
+	 * of lastID in them.
+	 */
+	@Override
+	public DocCursor resumable()
+	{
+		return this;
+	}
+
+	@Override
+	public DocCursor resumeAfter(Object lastID, int read)
+	{
+		if(limit > 0 && read >= limit)
+			return null;
+		if(lastID==null)
+			return copy();
+
+		int next = ids.indexOf(lastID) + 1;
+		if(next==0)
+			throw new IllegalArgumentException("Not a doc of the cursor: "+lastID);
+		TagIndexDocCursor resumed = new TagIndexDocCursor(coll, query,
+				ids.subList(next, ids.size()), fields);
+		if(limit > 0)
+			resumed.limit = limit - read;
+		resumed.batchSize = batchSize;
+		return resumed;
+	}
+
+	/**
+	 * The number of docs the cursor returns (with its skip and limit). Unless
+	 * only the _id is wanted, the IDs are counted with the query in batches,
+	 * until the limit is reached.
+	 */
+	@Override
+	public int size()
+	{
+		int wanted = limit > 0 ? skip + limit : Integer.MAX_VALUE;
+		int matched;
+		if(isOnlyID(fields))
+			matched = ids.size();
+		else
+		{
+			matched = 0;
+			for(int from=0; from<ids.size() && matched<wanted; from+=batchSize)
+			{
+				List<ObjectId> batchIDs = new ArrayList<ObjectId>(
+						ids.subList(from, Math.min(ids.size(), from + batchSize)));
+				matched += (int) coll.count(batchQuery(batchIDs));
+			}
+		}
+		return Math.max(0, Math.min(matched, wanted) - skip);
+	}
+
+	@Override
+	public DBObject getKeysWanted()
+	{
+		return fields;
+	}
+
+	@Override
+	public void close()
+	{
+		started = true;
+		position = ids.size();
+		batch = Collections.<DBObject>emptyList().iterator();
+	}
+}
@@ -0,0 +1,457 @@
+package macsy.blackBoardsSystem;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * A work queue over the documents of a Black Board that carry a FOR> control tag.
+ *
+ * Several workers (threads or processes, each with its own WorkQueue) can consume
+ * the same FOR> tag without processing a document twice:
+ * claim() leases a batch of documents to the owner of the queue until the lease
+ * expires, ack() replaces the FOR> tag of a document with the POST> tag and drops
+ * the lease in a single update, and release() gives a document back to the queue.
+ * A document whose lease expired, e.g. because its worker died, is claimed again
+ * by the next worker that reaches it. Lease expiry times are set by the clock of
+ * the worker, so leases should be much longer than the clock skew of the hosts.
+ *
+ * Documents are claimed in _id order. The last claimed _id is kept in the _COUNTER
+ * collection of the Black Board, so a new worker resumes from there instead of
+ * scanning the collection from the start. Documents before that position (e.g.
+ * with an expired lease) are picked up when the documents after it run out.
+ *
+ * Obtain one through BlackBoard.newWorkQueue().
+ *
+ */
+public final class WorkQueue {
+
+	public static final long DEFAULT_LEASE_MS = 10*60*1000;
+
+	/**
+	 * The _id prefix of the documents of the _COUNTER collection that keep the
+	 * position of the queues, followed by the ID of the FOR> tag.
+	 */
+	static final String POSITION_PREFIX = "QUEUE_";
+	static final String POSITION = "Pos";
+
+	/**
+	 * Attempts of ack() when the control tags of the document are changed
+	 * by others at the same time.
+	 */
+	private static final int MAX_ACK_ATTEMPTS = 10;
+
+	private final BlackBoard bb;
+	private final int forTagID;
+	private final int postTagID;
+	private final String owner;
+	private final long leaseMs;
+	private final String positionKey;
+
+	/**
+	 * DocID to the lease of the claimed documents that were not acked or released yet.
+	 */
+	private final Map<Object,Lease> leases = new HashMap<Object,Lease>();
+	private Object position;
+
+	private long numClaimed = 0;
+	private long numAcked = 0;
+	private long numLost = 0;
+
+	private static final class Lease {
+		final DocCollection coll;
+		Date expiry;
+		/**
+		 * The control tags of the document, as last read from the DB.
+		 */
+		Object forTags;
+
+		Lease(DocCollection coll, Date expiry, Object forTags)
+		{
+			this.coll = coll;
+			this.expiry = expiry;
+			this.forTags = forTags;
+		}
+	}
+
+	/**
+	 * @param bb The Black Board of the documents.
+	 * @param forTagID The FOR> tag that marks the documents to process.
+	 * @param postTagID The POST> tag that replaces it when a document is acked, or 0 for none.
+	 * @param owner The name of the worker. It should be unique among the workers of the queue.
+	 * @param leaseMs For how long a claimed document is kept from the other workers.
+	 * @throws Exception
+	 */
+	WorkQueue(BlackBoard bb, int forTagID, int postTagID, String owner, long leaseMs) throws Exception
+	{
+		if(bb.getTagProperty(forTagID, BlackBoard.TAG_PROPERTY_CONTROL)!=1)
+			throw new Exception("Tag "+forTagID+" is not a control tag");
+		if(postTagID!=0 && bb.getTagProperty(postTagID, BlackBoard.TAG_PROPERTY_CONTROL)!=1)
+			throw new Exception("Tag "+postTagID+" is not a control tag");
+		if(owner==null || owner.isEmpty())
+			throw new Exception("The owner of the queue is missing");
+		if(leaseMs<=0)
+			throw new Exception("leaseMs should be >0");
+
+		this.bb = bb;
+		this.forTagID = forTagID;
+		this.postTagID = postTagID;
+		this.owner = owner;
+		this.leaseMs = leaseMs;
+		this.positionKey = POSITION_PREFIX + forTagID;
+
+		DBObject saved = bb.collCounter.findOne(new BasicDBObject(BlackBoard.DOC_ID, positionKey));
+		if(saved!=null)
+			position = saved.get(POSITION);
+	}
+
+	/**
+	 * Claims the next documents of the queue with all their fields.
+	 *
+	 * @param maxDocs The maximum number of documents to claim.
+	 * @return The claimed documents, in _id order. Empty if there are none.
+	 * @throws Exception
+	 */
+	public List<BBDoc> claim(int maxDocs) throws Exception
+	{
+		return claim(maxDocs, null);
+	}
+
+	/**
+	 * Claims the next documents of the queue, i.e. documents that carry the FOR> tag
+	 * and have no lease or an expired one. Each of them should be passed to ack() when
+	 * processed, or to release() if it will not be processed.
+	 *
+	 * @param maxDocs The maximum number of documents to claim.
+	 * @param fields The fields to fetch. Set to null to fetch all.
+	 * @return The claimed documents, in _id order. Empty if there are none.
+	 * @throws Exception
+	 */
+	public synchronized List<BBDoc> claim(int maxDocs, List<String> fields) throws Exception
+	{
+		if(maxDocs<=0)
+			throw new Exception("maxDocs should be >0");
+
+		BasicDBObject projection = bb.getProjection(fields);
+		if(projection!=null)
+			projection.put(BlackBoard.DOC_FOR_TAGS, 1);
+
+		Date now = new Date();
+		Object start = position;
+		List<BBDoc> claimed = new ArrayList<BBDoc>();
+		for(DocCollection coll : bb.getCollDocsFrom(start))
+		{
+			claimFrom(coll, start, null, maxDocs, projection, now, claimed);
+			if(claimed.size()>=maxDocs)
+				break;
+		}
+
+		if(claimed.size()<maxDocs && start!=null)
+		{
+			//Wrap around to the documents up to the starting position
+			DocCollection last = bb.getCollDocsByDocID(start);
+			for(DocCollection coll : bb.getCollDocsFrom(null))
+			{
+				claimFrom(coll, null, start, maxDocs, projection, now, claimed);
+				if(claimed.size()>=maxDocs || coll==last)
+					break;
+			}
+		}
+
+		if(position!=start)
+			bb.collCounter.update(new BasicDBObject(BlackBoard.DOC_ID, positionKey),
+					new BasicDBObject("$set", new BasicDBObject(POSITION, position)), true, false);
+		return claimed;
+	}
+
+	/**
+	 * Claims documents of a collection with _id in (fromID, toID], until
+	 * there are maxDocs documents in claimed or there are no more.
+	 */
+	private void claimFrom(DocCollection coll, Object fromID, Object toID, int maxDocs,
+			BasicDBObject projection, Date now, List<BBDoc> claimed)
+	{
+		Set<String> fetchedFields = BBDoc.getFetchedFields(projection);
+		Date expiry = new Date(now.getTime() + leaseMs);
+		Object lastID = fromID;
+		while(claimed.size()<maxDocs)
+		{
+			int wanted = maxDocs - claimed.size();
+
+			//Find the candidates
+			BasicDBObject query = getFreeQuery(now);
+			BasicDBObject idRange = new BasicDBObject();
+			if(lastID!=null)
+				idRange.put("$gt", lastID);
+			if(toID!=null)
+				idRange.put("$lte", toID);
+			if(!idRange.isEmpty())
+				query.put(BlackBoard.DOC_ID, idRange);
+
+			List<Object> ids = new ArrayList<Object>(wanted);
+			DocCursor cur = coll.find(query, new BasicDBObject(BlackBoard.DOC_ID, 1))
+					.sort(new BasicDBObject(BlackBoard.DOC_ID, 1)).limit(wanted);
+			try {
+				while(cur.hasNext())
+					ids.add(cur.next().get(BlackBoard.DOC_ID));
+			}
+			finally {
+				cur.close();
+			}
+			if(ids.isEmpty())
+				return;
+			lastID = ids.get(ids.size()-1);
+			position = lastID;
+
+			//Lease the ones that are still free. Other workers may have taken some.
+			BasicDBObject claimQuery = getFreeQuery(now);
+			claimQuery.put(BlackBoard.DOC_ID, new BasicDBObject("$in", ids));
+			coll.update(claimQuery, new BasicDBObject("$set",
+					new BasicDBObject(BlackBoard.DOC_LEASE_OWNER, owner)
+					.append(BlackBoard.DOC_LEASE_EXPIRY, expiry)), false, true);
+
+			BasicDBObject leasedQuery = new BasicDBObject(BlackBoard.DOC_ID, new BasicDBObject("$in", ids))
+				.append(BlackBoard.DOC_LEASE_OWNER, owner)
+				.append(BlackBoard.DOC_LEASE_EXPIRY, expiry);
+			cur = (projection==null ? coll.find(leasedQuery) : coll.find(leasedQuery, projection))
+					.sort(new BasicDBObject(BlackBoard.DOC_ID, 1));
+			try {
+				while(cur.hasNext())
+				{
+					DBObject doc = cur.next();
+					Object docID = doc.get(BlackBoard.DOC_ID);
+					leases.put(docID, new Lease(coll, expiry, doc.get(BlackBoard.DOC_FOR_TAGS)));
+					bb.docCache.invalidate(docID);
+					claimed.add(new BBDoc(doc, fetchedFields));
+					numClaimed++;
+				}
+			}
+			finally {
+				cur.close();
+			}
+
+			if(ids.size()<wanted)
+				return;
+		}
+	}
+
+	/**
+	 * Returns the query for the documents of the queue that can be claimed.
+	 */
+	private BasicDBObject getFreeQuery(Date now)
+	{
+		List<DBObject> free = new ArrayList<DBObject>(2);
+		free.add(new BasicDBObject(BlackBoard.DOC_LEASE_EXPIRY, new BasicDBObject("$exists", false)));
+		free.add(new BasicDBObject(BlackBoard.DOC_LEASE_EXPIRY, new BasicDBObject("$lt", now)));
+		return new BasicDBObject(BlackBoard.DOC_FOR_TAGS, forTagID).append("$or", free);
+	}
+
+	private BasicDBObject getLeaseQuery(Object docID, Lease lease)
+	{
+		return new BasicDBObject(BlackBoard.DOC_ID, docID)
+			.append(BlackBoard.DOC_LEASE_OWNER, owner)
+			.append(BlackBoard.DOC_LEASE_EXPIRY, lease.expiry);
+	}
+
+	private Lease getLease(Object docID) throws Exception
+	{
+		Lease lease = leases.get(docID);
+		if(lease==null)
+			throw new Exception("Doc "+docID+" is not claimed by "+owner);
+		return lease;
+	}
+
+	/**
+	 * Marks a claimed document as processed: removes the FOR> tag, adds
+	 * the POST> tag and drops the lease, in a single update.
+	 *
+	 * The update succeeds only if the document is still leased to this owner,
+	 * even if the lease has expired but the document was not claimed by another worker.
+	 *
+	 * @param docID The ID of a document returned by claim().
+	 * @return true if done, false if the lease was lost to another worker,
+	 * 			which will process the document again.
+	 * @throws Exception
+	 */
+	public synchronized boolean ack(Object docID) throws Exception
+	{
+		Lease lease = getLease(docID);
+		leases.remove(docID);
+		for(int attempt=0; attempt<MAX_ACK_ATTEMPTS; attempt++)
+		{
+			//Mongo can not $pull and $addToSet the same field in one update, so
+			//the control tags are replaced, provided they did not change since read.
+			BasicDBObject query = getLeaseQuery(docID, lease);
+			query.put(BlackBoard.DOC_FOR_TAGS, lease.forTags);
+			BasicDBObject update = new BasicDBObject("$set",
+					new BasicDBObject(BlackBoard.DOC_FOR_TAGS, swapTags(lease.forTags)))
+				.append("$unset", new BasicDBObject(BlackBoard.DOC_LEASE_OWNER, 1)
+						.append(BlackBoard.DOC_LEASE_EXPIRY, 1));
+			if(lease.coll.findAndModify(query, update)!=null)
+			{
+				bb.docUpdated(docID);
+				numAcked++;
+				return true;
+			}
+
+			DBObject doc = lease.coll.findOne(getLeaseQuery(docID, lease),
+					new BasicDBObject(BlackBoard.DOC_FOR_TAGS, 1));
+			if(doc==null)
+			{
+				numLost++;
+				return false;
+			}
+			lease.forTags = doc.get(BlackBoard.DOC_FOR_TAGS);
+		}
+		throw new Exception("Could not ack doc "+docID+": Its control tags keep changing");
+	}
+
+	/**
+	 * Returns the control tags without the FOR> tag and with the POST> tag.
+	 */
+	@SuppressWarnings("rawtypes")
+	private List<Object> swapTags(Object forTags)
+	{
+		List<Object> tags = new ArrayList<Object>();
+		if(forTags instanceof List)
+			for(Object tag : (List) forTags)
+				if(!(tag instanceof Number) || ((Number) tag).intValue()!=forTagID)
+					tags.add(tag);
+		if(postTagID!=0 && !tags.contains(postTagID))
+			tags.add(postTagID);
+		return tags;
+	}
+
+	/**
+	 * Gives a claimed document back to the queue, so that any worker can claim it.
+	 *
+	 * @param docID The ID of a document returned by claim().
+	 * @return false if the lease was already lost to another worker.
+	 * @throws Exception
+	 */
+	public synchronized boolean release(Object docID) throws Exception
+	{
+		Lease lease = getLease(docID);
+		leases.remove(docID);
+		DBObject res = lease.coll.findAndModify(getLeaseQuery(docID, lease),
+				new BasicDBObject("$unset", new BasicDBObject(BlackBoard.DOC_LEASE_OWNER, 1)
+				.append(BlackBoard.DOC_LEASE_EXPIRY, 1)));
+		bb.docCache.invalidate(docID);
+		if(res==null)
+			numLost++;
+		return res!=null;
+	}
+
+	/**
+	 * Releases all documents that were claimed and not acked yet, e.g. before
+	 * the worker stops.
+	 *
+	 * @throws Exception
+	 */
+	public synchronized void releaseAll() throws Exception
+	{
+		for(Object docID : new ArrayList<Object>(leases.keySet()))
+			release(docID);
+	}
+
+	/**
+	 * Extends the lease of a claimed document by leaseMs from now, for documents
+	 * that take long to process.
+	 *
+	 * @param docID The ID of a document returned by claim().
+	 * @return false if the lease was already lost to another worker.
+	 * @throws Exception
+	 */
+	public synchronized boolean renew(Object docID) throws Exception
+	{
+		Lease lease = getLease(docID);
+		Date expiry = new Date(System.currentTimeMillis() + leaseMs);
+		DBObject res = lease.coll.findAndModify(getLeaseQuery(docID, lease),
+				new BasicDBObject("$set", new BasicDBObject(BlackBoard.DOC_LEASE_EXPIRY, expiry)));
+		if(res==null)
+		{
+			leases.remove(docID);
+			numLost++;
+			return false;
+		}
+		lease.expiry = expiry;
+		return true;
+	}
+
+	/**
+	 * Returns the last claimed _id, from which the next claim() continues,
+	 * or null if the queue starts from the first document.
+	 */
+	public synchronized Object getPosition()
+	{
+		return position;
+	}
+
+	/**
+	 * Sets the _id after which the next claim() continues, for this and
+	 * the new queues of the same FOR> tag.
+	 *
+	 * @param docID The _id, or null to start from the first document.
+	 */
+	public synchronized void setPosition(Object docID)
+	{
+		position = docID;
+		BasicDBObject query = new BasicDBObject(BlackBoard.DOC_ID, positionKey);
+		if(docID==null)
+			bb.collCounter.remove(query);
+		else
+			bb.collCounter.update(query,
+					new BasicDBObject("$set", new BasicDBObject(POSITION, docID)), true, false);
+	}
+
+	public String getOwner()
+	{
+		return owner;
+	}
+
+	public long getLeaseMs()
+	{
+		return leaseMs;
+	}
+
+	/**
+	 * Returns the number of documents that are claimed and not acked or released yet.
+	 */
+	public synchronized int getNumLeases()
+	{
+		return leases.size();
+	}
+
+	public synchronized long getNumClaimed()
+	{
+		return numClaimed;
+	}
+
+	public synchronized long getNumAcked()
+	{
+		return numAcked;
+	}
+
+	/**
+	 * Returns the number of documents whose lease was lost to another worker
+	 * before they were acked or released.
+	 */
+	public synchronized long getNumLost()
+	{
+		return numLost;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "WorkQueue FOR "+forTagID+" POST "+postTagID+" owner "+owner
+				+": "+numClaimed+" claimed, "+numAcked+" acked, "+numLost+" lost, "
+				+leases.size()+" leased, position "+position;
+	}
+}
@@ -2,6 +2,8 @@ package macsy.examples;
 
 import macsy.module.*;
 import macsy.blackBoardsSystem.*;
+import macsy.lib.FeatureVectorCodec;
+import macsy.lib.SparseVector;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -71,7 +73,7 @@ public class Example_GetTrainingSet extends BaseModule {
 				String labelTagName = this.getProperty(PROPERTY_CLASS_TAG);
 				Integer labelTagID = bb.getTagID(labelTagName);
 				
-				List<Double> features = (List<Double>) s.getField( featuresFieldName);
+				SparseVector features = FeatureVectorCodec.decode(s.getField( featuresFieldName));
 				if(features != null)
 				{
 					if(s.getTagIDs().contains(labelTagID))
@@ -79,8 +81,8 @@ public class Example_GetTrainingSet extends BaseModule {
 					else
 						System.out.print(0 +" ");
 									
-					for(int f=0;f<features.size() ; f+=2)
-						System.out.printf("%d:%.3f ",(int)features.get(f).doubleValue(), features.get(f+1).doubleValue());
+					for(int f=0;f<features.size() ; f++)
+						System.out.printf("%d:%.3f ",features.indexAt(f), features.valueAt(f));
 					/* The first number is the label and then a features vector in sparse format
 					(featureID:value pairs for non-zero features). */
 
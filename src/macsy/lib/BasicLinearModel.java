@@ -16,9 +16,11 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -49,6 +51,12 @@ public class BasicLinearModel implements LinearModel {
 
 	private String model_filename; // the name of the file with the model
 
+	private boolean binaryFormat = false; // save in BinaryModelFile format
+
+	private long[] trainingCounters = null; // saved in the binary format
+
+	private FeatureChangeSet changes = null; // the IDs of the changed weights
+
 	NGVoc Words;
 
 	/**
@@ -99,6 +107,7 @@ public class BasicLinearModel implements LinearModel {
 	 * to normalize)
 	 */
 	public void calculateMagnitude() {
+		magnitude = 0;
 		for (Map.Entry<Integer, Double> e1 : m_Id2Value.entrySet())
 			if (e1.getKey() != 0)
 				magnitude += Math.pow(e1.getValue(), 2);
@@ -158,6 +167,8 @@ public class BasicLinearModel implements LinearModel {
 			return;
 
 		m_Id2Value.put(id, value);
+		if (changes != null)
+			changes.add(id);
 	}
 
 	/**
@@ -171,6 +182,8 @@ public class BasicLinearModel implements LinearModel {
 			return;
 
 		m_Id2Value.put(id, value);
+		if (changes != null)
+			changes.add(id);
 	}
 
 	/**
@@ -187,6 +200,8 @@ public class BasicLinearModel implements LinearModel {
 		Double value = m_Id2Value.get(wordID);
 		if (value == null) {
 			m_Id2Value.put(wordID, 1.0);
+			if (changes != null)
+				changes.add(wordID);
 			nextID++;
 		}
 	}
@@ -231,8 +246,9 @@ public class BasicLinearModel implements LinearModel {
 	public double calculateDotExtendedWX(DataPoint x)
 			throws InterruptedException {
 		double weight = 0.0;
-		for (Map.Entry<Integer, Double> e : x.getFeaturesMap().entrySet())
-			weight += getValueByID(e.getKey()) * e.getValue();
+		SparseVector features = x.getSparseVector();
+		for (int k = 0; k < features.size(); k++)
+			weight += getValueByID(features.indexAt(k)) * features.valueAt(k);
 		// weight += getB();
 		weight -= getB();
 
@@ -251,8 +267,9 @@ public class BasicLinearModel implements LinearModel {
 	 */
 	public double calculateDotWX(DataPoint x) throws InterruptedException {
 		double weight = 0.0;
-		for (Map.Entry<Integer, Double> e : x.getFeaturesMap().entrySet())
-			weight += getValueByID(e.getKey()) * e.getValue();
+		SparseVector features = x.getSparseVector();
+		for (int k = 0; k < features.size(); k++)
+			weight += getValueByID(features.indexAt(k)) * features.valueAt(k);
 
 		return weight;
 	}
@@ -379,6 +396,8 @@ public class BasicLinearModel implements LinearModel {
 		for (Map.Entry<Integer, Double> e1 : m_Id2Value.entrySet())
 			if (e1.getKey() != 0)
 				m_Id2Value.put(e1.getKey(), e1.getValue() / getMagnitude());
+		if (changes != null)
+			changes.addAll();
 
 		magnitude = 1.0;
 	}
@@ -412,6 +431,61 @@ public class BasicLinearModel implements LinearModel {
 		addToB(value);
 	}
 
+	/**
+	 * Same as addToW() with a*x, without the bias: the weights that exist are
+	 * set through setValueByID().
+	 */
+	@Override
+	public void addScaledToW(SparseVector x, double a) {
+		for (int k = 0; k < x.size(); k++)
+			addScaledWeight(x.indexAt(k), a * x.valueAt(k));
+	}
+
+	@Override
+	public void addScaledDifferenceToW(SparseVector x, SparseVector y, double a) {
+		int i = 0, j = 0;
+		while (i < x.size() || j < y.size()) {
+			if (j >= y.size()
+					|| (i < x.size() && x.indexAt(i) < y.indexAt(j))) {
+				addScaledWeight(x.indexAt(i), a * x.valueAt(i));
+				i++;
+			} else if (i >= x.size() || x.indexAt(i) > y.indexAt(j)) {
+				addScaledWeight(y.indexAt(j), -a * y.valueAt(j));
+				j++;
+			} else {
+				addScaledWeight(x.indexAt(i), a
+						* (x.valueAt(i) - y.valueAt(j)));
+				i++;
+				j++;
+			}
+		}
+	}
+
+	/**
+	 * Updates the weight of a feature by value, as addScaledToW() does.
+	 */
+	private void addScaledWeight(int id, double value) {
+		if (id == 0)
+			return;
+		Double w_prev = m_Id2Value.get(id);
+		if (w_prev != null)
+			setValueByID(id, w_prev + value);
+		else
+			setValueByNewID(id, value);
+	}
+
+	@Override
+	public void addToWi(int featureID, double value) {
+		Double w_prev = m_Id2Value.get(featureID);
+		if (w_prev == null) {
+			setValueByNewID(featureID, value);
+			return;
+		}
+		m_Id2Value.put(featureID, w_prev + value);
+		if (changes != null && featureID != 0)
+			changes.add(featureID);
+	}
+
 	@Override
 	public void addToB(double c) {
 		// Constant
@@ -427,6 +501,8 @@ public class BasicLinearModel implements LinearModel {
 	public void reset() {
 		m_Id2Value = new TreeMap<Integer, Double>();
 		nextID = 1;
+		if (changes != null)
+			changes.addAll();
 
 		setB(0.0);
 
@@ -440,6 +516,8 @@ public class BasicLinearModel implements LinearModel {
 	@Override
 	public void setW(DataPoint w) {
 		m_Id2Value.clear();
+		if (changes != null)
+			changes.addAll();
 		for (Map.Entry<Integer, Double> e : w.getFeaturesMap().entrySet())
 			m_Id2Value.put(e.getKey(), e.getValue());
 		setB(0.0);
@@ -513,10 +591,21 @@ public class BasicLinearModel implements LinearModel {
 	}
 
 	@Override
-	public void saveModel(String fileName) {
+	public void saveModel(String fileName) throws IOException {
 		System.out.print("Writing Vocabulary...");
 		canWriteNewWords = false;
 
+		if (binaryFormat) {
+			try {
+				BinaryModelFile.write(model_filename, getB(), new SparseVector(
+						m_Id2Value), trainingCounters);
+			} finally {
+				canWriteNewWords = true;
+			}
+			System.out.println("DONE");
+			return;
+		}
+
 		StringBuilder s = new StringBuilder();
 
 		s.append("Vocabulary Format: <id>\t<value>\n");
@@ -544,21 +633,34 @@ public class BasicLinearModel implements LinearModel {
 			if ((id != null) && (value != null) && (value != 0))
 				s.append(id + "\t" + value + "\n");
 		}
-		BufferedWriter fp;
+		// written next to the old model and renamed over it when complete, so
+		// a crash while saving never leaves a truncated model
 		try {
-			fp = new BufferedWriter(new FileWriter(model_filename));
-			fp.write(s.toString());
-			fp.close();
-		} catch (IOException e1) {
-			e1.printStackTrace();
+			File tmp = BinaryModelFile.createTempFile(model_filename);
+			try {
+				FileOutputStream out = new FileOutputStream(tmp);
+				try {
+					BufferedWriter fp = new BufferedWriter(
+							new OutputStreamWriter(out));
+					fp.write(s.toString());
+					fp.flush();
+					out.getFD().sync();
+				} finally {
+					out.close();
+				}
+				BinaryModelFile.replace(tmp, model_filename);
+			} finally {
+				tmp.delete();
+			}
+		} finally {
+			canWriteNewWords = true;
 		}
-		canWriteNewWords = true;
 		System.out.println("DONE");
 
 	}
 
 	@Override
-	public void loadModel(String fileName) {
+	public void loadModel(String fileName) throws Exception {
 		File vocFile = new File(fileName);
 
 		// No voc return.
@@ -567,6 +669,18 @@ public class BasicLinearModel implements LinearModel {
 			return;
 		}
 
+		// a corrupted binary model stops the caller rather than being
+		// replaced by an empty model on the next save
+		if (BinaryModelFile.isBinary(fileName)) {
+			BinaryModelFile model = BinaryModelFile.read(fileName);
+			setB(model.getBias());
+			for (int k = 0; k < model.size(); k++)
+				m_Id2Value.put(model.idAt(k), model.valueAt(k));
+			trainingCounters = model.getCounters();
+			binaryFormat = true;
+			return;
+		}
+
 		// LOAD HEADER
 		String line;
 		BufferedReader input;
@@ -595,9 +709,80 @@ public class BasicLinearModel implements LinearModel {
 		}
 	}
 
+	@Override
+	public void savePocketModel(String fileName) throws IOException {
+		String current = model_filename;
+		model_filename = fileName;
+		try {
+			saveModel(fileName);
+		} finally {
+			model_filename = current;
+		}
+	}
+
+	@Override
+	public void setBinaryFormat(boolean binary) {
+		binaryFormat = binary;
+	}
+
+	@Override
+	public void exportText(String fileName) throws IOException {
+		String current = model_filename;
+		boolean binary = binaryFormat;
+		model_filename = fileName;
+		binaryFormat = false;
+		try {
+			saveModel(fileName);
+		} finally {
+			model_filename = current;
+			binaryFormat = binary;
+		}
+	}
+
+	@Override
+	public void setTrainingCounters(long[] counters) {
+		trainingCounters = counters;
+	}
+
+	@Override
+	public long[] getTrainingCounters() {
+		return trainingCounters;
+	}
+
+	/**
+	 * Sets the weights to prev_w (the bias is feature 0).
+	 */
+	@Override
+	public void Update_PocketWeights(DataPoint sample,
+			TreeMap<Integer, Double> prev_w) {
+		m_Id2Value = new TreeMap<Integer, Double>(prev_w);
+		if (changes != null)
+			changes.addAll();
+		if (!m_Id2Value.containsKey(0))
+			setB(0.0);
+	}
+
+	@Override
+	public TreeMap<Integer, Double> getM_Id2Value() throws Exception {
+		return new TreeMap<Integer, Double>(m_Id2Value);
+	}
+
+	@Override
+	public void setWi(int featureID, double value) {
+		m_Id2Value.put(featureID, value);
+		if (changes != null)
+			changes.add(featureID);
+	}
+
 	@Override
 	public double getWi(int featureID) {
-		return m_Id2Value.get(featureID);
+		Double value = m_Id2Value.get(featureID);
+		return (value == null ? 0.0 : value);
+	}
+
+	@Override
+	public void setChangeSet(FeatureChangeSet changes) {
+		this.changes = changes;
 	}
 
 	@Override
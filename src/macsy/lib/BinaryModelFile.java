@@ -0,0 +1,282 @@
+package macsy.lib;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Binary file format of a LinearModel, read by memory-mapping the file.
+ *
+ * Format (big-endian):
+ *
+ * int			MAGIC
+ * int			VERSION
+ * int			CRC32 of the rest of the file (from the next field to the end)
+ * int			Dimension: the largest feature ID (0 if there is none)
+ * int			Number of weights n
+ * int			Number of training counters c
+ * double		The bias b
+ * c longs		The training counters (e.g. N_overall, TP, FP, TN, FN)
+ * n ints		The feature IDs, increasing
+ * n doubles	The weights
+ *
+ * As in the text format only the non zero weights are saved. A file is written
+ * to a temporary file that is renamed over the old one when complete, so a
+ * reader never sees a partial model.
+ *
+ */
+public final class BinaryModelFile {
+
+	public static final int MAGIC = 0x4d4d444c; // "MMDL"
+	public static final int VERSION = 1;
+
+	private static final int CRC_OFFSET = 8;
+	private static final int HEADER_SIZE = 32;
+	private static final int CHUNK_SIZE = 1 << 16;
+
+	private final double bias;
+	private final int dimension;
+	private final long[] counters;
+	private final IntBuffer ids;
+	private final DoubleBuffer values;
+
+	private BinaryModelFile(double bias, int dimension, long[] counters,
+			IntBuffer ids, DoubleBuffer values) {
+		this.bias = bias;
+		this.dimension = dimension;
+		this.counters = counters;
+		this.ids = ids;
+		this.values = values;
+	}
+
+	public double getBias() {
+		return bias;
+	}
+
+	/**
+	 * Returns the largest feature ID.
+	 */
+	public int getDimension() {
+		return dimension;
+	}
+
+	public long[] getCounters() {
+		return counters;
+	}
+
+	/**
+	 * Returns the number of weights.
+	 */
+	public int size() {
+		return ids.capacity();
+	}
+
+	public int idAt(int k) {
+		return ids.get(k);
+	}
+
+	public double valueAt(int k) {
+		return values.get(k);
+	}
+
+	/**
+	 * Returns true if the file exists and is in the binary format.
+	 */
+	public static boolean isBinary(String fileName) {
+		File file = new File(fileName);
+		if (!file.isFile() || file.length() < HEADER_SIZE)
+			return false;
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try {
+				return in.readInt() == MAGIC;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the largest feature ID of a binary model file, reading only its
+	 * header.
+	 *
+	 * @throws IOException
+	 */
+	public static int readDimension(String fileName) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(fileName));
+		try {
+			in.skipBytes(CRC_OFFSET + 4);
+			return in.readInt();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes a model.
+	 *
+	 * @param fileName
+	 * @param bias
+	 *            The bias.
+	 * @param w
+	 *            The weights. Feature 0 (the bias) and zero weights are not
+	 *            saved.
+	 * @param counters
+	 *            The training counters, or null.
+	 * @throws IOException
+	 */
+	public static void write(String fileName, double bias, SparseVector w,
+			long[] counters) throws IOException {
+		if (counters == null)
+			counters = new long[0];
+
+		int n = 0;
+		int dimension = 0;
+		for (int k = 0; k < w.size(); k++)
+			if (w.indexAt(k) != 0 && w.valueAt(k) != 0.0) {
+				n++;
+				dimension = Math.max(dimension, w.indexAt(k));
+			}
+
+		File tmp = createTempFile(fileName);
+		try {
+			RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+			try {
+				FileChannel channel = out.getChannel();
+				CRC32 crc = new CRC32();
+				ByteBuffer buf = ByteBuffer.allocate(CHUNK_SIZE);
+
+				buf.putInt(MAGIC).putInt(VERSION).putInt(0);
+				buf.putInt(dimension).putInt(n).putInt(counters.length);
+				buf.putDouble(bias);
+				for (long c : counters)
+					buf.putLong(c);
+
+				// The CRC does not cover the first 3 fields
+				crc.update(buf.array(), CRC_OFFSET + 4, buf.position()
+						- (CRC_OFFSET + 4));
+				buf.flip();
+				while (buf.hasRemaining())
+					channel.write(buf);
+				buf.clear();
+
+				for (int pass = 0; pass < 2; pass++)
+					for (int k = 0; k < w.size(); k++) {
+						if (w.indexAt(k) == 0 || w.valueAt(k) == 0.0)
+							continue;
+						if (buf.remaining() < 8)
+							flush(channel, buf, crc);
+						if (pass == 0)
+							buf.putInt(w.indexAt(k));
+						else
+							buf.putDouble(w.valueAt(k));
+					}
+				flush(channel, buf, crc);
+
+				buf.putInt((int) crc.getValue());
+				buf.flip();
+				channel.write(buf, CRC_OFFSET);
+				channel.force(true);
+			} finally {
+				out.close();
+			}
+
+			replace(tmp, fileName);
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Creates the temporary file, next to fileName, in which a model (binary
+	 * or text) is written before replace() renames it over fileName.
+	 */
+	static File createTempFile(String fileName) throws IOException {
+		File file = new File(fileName).getAbsoluteFile();
+		return File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+	}
+
+	/**
+	 * Renames a complete model file written in tmp over fileName.
+	 */
+	static void replace(File tmp, String fileName) throws IOException {
+		File file = new File(fileName);
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file))
+				throw new IOException("Can not write " + fileName);
+		}
+	}
+
+	private static void flush(FileChannel channel, ByteBuffer buf, CRC32 crc)
+			throws IOException {
+		buf.flip();
+		crc.update(buf.array(), 0, buf.limit());
+		while (buf.hasRemaining())
+			channel.write(buf);
+		buf.clear();
+	}
+
+	/**
+	 * Maps a model written by write().
+	 *
+	 * @param fileName
+	 * @return The model.
+	 * @throws Exception
+	 *             If the file is not a binary model or is corrupted.
+	 */
+	public static BinaryModelFile read(String fileName) throws Exception {
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		ByteBuffer in;
+		try {
+			in = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+					file.length());
+		} finally {
+			file.close();
+		}
+
+		if (in.capacity() < HEADER_SIZE || in.getInt() != MAGIC)
+			throw new Exception("Not a binary model: " + fileName);
+		if (in.getInt() != VERSION)
+			throw new Exception("Unknown binary model version: " + fileName);
+		int expectedCRC = in.getInt();
+
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[CHUNK_SIZE];
+		ByteBuffer rest = in.slice();
+		while (rest.hasRemaining()) {
+			int len = Math.min(chunk.length, rest.remaining());
+			rest.get(chunk, 0, len);
+			crc.update(chunk, 0, len);
+		}
+		if ((int) crc.getValue() != expectedCRC)
+			throw new Exception("Corrupted binary model (bad checksum): "
+					+ fileName);
+
+		int dimension = in.getInt();
+		int n = in.getInt();
+		long[] counters = new long[in.getInt()];
+		double bias = in.getDouble();
+		for (int c = 0; c < counters.length; c++)
+			counters[c] = in.getLong();
+
+		ByteBuffer idBytes = in.slice();
+		idBytes.limit(4 * n);
+		in.position(in.position() + 4 * n);
+		ByteBuffer valueBytes = in.slice();
+		valueBytes.limit(8 * n);
+
+		return new BinaryModelFile(bias, dimension, counters,
+				idBytes.slice().asIntBuffer(), valueBytes.slice()
+						.asDoubleBuffer());
+	}
+}
@@ -1,8 +1,11 @@
 /**
  * DataPoint have a dual representation of their features.
  * 
- * The first is a TreeMap
+ * The first is a SparseVector (sorted primitive arrays of IDs and values)
  * The second is a String vector of format: <feature1>:<value1> <feature2>:<value2> ...
+ * built only when getFeatures() is called.
+ * 
+ * getFeaturesMap() returns a Map view of the first, for callers that work with maps.
  * 
  */
 package macsy.lib;
@@ -29,16 +32,22 @@ public class DataPoint extends Object implements Comparable<Object> {
 	// Map<Integer,Integer> indexed;
 
 	// Two representations of the same data.
-	// Map is used for computations, and string for outputing features.
-	private Map<Integer, Double> FeaturesMap_ = null;
+	// The sparse vector is used for computations, and string for outputing
+	// features. The string is built only when it is asked for.
+	private SparseVector Features_ = null;
 	private String FeaturesString; // has no label in it
+	private int FeaturesString_modCount = -1; // Features_ version of the string
 
 	/**
 	 * DO NOT USE IT DIRECTLY ONLY THREW GetMagnitude function, that calculates
 	 * it
 	 */
-	private Double m_Magnitude = null;
-	private Double m_Magnitude1 = null;
+	private double m_Magnitude;
+	private double m_SquaredMagnitude;
+	private double m_Magnitude1;
+	// Features_ version the magnitudes were computed for (-1 := not computed)
+	private int m_Magnitude_modCount = -1;
+	private int m_Magnitude1_modCount = -1;
 
 	// public double decision_value;
 	public byte[] md5 = null;
@@ -48,27 +57,21 @@ public class DataPoint extends Object implements Comparable<Object> {
 	 * matter what labels they have
 	 */
 	public int compareTo(Object o) {
-		return FeaturesString.compareTo(((DataPoint) o).FeaturesString);
+		return getFeatures().compareTo(((DataPoint) o).getFeatures());
 	}
 
 	public void addDataPoint(DataPoint x) {
 		if (x == null)
 			return;
-		Map<Integer, Double> features = getFeaturesMap();
-		Map<Integer, Double> xFeatures = x.getFeaturesMap();
-		for (Map.Entry<Integer, Double> e: xFeatures.entrySet()) {
-			Integer i = e.getKey();
-			Double x_i = e.getValue();
-			double v_i = features.containsKey(i) ? features.get(i) : 0.0;
-			features.put(i, v_i + x_i);
-		}
+		getSparseVector().addScaled(x.getSparseVector(), 1.0);
 	}
 
 	/**
 	 * Creates a clone of current object
 	 */
 	public DataPoint clone() {
-		DataPoint cp = new DataPoint(FeaturesString);
+		DataPoint cp = (Features_ == null) ? new DataPoint(FeaturesString)
+				: new DataPoint(Features_.copy());
 		cp.setID(ID);
 		cp.setRealLabel(RealLabel);
 		cp.setPredictedLabel(PredictedLabel);
@@ -77,19 +80,27 @@ public class DataPoint extends Object implements Comparable<Object> {
 	}
 
 	/**
-	 * Create a new Point by Map. String representation is built automatically.
-	 * Label is set to UNKNOWN
+	 * Create a new Point by Map. Label is set to UNKNOWN
 	 * 
 	 * @param features_map
 	 */
 	public DataPoint(Map<Integer, Double> features_map) {
-		FeaturesMap_ = new TreeMap<Integer, Double>(features_map);
+		this(new SparseVector(features_map));
+	}
+
+	/**
+	 * Create a new Point that uses the given vector as is (it is not copied).
+	 * Label is set to UNKNOWN
+	 * 
+	 * @param features
+	 */
+	public DataPoint(SparseVector features) {
+		Features_ = features;
 		setRealLabel(UNKNOWN_LABEL);
-		Features_Map2String();
 	}
 
 	public DataPoint() {
-		this(new TreeMap<Integer, Double>());
+		this(new SparseVector());
 	}
 
 	/**
@@ -109,15 +120,13 @@ public class DataPoint extends Object implements Comparable<Object> {
 	}
 
 	/**
-	 * Create a new Point by Map and assign label. String representation is
-	 * built automatically.
+	 * Create a new Point by Map and assign label.
 	 * 
 	 * @param features_map
 	 */
 	public DataPoint(Map<Integer, Double> features_map, int l_label) {
-		FeaturesMap_ = features_map;
+		Features_ = new SparseVector(features_map);
 		setRealLabel(l_label);
-		Features_Map2String();
 	}
 
 	/**
@@ -126,17 +135,8 @@ public class DataPoint extends Object implements Comparable<Object> {
 	 * @param features_list
 	 */
 	public DataPoint(List<Double> features_list) {
-		FeaturesMap_ = new TreeMap<Integer, Double>();
-		int index;
-		double value;
-		for (int f = 0; f < features_list.size(); f += 2) {
-			index = (int) Math.round(features_list.get(f));
-			value = features_list.get(f + 1);
-			FeaturesMap_.put(index, value);
-		}
-
+		Features_ = new SparseVector(features_list);
 		setRealLabel(UNKNOWN_LABEL);
-		Features_Map2String();
 	}
 
 	/**
@@ -167,48 +167,58 @@ public class DataPoint extends Object implements Comparable<Object> {
 	}
 
 	/**
-	 * Uses features_string as input to produce the features Map
+	 * Uses features_string as input to produce the features vector
 	 * 
 	 */
 	private void Features_String2Map() {
-		FeaturesMap_ = new TreeMap<Integer, Double>();
+		Map<Integer, Double> features = new TreeMap<Integer, Double>();
 
 		StringTokenizer st1 = new StringTokenizer(FeaturesString, " :");
 
 		while (st1.hasMoreTokens()) {
 			Integer ind = new Integer(st1.nextToken());
 			Double freq = new Double(st1.nextToken());
-			FeaturesMap_.put(ind, freq);
+			features.put(ind, freq);
 		}
+		Features_ = new SparseVector(features);
+		FeaturesString_modCount = Features_.getModCount();
+		m_Magnitude_modCount = -1;
+		m_Magnitude1_modCount = -1;
 	}
 
 	/**
-	 * Uses features map as input to produce the features String
+	 * Uses features vector as input to produce the features String
 	 * 
 	 */
 	private void Features_Map2String() {
-		if (FeaturesMap_ == null) {
+		if (Features_ == null) {
 			System.out
 					.print("Can not create features string, since Map is empty");
 			return;
 		}
 
 		StringBuffer featurevector = new StringBuffer(1000);
-		int term = 0;
-		double value = 0;
-
-		// Find and append classlabel first
 
 		DecimalFormat threePlaces = new DecimalFormat("0.000");
 
-		for (Object e : FeaturesMap_.entrySet()) {
-			term = ((Map.Entry<Integer, Double>) e).getKey();
-			value = ((Map.Entry<Integer, Double>) e).getValue();
-
-			featurevector.append(term + ":" + threePlaces.format(value) + " ");
+		for (int k = 0; k < Features_.size(); k++) {
+			featurevector.append(Features_.indexAt(k)).append(':')
+					.append(threePlaces.format(Features_.valueAt(k)))
+					.append(' ');
 		}
 
 		FeaturesString = featurevector.toString();
+		FeaturesString_modCount = Features_.getModCount();
+	}
+
+	/**
+	 * Returns the features as a sparse vector. Changes to the vector change
+	 * the DataPoint.
+	 */
+	public SparseVector getSparseVector() {
+		if (Features_ == null)
+			Features_String2Map();
+		return Features_;
 	}
 
 	/**
@@ -221,20 +231,25 @@ public class DataPoint extends Object implements Comparable<Object> {
 	 * 
 	 */
 	public double getMagnitude() {
-		if (FeaturesMap_ == null)
-			Features_String2Map();
-
-		if (m_Magnitude != null)
-			return m_Magnitude;
+		getSquaredMagnitude();
+		return m_Magnitude;
+	}
 
-		m_Magnitude = new Double(0);
+	/**
+	 * Returns the squared Magnitude of vector x (<x,x>), stored as
+	 * getMagnitude().
+	 */
+	public double getSquaredMagnitude() {
+		SparseVector v = getSparseVector();
 
-		for (Map.Entry<Integer, Double> e1 : FeaturesMap_.entrySet())
-			m_Magnitude += Math.pow(e1.getValue(), 2);
+		if (m_Magnitude_modCount == v.getModCount())
+			return m_SquaredMagnitude;
 
-		m_Magnitude = Math.sqrt(m_Magnitude);
+		m_SquaredMagnitude = v.squaredNorm();
+		m_Magnitude = Math.sqrt(m_SquaredMagnitude);
+		m_Magnitude_modCount = v.getModCount();
 
-		return m_Magnitude;
+		return m_SquaredMagnitude;
 	}
 
 	/**
@@ -247,18 +262,13 @@ public class DataPoint extends Object implements Comparable<Object> {
 	 * 
 	 */
 	public double getMagnitude1() {
-		if (FeaturesMap_ == null)
-			Features_String2Map();
+		SparseVector v = getSparseVector();
 
-		if (m_Magnitude1 != null)
+		if (m_Magnitude1_modCount == v.getModCount())
 			return m_Magnitude1;
 
-		m_Magnitude1 = new Double(0);
-
-		for (Map.Entry<Integer, Double> e1 : FeaturesMap_.entrySet())
-			m_Magnitude1 += e1.getValue();
-
-		m_Magnitude1 = m_Magnitude1 / FeaturesMap_.size();
+		m_Magnitude1 = v.sum() / v.size();
+		m_Magnitude1_modCount = v.getModCount();
 
 		return m_Magnitude1;
 	}
@@ -270,37 +280,7 @@ public class DataPoint extends Object implements Comparable<Object> {
 	 * @return
 	 */
 	public double getSquaredEuclideanDistance(DataPoint x) {
-		double d = 0;
-
-		if (x.FeaturesMap_ == null)
-			x.Features_String2Map();
-
-		if (FeaturesMap_ == null)
-			Features_String2Map();
-
-		// First parse get common values or values in x
-		for (Object e : x.FeaturesMap_.entrySet()) {
-			int x_key = ((Map.Entry<Integer, Double>) e).getKey();
-			double x_value = ((Map.Entry<Integer, Double>) e).getValue();
-
-			Double y_value = FeaturesMap_.get(x_key);
-			if (y_value == null)
-				y_value = new Double(0);
-
-			d += Math.pow(x_value - y_value, 2.0);
-		}
-
-		// / second parse get values in local point that do not exist in x
-		for (Object e : FeaturesMap_.entrySet()) {
-			int y_key = ((Map.Entry<Integer, Double>) e).getKey();
-
-			if (!x.FeaturesMap_.containsKey(y_key)) {
-				double y_value = ((Map.Entry<Integer, Double>) e).getValue();
-				d += Math.pow(y_value, 2.0);
-			}
-		}
-
-		return d;
+		return getSparseVector().squaredEuclideanDistance(x.getSparseVector());
 	}
 
 	/**
@@ -310,37 +290,7 @@ public class DataPoint extends Object implements Comparable<Object> {
 	 * @return
 	 */
 	public double getEuclideanDistance(DataPoint x) {
-		if (x.FeaturesMap_ == null)
-			x.Features_String2Map();
-
-		if (FeaturesMap_ == null)
-			Features_String2Map();
-
-		double d = 0;
-
-		// First parse get common values or values in x
-		for (Object e : x.FeaturesMap_.entrySet()) {
-			int x_key = ((Map.Entry<Integer, Double>) e).getKey();
-			double x_value = ((Map.Entry<Integer, Double>) e).getValue();
-
-			Double y_value = FeaturesMap_.get(x_key);
-			if (y_value == null)
-				y_value = new Double(0);
-
-			d += Math.pow(x_value - y_value, 2.0);
-		}
-
-		// / second parse get values in local point that do not exist in x
-		for (Object e : FeaturesMap_.entrySet()) {
-			int y_key = ((Map.Entry<Integer, Double>) e).getKey();
-
-			if (!x.FeaturesMap_.containsKey(y_key)) {
-				double y_value = ((Map.Entry<Integer, Double>) e).getValue();
-				d += Math.pow(y_value, 2.0);
-			}
-		}
-
-		return Math.sqrt(d);
+		return Math.sqrt(getSquaredEuclideanDistance(x));
 	}
 
 	/**
@@ -352,40 +302,7 @@ public class DataPoint extends Object implements Comparable<Object> {
 	 * @return
 	 */
 	public double getChebyshevDistance(DataPoint x) {
-		if (x.FeaturesMap_ == null)
-			x.Features_String2Map();
-		if (FeaturesMap_ == null)
-			Features_String2Map();
-
-		double d = 0;
-
-		double local_d = 0;
-		// First parse get common values or values in x
-		for (Map.Entry<Integer, Double> e : x.FeaturesMap_.entrySet()) {
-			int x_key = e.getKey();
-			double x_value = e.getValue();
-
-			Double y_value = FeaturesMap_.get(x_key);
-			if (y_value == null)
-				y_value = new Double(0);
-
-			local_d = Math.abs(y_value - x_value);
-			if (local_d > d)
-				d = local_d;
-		}
-
-		// / second parse get values in local point that do not exist in x
-		for (Map.Entry<Integer, Double> e : FeaturesMap_.entrySet()) {
-			int y_key = e.getKey();
-
-			if (!x.FeaturesMap_.containsKey(y_key)) {
-				local_d = Math.abs(e.getValue());
-				if (local_d > d)
-					d = local_d;
-			}
-		}
-
-		return d;
+		return getSparseVector().chebyshevDistance(x.getSparseVector());
 	}
 
 	/**
@@ -397,36 +314,7 @@ public class DataPoint extends Object implements Comparable<Object> {
 	 * @return
 	 */
 	public double getManhattanDistance(DataPoint x) {
-		if (x.FeaturesMap_ == null)
-			x.Features_String2Map();
-
-		if (FeaturesMap_ == null)
-			Features_String2Map();
-
-		double d = 0;
-
-		// First parse get common values or values in x
-		for (Map.Entry<Integer, Double> e : x.FeaturesMap_.entrySet()) {
-			int x_key = e.getKey();
-			double x_value = e.getValue();
-
-			Double y_value = FeaturesMap_.get(x_key);
-			if (y_value == null)
-				y_value = new Double(0);
-
-			d += Math.abs(y_value - x_value);
-		}
-
-		// / second parse get values in local point that do not exist in x
-		for (Map.Entry<Integer, Double> e : FeaturesMap_.entrySet()) {
-			int y_key = e.getKey();
-
-			if (!x.FeaturesMap_.containsKey(y_key)) {
-				d += Math.abs(e.getValue());
-			}
-		}
-
-		return d;
+		return getSparseVector().manhattanDistance(x.getSparseVector());
 	}
 
 	/**
@@ -438,13 +326,7 @@ public class DataPoint extends Object implements Comparable<Object> {
 	 * @return
 	 */
 	public double getDotProduct(DataPoint x) {
-		double dotproduct = 0;
-
-		for (Map.Entry<Integer, Double> e1 : x.FeaturesMap_.entrySet())
-			if (FeaturesMap_.containsKey(e1.getKey())) // Local Point
-				dotproduct += e1.getValue() * FeaturesMap_.get(e1.getKey());
-
-		return dotproduct;
+		return getSparseVector().dot(x.getSparseVector());
 	}
 
 	/**
@@ -477,16 +359,15 @@ public class DataPoint extends Object implements Comparable<Object> {
 	 * 
 	 */
 	public void normalize() {
-		getMagnitude();
-		if (m_Magnitude == 0)
+		double magnitude = getMagnitude();
+		if (magnitude == 0)
 			return; // Nothing to normalize
 
-		for (Map.Entry<Integer, Double> e1 : FeaturesMap_.entrySet())
-			FeaturesMap_.put(e1.getKey(), e1.getValue() / m_Magnitude);
-
-		Features_Map2String();
+		Features_.scale(1.0 / magnitude);
 
 		m_Magnitude = 1.0;
+		m_SquaredMagnitude = 1.0;
+		m_Magnitude_modCount = Features_.getModCount();
 	}
 
 	/**
@@ -498,16 +379,14 @@ public class DataPoint extends Object implements Comparable<Object> {
 	 * 
 	 */
 	public void normalize1() {
-		getMagnitude1();
-		if (m_Magnitude1 == 0)
+		double magnitude1 = getMagnitude1();
+		if (magnitude1 == 0)
 			return; // Nothing to normalize
 
-		for (Map.Entry<Integer, Double> e1 : FeaturesMap_.entrySet())
-			FeaturesMap_.put(e1.getKey(), e1.getValue() / m_Magnitude1);
-
-		Features_Map2String();
+		Features_.scale(1.0 / magnitude1);
 
 		m_Magnitude1 = 1.0;
+		m_Magnitude1_modCount = Features_.getModCount();
 	}
 
 	public void setRealLabel(int realLabel) {
@@ -543,16 +422,20 @@ public class DataPoint extends Object implements Comparable<Object> {
 	}
 
 	/**
-	 * Get Features Map used inside package in DataSet class
+	 * Get Features Map used inside package in DataSet class.
+	 * 
+	 * The map is a live view of the features (ordered by feature ID), so
+	 * changes to it change the DataPoint. Use getSparseVector() for
+	 * computations.
 	 */
 	public Map<Integer, Double> getFeaturesMap() {
-		if (FeaturesMap_ == null)
-			Features_String2Map();
-
-		return FeaturesMap_;
+		return getSparseVector().asMap();
 	}
 
 	public String getFeatures() {
+		if (Features_ != null
+				&& FeaturesString_modCount != Features_.getModCount())
+			Features_Map2String();
 		return FeaturesString;
 	}
 
@@ -562,9 +445,8 @@ public class DataPoint extends Object implements Comparable<Object> {
 	}
 
 	public Double getFeatureValue(int featureID) {
-		if (FeaturesMap_ == null)
-			Features_String2Map();
-		return FeaturesMap_.get(featureID);
+		SparseVector v = getSparseVector();
+		return v.contains(featureID) ? v.get(featureID) : null;
 	}
 
 	/**
@@ -576,39 +458,9 @@ public class DataPoint extends Object implements Comparable<Object> {
 	 *            : the DataPoint for the difference
 	 * @return the difference
 	 */
-	// TODO:One parsing should be enough since maps are order
-
 	public static DataPoint difference(DataPoint x, DataPoint y) {
-		Map<Integer, Double> feat = new TreeMap<Integer, Double>();
-		int index;
-		double value;
-
-		// First parse get common values or values in x
-		for (Map.Entry<Integer, Double> e : x.getFeaturesMap().entrySet()) {
-			int x_key = e.getKey();
-			double x_value = e.getValue();
-
-			Double y_value = y.FeaturesMap_.get(x_key);
-			if (y_value == null)
-				y_value = new Double(0);
-
-			index = (int) x_key;
-			value = (x_value - y_value);
-			feat.put(index, value);
-		}
-
-		// / second parse get values in local point that do not exist in X
-		for (Map.Entry<Integer, Double> e : y.FeaturesMap_.entrySet()) {
-			int y_key = e.getKey();
-
-			if (!x.getFeaturesMap().containsKey(y_key)) {
-				index = (int) y_key;
-				value = -e.getValue();
-				feat.put(index, value);
-			}
-		}
-
-		return new DataPoint(feat);
+		return new DataPoint(SparseVector.difference(x.getSparseVector(),
+				y.getSparseVector()));
 	}
 
 }
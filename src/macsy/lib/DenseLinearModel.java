@@ -0,0 +1,575 @@
+package macsy.lib;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import macsy.module.featuresExtractorTFIDF.NGVoc;
+
+/**
+ * Implementation of LinearModel that keeps w in a growable double[] indexed by
+ * feature ID. Feature IDs come from a dense 1..N vocabulary (NGVoc), so the
+ * array is mostly full and w[i] is a single array access.
+ *
+ * IDs above DENSE_MAX_FEATURE_ID and negative IDs (e.g. hashed features) are
+ * kept in a TreeMap so that the array never grows beyond that size.
+ *
+ * The model file formats (text or binary) are the same as in
+ * BasicLinearModel, so the two can be used interchangeably. Use
+ * LinearModelFactory to pick one automatically.
+ *
+ */
+public class DenseLinearModel implements LinearModel {
+
+	/**
+	 * Feature IDs up to this value are stored in the array.
+	 */
+	public static final int DENSE_MAX_FEATURE_ID = 1 << 22;
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private double[] w; // w[featureID], w[0] is not used
+	// the weights with IDs < 0 or > DENSE_MAX_FEATURE_ID
+	private TreeMap<Integer, Double> overflow = new TreeMap<Integer, Double>();
+	private double b = 0.0; // The bias (id 0 in the model file)
+
+	private double magnitude = 0; // magnitude of w
+
+	private String model_filename; // the name of the file with the model
+
+	private boolean binaryFormat = false; // save in BinaryModelFile format
+
+	private long[] trainingCounters = null; // saved in the binary format
+
+	private FeatureChangeSet changes = null; // the IDs of the changed weights
+
+	NGVoc Words;
+
+	public DenseLinearModel() {
+		this(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * @param maxFeatureID
+	 *            The largest feature ID expected. The array grows if larger
+	 *            IDs are met.
+	 */
+	public DenseLinearModel(int maxFeatureID) {
+		model_filename = null;
+		w = new double[Math.min(maxFeatureID, DENSE_MAX_FEATURE_ID) + 1];
+	}
+
+	/**
+	 * Creates a model and loads it from the file if it exists.
+	 *
+	 * @param model_filename
+	 * @throws Exception if a binary model is corrupted
+	 */
+	public DenseLinearModel(String model_filename) throws Exception {
+		this();
+		this.model_filename = model_filename;
+		loadModel(model_filename);
+		calculateMagnitude();
+	}
+
+	public void setModelFileName(String filename) {
+		model_filename = filename;
+	}
+
+	/**
+	 * Makes sure that w[featureID] exists.
+	 */
+	private void ensureCapacity(int featureID) {
+		if (featureID < w.length)
+			return;
+		int newLength = w.length;
+		while (newLength <= featureID)
+			newLength *= 2;
+		w = Arrays.copyOf(w, Math.min(newLength, DENSE_MAX_FEATURE_ID + 1));
+	}
+
+	@Override
+	public double getWi(int featureID) {
+		if (featureID == 0)
+			return b;
+		if (featureID > 0 && featureID < w.length)
+			return w[featureID];
+		if (featureID > 0 && featureID <= DENSE_MAX_FEATURE_ID)
+			return 0.0;
+		Double v = overflow.get(featureID);
+		return (v == null ? 0.0 : v);
+	}
+
+	/**
+	 * Sets w[featureID] = value. Feature 0 is the bias.
+	 */
+	@Override
+	public void setWi(int featureID, double value) {
+		if (featureID == 0)
+			b = value;
+		else if (featureID > 0 && featureID <= DENSE_MAX_FEATURE_ID) {
+			ensureCapacity(featureID);
+			w[featureID] = value;
+		} else
+			overflow.put(featureID, value);
+		if (changes != null && featureID != 0)
+			changes.add(featureID);
+	}
+
+	/**
+	 * w[featureID] += value. Feature 0 is the bias.
+	 */
+	@Override
+	public void addToWi(int featureID, double value) {
+		if (featureID == 0)
+			b += value;
+		else if (featureID > 0 && featureID <= DENSE_MAX_FEATURE_ID) {
+			ensureCapacity(featureID);
+			w[featureID] += value;
+		} else {
+			Double v = overflow.get(featureID);
+			overflow.put(featureID, (v == null ? 0.0 : v) + value);
+		}
+		if (changes != null && featureID != 0)
+			changes.add(featureID);
+	}
+
+	/**
+	 * Returns the dot product of w (without bias) and x.
+	 */
+	private double dot(SparseVector x) {
+		double d = x.dot(w);
+		if (!overflow.isEmpty()) {
+			for (int k = 0; k < x.size() && x.indexAt(k) < 0; k++)
+				d += getWi(x.indexAt(k)) * x.valueAt(k);
+			for (int k = x.size() - 1; k >= 0
+					&& x.indexAt(k) > DENSE_MAX_FEATURE_ID; k--)
+				d += getWi(x.indexAt(k)) * x.valueAt(k);
+		}
+		return d;
+	}
+
+	/**
+	 * Updates w as BasicLinearModel.addToW() does: a feature that has no
+	 * weight gets its value in x, and the weights that exist are not changed
+	 * (here a weight of 0 counts as missing). The bias is updated by value.
+	 */
+	@Override
+	public void addToW(DataPoint x, double value) {
+		addScaledToW(x.getSparseVector(), 1.0);
+		addToB(value);
+	}
+
+	/**
+	 * Same as addToW() with a*x, without the bias.
+	 */
+	@Override
+	public void addScaledToW(SparseVector x, double a) {
+		reserve(x);
+		for (int k = 0; k < x.size(); k++)
+			addScaledWeight(x.indexAt(k), a * x.valueAt(k));
+	}
+
+	@Override
+	public void addScaledDifferenceToW(SparseVector x, SparseVector y, double a) {
+		reserve(x);
+		reserve(y);
+		int i = 0, j = 0;
+		while (i < x.size() || j < y.size()) {
+			if (j >= y.size()
+					|| (i < x.size() && x.indexAt(i) < y.indexAt(j))) {
+				addScaledWeight(x.indexAt(i), a * x.valueAt(i));
+				i++;
+			} else if (i >= x.size() || x.indexAt(i) > y.indexAt(j)) {
+				addScaledWeight(y.indexAt(j), -a * y.valueAt(j));
+				j++;
+			} else {
+				addScaledWeight(x.indexAt(i), a
+						* (x.valueAt(i) - y.valueAt(j)));
+				i++;
+				j++;
+			}
+		}
+	}
+
+	/**
+	 * Makes the array large enough for the features of x, unless they go
+	 * above DENSE_MAX_FEATURE_ID.
+	 */
+	private void reserve(SparseVector x) {
+		if (x.size() > 0 && x.maxIndex() <= DENSE_MAX_FEATURE_ID)
+			ensureCapacity(x.maxIndex());
+	}
+
+	/**
+	 * Updates the weight of a feature by value, as addScaledToW() does.
+	 */
+	private void addScaledWeight(int id, double value) {
+		if (id != 0 && value != 0.0 && getWi(id) == 0.0)
+			setWi(id, value);
+	}
+
+	@Override
+	public void addToB(double c) {
+		b += c;
+	}
+
+	@Override
+	public void reset() {
+		Arrays.fill(w, 0.0);
+		overflow.clear();
+		b = 0.0;
+		if (changes != null)
+			changes.addAll();
+	}
+
+	/**
+	 * Returns W (with the bias as feature 0, as in BasicLinearModel).
+	 */
+	@Override
+	public DataPoint getW() {
+		return new DataPoint(toSparseVector());
+	}
+
+	private SparseVector toSparseVector() {
+		int n = 1 + overflow.size();
+		for (int i = 1; i < w.length; i++)
+			if (w[i] != 0.0)
+				n++;
+
+		// In increasing ID order: negative IDs, the bias, w, large IDs
+		int[] idx = new int[n];
+		double[] val = new double[n];
+		int k = 0;
+		for (Map.Entry<Integer, Double> e : overflow.headMap(0).entrySet()) {
+			idx[k] = e.getKey();
+			val[k++] = e.getValue();
+		}
+		idx[k] = 0;
+		val[k++] = b;
+		for (int i = 1; i < w.length; i++)
+			if (w[i] != 0.0) {
+				idx[k] = i;
+				val[k++] = w[i];
+			}
+		for (Map.Entry<Integer, Double> e : overflow.tailMap(0).entrySet()) {
+			idx[k] = e.getKey();
+			val[k++] = e.getValue();
+		}
+		return new SparseVector(idx, val, k);
+	}
+
+	/**
+	 * Sets W. As in BasicLinearModel the bias is set to 0.
+	 */
+	@Override
+	public void setW(DataPoint x) {
+		Arrays.fill(w, 0.0);
+		overflow.clear();
+		if (changes != null)
+			changes.addAll();
+		SparseVector features = x.getSparseVector();
+		for (int k = 0; k < features.size(); k++)
+			setWi(features.indexAt(k), features.valueAt(k));
+		setB(0.0);
+	}
+
+	@Override
+	public double getB() {
+		return b;
+	}
+
+	@Override
+	public void setB(double b) {
+		this.b = b;
+	}
+
+	/**
+	 * Returns wx - b
+	 */
+	@Override
+	public double predict(DataPoint x) {
+		return dot(x.getSparseVector()) - b;
+	}
+
+	/**
+	 * Returns wx
+	 */
+	@Override
+	public double score(DataPoint x) {
+		return dot(x.getSparseVector());
+	}
+
+	/*
+	 * This function calculate the magnitude of the weights (in order to be able
+	 * to normalize)
+	 */
+	public void calculateMagnitude() {
+		magnitude = 0;
+		for (int i = 1; i < w.length; i++)
+			magnitude += w[i] * w[i];
+		for (double v : overflow.values())
+			magnitude += v * v;
+		magnitude = Math.sqrt(magnitude);
+	}
+
+	/*
+	 * This function returns the magnitude of the weights
+	 */
+	public double getMagnitude() {
+		return magnitude;
+	}
+
+	/**
+	 * Modifies the model as:
+	 *
+	 * W = W / ||W||
+	 *
+	 * where ||W|| is the second norm of W.
+	 *
+	 */
+	@Override
+	public void normalize() {
+		calculateMagnitude();
+		if (getMagnitude() == 0)
+			return; // Nothing to normalize
+
+		for (int i = 1; i < w.length; i++)
+			w[i] /= magnitude;
+		for (Map.Entry<Integer, Double> e : overflow.entrySet())
+			e.setValue(e.getValue() / magnitude);
+		if (changes != null)
+			changes.addAll();
+
+		magnitude = 1.0;
+	}
+
+	@Override
+	public void saveModel(String fileName) throws IOException {
+		String target = model_filename != null ? model_filename : fileName;
+		if (binaryFormat)
+			writeBinaryModel(target);
+		else
+			writeModel(target);
+	}
+
+	@Override
+	public void savePocketModel(String fileName) throws IOException {
+		if (binaryFormat)
+			writeBinaryModel(fileName);
+		else
+			writeModel(fileName);
+	}
+
+	@Override
+	public void exportText(String fileName) throws IOException {
+		writeModel(fileName);
+	}
+
+	@Override
+	public void setBinaryFormat(boolean binary) {
+		binaryFormat = binary;
+	}
+
+	@Override
+	public void setTrainingCounters(long[] counters) {
+		trainingCounters = counters;
+	}
+
+	@Override
+	public long[] getTrainingCounters() {
+		return trainingCounters;
+	}
+
+	@Override
+	public void setChangeSet(FeatureChangeSet changes) {
+		this.changes = changes;
+	}
+
+	/**
+	 * Writes the model in the format of BinaryModelFile.
+	 */
+	private void writeBinaryModel(String fileName) throws IOException {
+		System.out.print("Writing Vocabulary...");
+		BinaryModelFile.write(fileName, b, toSparseVector(), trainingCounters);
+		System.out.println("DONE");
+	}
+
+	/**
+	 * Writes the model in the format of BasicLinearModel: a header line, then
+	 * one <id>\t<value> line for the bias (id 0) and each non zero weight.
+	 */
+	private void writeModel(String fileName) throws IOException {
+		System.out.print("Writing Vocabulary...");
+		// written next to the old model and renamed over it when complete, so
+		// a crash while saving never leaves a truncated model
+		File tmp = BinaryModelFile.createTempFile(fileName);
+		try {
+			FileOutputStream out = new FileOutputStream(tmp);
+			try {
+				writeText(out);
+			} finally {
+				out.close();
+			}
+			BinaryModelFile.replace(tmp, fileName);
+		} finally {
+			tmp.delete();
+		}
+		System.out.println("DONE");
+	}
+
+	/**
+	 * Writes the text format to out and syncs it to the disk.
+	 */
+	private void writeText(FileOutputStream out) throws IOException {
+		BufferedWriter fp = new BufferedWriter(new OutputStreamWriter(out),
+				1 << 16);
+		fp.write("Vocabulary Format: <id>\t<value>\n");
+		for (Map.Entry<Integer, Double> e : overflow.headMap(0).entrySet())
+			if (e.getValue() != 0.0)
+				fp.write(e.getKey() + "\t" + e.getValue() + "\n");
+		fp.write("0\t" + b + "\n");
+		for (int i = 1; i < w.length; i++)
+			if (w[i] != 0.0)
+				fp.write(i + "\t" + w[i] + "\n");
+		for (Map.Entry<Integer, Double> e : overflow.tailMap(0).entrySet())
+			if (e.getValue() != 0.0)
+				fp.write(e.getKey() + "\t" + e.getValue() + "\n");
+		fp.flush();
+		out.getFD().sync();
+	}
+
+	@Override
+	public void loadModel(String fileName) throws Exception {
+		File vocFile = new File(fileName);
+
+		// No voc return.
+		if (!vocFile.exists()) {
+			setB(0.0);
+			return;
+		}
+
+		// a corrupted binary model stops the caller rather than being
+		// replaced by an empty model on the next save
+		if (BinaryModelFile.isBinary(fileName)) {
+			BinaryModelFile model = BinaryModelFile.read(fileName);
+			ensureCapacity(Math.min(model.getDimension(),
+					DENSE_MAX_FEATURE_ID));
+			setB(model.getBias());
+			for (int k = 0; k < model.size(); k++)
+				setWi(model.idAt(k), model.valueAt(k));
+			trainingCounters = model.getCounters();
+			binaryFormat = true;
+			return;
+		}
+
+		String line;
+		BufferedReader input;
+		try {
+			input = new BufferedReader(new FileReader(fileName), 1 << 16);
+			// First line = HEADER OF VOC //Ignore
+			line = input.readLine();
+
+			while ((line = input.readLine()) != null) {
+				int tab = line.indexOf('\t');
+				int id = Integer.parseInt(line.substring(0, tab));
+				double value = Double.parseDouble(line.substring(tab + 1));
+				setWi(id, value);
+			}
+			input.close();
+		} catch (FileNotFoundException e1) {
+			e1.printStackTrace();
+		} catch (IOException e2) {
+			e2.printStackTrace();
+		} catch (Exception e3) {
+			e3.printStackTrace();
+		}
+	}
+
+	/**
+	 * Sets the weights to prev_w (the bias is feature 0).
+	 */
+	@Override
+	public void Update_PocketWeights(DataPoint sample,
+			TreeMap<Integer, Double> prev_w) {
+		Arrays.fill(w, 0.0);
+		overflow.clear();
+		b = 0.0;
+		if (changes != null)
+			changes.addAll();
+		for (Map.Entry<Integer, Double> e : prev_w.entrySet())
+			setWi(e.getKey(), e.getValue());
+	}
+
+	@Override
+	public TreeMap<Integer, Double> getM_Id2Value() throws Exception {
+		TreeMap<Integer, Double> res = new TreeMap<Integer, Double>(getW()
+				.getFeaturesMap());
+		return res;
+	}
+
+	/**
+	 * Returns the IDs of the stored features ordered by weight (ascending
+	 * or descending).
+	 */
+	private List<Integer> sortedFeatures(int n, final boolean descending) {
+		SparseVector v = toSparseVector();
+		Integer[] ids = new Integer[v.size() - 1];
+		int m = 0;
+		for (int k = 0; k < v.size(); k++)
+			if (v.indexAt(k) != 0) // not the bias
+				ids[m++] = v.indexAt(k);
+		Arrays.sort(ids, new Comparator<Integer>() {
+			public int compare(Integer a, Integer c) {
+				int cmp = Double.compare(getWi(a), getWi(c));
+				return descending ? -cmp : cmp;
+			}
+		});
+
+		List<Integer> res = new LinkedList<Integer>();
+		for (int i = 0; i < n && i < ids.length; i++)
+			res.add(ids[i]);
+		return res;
+	}
+
+	public List<Integer> topFeatures(int n) {
+		return sortedFeatures(n, true);
+	}
+
+	public List<Integer> leastFeatures(int n) {
+		return sortedFeatures(n, false);
+	}
+
+	@Override
+	public Map<String, Double> wordCloudGetTopFeatures(int n) {
+		Map<String, Double> words_ids = new HashMap<String, Double>();
+		for (Integer e : topFeatures(n))
+			words_ids.put(Words.getWord(e), getWi(e));
+		return words_ids;
+	}
+
+	@Override
+	public Map<String, Double> wordCloudGetLeastFeatures(int n) {
+		Map<String, Double> words_ids = new HashMap<String, Double>();
+		for (Integer e : leastFeatures(n))
+			words_ids.put(Words.getWord(e), getWi(e));
+		return words_ids;
+	}
+
+	@Override
+	public void wordCloudSetVocabulary(String voc_filename) throws Exception {
+		Words = new NGVoc(voc_filename);
+	}
+}
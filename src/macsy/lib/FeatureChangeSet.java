@@ -0,0 +1,87 @@
+package macsy.lib;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The IDs of the weights of a LinearModel that have changed since the last
+ * checkpoint (see LinearModel.setChangeSet() and
+ * onlineLearning.ModelCheckpoint).
+ *
+ * IDs up to DenseLinearModel.DENSE_MAX_FEATURE_ID are kept in a BitSet, the
+ * others in a HashSet. Changes of all the weights at once (reset, setW,
+ * normalize, ...) mark the whole model as changed.
+ *
+ */
+public final class FeatureChangeSet {
+
+	private final BitSet dense = new BitSet();
+	private final Set<Integer> sparse = new HashSet<Integer>();
+	private boolean all = false;
+
+	/**
+	 * Marks the weight of the feature as changed.
+	 */
+	public void add(int featureID) {
+		if (all)
+			return;
+		if (featureID >= 0 && featureID <= DenseLinearModel.DENSE_MAX_FEATURE_ID)
+			dense.set(featureID);
+		else
+			sparse.add(featureID);
+	}
+
+	/**
+	 * Marks the weights of the features of x as changed.
+	 */
+	public void add(SparseVector x) {
+		if (all)
+			return;
+		for (int k = 0; k < x.size(); k++)
+			add(x.indexAt(k));
+	}
+
+	/**
+	 * Marks all the weights as changed.
+	 */
+	public void addAll() {
+		all = true;
+		dense.clear();
+		sparse.clear();
+	}
+
+	/**
+	 * Returns true if all the weights may have changed.
+	 */
+	public boolean isAll() {
+		return all;
+	}
+
+	public boolean isEmpty() {
+		return !all && dense.isEmpty() && sparse.isEmpty();
+	}
+
+	/**
+	 * Returns the IDs of the changed weights, increasing (not meaningful if
+	 * isAll()).
+	 */
+	public int[] toArray() {
+		int[] ids = new int[dense.cardinality() + sparse.size()];
+		int k = 0;
+		for (int i = dense.nextSetBit(0); i >= 0; i = dense.nextSetBit(i + 1))
+			ids[k++] = i;
+		for (Integer id : sparse)
+			ids[k++] = id;
+		if (!sparse.isEmpty())
+			Arrays.sort(ids);
+		return ids;
+	}
+
+	public void clear() {
+		all = false;
+		dense.clear();
+		sparse.clear();
+	}
+}
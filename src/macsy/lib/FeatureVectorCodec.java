@@ -0,0 +1,255 @@
+package macsy.lib;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.types.Binary;
+
+/**
+ * Encodes feature vectors for storage in a field of a Black Board doc.
+ *
+ * Legacy format (LIST): a list of doubles that interleaves IDs and values,
+ * [id1, v1, id2, v2, ...].
+ *
+ * Binary formats (FLOAT32, QUANTISED16): a single binary value,
+ *
+ * byte 0		VERSION
+ * byte 1		Value encoding (FLOAT32 or QUANTISED16)
+ * varint		Number of features n
+ * varint		The first ID (zig-zag, so that negative hashed IDs are allowed)
+ * n-1 varints	The differences between consecutive IDs (IDs are strictly increasing)
+ * FLOAT32:		n big-endian float32 values
+ * QUANTISED16:	A float32 scale, then n big-endian int16 q, with value = q * scale
+ *
+ * A typical TF-IDF entry takes 1-2 bytes for the ID and 4 (or 2) for the value,
+ * instead of two BSON doubles.
+ *
+ * decode() accepts both the legacy list and the binary formats, and returns the
+ * vector without boxing the values.
+ *
+ */
+public final class FeatureVectorCodec {
+
+	public static final byte VERSION = 1;
+
+	/**
+	 * The format in which a vector is stored.
+	 */
+	public enum Format {
+		/** Legacy list of doubles [id1, v1, id2, v2, ...] */
+		LIST((byte) 0),
+		/** Binary, values as float32 */
+		FLOAT32((byte) 1),
+		/** Binary, values as int16 scaled by the largest absolute value */
+		QUANTISED16((byte) 2);
+
+		final byte code;
+
+		Format(byte code) {
+			this.code = code;
+		}
+	}
+
+	private static final int HEADER_SIZE = 2;
+	private static final int QUANTISED_MAX = Short.MAX_VALUE;
+
+	private FeatureVectorCodec() {
+	}
+
+	/**
+	 * Returns the value to store in a doc field for the vector.
+	 *
+	 * @param features
+	 *            The vector.
+	 * @param format
+	 *            The format.
+	 * @return A List<Double> for LIST, a byte[] otherwise.
+	 */
+	public static Object encode(SparseVector features, Format format) {
+		if (format == Format.LIST) {
+			List<Double> list = new ArrayList<Double>(2 * features.size());
+			for (int k = 0; k < features.size(); k++) {
+				list.add((double) features.indexAt(k));
+				list.add(features.valueAt(k));
+			}
+			return list;
+		}
+		return encodeBinary(features, format);
+	}
+
+	/**
+	 * Returns the value to store in a doc field for the vector.
+	 *
+	 * @param features
+	 *            Map of featureID to value.
+	 * @param format
+	 *            The format.
+	 * @return A List<Double> for LIST, a byte[] otherwise.
+	 */
+	public static Object encode(Map<Integer, Double> features, Format format) {
+		return encode(new SparseVector(features), format);
+	}
+
+	/**
+	 * Encodes the vector in a binary format.
+	 */
+	public static byte[] encodeBinary(SparseVector features, Format format) {
+		if (format == Format.LIST)
+			throw new IllegalArgumentException("LIST is not a binary format");
+
+		int n = features.size();
+		int valueBytes = (format == Format.FLOAT32 ? 4 * n : 4 + 2 * n);
+		byte[] out = new byte[HEADER_SIZE + 5 * (n + 1) + valueBytes];
+
+		out[0] = VERSION;
+		out[1] = format.code;
+		int pos = writeVarint(out, HEADER_SIZE, n);
+
+		for (int k = 0; k < n; k++) {
+			int id = features.indexAt(k);
+			if (k == 0)
+				pos = writeVarint(out, pos, (id << 1) ^ (id >> 31));
+			else
+				pos = writeVarint(out, pos, id - features.indexAt(k - 1));
+		}
+
+		if (format == Format.FLOAT32) {
+			for (int k = 0; k < n; k++)
+				pos = writeInt(out, pos,
+						Float.floatToIntBits((float) features.valueAt(k)));
+		} else {
+			double maxAbs = 0;
+			for (int k = 0; k < n; k++)
+				maxAbs = Math.max(maxAbs, Math.abs(features.valueAt(k)));
+			float scale = (float) (maxAbs / QUANTISED_MAX);
+			pos = writeInt(out, pos, Float.floatToIntBits(scale));
+			for (int k = 0; k < n; k++) {
+				int q = (scale == 0 ? 0 : (int) Math.round(features.valueAt(k)
+						/ scale));
+				q = Math.max(-QUANTISED_MAX, Math.min(QUANTISED_MAX, q));
+				out[pos++] = (byte) (q >> 8);
+				out[pos++] = (byte) q;
+			}
+		}
+
+		byte[] res = new byte[pos];
+		System.arraycopy(out, 0, res, 0, pos);
+		return res;
+	}
+
+	/**
+	 * Decodes the value of a feature vector field, in any format.
+	 *
+	 * @param fieldValue
+	 *            The value of the field: a list (legacy), a byte[] or a
+	 *            Binary.
+	 * @return The vector, or null if fieldValue is null.
+	 * @throws Exception
+	 *             If the value is not a feature vector.
+	 */
+	@SuppressWarnings("unchecked")
+	public static SparseVector decode(Object fieldValue) throws Exception {
+		if (fieldValue == null)
+			return null;
+		if (fieldValue instanceof byte[])
+			return decodeBinary((byte[]) fieldValue);
+		if (fieldValue instanceof Binary)
+			return decodeBinary(((Binary) fieldValue).getData());
+		if (fieldValue instanceof List)
+			return new SparseVector((List<Double>) fieldValue);
+		throw new Exception("Not a feature vector: "
+				+ fieldValue.getClass().getName());
+	}
+
+	/**
+	 * Decodes the value of a feature vector field into a DataPoint.
+	 *
+	 * @return The DataPoint, or null if fieldValue is null.
+	 * @throws Exception
+	 */
+	public static DataPoint toDataPoint(Object fieldValue) throws Exception {
+		SparseVector features = decode(fieldValue);
+		if (features == null)
+			return null;
+		return new DataPoint(features);
+	}
+
+	/**
+	 * Returns true if the field value is in a binary format.
+	 */
+	public static boolean isBinary(Object fieldValue) {
+		return (fieldValue instanceof byte[]) || (fieldValue instanceof Binary);
+	}
+
+	private static SparseVector decodeBinary(byte[] in) throws Exception {
+		if (in.length < HEADER_SIZE || in[0] != VERSION)
+			throw new Exception("Unknown feature vector version "
+					+ (in.length > 0 ? in[0] : -1));
+
+		int[] pos = { HEADER_SIZE };
+		int n = readVarint(in, pos);
+		int[] idx = new int[n];
+		double[] val = new double[n];
+
+		for (int k = 0; k < n; k++) {
+			int v = readVarint(in, pos);
+			if (k == 0)
+				idx[k] = (v >>> 1) ^ -(v & 1);
+			else
+				idx[k] = idx[k - 1] + v;
+		}
+
+		int p = pos[0];
+		if (in[1] == Format.FLOAT32.code) {
+			for (int k = 0; k < n; k++, p += 4)
+				val[k] = Float.intBitsToFloat(readInt(in, p));
+		} else if (in[1] == Format.QUANTISED16.code) {
+			float scale = Float.intBitsToFloat(readInt(in, p));
+			p += 4;
+			for (int k = 0; k < n; k++, p += 2)
+				val[k] = ((short) (((in[p] & 0xff) << 8) | (in[p + 1] & 0xff)))
+						* (double) scale;
+		} else
+			throw new Exception("Unknown feature vector encoding " + in[1]);
+
+		return new SparseVector(idx, val, n);
+	}
+
+	private static int writeVarint(byte[] out, int pos, int value) {
+		while ((value & ~0x7f) != 0) {
+			out[pos++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out[pos++] = (byte) value;
+		return pos;
+	}
+
+	/**
+	 * Reads a varint at pos[0] and advances pos[0].
+	 */
+	private static int readVarint(byte[] in, int[] pos) {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = in[pos[0]++];
+			value |= (b & 0x7f) << shift;
+			shift += 7;
+		} while (b < 0);
+		return value;
+	}
+
+	private static int writeInt(byte[] out, int pos, int value) {
+		out[pos++] = (byte) (value >> 24);
+		out[pos++] = (byte) (value >> 16);
+		out[pos++] = (byte) (value >> 8);
+		out[pos++] = (byte) value;
+		return pos;
+	}
+
+	private static int readInt(byte[] in, int p) {
+		return ((in[p] & 0xff) << 24) | ((in[p + 1] & 0xff) << 16)
+				| ((in[p + 2] & 0xff) << 8) | (in[p + 3] & 0xff);
+	}
+}
@@ -259,20 +259,11 @@ public class Helpers {
 
 	public static DataPoint readDataPoint(BBDoc article, Integer label)
 			throws Exception {
-		List<Double> tfIdf = (List<Double>) article.getField("NYTndxTDC");
-		if (tfIdf == null)
+		DataPoint sample = FeatureVectorCodec.toDataPoint(article
+				.getField("NYTndxTDC"));
+		if (sample == null)
 			return null;
 
-		Map<Integer, Double> features = new TreeMap<Integer, Double>();
-		int index;
-		double value;
-		for (int f = 0; f < tfIdf.size(); f += 2) {
-			index = (int) Math.round(tfIdf.get(f));
-			value = tfIdf.get(f + 1);
-			features.put(index, value);
-		}
-
-		DataPoint sample = new DataPoint(features);
 		sample.setID(article.getID());
 		if (label != null)
 			sample.setRealLabel(label);
@@ -1,5 +1,6 @@
 package macsy.lib;
 
+import java.io.IOException;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -15,10 +16,41 @@ public interface LinearModel {
 	/**
 	 * Adds x to w.
 	 * 
+	 * The online learners have always updated their models through this
+	 * method, which only sets the weights of the features that have none yet:
+	 * the updates of the weights that exist are dropped (see
+	 * BasicLinearModel.setValueByID()).
+	 * 
 	 * @param x
 	 */
 	void addToW(DataPoint x, double value);
 
+	/**
+	 * Same as addToW() with a*x, in place (not the bias): no scaled copy of x
+	 * is needed.
+	 * 
+	 * @param x
+	 * @param a
+	 */
+	void addScaledToW(SparseVector x, double a);
+
+	/**
+	 * Same as addScaledToW() with x - y, without building x - y.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param a
+	 */
+	void addScaledDifferenceToW(SparseVector x, SparseVector y, double a);
+
+	/**
+	 * Adds value to the weight of a feature (ID 0 is the bias), whether it
+	 * exists or not.
+	 * @param featureID
+	 * @param value
+	 */
+	void addToWi(int featureID, double value);
+
 	/**
 	 * Adds c to b. 
 	 * @param b
@@ -51,6 +83,13 @@ public interface LinearModel {
 	 */
 	void setW(DataPoint w);
 
+	/**
+	 * Sets the value of feature with given ID (ID 0 is the bias).
+	 * @param featureID
+	 * @param value
+	 */
+	void setWi(int featureID, double value);
+
 	/**
 	 * Returns B.
 	 * @return
@@ -80,21 +119,76 @@ public interface LinearModel {
 	double score(DataPoint x);
 
 	/**
-	 * Saves the model to file.
+	 * Sets the file used by saveModel().
+	 * @param filename
+	 */
+	void setModelFileName(String filename);
+
+	/**
+	 * Calculates ||w|| (without the bias).
+	 */
+	void calculateMagnitude();
+
+	/**
+	 * Returns ||w|| as computed by the last calculateMagnitude().
+	 * @return
+	 */
+	double getMagnitude();
+
+	/**
+	 * Saves the model to file. The model is written to a temporary file that
+	 * is renamed over the old one when complete.
 	 * 
 	 * @param fileName
+	 * @throws IOException if the model could not be written
 	 */
-	void saveModel(String fileName);
+	void saveModel(String fileName) throws IOException;
 
-        void savePocketModel(String fileName);
+        void savePocketModel(String fileName) throws IOException;
 
 	/**
-	 * Load model from file.
+	 * Load model from file (text or binary format).
 	 * @param fileName
+	 * @throws Exception if a binary model is corrupted
+	 */
+	void loadModel(String fileName) throws Exception;
+
+	/**
+	 * Selects the format of saveModel() and savePocketModel(): the binary
+	 * format of BinaryModelFile (true) or the text format (false, the default).
+	 * A model loaded from a binary file is saved in binary.
+	 * @param binary
+	 */
+	void setBinaryFormat(boolean binary);
+
+	/**
+	 * Saves the model to file in the text format, whatever the format of
+	 * saveModel() (e.g. for the word cloud tools).
+	 * @param fileName
+	 * @throws IOException
+	 */
+	void exportText(String fileName) throws IOException;
+
+	/**
+	 * Sets the training counters saved with the model in the binary format.
+	 * @param counters
+	 */
+	void setTrainingCounters(long[] counters);
+
+	/**
+	 * Returns the training counters set or loaded from a binary file, or null.
+	 * @return
+	 */
+	long[] getTrainingCounters();
+
+	/**
+	 * Records from now on the IDs of the changed weights in changes (null to
+	 * stop recording). Changes of the bias are not recorded.
+	 * @param changes
 	 */
-	void loadModel(String fileName);
+	void setChangeSet(FeatureChangeSet changes);
 
-        void Update_PocketWeights(DataPoint sample, TreeMap prev_w);
+        void Update_PocketWeights(DataPoint sample, TreeMap<Integer, Double> prev_w);
 
         void normalize();
 	/**
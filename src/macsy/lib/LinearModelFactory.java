@@ -0,0 +1,88 @@
+package macsy.lib;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.Arrays;
+
+/**
+ * Picks the LinearModel implementation for a model file.
+ *
+ * Models whose feature IDs come from a dense vocabulary (all IDs up to
+ * DenseLinearModel.DENSE_MAX_FEATURE_ID) are loaded in a DenseLinearModel.
+ * Models with larger IDs (e.g. hashed features) are loaded in a
+ * BasicLinearModel. New models (no file yet) are dense.
+ *
+ */
+public final class LinearModelFactory {
+
+	private LinearModelFactory() {
+	}
+
+	/**
+	 * Creates the model and loads it from the file if it exists.
+	 *
+	 * @param fileName
+	 *            The model file (BasicLinearModel text or binary format).
+	 * @return
+	 * @throws Exception
+	 */
+	public static LinearModel loadModel(String fileName) throws Exception {
+		boolean exists = new File(fileName).exists();
+		if (exists && !BinaryModelFile.isBinary(fileName))
+			return loadTextModel(fileName);
+
+		// the header of a binary file has the largest feature ID
+		int maxID = exists ? BinaryModelFile.readDimension(fileName) : 0;
+		if (maxID > DenseLinearModel.DENSE_MAX_FEATURE_ID)
+			return new BasicLinearModel(fileName);
+
+		DenseLinearModel model = new DenseLinearModel(maxID);
+		model.setModelFileName(fileName);
+		model.loadModel(fileName);
+		model.calculateMagnitude();
+		return model;
+	}
+
+	/**
+	 * Reads a model file in the text format once, and puts its weights in the
+	 * model that fits its largest feature ID.
+	 */
+	private static LinearModel loadTextModel(String fileName) throws Exception {
+		int[] ids = new int[1024];
+		double[] values = new double[1024];
+		int size = 0;
+		int maxID = 0;
+		BufferedReader input = new BufferedReader(new FileReader(fileName),
+				1 << 16);
+		try {
+			String line = input.readLine(); // header
+			while ((line = input.readLine()) != null) {
+				int tab = line.indexOf('\t');
+				if (tab <= 0)
+					continue;
+				if (size == ids.length) {
+					ids = Arrays.copyOf(ids, 2 * size);
+					values = Arrays.copyOf(values, 2 * size);
+				}
+				ids[size] = Integer.parseInt(line.substring(0, tab));
+				values[size] = Double.parseDouble(line.substring(tab + 1));
+				maxID = Math.max(maxID, ids[size]);
+				size++;
+			}
+		} finally {
+			input.close();
+		}
+
+		LinearModel model;
+		if (maxID > DenseLinearModel.DENSE_MAX_FEATURE_ID)
+			model = new BasicLinearModel();
+		else
+			model = new DenseLinearModel(maxID);
+		model.setModelFileName(fileName);
+		for (int k = 0; k < size; k++)
+			model.setWi(ids[k], values[k]); // ID 0 is the bias
+		model.calculateMagnitude();
+		return model;
+	}
+}
@@ -0,0 +1,562 @@
+package macsy.lib;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A sparse vector of doubles stored as two parallel primitive arrays: the
+ * feature IDs in increasing order and their values.
+ *
+ * Operations between two vectors (dot product, distances, sums) are computed
+ * by a single merge of the two sorted ID arrays, without boxing.
+ *
+ * asMap() gives a live Map<Integer,Double> view (ordered by ID like a TreeMap)
+ * for code that still works with maps. Inserting new IDs through it costs
+ * O(n), so bulk builds should use the builder constructors instead.
+ *
+ */
+public final class SparseVector {
+
+	private static final int[] EMPTY_IDX = new int[0];
+	private static final double[] EMPTY_VAL = new double[0];
+
+	private int[] idx;
+	private double[] val;
+	private int size;
+
+	// Increased on every change. Used by owners to invalidate cached values.
+	private int modCount = 0;
+
+	public SparseVector() {
+		idx = EMPTY_IDX;
+		val = EMPTY_VAL;
+		size = 0;
+	}
+
+	/**
+	 * Creates a vector from arrays of IDs and values. IDs must be in strictly
+	 * increasing order. The arrays are used as they are (not copied).
+	 *
+	 * @param idx
+	 *            The feature IDs
+	 * @param val
+	 *            The feature values
+	 * @param size
+	 *            The number of used positions in the arrays
+	 */
+	public SparseVector(int[] idx, double[] val, int size) {
+		this.idx = idx;
+		this.val = val;
+		this.size = size;
+	}
+
+	/**
+	 * Creates a vector with the contents of the map.
+	 *
+	 * @param features
+	 *            Map of featureID to value.
+	 */
+	public SparseVector(Map<Integer, Double> features) {
+		int n = features.size();
+		idx = new int[n];
+		val = new double[n];
+		boolean sorted = true;
+		int k = 0;
+		for (Map.Entry<Integer, Double> e : features.entrySet()) {
+			idx[k] = e.getKey();
+			val[k] = e.getValue();
+			if (k > 0 && idx[k] <= idx[k - 1])
+				sorted = false;
+			k++;
+		}
+		size = n;
+		if (!sorted)
+			sortByID();
+	}
+
+	/**
+	 * Creates a vector from a list of pairs like <feature_ID, value>.
+	 *
+	 * @param features_list
+	 *            [id1, v1, id2, v2, ...]
+	 */
+	public SparseVector(List<Double> features_list) {
+		int n = features_list.size() / 2;
+		idx = new int[n];
+		val = new double[n];
+		boolean sorted = true;
+		Iterator<Double> it = features_list.iterator();
+		for (int k = 0; k < n; k++) {
+			idx[k] = (int) Math.round(it.next());
+			val[k] = it.next();
+			if (k > 0 && idx[k] <= idx[k - 1])
+				sorted = false;
+		}
+		size = n;
+		if (!sorted)
+			sortByID();
+	}
+
+	/**
+	 * Sorts the entries by ID. If an ID appears more than once the last value
+	 * is kept (same as consecutive puts in a map).
+	 */
+	private void sortByID() {
+		Integer[] order = new Integer[size];
+		for (int k = 0; k < size; k++)
+			order[k] = k;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				if (idx[a] != idx[b])
+					return idx[a] < idx[b] ? -1 : 1;
+				return a.compareTo(b);
+			}
+		});
+
+		int[] newIdx = new int[size];
+		double[] newVal = new double[size];
+		int n = 0;
+		for (int k = 0; k < size; k++) {
+			int from = order[k];
+			if (n > 0 && newIdx[n - 1] == idx[from])
+				newVal[n - 1] = val[from];
+			else {
+				newIdx[n] = idx[from];
+				newVal[n] = val[from];
+				n++;
+			}
+		}
+		idx = newIdx;
+		val = newVal;
+		size = n;
+	}
+
+	public SparseVector copy() {
+		return new SparseVector(Arrays.copyOf(idx, size), Arrays.copyOf(val,
+				size), size);
+	}
+
+	/**
+	 * Returns the number of non-zero (stored) features.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the ID of the k-th stored feature.
+	 */
+	public int indexAt(int k) {
+		return idx[k];
+	}
+
+	/**
+	 * Returns the value of the k-th stored feature.
+	 */
+	public double valueAt(int k) {
+		return val[k];
+	}
+
+	/**
+	 * Sets the value of the k-th stored feature.
+	 */
+	public void setValueAt(int k, double value) {
+		val[k] = value;
+		modCount++;
+	}
+
+	/**
+	 * Returns the largest feature ID, or -1 if the vector is empty.
+	 */
+	public int maxIndex() {
+		return size == 0 ? -1 : idx[size - 1];
+	}
+
+	int getModCount() {
+		return modCount;
+	}
+
+	/**
+	 * Returns the position of the ID, or -(insertion point) - 1 if not
+	 * present.
+	 */
+	private int find(int id) {
+		return Arrays.binarySearch(idx, 0, size, id);
+	}
+
+	public boolean contains(int id) {
+		return find(id) >= 0;
+	}
+
+	/**
+	 * Returns the value of the feature, or 0 if it is not stored.
+	 */
+	public double get(int id) {
+		int k = find(id);
+		return k >= 0 ? val[k] : 0.0;
+	}
+
+	/**
+	 * Sets the value of the feature, storing it if necessary.
+	 */
+	public void set(int id, double value) {
+		int k = find(id);
+		if (k >= 0)
+			val[k] = value;
+		else
+			insertAt(-k - 1, id, value);
+		modCount++;
+	}
+
+	/**
+	 * Adds value to the feature, storing it if necessary.
+	 */
+	public void add(int id, double value) {
+		int k = find(id);
+		if (k >= 0)
+			val[k] += value;
+		else
+			insertAt(-k - 1, id, value);
+		modCount++;
+	}
+
+	/**
+	 * Removes the feature. Returns true if it was stored.
+	 */
+	public boolean remove(int id) {
+		int k = find(id);
+		if (k < 0)
+			return false;
+		removeAt(k);
+		return true;
+	}
+
+	private void removeAt(int k) {
+		System.arraycopy(idx, k + 1, idx, k, size - k - 1);
+		System.arraycopy(val, k + 1, val, k, size - k - 1);
+		size--;
+		modCount++;
+	}
+
+	private void insertAt(int k, int id, double value) {
+		if (size == idx.length) {
+			int newCapacity = Math.max(4, size * 2);
+			idx = Arrays.copyOf(idx, newCapacity);
+			val = Arrays.copyOf(val, newCapacity);
+		}
+		System.arraycopy(idx, k, idx, k + 1, size - k);
+		System.arraycopy(val, k, val, k + 1, size - k);
+		idx[k] = id;
+		val[k] = value;
+		size++;
+	}
+
+	/**
+	 * Multiplies all values by a.
+	 */
+	public void scale(double a) {
+		for (int k = 0; k < size; k++)
+			val[k] *= a;
+		modCount++;
+	}
+
+	/**
+	 * this = this + a * x
+	 */
+	public void addScaled(SparseVector x, double a) {
+		if (x.size == 0)
+			return;
+
+		// Fast path: all IDs of x already stored
+		int common = 0;
+		for (int i = 0, j = 0; i < size && j < x.size;) {
+			if (idx[i] < x.idx[j])
+				i++;
+			else if (idx[i] > x.idx[j])
+				j++;
+			else {
+				common++;
+				i++;
+				j++;
+			}
+		}
+		if (common == x.size) {
+			for (int i = 0, j = 0; j < x.size; i++) {
+				if (idx[i] == x.idx[j]) {
+					val[i] += a * x.val[j];
+					j++;
+				}
+			}
+			modCount++;
+			return;
+		}
+
+		int n = size + x.size - common;
+		int[] newIdx = new int[n];
+		double[] newVal = new double[n];
+		int i = 0, j = 0, k = 0;
+		while (i < size || j < x.size) {
+			if (j >= x.size || (i < size && idx[i] < x.idx[j])) {
+				newIdx[k] = idx[i];
+				newVal[k++] = val[i++];
+			} else if (i >= size || idx[i] > x.idx[j]) {
+				newIdx[k] = x.idx[j];
+				newVal[k++] = a * x.val[j++];
+			} else {
+				newIdx[k] = idx[i];
+				newVal[k++] = val[i++] + a * x.val[j++];
+			}
+		}
+		idx = newIdx;
+		val = newVal;
+		size = n;
+		modCount++;
+	}
+
+	/**
+	 * Returns x - y.
+	 */
+	public static SparseVector difference(SparseVector x, SparseVector y) {
+		int[] newIdx = new int[x.size + y.size];
+		double[] newVal = new double[x.size + y.size];
+		int i = 0, j = 0, k = 0;
+		while (i < x.size || j < y.size) {
+			if (j >= y.size || (i < x.size && x.idx[i] < y.idx[j])) {
+				newIdx[k] = x.idx[i];
+				newVal[k++] = x.val[i++];
+			} else if (i >= x.size || x.idx[i] > y.idx[j]) {
+				newIdx[k] = y.idx[j];
+				newVal[k++] = -y.val[j++];
+			} else {
+				newIdx[k] = x.idx[i];
+				newVal[k++] = x.val[i++] - y.val[j++];
+			}
+		}
+		return new SparseVector(newIdx, newVal, k);
+	}
+
+	public double dot(SparseVector x) {
+		double d = 0;
+		int i = 0, j = 0;
+		while (i < size && j < x.size) {
+			int a = idx[i], b = x.idx[j];
+			if (a < b)
+				i++;
+			else if (a > b)
+				j++;
+			else
+				d += val[i++] * x.val[j++];
+		}
+		return d;
+	}
+
+	/**
+	 * Returns the dot product with a dense vector. IDs outside the dense
+	 * vector count as 0.
+	 */
+	public double dot(double[] w) {
+		double d = 0;
+		for (int k = 0; k < size; k++)
+			if (idx[k] < w.length && idx[k] >= 0)
+				d += val[k] * w[idx[k]];
+		return d;
+	}
+
+	/**
+	 * Sum of x_i^2
+	 */
+	public double squaredNorm() {
+		double d = 0;
+		for (int k = 0; k < size; k++)
+			d += val[k] * val[k];
+		return d;
+	}
+
+	/**
+	 * Sum of x_i
+	 */
+	public double sum() {
+		double d = 0;
+		for (int k = 0; k < size; k++)
+			d += val[k];
+		return d;
+	}
+
+	public double squaredEuclideanDistance(SparseVector x) {
+		double d = 0;
+		int i = 0, j = 0;
+		while (i < size || j < x.size) {
+			double diff;
+			if (j >= x.size || (i < size && idx[i] < x.idx[j]))
+				diff = val[i++];
+			else if (i >= size || idx[i] > x.idx[j])
+				diff = x.val[j++];
+			else
+				diff = val[i++] - x.val[j++];
+			d += diff * diff;
+		}
+		return d;
+	}
+
+	public double manhattanDistance(SparseVector x) {
+		double d = 0;
+		int i = 0, j = 0;
+		while (i < size || j < x.size) {
+			if (j >= x.size || (i < size && idx[i] < x.idx[j]))
+				d += Math.abs(val[i++]);
+			else if (i >= size || idx[i] > x.idx[j])
+				d += Math.abs(x.val[j++]);
+			else
+				d += Math.abs(val[i++] - x.val[j++]);
+		}
+		return d;
+	}
+
+	public double chebyshevDistance(SparseVector x) {
+		double d = 0;
+		int i = 0, j = 0;
+		while (i < size || j < x.size) {
+			double diff;
+			if (j >= x.size || (i < size && idx[i] < x.idx[j]))
+				diff = Math.abs(val[i++]);
+			else if (i >= size || idx[i] > x.idx[j])
+				diff = Math.abs(x.val[j++]);
+			else
+				diff = Math.abs(val[i++] - x.val[j++]);
+			if (diff > d)
+				d = diff;
+		}
+		return d;
+	}
+
+	/**
+	 * Returns a live Map view of the vector, ordered by feature ID. Changes
+	 * through the view change the vector.
+	 */
+	public Map<Integer, Double> asMap() {
+		return new MapView();
+	}
+
+	private final class MapView extends AbstractMap<Integer, Double> {
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return (key instanceof Integer) && find((Integer) key) >= 0;
+		}
+
+		@Override
+		public Double get(Object key) {
+			if (!(key instanceof Integer))
+				return null;
+			int k = find((Integer) key);
+			return k >= 0 ? val[k] : null;
+		}
+
+		@Override
+		public Double put(Integer key, Double value) {
+			int k = find(key);
+			if (k >= 0) {
+				double old = val[k];
+				val[k] = value;
+				modCount++;
+				return old;
+			}
+			insertAt(-k - 1, key, value);
+			modCount++;
+			return null;
+		}
+
+		@Override
+		public Double remove(Object key) {
+			if (!(key instanceof Integer))
+				return null;
+			int k = find((Integer) key);
+			if (k < 0)
+				return null;
+			double old = val[k];
+			removeAt(k);
+			return old;
+		}
+
+		@Override
+		public void clear() {
+			size = 0;
+			modCount++;
+		}
+
+		@Override
+		public Set<Map.Entry<Integer, Double>> entrySet() {
+			return new AbstractSet<Map.Entry<Integer, Double>>() {
+				@Override
+				public int size() {
+					return size;
+				}
+
+				@Override
+				public Iterator<Map.Entry<Integer, Double>> iterator() {
+					return new EntryIterator();
+				}
+			};
+		}
+	}
+
+	/**
+	 * Iterates the stored features in ID order. Values may be changed during
+	 * the iteration (setValue() or put() on an existing key). Inserting new
+	 * keys during the iteration is not supported.
+	 */
+	private final class EntryIterator implements
+			Iterator<Map.Entry<Integer, Double>> {
+		private int next = 0;
+		private int last = -1;
+
+		public boolean hasNext() {
+			return next < size;
+		}
+
+		public Map.Entry<Integer, Double> next() {
+			if (next >= size)
+				throw new NoSuchElementException();
+			last = next++;
+			final int id = idx[last];
+			return new Map.Entry<Integer, Double>() {
+				public Integer getKey() {
+					return id;
+				}
+
+				public Double getValue() {
+					int k = find(id);
+					return k >= 0 ? val[k] : null;
+				}
+
+				public Double setValue(Double value) {
+					int k = find(id);
+					double old = val[k];
+					val[k] = value;
+					modCount++;
+					return old;
+				}
+			};
+		}
+
+		public void remove() {
+			if (last < 0)
+				throw new IllegalStateException();
+			removeAt(last);
+			next = last;
+			last = -1;
+		}
+	}
+}
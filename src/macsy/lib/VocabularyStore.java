@@ -0,0 +1,484 @@
+package macsy.lib;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Word <-> ID store for the vocabularies (NGVoc, VocabularyOnWords,
+ * WinnowVocabularyOnWords).
+ *
+ * IDs are dense, 0..size()-1, in order of addition. The words are interned
+ * into one byte arena (UTF-8 per char) and an offset table gives the bytes of
+ * each ID, so getWord() is O(1). word -> ID is an open-addressing hash table
+ * of IDs, which can be queried with a String or a char[] slice (without
+ * creating a String).
+ *
+ * A store can be saved in a binary snapshot, together with one double per ID
+ * (e.g. the IDF or the weight of the word), and mapped back with map(): the
+ * tables are used in place from the mapped file, so loading takes no time
+ * whatever the size of the vocabulary. A mapped store is copied to the heap
+ * the first time a word is added.
+ *
+ * Snapshot format (big-endian):
+ *
+ * int			MAGIC
+ * int			VERSION
+ * int			Number of words n
+ * int			Size of the hash table t (a power of 2)
+ * int			Size of the arena in bytes a
+ * int			Number of values v
+ * n+1 ints		Offset of the bytes of each word in the arena (and the end)
+ * n ints		Hash of each word
+ * t ints		Hash table, ID+1 of the word in each slot, 0 := empty
+ * v doubles	The values
+ * a bytes		The arena
+ *
+ * Not thread safe for writing.
+ *
+ */
+public class VocabularyStore {
+
+	/** Returned by getID() for a word that is not in the store */
+	public static final int NOT_FOUND = -1;
+
+	public static final int MAGIC = 0x4d564f43; // "MVOC"
+	public static final int VERSION = 1;
+
+	private static final int HEADER_INTS = 6;
+	private static final int INITIAL_SLOTS = 64;
+
+	private ByteBuffer arena;
+	private int arenaSize = 0;
+	private IntBuffer offsets;
+	private IntBuffer hashes;
+	private IntBuffer slots;
+	private int mask;
+	private int size = 0;
+
+	// true while the buffers are views of a mapped snapshot
+	private boolean mapped = false;
+
+	// values of a mapped snapshot
+	private double[] snapshotValues = null;
+
+	public VocabularyStore() {
+		this(INITIAL_SLOTS / 2);
+	}
+
+	/**
+	 * @param expectedSize
+	 *            : the number of words, to avoid rehashing while loading
+	 */
+	public VocabularyStore(int expectedSize) {
+		int tableSize = INITIAL_SLOTS;
+		while (tableSize < 2 * expectedSize)
+			tableSize <<= 1;
+		slots = IntBuffer.allocate(tableSize);
+		mask = tableSize - 1;
+		offsets = IntBuffer.allocate(Math.max(expectedSize, 16) + 1);
+		hashes = IntBuffer.allocate(Math.max(expectedSize, 16));
+		arena = ByteBuffer.allocate(8 * Math.max(expectedSize, 16));
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the ID of the word or NOT_FOUND.
+	 */
+	public int getID(String word) {
+		int h = hash(word);
+		int slot = h & mask;
+		int id;
+		while ((id = slots.get(slot) - 1) != NOT_FOUND) {
+			if (hashes.get(id) == h && wordEquals(id, word))
+				return id;
+			slot = (slot + 1) & mask;
+		}
+		return NOT_FOUND;
+	}
+
+	/**
+	 * Returns the ID of the word w[off..off+len) or NOT_FOUND.
+	 */
+	public int getID(char[] w, int off, int len) {
+		int h = hash(w, off, len);
+		int slot = h & mask;
+		int id;
+		while ((id = slots.get(slot) - 1) != NOT_FOUND) {
+			if (hashes.get(id) == h && wordEquals(id, w, off, len))
+				return id;
+			slot = (slot + 1) & mask;
+		}
+		return NOT_FOUND;
+	}
+
+	/**
+	 * Returns the word with the ID, or null if there is no such ID or the word
+	 * has been appended again with a newer ID (see append()).
+	 */
+	public String getWord(int id) {
+		if (id < 0 || id >= size)
+			return null;
+		int end = offsets.get(id + 1);
+		StringBuilder word = new StringBuilder(end - offsets.get(id));
+		for (int p = offsets.get(id); p < end;) {
+			long next = getChar(p);
+			word.append((char) next);
+			p = (int) (next >>> 32);
+		}
+		String res = word.toString();
+		return getID(res) == id ? res : null;
+	}
+
+	/**
+	 * Returns the ID of the word, adding it if it is not in the store.
+	 */
+	public int add(String word) {
+		int id = getID(word);
+		if (id != NOT_FOUND)
+			return id;
+		return append(word);
+	}
+
+	/**
+	 * Adds the word with a new ID, even if it is already in the store. The word
+	 * then maps to the new ID (as a Map.put() of the new ID would do), and the
+	 * old ID has no word any more.
+	 *
+	 * @return The new ID.
+	 */
+	public int append(String word) {
+		makeWritable();
+
+		int h = hash(word);
+		int id = size;
+		ensureCapacity(id + 1, arenaSize + 3 * word.length());
+
+		offsets.put(id, arenaSize);
+		for (int c = 0; c < word.length(); c++)
+			arenaSize = putChar(arenaSize, word.charAt(c));
+		offsets.put(id + 1, arenaSize);
+		hashes.put(id, h);
+		size++;
+
+		if (2 * size > slots.capacity())
+			rehash(2 * slots.capacity());
+
+		// Replace the slot of an older ID of the same word, if any
+		int slot = h & mask;
+		int other;
+		while ((other = slots.get(slot) - 1) != NOT_FOUND) {
+			if (hashes.get(other) == h && wordEquals(other, word))
+				break;
+			slot = (slot + 1) & mask;
+		}
+		slots.put(slot, id + 1);
+		return id;
+	}
+
+	/**
+	 * Removes all the words.
+	 */
+	public void clear() {
+		VocabularyStore empty = new VocabularyStore();
+		arena = empty.arena;
+		offsets = empty.offsets;
+		hashes = empty.hashes;
+		slots = empty.slots;
+		mask = empty.mask;
+		arenaSize = 0;
+		size = 0;
+		mapped = false;
+		snapshotValues = null;
+	}
+
+	/**
+	 * Returns the values saved with the snapshot this store was mapped from,
+	 * or null.
+	 */
+	public double[] getSnapshotValues() {
+		return snapshotValues;
+	}
+
+	private static int hash(String word) {
+		int h = 0;
+		for (int c = 0; c < word.length(); c++)
+			h = 31 * h + word.charAt(c);
+		return h ^ (h >>> 16);
+	}
+
+	private static int hash(char[] w, int off, int len) {
+		int h = 0;
+		for (int c = off; c < off + len; c++)
+			h = 31 * h + w[c];
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Returns the char at arena[p] in bits 0-15 and the position of the next
+	 * char in bits 32-63.
+	 */
+	private long getChar(int p) {
+		int b = arena.get(p++) & 0xff;
+		if (b >= 0x80) {
+			if (b < 0xe0)
+				b = ((b & 0x1f) << 6) | (arena.get(p++) & 0x3f);
+			else {
+				b = ((b & 0x0f) << 12) | ((arena.get(p++) & 0x3f) << 6);
+				b |= arena.get(p++) & 0x3f;
+			}
+		}
+		return ((long) p << 32) | b;
+	}
+
+	private boolean wordEquals(int id, String word) {
+		int p = offsets.get(id);
+		int end = offsets.get(id + 1);
+		int len = word.length();
+		if (end - p < len || end - p > 3 * len)
+			return false;
+		for (int c = 0; c < len; c++) {
+			if (p >= end)
+				return false;
+			long next = getChar(p);
+			if ((char) next != word.charAt(c))
+				return false;
+			p = (int) (next >>> 32);
+		}
+		return p == end;
+	}
+
+	private boolean wordEquals(int id, char[] w, int off, int len) {
+		int p = offsets.get(id);
+		int end = offsets.get(id + 1);
+		if (end - p < len || end - p > 3 * len)
+			return false;
+		for (int c = off; c < off + len; c++) {
+			if (p >= end)
+				return false;
+			long next = getChar(p);
+			if ((char) next != w[c])
+				return false;
+			p = (int) (next >>> 32);
+		}
+		return p == end;
+	}
+
+	/**
+	 * Writes the char in UTF-8 at arena[p] and returns the next position.
+	 * Surrogates are encoded one by one.
+	 */
+	private int putChar(int p, char c) {
+		if (c < 0x80)
+			arena.put(p++, (byte) c);
+		else if (c < 0x800) {
+			arena.put(p++, (byte) (0xc0 | (c >> 6)));
+			arena.put(p++, (byte) (0x80 | (c & 0x3f)));
+		} else {
+			arena.put(p++, (byte) (0xe0 | (c >> 12)));
+			arena.put(p++, (byte) (0x80 | ((c >> 6) & 0x3f)));
+			arena.put(p++, (byte) (0x80 | (c & 0x3f)));
+		}
+		return p;
+	}
+
+	/**
+	 * Copies a mapped store to the heap, before it is changed.
+	 */
+	private void makeWritable() {
+		if (!mapped)
+			return;
+		offsets = copy(offsets, offsets.capacity());
+		hashes = copy(hashes, hashes.capacity());
+		slots = copy(slots, slots.capacity());
+		ByteBuffer newArena = ByteBuffer.allocate(arena.capacity());
+		arena.rewind();
+		newArena.put(arena);
+		arena = newArena;
+		mapped = false;
+	}
+
+	private void ensureCapacity(int words, int bytes) {
+		if (offsets.capacity() < words + 1)
+			offsets = copy(offsets, Math.max(words + 1, 2 * offsets.capacity()));
+		if (hashes.capacity() < words)
+			hashes = copy(hashes, Math.max(words, 2 * hashes.capacity()));
+		if (arena.capacity() < bytes) {
+			ByteBuffer newArena = ByteBuffer.allocate(Math.max(bytes,
+					2 * arena.capacity()));
+			arena.rewind();
+			arena.limit(arenaSize);
+			newArena.put(arena);
+			arena.limit(arena.capacity());
+			arena = newArena;
+		}
+	}
+
+	private static IntBuffer copy(IntBuffer from, int capacity) {
+		IntBuffer to = IntBuffer.allocate(capacity);
+		from.rewind();
+		from.limit(Math.min(from.capacity(), capacity));
+		to.put(from);
+		from.limit(from.capacity());
+		return to;
+	}
+
+	private void rehash(int tableSize) {
+		slots = IntBuffer.allocate(tableSize);
+		mask = tableSize - 1;
+		for (int id = 0; id < size - 1; id++) {
+			int slot = hashes.get(id) & mask;
+			int other;
+			while ((other = slots.get(slot) - 1) != NOT_FOUND) {
+				// a word added twice maps to its last ID
+				if (hashes.get(other) == hashes.get(id)
+						&& sameWord(other, id))
+					break;
+				slot = (slot + 1) & mask;
+			}
+			slots.put(slot, id + 1);
+		}
+	}
+
+	private boolean sameWord(int id1, int id2) {
+		int len = offsets.get(id1 + 1) - offsets.get(id1);
+		if (len != offsets.get(id2 + 1) - offsets.get(id2))
+			return false;
+		for (int p = 0; p < len; p++)
+			if (arena.get(offsets.get(id1) + p) != arena.get(offsets.get(id2)
+					+ p))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Saves the store and the values in a binary snapshot (see map()).
+	 *
+	 * @param fileName
+	 * @param values
+	 *            : one value per ID, or null
+	 * @throws IOException
+	 */
+	public void save(String fileName, double[] values) throws IOException {
+		int numValues = (values == null ? 0 : values.length);
+		int length = 4 * (HEADER_INTS + (size + 1) + size + slots.capacity())
+				+ 8 * numValues + arenaSize;
+
+		ByteBuffer out = ByteBuffer.allocate(length);
+		out.putInt(MAGIC).putInt(VERSION).putInt(size)
+				.putInt(slots.capacity()).putInt(arenaSize).putInt(numValues);
+		for (int id = 0; id <= size; id++)
+			out.putInt(offsets.get(id));
+		for (int id = 0; id < size; id++)
+			out.putInt(hashes.get(id));
+		for (int s = 0; s < slots.capacity(); s++)
+			out.putInt(slots.get(s));
+		for (int v = 0; v < numValues; v++)
+			out.putDouble(values[v]);
+		for (int p = 0; p < arenaSize; p++)
+			out.put(arena.get(p));
+
+		// Write to a temporary file first, so that a mapped snapshot is never
+		// overwritten in place
+		File file = new File(fileName).getAbsoluteFile();
+		File tmp = File.createTempFile(file.getName(), ".tmp",
+				file.getParentFile());
+		try {
+			FileOutputStream fos = new FileOutputStream(tmp);
+			try {
+				fos.write(out.array());
+			} finally {
+				fos.close();
+			}
+			if (!tmp.renameTo(file)) {
+				file.delete();
+				if (!tmp.renameTo(file))
+					throw new IOException("Can not write " + fileName);
+			}
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Returns true if the file starts with the MAGIC of a snapshot.
+	 *
+	 * @param fileName
+	 * @throws IOException
+	 */
+	public static boolean isSnapshot(String fileName) throws IOException {
+		File file = new File(fileName);
+		if (file.length() < 4 * HEADER_INTS)
+			return false;
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			return in.readInt() == MAGIC;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Maps a snapshot saved by save(). The values of the snapshot are returned
+	 * by getSnapshotValues().
+	 *
+	 * @param fileName
+	 * @return The store.
+	 * @throws Exception
+	 *             If the file is not a snapshot.
+	 */
+	public static VocabularyStore map(String fileName) throws Exception {
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		ByteBuffer in;
+		try {
+			in = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+					file.length());
+		} finally {
+			file.close();
+		}
+
+		if (in.capacity() < 4 * HEADER_INTS || in.getInt() != MAGIC)
+			throw new Exception("Not a vocabulary snapshot: " + fileName);
+		if (in.getInt() != VERSION)
+			throw new Exception("Unknown vocabulary snapshot version: "
+					+ fileName);
+
+		VocabularyStore store = new VocabularyStore();
+		store.size = in.getInt();
+		int tableSize = in.getInt();
+		store.arenaSize = in.getInt();
+		int numValues = in.getInt();
+		store.mask = tableSize - 1;
+
+		store.offsets = slice(in, 4 * (store.size + 1)).asIntBuffer();
+		store.hashes = slice(in, 4 * store.size).asIntBuffer();
+		store.slots = slice(in, 4 * tableSize).asIntBuffer();
+		DoubleBuffer values = slice(in, 8 * numValues).asDoubleBuffer();
+		store.arena = slice(in, store.arenaSize);
+		store.mapped = true;
+
+		store.snapshotValues = new double[numValues];
+		values.get(store.snapshotValues);
+		return store;
+	}
+
+	/**
+	 * Returns the next length bytes of in as a buffer, and skips them.
+	 */
+	private static ByteBuffer slice(ByteBuffer in, int length) {
+		ByteBuffer res = in.slice();
+		res.limit(length);
+		in.position(in.position() + length);
+		return res.slice();
+	}
+}
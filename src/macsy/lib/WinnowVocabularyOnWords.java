@@ -5,15 +5,20 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /**
 
 Word with ID 0 has a special meaning:
 ID: 0 ==> Word not in Vocabulary
 
+The words are kept in a VocabularyStore (ID of the word = ID in the store).
+A vocabulary file is either text or a binary snapshot of the store with the
+values (see VocabularyStore.save()), which is memory-mapped on load. A
+vocabulary keeps the format of its file; setBinaryFormat() changes it and
+exportText() writes the text format.
+
 Words are saved in order, by id: 
 firstword\tValue =>id=1
 secondword\tValue =>id=2
@@ -22,8 +27,10 @@ secondword\tValue =>id=2
 
  */
 public class WinnowVocabularyOnWords {
-	private TreeMap<String, Integer> m_Word2ID 	= null;	//Word to ID
-	private TreeMap<Integer, Double> m_Id2Value = null;	//ID to Value
+	private VocabularyStore m_Words 	= null;	//Word to ID and ID to word
+	private double[] m_Id2Value = null;	//ID to Value
+
+	private static final int INITIAL_CAPACITY = 1024;
 
 	private int nextID ;	// The number is the first available WordID
 
@@ -37,6 +44,8 @@ public class WinnowVocabularyOnWords {
 
 	private String voc_filename;
 
+	private boolean binaryFormat = false;	//save in the snapshot format
+
 	/**
 	 * Creates or loads a vocabulary with given name.
 	 */
@@ -45,12 +54,12 @@ public class WinnowVocabularyOnWords {
 		this.voc_filename = voc_filename;
 
 		//Initialize structures
-		m_Word2ID = new TreeMap<String, Integer>();
-		m_Id2Value = new TreeMap<Integer, Double>();
+		m_Words = new VocabularyStore();
+		m_Id2Value = new double[INITIAL_CAPACITY];
 		nextID = 1;
 
-		m_Id2Value.put(0, 1.0);
-		m_Word2ID.put("#CONSTANT#", 0);
+		m_Id2Value[0] = 1.0;
+		m_Words.add("#CONSTANT#");
 
 		//If voc exists load it.
 		loadVocabulary(voc_filename);
@@ -60,18 +69,18 @@ public class WinnowVocabularyOnWords {
 	
 	public void resetVocabulary()
 	{
-		m_Word2ID = new TreeMap<String, Integer>();
-		m_Id2Value = new TreeMap<Integer, Double>();
+		m_Words = new VocabularyStore();
+		m_Id2Value = new double[INITIAL_CAPACITY];
 		nextID = 1;
 
-		m_Id2Value.put(0, 1.0);
-		m_Word2ID.put("#CONSTANT#", 0);
+		m_Id2Value[0] = 1.0;
+		m_Words.add("#CONSTANT#");
 	}
 
 	private void calculateMagnitude()
 	{
-		for (Map.Entry<Integer, Double> e1 :m_Id2Value.entrySet()) 
-			magnitude += Math.pow(e1.getValue(), 2);
+		for (int id = 0; id < nextID; id++) 
+			magnitude += Math.pow(m_Id2Value[id], 2);
 
 		magnitude = Math.sqrt( magnitude );
 	}
@@ -89,8 +98,8 @@ public class WinnowVocabularyOnWords {
 	 */
 	public int getIDofWord(String word) 
 	{
-		Integer id = m_Word2ID.get(word);
-		return (id==null?0:id.intValue());
+		int id = m_Words.getID(word);
+		return (id==VocabularyStore.NOT_FOUND?0:id);
 	}
 
 
@@ -103,8 +112,7 @@ public class WinnowVocabularyOnWords {
 	 */
 	public double getValueByID(int id) 
 	{
-		Double v = m_Id2Value.get(id); 
-		return (v==null?0:v);
+		return (id<0 || id>=nextID?0:m_Id2Value[id]);
 	}
 
 	/**
@@ -121,12 +129,11 @@ public class WinnowVocabularyOnWords {
 			//throw new Exception("Unknown word");
 		}
 
-		m_Id2Value.put(id, value);
+		m_Id2Value[id] = value;
 	}
 
 	/**
-	 * Returns the ID of the word.
-	 * Warning: Linear time to size of vocabulary.
+	 * Returns the word with the ID.
 	 * 
 	 * Returns null if wordID not found.
 	 * 
@@ -135,15 +142,7 @@ public class WinnowVocabularyOnWords {
 	 */
 	public String getWordByID(int wordID)
 	{
-		Iterator<String> iter = m_Word2ID.keySet().iterator();
-
-		while(iter.hasNext())
-		{
-			String key = iter.next() ;
-			if(m_Word2ID.get( key ).equals(wordID))
-				return key;
-		}
-		return null;
+		return m_Words.getWord(wordID);
 	}
 
 	/**
@@ -162,9 +161,10 @@ public class WinnowVocabularyOnWords {
 		int id = getIDofWord(word);
 		if(id==0)
 		{
-			id = nextID;
-			m_Word2ID.put(word, id);
-			m_Id2Value.put(id, 1.0);
+			id = m_Words.append(word);	// == nextID
+			if(id>=m_Id2Value.length)
+				m_Id2Value = Arrays.copyOf(m_Id2Value, 2*m_Id2Value.length);
+			m_Id2Value[id] = 1.0;
 			nextID++;
 		}
 
@@ -180,40 +180,79 @@ public class WinnowVocabularyOnWords {
 	{
 		System.out.print("Writing Vocabulary...");
 		canWriteNewWords=false;
+		try
+		{
+			if(binaryFormat)
+				m_Words.save(voc_filename, Arrays.copyOf(m_Id2Value, nextID));
+			else
+				writeText(voc_filename);
+		}
+		finally
+		{
+			canWriteNewWords=true;
+		}
+		System.out.println("DONE");
+	}
+
+	/**
+	 * Saves the vocabulary in the snapshot format (true) or as text (false).
+	 * @param binary
+	 */
+	public void setBinaryFormat(boolean binary)
+	{
+		binaryFormat = binary;
+	}
 
-		StringBuilder s = new StringBuilder();
-			
-		s.append("Vocabulary Format: <word>\t<value>\n");
-		Double value = null;
-		String word = null;
-		Integer id = null;
-		
-		for(Map.Entry<String,Integer> e : m_Word2ID.entrySet() )
+	/**
+	 * Writes the vocabulary in the text format, whatever the format of saveVocabulary().
+	 * @param fileName
+	 * @throws Exception
+	 */
+	public synchronized void exportText(String fileName) throws Exception
+	{
+		writeText(fileName);
+	}
+
+	/**
+	 * Writes the words with a non zero value, in order of the words.
+	 */
+	private void writeText(String fileName) throws Exception
+	{
+		//In order of the words
+		final String[] words = new String[nextID];
+		Integer[] ids = new Integer[nextID];
+		int numOfWords = 0;
+		for(int id=0; id<nextID; id++)
 		{
-			try
-			{
-				word = e.getKey();
-				id = e.getValue();
-				value = m_Id2Value.get(id);
+			words[id] = m_Words.getWord(id);
+			if(words[id]!=null)	//null if the word has a newer ID
+				ids[numOfWords++] = id;
+		}
+		Arrays.sort(ids, 0, numOfWords, new Comparator<Integer>() {
+			public int compare(Integer id1, Integer id2) {
+				return words[id1].compareTo(words[id2]);
 			}
-			catch(Exception ex)
+		});
+
+		BufferedWriter	fp = new BufferedWriter(new FileWriter( fileName  ), 1 << 16);
+		try
+		{
+			fp.write("Vocabulary Format: <word>\t<value>\n");
+			for(int i=0; i<numOfWords; i++)
 			{
-				System.out.println("Error writing voc: "+ ex.toString());
-				continue;
+				double value = m_Id2Value[ids[i]];
+				if(value!=0)
+					fp.write(words[ids[i]] +"\t"+value+"\n");
 			}
-
-			if((word!=null) && (value!=null) && (value!=0))
-				s.append(word +"\t"+value+"\n");
 		}
-		BufferedWriter	fp = new BufferedWriter(new FileWriter( voc_filename  ));
-		fp.write(s.toString());
-		fp.close();
-		canWriteNewWords=true;
-		System.out.println("DONE");
+		finally
+		{
+			fp.close();
+		}
 	}
 
 	/**
-	 * N^2 complexity
+	 * Words and values in order of ID
 	 * 
 	 * @return
 	 */
@@ -221,11 +260,10 @@ public class WinnowVocabularyOnWords {
 	{
 		StringBuffer report = new StringBuffer();
 
-		for(Map.Entry<Integer, Double> e : m_Id2Value.entrySet())
+		for(int id=0; id<nextID; id++)
 		{
-			int id = e.getKey();
 			String word = getWordByID(id);
-			report.append( word+"\t"+e.getValue()+"\n"  );
+			report.append( word+"\t"+m_Id2Value[id]+"\n"  );
 		}
 
 		return report.toString();
@@ -254,6 +292,16 @@ public class WinnowVocabularyOnWords {
 		if(!vocFile.exists())
 			return;
 
+		if(VocabularyStore.isSnapshot(voc_filename))
+		{
+			m_Words = VocabularyStore.map(voc_filename);
+			double[] values = m_Words.getSnapshotValues();
+			nextID = values.length;
+			m_Id2Value = Arrays.copyOf(values, Math.max(INITIAL_CAPACITY, nextID));
+			binaryFormat = true;
+			return;
+		}
+
 		BufferedReader input = new BufferedReader( new FileReader(vocFile) );
 
 		//LOAD HEADER
@@ -17,21 +17,22 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.TreeSet;
 
 import macsy.lib.BasicLinearModel;
 import macsy.lib.ConfusionMatrix;
 import macsy.lib.DataPoint;
-import macsy.lib.DoubleKey;
 import macsy.lib.Helpers;
-import macsy.lib.LRU3KCache;
 import macsy.lib.LinearModel;
 import macsy.lib.Pair;
 import macsy.lib.RealHash;
@@ -48,8 +49,9 @@ public class Clasher implements OnlineLearning {
 											// "inner_product"
 	// protected double _minMargin = 0.01;
 	protected int _initNumberPrototypesByClass = 1;
-	protected LRU3KCache<DoubleKey, Double> _cacheIp;
-	protected int _cacheSize = 3000;
+	// the dot products of the documents with the prototypes, by the index of
+	// the document
+	protected PrototypeIndex _prototypeIndex;
 	// protected int _minSupportToPredict = 1;
 	protected Map<String, Integer> _indexesForLabels;
 	Set<String> _allLabels;
@@ -91,7 +93,15 @@ public class Clasher implements OnlineLearning {
 		_regions = new ArrayList<Tessella>();
 		_mapper = new HashMap<String, List<Integer>>();
 		_similarityFunction = "l2distance";// ;"inner-product"
-		_cacheIp = new LRU3KCache<DoubleKey, Double>(_cacheSize);
+		_prototypeIndex = new PrototypeIndex(new PrototypeIndex.Prototypes() {
+			public int size() {
+				return _regions.size();
+			}
+
+			public SortedMap<Integer, Double> get(int position) {
+				return _regions.get(position).prototype.getHash();
+			}
+		});
 
 		set_mapConfusion(new HashMap<String, Integer>());
 		set_listConfusion(new ArrayList<ConfusionMatrix>());
@@ -135,6 +145,21 @@ public class Clasher implements OnlineLearning {
 		_regularizationFactor = regularizationFactor;
 	}
 
+	/**
+	 * Searches the nearest prototypes only among the candidates closest to the
+	 * document by random projections (see PrototypeIndex).
+	 *
+	 * @param bits
+	 *            : the number of random projections, 0 to search all the
+	 *            prototypes
+	 * @param candidates
+	 *            : the number of prototypes compared with the document
+	 * @throws Exception
+	 */
+	public void setProjectionFilter(int bits, int candidates) throws Exception {
+		_prototypeIndex.setProjectionFilter(bits, candidates);
+	}
+
 	public BasicLinearModel getDerivedLinearModel() throws Exception {
 		RealHash popularPrototype = _regions.get(_mapper.get(
 				Helpers.LABEL_POS_CLASS_STRING).get(0)).prototype;
@@ -286,9 +311,10 @@ public class Clasher implements OnlineLearning {
 		RealHash doc_features = new RealHash(x); // shallow copy
 
 		TreeMap<String, Double> histogram = new TreeMap<String, Double>();
+		double[] dots = _prototypeIndex.exactDotProducts(null, doc_features.getHash());
 		for (Tessella region : _regions) {
-			Double d = region.getProtoNorm2() - 2.0
-					* region.similarityDot(doc_features) + 1.0;
+			Double d = region.getProtoNorm2() - 2.0 * dots[region.getID()]
+					+ 1.0;
 			String label = getLabelFromRegion(region.getHistogram());
 			histogram.put(label, (double) 1 / (double) (1 + d));
 		}
@@ -442,8 +468,16 @@ public class Clasher implements OnlineLearning {
 		}
 	}
 
+	/**
+	 * The model is saved in full.
+	 */
 	@Override
-	public void loadModel(String filename) {
+	public void saveCheckpoint(String filename) throws IOException {
+		saveModel(filename);
+	}
+
+	@Override
+	public void loadModel(String filename) throws Exception {
 		try {
 
 			Map<String, Integer> nbProcessedSamples = new HashMap<String, Integer>();
@@ -538,6 +572,7 @@ public class Clasher implements OnlineLearning {
 			incrementN_overall(N);
 			source.close();
 			_regionsFullyInitialized = true;
+			_prototypeIndex.rebuild();
 
 		} catch (Exception e) {
 			System.out.println("Error loading model " + e.getMessage());
@@ -821,9 +856,21 @@ public class Clasher implements OnlineLearning {
 	public Pair<Tessella, Double> searchMostSimilar(Integer index,
 			RealHash documentHash, Set<String> from, Set<String> notFrom) {
 
+		Pair<Tessella, Double> result = searchMostSimilar(
+				_prototypeIndex.dotProducts(index, documentHash.getHash()), from, notFrom);
+		// none of the candidates of the projection filter is allowed
+		if (result.getFirst() == null)
+			result = searchMostSimilar(
+					_prototypeIndex.exactDotProducts(index, documentHash.getHash()),
+					from, notFrom);
+		return result;
+	}
+
+	private Pair<Tessella, Double> searchMostSimilar(double[] dots,
+			Set<String> from, Set<String> notFrom) {
+
 		Tessella decision = null;
 		double largest_similarity = -Double.MIN_VALUE;
-		Double dot_product = 0.0;
 		double similarity = 0.0;
 
 		for (Tessella region : _regions) {
@@ -834,17 +881,10 @@ public class Clasher implements OnlineLearning {
 			if ((notFrom != null) && (notFrom.contains(region.getMainClass())))
 				continue;// exclude this region
 
-			if (index != null)
-				dot_product = _cacheIp
-						.get(new DoubleKey(index, region.getID()));
-
-			if ((index == null) || (dot_product == null))
-				dot_product = new Double(region.similarityDot(documentHash));
+			if (Double.isNaN(dots[region.getID()]))
+				continue;// removed by the projection filter
 
-			if ((index != null) && (dot_product != null))
-				_cacheIp.put(new DoubleKey(index, region.getID()), dot_product);
-
-			similarity = dot_product;// /Math.sqrt(region.getProtoNorm2())
+			similarity = dots[region.getID()];// /Math.sqrt(region.getProtoNorm2())
 
 			if (similarity > largest_similarity) {
 				decision = region;
@@ -860,21 +900,14 @@ public class Clasher implements OnlineLearning {
 
 		Tessella decision = null;
 		double largest_similarity = -Double.MAX_VALUE;
-		Double dot_product = 0.0;
+		double dot_product = 0.0;
 		double similarity = 0.0;
 
 		for (Integer position : fromIndexes) {
 			Tessella region = _regions.get(position);
 
-			if (index != null)
-				dot_product = _cacheIp
-						.get(new DoubleKey(index, region.getID()));
-
-			if ((index == null) || (dot_product == null))
-				dot_product = new Double(region.similarityDot(documentHash));
-
-			if ((index != null) && (dot_product != null))
-				_cacheIp.put(new DoubleKey(index, region.getID()), dot_product);
+			dot_product = _prototypeIndex.dotProduct(index, documentHash.getHash(),
+					position);
 
 			similarity = dot_product;// /Math.sqrt(region.getProtoNorm2())
 
@@ -916,23 +949,53 @@ public class Clasher implements OnlineLearning {
 		if (N == 0)
 			return null;
 
-		List<Pair<Tessella, Double>> N_nearest = new ArrayList<Pair<Tessella, Double>>();
-		Set<String> notFrom = new HashSet<String>();
-		do {
-			Pair<Tessella, Double> region = searchNearest(null, documentHash,
-					null, notFrom);
-			N_nearest.add(region);
-			notFrom.add(region.getFirst().getMainClass());
-		} while (--N > 0);
+		// the nearest region of each class, in one pass over the regions
+		double[] dots = _prototypeIndex.exactDotProducts(null, documentHash.getHash());
+		Map<String, Pair<Tessella, Double>> nearestByClass = new HashMap<String, Pair<Tessella, Double>>();
+		for (Tessella region : _regions) {
+			double distance = region.getProtoNorm2() - 2.0
+					* dots[region.getID()] + 1.0;
+			Pair<Tessella, Double> nearest = nearestByClass.get(region
+					.getMainClass());
+			if (nearest == null || nearest.getSecond() > distance)
+				nearestByClass.put(region.getMainClass(),
+						new Pair<Tessella, Double>(region, distance));
+		}
+
+		List<Pair<Tessella, Double>> N_nearest = new ArrayList<Pair<Tessella, Double>>(
+				nearestByClass.values());
+		Collections.sort(N_nearest, new Comparator<Pair<Tessella, Double>>() {
+			public int compare(Pair<Tessella, Double> a,
+					Pair<Tessella, Double> b) {
+				int c = Double.compare(a.getSecond(), b.getSecond());
+				if (c != 0)
+					return c;
+				return a.getFirst().getID() - b.getFirst().getID();
+			}
+		});
+		if (N_nearest.size() > N)
+			N_nearest = new ArrayList<Pair<Tessella, Double>>(N_nearest.subList(
+					0, N));
 
 		return N_nearest;
 	}
 
 	public Pair<Tessella, Double> searchNearest(Integer index,
 			RealHash documentHash, Set<String> from, Set<String> notFrom) {
+		Pair<Tessella, Double> result = searchNearest(
+				_prototypeIndex.dotProducts(index, documentHash.getHash()), from, notFrom);
+		// none of the candidates of the projection filter is allowed
+		if (result.getFirst() == null)
+			result = searchNearest(
+					_prototypeIndex.exactDotProducts(index, documentHash.getHash()),
+					from, notFrom);
+		return result;
+	}
+
+	private Pair<Tessella, Double> searchNearest(double[] dots,
+			Set<String> from, Set<String> notFrom) {
 		Tessella decision = null;
 		Double nearest_distance = Double.MAX_VALUE;
-		Double dot_product = 0.0;
 		// double dot_product_nearest = 0.0;
 		double distance = 0.0;
 
@@ -942,20 +1005,12 @@ public class Clasher implements OnlineLearning {
 				continue;
 			if ((notFrom != null) && (notFrom.contains(region.getMainClass())))
 				continue;
+			if (Double.isNaN(dots[region.getID()]))
+				continue;// removed by the projection filter
 
 			// efficient computation of distances
-
-			if (index != null)
-				dot_product = _cacheIp
-						.get(new DoubleKey(index, region.getID()));
-
-			if ((index == null) || (dot_product == null))
-				dot_product = new Double(region.similarityDot(documentHash));
-
-			if ((index != null) && (dot_product != null))
-				_cacheIp.put(new DoubleKey(index, region.getID()), dot_product);
-
-			distance = region.getProtoNorm2() - 2.0 * dot_product + 1.0;
+			distance = region.getProtoNorm2() - 2.0 * dots[region.getID()]
+					+ 1.0;
 			// if (nearest_distance > distance) {
 			if (nearest_distance > distance || decision == null) { // FIXME
 																	// ensures
@@ -976,22 +1031,15 @@ public class Clasher implements OnlineLearning {
 
 		Tessella decision = null;
 		Double nearest_distance = Double.MAX_VALUE;
-		Double dot_product = 0.0;
+		double dot_product = 0.0;
 		// double dot_product_nearest = 0.0;
 		double distance = 0.0;
 
 		for (Integer position : fromIndexes) {
 			Tessella region = _regions.get(position);
 
-			if (index != null)
-				dot_product = _cacheIp
-						.get(new DoubleKey(index, region.getID()));
-
-			if ((index == null) || (dot_product == null))
-				dot_product = new Double(region.similarityDot(documentHash));
-
-			if ((index != null) && (dot_product != null))
-				_cacheIp.put(new DoubleKey(index, region.getID()), dot_product);
+			dot_product = _prototypeIndex.dotProduct(index, documentHash.getHash(),
+					position);
 
 			distance = region.getProtoNorm2() - 2.0 * dot_product + 1.0;
 
@@ -1065,6 +1113,7 @@ public class Clasher implements OnlineLearning {
 			nearestPrototype.setConstantNorm(_constantNormPrototypes);
 			nearestPrototype.addLabelledPoint(documentHash, labels,
 					dot_product_nearest);
+			_prototypeIndex.invalidate(nearestPrototype.getID());
 
 		}
 	}
@@ -1091,6 +1140,7 @@ public class Clasher implements OnlineLearning {
 				Tessella region = new Tessella(label, _regions.size());
 				region.addLabelledPoint(doc_features, labels);
 				_regions.add(region);
+				_prototypeIndex.invalidate(region.getID());
 				_nProtsByClass.put(label, _nProtsByClass.get(label) + 1);
 
 				System.out.println("New prototype for label:  " + label
@@ -1165,6 +1215,12 @@ public class Clasher implements OnlineLearning {
 				"Multiclass classification, provide set of labels with input sample !");
 	}
 
+	@Override
+	public void trainBatch(List<DataPoint> samples) throws Exception {
+		throw new Exception(
+				"Multiclass classification, provide set of labels with input sample !");
+	}
+
 	public void train(DataPoint x, Set<String> labels) throws Exception {
 
 		if (labels.size() <= 0)
@@ -1275,6 +1331,12 @@ public class Clasher implements OnlineLearning {
 				"Use predictHistogram instead for multiclass prediction !");
 	}
 
+	@Override
+	public double[] predictBatch(List<DataPoint> samples) throws Exception {
+		throw new Exception(
+				"Use predictHistogram instead for multiclass prediction !");
+	}
+
 	@Override
 	public void writeHeader(String filename) throws IOException {
 		// TODO Auto-generated method stub
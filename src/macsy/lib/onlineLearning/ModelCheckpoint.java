@@ -0,0 +1,295 @@
+package macsy.lib.onlineLearning;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import macsy.lib.FeatureChangeSet;
+import macsy.lib.LinearModel;
+import macsy.lib.SparseVector;
+
+/**
+ * Incremental checkpoints of a LinearModel.
+ *
+ * The model file is a full snapshot. Between two snapshots save() appends to
+ * the delta log (<model file>.delta) a record with the bias, the training
+ * counters and the value of each weight changed since the previous record, so
+ * a checkpoint costs in proportion to the weights updated since then rather
+ * than to the size of the model. When the delta log grows beyond a fraction of
+ * the snapshot (see setCompactionRatio()), or when all the weights have
+ * changed, the model is compacted: it is saved in full with saveModel() and the
+ * delta log is removed.
+ *
+ * recover() replays the delta log on the model loaded from the snapshot. The
+ * pending record is appended and synced before a snapshot is written,
+ * saveModel() writes the snapshot to a temporary file renamed over the old one
+ * (in both formats), and the records hold the values of the weights rather
+ * than their increments, so whichever snapshot a crash during a compaction
+ * leaves behind, the log replays on it to the same model. A
+ * record cut short by a crash (or with a bad checksum) is dropped, with
+ * anything after it.
+ *
+ * Record format (big-endian):
+ *
+ * int			MAGIC
+ * int			Length of the body
+ * byte		FULL (the model is reset before setting the weights) or DELTA
+ * double		The bias b
+ * int			Number of training counters c
+ * c longs		The training counters
+ * int			Number of weights n
+ * n ints		The feature IDs
+ * n doubles	The weights
+ * int			CRC32 of the body (from the FULL/DELTA byte)
+ *
+ */
+public class ModelCheckpoint {
+
+	public static final String DELTA_SUFFIX = ".delta";
+
+	public static final double DEFAULT_COMPACTION_RATIO = 0.5;
+
+	private static final int MAGIC = 0x444c5441; // "DLTA"
+	private static final byte DELTA = 0;
+	private static final byte FULL = 1;
+
+	private final LinearModel model;
+	private final String modelFileName;
+	private final File deltaFile;
+	private final FeatureChangeSet changes = new FeatureChangeSet();
+
+	private double compactionRatio = DEFAULT_COMPACTION_RATIO;
+
+	/**
+	 * Starts recording the changes of the model. The model must be in the
+	 * state of the snapshot (or empty if there is none), i.e. just loaded.
+	 *
+	 * @param model
+	 * @param modelFileName
+	 *            : the model file, as given to model.saveModel()
+	 */
+	public ModelCheckpoint(LinearModel model, String modelFileName) {
+		this.model = model;
+		this.modelFileName = modelFileName;
+		this.deltaFile = new File(modelFileName + DELTA_SUFFIX);
+		model.setChangeSet(changes);
+	}
+
+	public String getModelFileName() {
+		return modelFileName;
+	}
+
+	/**
+	 * Sets the size of the delta log, as a fraction of the size of the
+	 * snapshot, above which save() compacts the model.
+	 */
+	public void setCompactionRatio(double compactionRatio) {
+		this.compactionRatio = compactionRatio;
+	}
+
+	public double getCompactionRatio() {
+		return compactionRatio;
+	}
+
+	/**
+	 * Replays the delta log, if any, on the model.
+	 *
+	 * @return the number of records replayed
+	 * @throws IOException
+	 */
+	public int recover() throws IOException {
+		if (!deltaFile.exists())
+			return 0;
+
+		int records = 0;
+		long validLength = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(deltaFile)));
+		try {
+			CRC32 crc = new CRC32();
+			while (true) {
+				byte[] body;
+				int expectedCRC;
+				try {
+					if (in.readInt() != MAGIC)
+						break;
+					int length = in.readInt();
+					if (length < 0
+							|| validLength + 12 + length > deltaFile.length())
+						break;
+					body = new byte[length];
+					in.readFully(body);
+					expectedCRC = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				crc.reset();
+				crc.update(body);
+				if ((int) crc.getValue() != expectedCRC)
+					break;
+
+				replay(ByteBuffer.wrap(body));
+				validLength += 12 + body.length;
+				records++;
+			}
+		} finally {
+			in.close();
+		}
+
+		// drop a partial record so that the next one is appended after the
+		// last valid record
+		if (validLength < deltaFile.length()) {
+			System.out.println("Dropping " + (deltaFile.length() - validLength)
+					+ " bytes at the end of " + deltaFile);
+			RandomAccessFile file = new RandomAccessFile(deltaFile, "rw");
+			try {
+				file.setLength(validLength);
+			} finally {
+				file.close();
+			}
+		}
+
+		// the model is now in the state saved on disk
+		changes.clear();
+		return records;
+	}
+
+	private void replay(ByteBuffer body) {
+		byte kind = body.get();
+		double bias = body.getDouble();
+		long[] counters = new long[body.getInt()];
+		for (int c = 0; c < counters.length; c++)
+			counters[c] = body.getLong();
+		int n = body.getInt();
+
+		if (kind == FULL)
+			model.reset();
+		int valuesOffset = body.position() + 4 * n;
+		for (int k = 0; k < n; k++)
+			model.setWi(body.getInt(), body.getDouble(valuesOffset + 8 * k));
+		model.setB(bias);
+		model.setTrainingCounters(counters);
+	}
+
+	/**
+	 * Saves the changes of the model since the last checkpoint, and the whole
+	 * model if it is time to compact it. The training counters are the ones
+	 * set in the model.
+	 *
+	 * @return true if the model was compacted
+	 * @throws IOException
+	 */
+	public boolean save() throws IOException {
+		File snapshot = new File(modelFileName);
+		if (changes.isAll() || !snapshot.exists()) {
+			compact();
+			return true;
+		}
+
+		appendRecord();
+		if (deltaFile.length() > compactionRatio * snapshot.length()) {
+			compact();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Saves the whole model and removes the delta log.
+	 *
+	 * @throws IOException
+	 */
+	public void compact() throws IOException {
+		// the log must hold the current model before the snapshot is written
+		if (deltaFile.exists())
+			appendRecord();
+
+		// the log is removed only if the snapshot was written
+		try {
+			model.saveModel(modelFileName);
+		} catch (IOException e) {
+			throw new IOException("Error saving model " + modelFileName
+					+ ", the changes are kept in " + deltaFile, e);
+		}
+
+		changes.clear();
+		if (deltaFile.exists() && !deltaFile.delete())
+			throw new IOException("Can not remove " + deltaFile);
+	}
+
+	/**
+	 * Appends the changes since the last record to the delta log.
+	 */
+	private void appendRecord() throws IOException {
+		boolean full = changes.isAll();
+		int[] ids;
+		double[] values;
+		if (full) {
+			SparseVector w = model.getW().getSparseVector();
+			int n = 0;
+			for (int k = 0; k < w.size(); k++)
+				if (w.indexAt(k) != 0 && w.valueAt(k) != 0.0)
+					n++;
+			ids = new int[n];
+			values = new double[n];
+			n = 0;
+			for (int k = 0; k < w.size(); k++)
+				if (w.indexAt(k) != 0 && w.valueAt(k) != 0.0) {
+					ids[n] = w.indexAt(k);
+					values[n++] = w.valueAt(k);
+				}
+		} else {
+			int[] changed = changes.toArray();
+			int n = 0;
+			for (int id : changed)
+				if (id != 0)
+					n++;
+			ids = new int[n];
+			values = new double[n];
+			n = 0;
+			for (int id : changed)
+				if (id != 0) {
+					ids[n] = id;
+					values[n++] = model.getWi(id);
+				}
+		}
+
+		long[] counters = model.getTrainingCounters();
+		if (counters == null)
+			counters = new long[0];
+
+		int length = 1 + 8 + 4 + 8 * counters.length + 4 + 12 * ids.length;
+		ByteBuffer record = ByteBuffer.allocate(4 + 4 + length + 4);
+		record.putInt(MAGIC).putInt(length);
+		record.put(full ? FULL : DELTA);
+		record.putDouble(model.getB());
+		record.putInt(counters.length);
+		for (long c : counters)
+			record.putLong(c);
+		record.putInt(ids.length);
+		for (int id : ids)
+			record.putInt(id);
+		for (double v : values)
+			record.putDouble(v);
+
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 8, length);
+		record.putInt((int) crc.getValue());
+
+		FileOutputStream out = new FileOutputStream(deltaFile, true);
+		try {
+			out.write(record.array());
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		changes.clear();
+	}
+}
@@ -8,9 +8,9 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.util.*;
 import macsy.lib.AUC;
-import macsy.lib.BasicLinearModel;
 import macsy.lib.DataPoint;
 import macsy.lib.LinearModel;
+import macsy.lib.LinearModelFactory;
 import macsy.lib.Results;
 
 
@@ -28,7 +28,7 @@ import macsy.lib.Results;
  *
  *  * @author Saatviga Sudhahar, Tom Welfare
  **/
-public class OnlineAdatron implements OnlineLearning {
+public class OnlineAdatron implements PairwiseLearning {
 
     public static final double STABLE_DECISION_THRESHOLD = -1;
     private double omega = 1.0; // this should be loaded from a settings file
@@ -59,6 +59,8 @@ public class OnlineAdatron implements OnlineLearning {
     private double expMovingAverage_a;
     // variable for storing the error
     private double expMovingAverage_error;
+    // counters of the validation samples (see update_validationError)
+    private final ValidationCounters validation = new ValidationCounters();
     // boolean variables for the initialise the number of positive or negative instances
     private boolean first_pos;
     private boolean first_neg;
@@ -76,6 +78,9 @@ public class OnlineAdatron implements OnlineLearning {
     private static final int FN = 3;
     // the model used for the algorithm of online learning
     private LinearModel linearModel;
+
+    // the delta log of the changes of linearModel since its last snapshot
+    private ModelCheckpoint checkpoint;
     // initial values for the exponential moving average of the number of pos/neg
     private static double M_pos = 0.0;
     private static double M_neg = 0.0;
@@ -115,15 +120,18 @@ public class OnlineAdatron implements OnlineLearning {
      */
     @Override
     public void train(DataPoint sample) throws Exception {
+        // the only pass over w: the score wx gives the prediction and all the
+        // statistics
+        double score = linearModel.score(sample);
         // update the exponential moving average for the number of instances per class
-        updateNum(sample);
+        updateNum(sample.getRealLabel(), score);
 
-        double predicted_label_value = linearModel.predict(sample);
+        double y_hat = score - linearModel.getB();
         // if(sample.getRealLabel()==1){System.out.println(predicted_label_value);}
         //System.out.println(predicted_label_value + ":" + sample.getRealLabel());
 
-        sample.setPredictedLabel_Value(predicted_label_value);
-        sample.setPredictedLabel((predicted_label_value > linearModel.getB()) ? 1
+        sample.setPredictedLabel_Value(y_hat);
+        sample.setPredictedLabel((y_hat > linearModel.getB()) ? 1
                 : -1);
 
         // Compare the prediction to the real label
@@ -147,7 +155,57 @@ public class OnlineAdatron implements OnlineLearning {
         // update the counter of the negative instances
         update_exponentialMovingAverageCounter(sample.getRealLabel());
 
-        statsGetAUC(sample);
+        statsGetAUC(sample.getRealLabel(), y_hat);
+    }
+
+    /**
+     * Returns wx (without the bias)
+     */
+    @Override
+    public double score(DataPoint x) throws Exception {
+        return linearModel.score(x);
+    }
+
+    /**
+     * Same as train() on the pair sample z = scale * (x - y), where the
+     * margin wz is given, without building z (see PairwiseLearning).
+     */
+    @Override
+    public boolean trainPair(DataPoint x, DataPoint y, double scale,
+            double squaredNorm, double margin, int label) throws Exception {
+        updateNum(label, margin);
+        double y_hat = margin - linearModel.getB();
+        int predicted_label = (y_hat > linearModel.getB()) ? 1 : -1;
+
+        boolean error = false;
+        if (predicted_label == label) {
+            // Correct prediction
+            int T = (predicted_label == 1) ? TP : TN;
+            StatisticsMatrix[T]++;
+        } else {
+            // Incorrect prediction
+            error = true;
+            int F = (predicted_label == 1) ? FP : FN;
+            StatisticsMatrix[F]++;
+        }
+
+        // alpha as in learningProcess(), with <z,z> = squaredNorm
+        double alpha = 0.0;
+        if (squaredNorm > 0.0) {
+            alpha = (omega / squaredNorm) * (1 - label * predicted_label);
+            alpha = Math.max(0.0, Math.min(C, alpha));
+        }
+        double val = alpha * label * scale;
+        linearModel.addScaledDifferenceToW(x.getSparseVector(),
+                y.getSparseVector(), val);
+
+        // calculate the error rate (exponential moving error average)
+        update_exponentialMovingAverageError(error);
+        // update the counter of the negative instances
+        update_exponentialMovingAverageCounter(label);
+
+        statsGetAUC(label, y_hat);
+        return val != 0.0;
     }
 
     /**
@@ -167,7 +225,8 @@ public class OnlineAdatron implements OnlineLearning {
         int predicted_label = sample.getPredictedLabel();
         int real_label = sample.getRealLabel();
 
-        double omega_term = omega / (sample.getDotProduct(sample));
+        // <x,x> is kept by the sample
+        double omega_term = omega / sample.getSquaredMagnitude();
         double alpha = omega_term * (1 - real_label * predicted_label);
 
         // Clipping
@@ -179,15 +238,9 @@ public class OnlineAdatron implements OnlineLearning {
         }
 
         double val = alpha * real_label;
-        Map<Integer, Double> features = new TreeMap<Integer, Double>();
-        for (Map.Entry<Integer, Double> e : sample.getFeaturesMap().entrySet()) {
-            features.put(e.getKey(), e.getValue() * val);
-        }
-        DataPoint adjusted_sample = new DataPoint(features,
-                sample.getRealLabel());
 
-        // updating the model, no bias
-        linearModel.addToW(adjusted_sample, 0.0);
+        // updating the model in place, no bias
+        linearModel.addScaledToW(sample.getSparseVector(), val);
     }
 
     /**
@@ -199,7 +252,8 @@ public class OnlineAdatron implements OnlineLearning {
      * @param wasThereError : A boolean variable specifying if there was an error or not
      * @throws Exception
      */
-    private void update_exponentialMovingAverageError(boolean wasThereError) throws Exception {
+    @Override
+    public void update_exponentialMovingAverageError(boolean wasThereError) throws Exception {
         if (wasThereError) {
             expMovingAverage_error = expMovingAverage_a + (1.0 - expMovingAverage_a) * expMovingAverage_error;
         } else {
@@ -207,6 +261,41 @@ public class OnlineAdatron implements OnlineLearning {
         }
     }
 
+    @Override
+    public double expMovAvGetValidationError() throws Exception {
+        return validation.getExpMovingAverageError();
+    }
+
+    @Override
+    public double[] getValidationConfusion() {
+        return validation.getConfusion();
+    }
+
+    @Override
+    public int getNValidation() {
+        return validation.getN();
+    }
+
+    @Override
+    public int getNpos() {
+        return validation.getNpos();
+    }
+
+    @Override
+    public int getNneg() {
+        return validation.getNneg();
+    }
+
+    /**
+     * Updates the validation counters with the prediction of a sample that
+     * was not used for training
+     */
+    @Override
+    public void update_validationError(double prediction, int realLabel)
+            throws Exception {
+        validation.update(prediction, realLabel, expMovingAverage_a);
+    }
+
     /**
      * This function performs (only) the prediction procedure taking into account the model,
      * of the given input sample
@@ -218,6 +307,29 @@ public class OnlineAdatron implements OnlineLearning {
         return linearModel.predict(sample);
     }
 
+    /**
+     * Trains on the samples in turn, as train() on each sample
+     */
+    @Override
+    public void trainBatch(List<DataPoint> samples) throws Exception {
+        for (DataPoint sample : samples) {
+            train(sample);
+        }
+    }
+
+    /**
+     * Predicts the samples with the current model, as predict()
+     */
+    @Override
+    public double[] predictBatch(List<DataPoint> samples) throws Exception {
+        double[] predictions = new double[samples.size()];
+        int i = 0;
+        for (DataPoint sample : samples) {
+            predictions[i++] = linearModel.predict(sample);
+        }
+        return predictions;
+    }
+
     /**
      * This function is used for updating the exponential moving average of the
      * instances per class
@@ -225,25 +337,32 @@ public class OnlineAdatron implements OnlineLearning {
      */
     @Override
     public void updateNum(DataPoint X) {
+        updateNum(X.getRealLabel(), linearModel.score(X));
+    }
+
+    /**
+     * Same as updateNum(DataPoint) for a sample with given label and score wx
+     */
+    private void updateNum(int realLabel, double score) {
         // if this is the first time for the positive class initialise
-        if (first_pos && X.getRealLabel() == 1) {
-            M_pos = linearModel.score(X);
+        if (first_pos && realLabel == 1) {
+            M_pos = score;
             first_pos = false;
             return;
         }
         // if this is the first time for the negative class initialise
-        if (first_neg && X.getRealLabel() == -1) {
-            M_neg = linearModel.score(X);
+        if (first_neg && realLabel == -1) {
+            M_neg = score;
             first_neg = false;
             return;
         }
         // else
-        if (X.getRealLabel() == 1) {
+        if (realLabel == 1) {
             M_pos = expMovingAverage_a * M_pos
-                    + (1 - expMovingAverage_a) * linearModel.score(X);
+                    + (1 - expMovingAverage_a) * score;
         } else {
             M_neg = expMovingAverage_a * M_neg
-                    + (1 - expMovingAverage_a) * linearModel.score(X);
+                    + (1 - expMovingAverage_a) * score;
         }
     }
 
@@ -258,7 +377,35 @@ public class OnlineAdatron implements OnlineLearning {
 
         //  filename += filename + ".model";
         filename = filename + ".model";
-        linearModel.saveModel(filename);
+        linearModel.setTrainingCounters(TrainingCounters.of(N_overall,
+                StatisticsMatrix));
+        if (checkpoint != null && checkpoint.getModelFileName().equals(filename)) {
+            // the new snapshot replaces the delta log
+            checkpoint.compact();
+        } else {
+            linearModel.saveModel(filename);
+        }
+    }
+
+    /**
+     * This function saves only the weights changed since the last save, in the
+     * delta log of the model (and the whole model from time to time, see
+     * ModelCheckpoint)
+     *
+     * @param filename
+     *            :The name of the file for the model to be stored
+     * @throws IOException
+     */
+    @Override
+    public void saveCheckpoint(String filename) throws IOException {
+        if (checkpoint == null
+                || !checkpoint.getModelFileName().equals(filename + ".model")) {
+            saveModel(filename);
+            return;
+        }
+        linearModel.setTrainingCounters(TrainingCounters.of(N_overall,
+                StatisticsMatrix));
+        checkpoint.save();
     }
 
     public void saveLog(String filename) throws IOException {
@@ -321,10 +468,17 @@ public class OnlineAdatron implements OnlineLearning {
      */
     @SuppressWarnings("resource")
     @Override
-    public void loadModel(String filename) {
+    public void loadModel(String filename) throws Exception {
+        // initialise the weights (if the model is not already saved make one with zeros)
+        linearModel = LinearModelFactory.loadModel(filename + ".model");
         try {
-            // initialise the weights (if the model is not already saved make one with zeros)
-            linearModel = new BasicLinearModel(filename + ".model");
+            // replay the changes saved after the last snapshot of the model
+            checkpoint = new ModelCheckpoint(linearModel, filename + ".model");
+            checkpoint.recover();
+
+            // the counters saved with the model, for a model without a log
+            N_overall = TrainingCounters.restore(linearModel, StatisticsMatrix,
+                    N_overall);
 
             //LOAD LOG FILE
             File loginFilename = new File(filename + ".log");
@@ -372,6 +526,9 @@ public class OnlineAdatron implements OnlineLearning {
             AUC_value = Double.parseDouble(toks[13]);
             setExpMovingAverage_a((2.0 / (expMovingAverage_window + 1.0)));
             N_overall = Integer.parseInt(toks[14]);
+            // the model is newer than the log if its checkpoint was recovered
+            N_overall = TrainingCounters.restore(linearModel, StatisticsMatrix,
+                    N_overall);
 
             input.close();
         } catch (Exception e1) {
@@ -405,14 +562,16 @@ public class OnlineAdatron implements OnlineLearning {
     }
 
     /**
-     * Returns the value of the AUC of our experiment
+     * Updates the value of the AUC of our experiment with a sample of given
+     * label and prediction wx - b
+     *
      * @throws Exception
      */
-    private void statsGetAUC(DataPoint sample) throws Exception {
-        if (sample.getRealLabel() >= 0) {
-            AUC_object.setLast_pos_score(linearModel.predict(sample));
+    private void statsGetAUC(int realLabel, double prediction) throws Exception {
+        if (realLabel >= 0) {
+            AUC_object.setLast_pos_score(prediction);
         } else {
-            AUC_object.setLast_neg_score(linearModel.predict(sample));
+            AUC_object.setLast_neg_score(prediction);
         }
 
         //System.out.println(AUC_object.getLast_pos_score()+ " , " +
@@ -1,6 +1,7 @@
 package macsy.lib.onlineLearning;
 
 import java.io.IOException;
+import java.util.List;
 
 import macsy.lib.*;
 
@@ -39,6 +40,23 @@ public interface OnlineLearning {
 	 * @throws Exception 
 	 */
 	double predict(DataPoint x) throws Exception;
+
+	/**
+	 * Trains on the samples, in their order. For the online learners it is
+	 * the same as train() on each sample. SGD can instead make one step per
+	 * mini-batch (see SGD.setMiniBatchSize()).
+	 * @param samples
+	 * @throws Exception
+	 */
+	void trainBatch(List<DataPoint> samples) throws Exception;
+
+	/**
+	 * Predicts the samples with the current model, as predict().
+	 * @param samples
+	 * @return the predictions, in the order of the samples
+	 * @throws Exception
+	 */
+	double[] predictBatch(List<DataPoint> samples) throws Exception;
 	
 	
 	/**
@@ -46,6 +64,14 @@ public interface OnlineLearning {
 	 * @param filename
 	 */
 	void saveModel(String filename) throws IOException;
+
+	/**
+	 * Saves the changes of the model since the last save (see ModelCheckpoint).
+	 * Learners that do not keep a delta log of their model save it in full,
+	 * as saveModel().
+	 * @param filename
+	 */
+	void saveCheckpoint(String filename) throws IOException;
 	
 	/**
 	 * This function stores the header for the statistics to a file 
@@ -58,8 +84,9 @@ public interface OnlineLearning {
 	/**
 	 * Loads the model and the statistics
 	 * @param filename
+	 * @throws Exception if the model file is corrupted
 	 */
-	void loadModel(String filename);
+	void loadModel(String filename) throws Exception;
 
 	/**
 	 * Returns the model used in the algorithm 
@@ -0,0 +1,52 @@
+package macsy.lib.onlineLearning;
+
+import macsy.lib.DataPoint;
+
+/**
+ * An online learner that can be trained on the difference of two samples
+ * without building the difference vector (see PairwiseRankingTrainer).
+ *
+ * The pair sample is z = scale * (x - y). The caller computes its margin w.z
+ * from the scores w.x and w.y, which it can cache as long as trainPair()
+ * reports no change. The perceptron-family learners update w in place with
+ * LinearModel.addScaledDifferenceToW(), which applies x - y feature by
+ * feature: an update of x and then of -y would not be the same, since
+ * addScaledToW() does not change the weights that exist. SGD builds z, as
+ * its mini-batches and regularisation need the sample.
+ *
+ */
+public interface PairwiseLearning extends OnlineLearning {
+
+	/**
+	 * Returns the score w.x (without the bias) of the current model.
+	 *
+	 * @param x
+	 * @return w.x
+	 * @throws Exception
+	 */
+	double score(DataPoint x) throws Exception;
+
+	/**
+	 * Trains on the pair sample z = scale * (x - y) with given label. It has
+	 * the same effect on the model and the statistics as train() on z, except
+	 * that the AUC statistics use the prediction before the update.
+	 *
+	 * @param x
+	 *            : the first sample
+	 * @param y
+	 *            : the second sample
+	 * @param scale
+	 *            : the scale of the difference (1/||x - y|| if normalised)
+	 * @param squaredNorm
+	 *            : ||z||^2
+	 * @param margin
+	 *            : w.z, i.e. scale * (score(x) - score(y))
+	 * @param label
+	 *            : the label of z (1 or -1)
+	 * @return true if the model was changed, i.e. the scores of the samples
+	 *         must be recomputed
+	 * @throws Exception
+	 */
+	boolean trainPair(DataPoint x, DataPoint y, double scale,
+			double squaredNorm, double margin, int label) throws Exception;
+}
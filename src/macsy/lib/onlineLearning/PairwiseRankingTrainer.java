@@ -0,0 +1,268 @@
+package macsy.lib.onlineLearning;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import macsy.lib.DataPoint;
+
+import org.bson.types.ObjectId;
+
+/**
+ * Trains a ranker on the pairs (popular, disliked) of a set of samples
+ * without building their difference vectors.
+ *
+ * Each pair is presented to the learner either as popular - disliked with
+ * label 1 or as disliked - popular with label -1, at random (as
+ * DataSampleBuilderForRanking does). The margin of the pair is computed from
+ * the scores w.x of the two samples (see PairwiseLearning), which are cached
+ * until the learner reports that the model changed. The perceptron-family
+ * learners only update on a mistake, so most pairs reuse the cached scores.
+ * The differences are normalised by default, as in articleSGDRanker.
+ *
+ * By default all popular x disliked pairs are used. With setPairBudget() at
+ * most that many pairs are drawn at random per call, stratified by date: the
+ * samples are grouped by the day of their ID (if it is an ObjectId), only
+ * samples of the same day are paired, and each day gets a share of the budget
+ * proportional to its number of pairs. The cost of a call is then linear in
+ * the number of samples.
+ *
+ */
+public class PairwiseRankingTrainer {
+
+	/**
+	 * Receives each pair after it has been processed.
+	 */
+	public interface PairListener {
+		/**
+		 * @param popular
+		 *            : the popular sample
+		 * @param disliked
+		 *            : the disliked sample
+		 * @param label
+		 *            : 1 if the pair was presented as popular - disliked, -1
+		 *            otherwise
+		 * @param prediction
+		 *            : w.z - b of the pair before the update
+		 * @throws Exception
+		 */
+		void pairDone(DataPoint popular, DataPoint disliked, int label,
+				double prediction) throws Exception;
+	}
+
+	private static final long MS_PER_DAY = 24L * 60 * 60 * 1000;
+
+	private final PairwiseLearning learner;
+
+	// max number of pairs per call, 0 := all pairs
+	private int pairBudget = 0;
+	private boolean normalizePairs = true;
+	private Random random = new Random();
+
+	// scores w.x of the samples of the current call (popular first), the
+	// model version they were computed for, and ||x||^2
+	private double[] scores;
+	private long[] scoreVersions;
+	private double[] squaredNorms;
+	private long modelVersion = 0;
+
+	public PairwiseRankingTrainer(PairwiseLearning learner) {
+		this.learner = learner;
+	}
+
+	/**
+	 * Sets the max number of pairs used per call of train() and validate().
+	 *
+	 * @param pairBudget
+	 *            : the number of pairs, 0 to use all pairs (the default)
+	 */
+	public void setPairBudget(int pairBudget) {
+		this.pairBudget = pairBudget;
+	}
+
+	public int getPairBudget() {
+		return pairBudget;
+	}
+
+	/**
+	 * Sets whether the differences are scaled to unit norm (true by default).
+	 * Pairs of identical samples are skipped when normalising.
+	 */
+	public void setNormalizePairs(boolean normalizePairs) {
+		this.normalizePairs = normalizePairs;
+	}
+
+	/**
+	 * Sets the seed of the pair sampling and orientation.
+	 */
+	public void setSeed(long seed) {
+		random = new Random(seed);
+	}
+
+	public PairwiseLearning getLearner() {
+		return learner;
+	}
+
+	/**
+	 * Trains the learner on the pairs.
+	 *
+	 * @param popular
+	 *            : the popular samples
+	 * @param disliked
+	 *            : the disliked samples
+	 * @param listener
+	 *            : called after each pair, may be null
+	 * @return the number of pairs used
+	 * @throws Exception
+	 */
+	public int train(List<DataPoint> popular, List<DataPoint> disliked,
+			PairListener listener) throws Exception {
+		return run(popular, disliked, listener, true);
+	}
+
+	/**
+	 * Updates the validation error of the learner with the pairs, without
+	 * training.
+	 *
+	 * @return the number of pairs used
+	 * @throws Exception
+	 */
+	public int validate(List<DataPoint> popular, List<DataPoint> disliked,
+			PairListener listener) throws Exception {
+		return run(popular, disliked, listener, false);
+	}
+
+	private int run(List<DataPoint> popular, List<DataPoint> disliked,
+			PairListener listener, boolean learn) throws Exception {
+		int nPopular = popular.size();
+		int nDisliked = disliked.size();
+		if (nPopular == 0 || nDisliked == 0)
+			return 0;
+
+		DataPoint[] samples = new DataPoint[nPopular + nDisliked];
+		for (int i = 0; i < nPopular; i++)
+			samples[i] = popular.get(i);
+		for (int j = 0; j < nDisliked; j++)
+			samples[nPopular + j] = disliked.get(j);
+
+		scores = new double[samples.length];
+		scoreVersions = new long[samples.length];
+		squaredNorms = new double[samples.length];
+		++modelVersion;
+		for (int i = 0; i < samples.length; i++)
+			squaredNorms[i] = samples[i].getSquaredMagnitude();
+
+		int pairs = 0;
+		if (pairBudget <= 0) {
+			for (int i = 0; i < nPopular; i++)
+				for (int j = nPopular; j < samples.length; j++)
+					pairs += processPair(samples, i, j, listener, learn);
+			return pairs;
+		}
+
+		// Strata: the indices of the popular and of the disliked samples of
+		// each day
+		Map<Long, List<List<Integer>>> strata = new LinkedHashMap<Long, List<List<Integer>>>();
+		for (int i = 0; i < samples.length; i++) {
+			Long day = getDay(samples[i]);
+			List<List<Integer>> stratum = strata.get(day);
+			if (stratum == null) {
+				stratum = new ArrayList<List<Integer>>();
+				stratum.add(new ArrayList<Integer>());
+				stratum.add(new ArrayList<Integer>());
+				strata.put(day, stratum);
+			}
+			stratum.get(i < nPopular ? 0 : 1).add(i);
+		}
+
+		long totalPairs = 0;
+		for (List<List<Integer>> stratum : strata.values())
+			totalPairs += (long) stratum.get(0).size() * stratum.get(1).size();
+
+		for (List<List<Integer>> stratum : strata.values()) {
+			List<Integer> p = stratum.get(0);
+			List<Integer> d = stratum.get(1);
+			long stratumPairs = (long) p.size() * d.size();
+			if (stratumPairs == 0)
+				continue;
+
+			long quota = Math.round((double) pairBudget * stratumPairs
+					/ totalPairs);
+			if (quota >= stratumPairs) {
+				for (int i : p)
+					for (int j : d)
+						pairs += processPair(samples, i, j, listener, learn);
+			} else {
+				// uniformly, with replacement
+				for (long k = 0; k < quota; k++)
+					pairs += processPair(samples,
+							p.get(random.nextInt(p.size())),
+							d.get(random.nextInt(d.size())), listener, learn);
+			}
+		}
+		return pairs;
+	}
+
+	/**
+	 * Trains or validates on the pair (samples[i], samples[j]).
+	 *
+	 * @return 1 if the pair was used, 0 if it was skipped
+	 */
+	private int processPair(DataPoint[] samples, int i, int j,
+			PairListener listener, boolean learn) throws Exception {
+		DataPoint popular = samples[i];
+		DataPoint disliked = samples[j];
+
+		double dot = popular.getSparseVector()
+				.dot(disliked.getSparseVector());
+		double squaredNorm = squaredNorms[i] + squaredNorms[j] - 2 * dot;
+		double scale = 1.0;
+		if (normalizePairs) {
+			if (squaredNorm <= 0.0)
+				return 0;
+			scale = 1.0 / Math.sqrt(squaredNorm);
+			squaredNorm = 1.0;
+		}
+
+		int label = random.nextDouble() >= 0.5 ? 1 : -1;
+		double margin = label * scale * (score(samples, i) - score(samples, j));
+		double prediction = margin - learner.getLinearModel().getB();
+
+		if (learn) {
+			boolean changed = (label == 1) ? learner.trainPair(popular,
+					disliked, scale, squaredNorm, margin, label) : learner
+					.trainPair(disliked, popular, scale, squaredNorm, margin,
+							label);
+			if (changed)
+				++modelVersion;
+		} else
+			learner.update_validationError(prediction, label);
+
+		if (listener != null)
+			listener.pairDone(popular, disliked, label, prediction);
+		return 1;
+	}
+
+	/**
+	 * Returns w.x of samples[i], computing it only if the model has changed.
+	 */
+	private double score(DataPoint[] samples, int i) throws Exception {
+		if (scoreVersions[i] != modelVersion) {
+			scores[i] = learner.score(samples[i]);
+			scoreVersions[i] = modelVersion;
+		}
+		return scores[i];
+	}
+
+	/**
+	 * Returns the day of the ID of the sample, or null if it is not an
+	 * ObjectId.
+	 */
+	private static Long getDay(DataPoint sample) {
+		if (sample.getID() instanceof ObjectId)
+			return ((ObjectId) sample.getID()).getDate().getTime() / MS_PER_DAY;
+		return null;
+	}
+}
@@ -0,0 +1,280 @@
+package macsy.lib.onlineLearning;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import macsy.lib.DataPoint;
+import macsy.lib.DenseLinearModel;
+import macsy.lib.Helpers;
+import macsy.lib.Helpers.SGDLearningRateStrategy;
+import macsy.lib.Helpers.SGDRegularizerFunction;
+import macsy.lib.LinearModel;
+import macsy.lib.SparseVector;
+
+/**
+ * Trains an SGD on many samples at once with several threads, without locks
+ * (Hogwild!).
+ *
+ * The weights are copied into a double[] indexed by feature ID (the bias in
+ * w[0]), which the worker threads read and update without any
+ * synchronisation. The samples are dealt in turn to the threads, so each
+ * thread goes through the samples in their order. The samples are sparse
+ * (e.g. news articles) so two threads rarely update the same weight at the
+ * same time, and a lost update only costs a little of the progress of a
+ * step. When all the samples are done the changed weights are written back
+ * to the model of the SGD.
+ *
+ * Each thread keeps its own statistics (confusion matrix, errors, number of
+ * samples and mean score per class), which are merged into the SGD at the end
+ * (see SGD.mergeStatistics()). The expected model differs from the sequential
+ * one:
+ * - a step with L2 regularization shrinks only the weights of the features of
+ * the sample (as in the Hogwild! paper) instead of the whole vector.
+ * - the bias is shared as any other weight.
+ * - the decaying learning rate of the k-th sample of a thread is the one of
+ * the global step k * threads + thread.
+ *
+ * The samples are trained with SGD.trainBatch() in the calling thread (the
+ * same model as train() on each sample, reproducible) when there is one
+ * thread, with L1 regularization (the u, v components of w can not be shared),
+ * in mini-batch mode, or if a feature ID is not in [1,
+ * DenseLinearModel.DENSE_MAX_FEATURE_ID].
+ *
+ */
+public class ParallelSGDTrainer {
+
+	private final SGD sgd;
+	private final int threads;
+
+	/**
+	 * @param sgd
+	 *            : the configured SGD to train
+	 * @param threads
+	 *            : the number of worker threads, 1 for the sequential SGD
+	 * @throws Exception
+	 */
+	public ParallelSGDTrainer(SGD sgd, int threads) throws Exception {
+		if (threads < 1)
+			throw new Exception("Number of threads must be at least 1: "
+					+ threads);
+		this.sgd = sgd;
+		this.threads = threads;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Returns true if the samples are trained by several threads.
+	 */
+	public boolean isParallel(List<DataPoint> samples) {
+		if (threads == 1 || samples.size() < 2 * threads
+				|| sgd._regularizer == SGDRegularizerFunction.L1
+				|| sgd.getMiniBatchSize() > 1)
+			return false;
+		for (DataPoint sample : samples) {
+			SparseVector x = sample.getSparseVector();
+			for (int k = 0; k < x.size(); k++)
+				if (x.indexAt(k) < 1
+						|| x.indexAt(k) > DenseLinearModel.DENSE_MAX_FEATURE_ID)
+					return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Trains the SGD on the samples. Their real labels must be set; their
+	 * predicted label and value are set as by SGD.train().
+	 *
+	 * @param samples
+	 * @throws Exception
+	 */
+	public void train(List<DataPoint> samples) throws Exception {
+		if (!isParallel(samples)) {
+			sgd.trainBatch(samples);
+			return;
+		}
+
+		LinearModel model = sgd.getLinearModel();
+		final double[] w = sharedWeights(model, samples);
+		final List<DataPoint> data = samples;
+		final int epoch = sgd.getEpoch();
+
+		List<Statistics> statistics = new ArrayList<Statistics>();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Statistics>> results = new ArrayList<Future<Statistics>>();
+			for (int t = 0; t < threads; t++) {
+				final int thread = t;
+				results.add(pool.submit(new Callable<Statistics>() {
+					public Statistics call() throws Exception {
+						return trainWorker(w, data, thread, epoch);
+					}
+				}));
+			}
+
+			for (Future<Statistics> result : results) {
+				try {
+					statistics.add(result.get());
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof Exception)
+						throw (Exception) e.getCause();
+					throw e;
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		// write back the weights that may have changed
+		BitSet written = new BitSet();
+		for (DataPoint sample : samples) {
+			SparseVector x = sample.getSparseVector();
+			for (int k = 0; k < x.size(); k++) {
+				int i = x.indexAt(k);
+				if (!written.get(i)) {
+					written.set(i);
+					model.setWi(i, w[i]);
+				}
+			}
+		}
+		model.setB(w[0]);
+
+		Statistics merged = new Statistics();
+		for (Statistics s : statistics)
+			merged.add(s);
+		sgd.mergeStatistics(merged);
+	}
+
+	/**
+	 * Returns the weights of the model in a double[] large enough for the
+	 * features of the samples, with the bias in w[0].
+	 */
+	private double[] sharedWeights(LinearModel model, List<DataPoint> samples) {
+		SparseVector weights = model.getW().getSparseVector();
+		int dimension = 0;
+		for (int k = 0; k < weights.size(); k++)
+			if (weights.indexAt(k) > 0
+					&& weights.indexAt(k) <= DenseLinearModel.DENSE_MAX_FEATURE_ID)
+				dimension = Math.max(dimension, weights.indexAt(k));
+		for (DataPoint sample : samples)
+			dimension = Math.max(dimension, sample.getSparseVector()
+					.maxIndex());
+
+		double[] w = new double[dimension + 1];
+		for (int k = 0; k < weights.size(); k++)
+			if (weights.indexAt(k) > 0
+					&& weights.indexAt(k) <= DenseLinearModel.DENSE_MAX_FEATURE_ID)
+				w[weights.indexAt(k)] = weights.valueAt(k);
+		// as in SGD, the bias is reset unless it is updated
+		w[0] = sgd._updateBias ? model.getB() : 0.0;
+		return w;
+	}
+
+	/**
+	 * Trains on the samples thread, thread + threads, ... (SGD.train() on the
+	 * shared weights).
+	 */
+	private Statistics trainWorker(double[] w, List<DataPoint> samples,
+			int thread, int epoch) throws Exception {
+		Statistics stats = new Statistics();
+		boolean l2 = sgd._regularizer == SGDRegularizerFunction.L2;
+		boolean decaying = sgd._learningRateStrategy != SGDLearningRateStrategy.CONSTANT;
+		double learningFactor = sgd.getLearningFactor();
+
+		for (int s = thread; s < samples.size(); s += threads) {
+			DataPoint sample = samples.get(s);
+			SparseVector x = sample.getSparseVector();
+
+			double score = x.dot(w);
+			double yHat = score - w[0];
+			sample.setPredictedLabel_Value(yHat);
+			int predictedLabel = (yHat > 0) ? Helpers.LABEL_POS_CLASS
+					: Helpers.LABEL_NEG_CLASS;
+			sample.setPredictedLabel(predictedLabel);
+			int realLabel = sample.getRealLabel();
+
+			boolean error = stats.add(predictedLabel, realLabel, score);
+			double errorValue = sgd.errorValue(realLabel, predictedLabel,
+					error, yHat);
+
+			if (decaying)
+				learningFactor = sgd.learningFactorAt(epoch + s + 1);
+			if (l2) {
+				double shrink = 1.0 - sgd._lambdaReg * learningFactor;
+				for (int k = 0; k < x.size(); k++)
+					w[x.indexAt(k)] *= shrink;
+			}
+			double step = errorValue * learningFactor;
+			if (step != 0.0)
+				for (int k = 0; k < x.size(); k++)
+					w[x.indexAt(k)] += step * x.valueAt(k);
+			if (sgd._updateBias)
+				w[0] += step * w[0];
+		}
+		return stats;
+	}
+
+	/**
+	 * The statistics of the samples trained by a thread.
+	 */
+	static final class Statistics {
+		long tp, tn, fp, fn;
+		long positives, negatives;
+		// the sum of the scores wx of the samples of each class
+		double positiveScores, negativeScores;
+
+		/**
+		 * Records a sample, as SGD.checkAndRecordError(), and returns true if
+		 * it was misclassified.
+		 */
+		boolean add(int predictedLabel, int realLabel, double score) {
+			boolean error = predictedLabel != realLabel;
+			if (!error) {
+				if (predictedLabel == Helpers.LABEL_POS_CLASS)
+					tp++;
+				else
+					tn++;
+			} else {
+				if (predictedLabel == Helpers.LABEL_NEG_CLASS)
+					fp++;
+				else
+					fn++;
+			}
+			if (realLabel == 1) {
+				positives++;
+				positiveScores += score;
+			} else {
+				negatives++;
+				negativeScores += score;
+			}
+			return error;
+		}
+
+		void add(Statistics s) {
+			tp += s.tp;
+			tn += s.tn;
+			fp += s.fp;
+			fn += s.fn;
+			positives += s.positives;
+			negatives += s.negatives;
+			positiveScores += s.positiveScores;
+			negativeScores += s.negativeScores;
+		}
+
+		long size() {
+			return positives + negatives;
+		}
+
+		long errors() {
+			return fp + fn;
+		}
+	}
+}
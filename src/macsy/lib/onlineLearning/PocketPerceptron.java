@@ -8,9 +8,9 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.util.*;
 import macsy.lib.AUC;
-import macsy.lib.BasicLinearModel;
 import macsy.lib.DataPoint;
 import macsy.lib.LinearModel;
+import macsy.lib.LinearModelFactory;
 import macsy.lib.Results;
 
 
@@ -32,7 +32,7 @@ import macsy.lib.Results;
  * where w is the weight vector, x is the input, b is the bias and eta the learning factor
  *  * @author Saatviga Sudhahar
  **/
-public class PocketPerceptron implements OnlineLearning {
+public class PocketPerceptron implements PairwiseLearning {
 
     public static final double STABLE_DECISION_THRESHOLD = -1;
     // variable for the time (timestamp)
@@ -62,6 +62,8 @@ public class PocketPerceptron implements OnlineLearning {
     private double expMovingAverage_a;
     // variable for storing the error
     private double expMovingAverage_error;
+    // counters of the validation samples (see update_validationError)
+    private final ValidationCounters validation = new ValidationCounters();
     // boolean variables for the initialise the number of positive or negative instances
     private boolean first_pos;
     private boolean first_neg;
@@ -126,13 +128,15 @@ public class PocketPerceptron implements OnlineLearning {
      */
     @Override
     public void train(DataPoint sample) throws Exception {
+        // the only pass over w: the score wx gives the prediction and all the
+        // statistics
+        double score = linearModel.score(sample);
         // update the exponential moving average for the number of instances per
         // class
-        updateNum(sample);
-        double y_hat;
+        updateNum(sample.getRealLabel(), score);
         // predict the output of the input sample using the model (actual
         // output)
-        y_hat = linearModel.predict(sample);
+        double y_hat = score - linearModel.getB();
 
         //System.out.println("Predicted value: " + y_hat);
 
@@ -182,11 +186,64 @@ public class PocketPerceptron implements OnlineLearning {
         // update the counter of the negative instances
         update_exponentialMovingAverageCounter(sample.getRealLabel());
 
-        statsGetAUC(sample);
+        statsGetAUC(sample.getRealLabel(), y_hat);
 
 
     }
 
+    /**
+     * Returns wx (without the bias)
+     */
+    @Override
+    public double score(DataPoint x) throws Exception {
+        return linearModel.score(x);
+    }
+
+    /**
+     * Same as train() on the pair sample z = scale * (x - y), where the
+     * margin wz is given, without building z (see PairwiseLearning).
+     */
+    @Override
+    public boolean trainPair(DataPoint x, DataPoint y, double scale,
+            double squaredNorm, double margin, int label) throws Exception {
+        updateNum(label, margin);
+        double y_hat = margin - linearModel.getB();
+        int predicted_label = (y_hat > linearModel.getB()) ? 1 : -1;
+
+        boolean error = false;
+        threshold_for_precisionANDrecall = 0;
+        if (predicted_label == label) {
+            // Correct prediction
+            int T = (predicted_label == 1) ? TP : TN;
+            StatisticsMatrix[T]++;
+            run_p++;
+            num_ok_p++;
+        } else {
+            // Incorrect prediction
+            error = true;
+            int F = (predicted_label == 1) ? FP : FN;
+            StatisticsMatrix[F]++;
+            setRun_p(0);
+        }
+        if (error) {
+            // w <- w + alpha*(real-predicted)*z, as in learningProcess()
+            double val = learningFactor * (label - predicted_label) * scale;
+            linearModel.addScaledDifferenceToW(x.getSparseVector(),
+                    y.getSparseVector(), val);
+            // If precision =-1 then do not adapt
+            if (this.desiredPrecision != STABLE_DECISION_THRESHOLD) {
+                this.updateThres(this.statsGetPrecision());
+            }
+        }
+        // calculate the error rate (exponential moving error average)
+        update_exponentialMovingAverageError(error);
+        // update the counter of the negative instances
+        update_exponentialMovingAverageCounter(label);
+
+        statsGetAUC(label, y_hat);
+        return error;
+    }
+
     /**
      * Perform the learning procedure / updates the w, according to the formula
      * w(t+1) = w(t) + eta*(d-y(t))*x(t)
@@ -223,14 +280,8 @@ public class PocketPerceptron implements OnlineLearning {
         // X <- alpha*(real-predicted)*X
         double val = learningFactor * (real_label - predicted_label);
         //System.out.println("Val: " + val);
-        Map<Integer, Double> features = new TreeMap<Integer, Double>();
-        for (Map.Entry<Integer, Double> e : X.getFeaturesMap().entrySet()) {
-            features.put(e.getKey(), e.getValue() * val);
-        }
-        DataPoint adjusted_sample = new DataPoint(features, X.getRealLabel());
-        //System.out.println("Data Point: " + adjusted_sample.getFeatures());
-        // updating the model, no bias
-        linearModel.addToW(adjusted_sample, 0.0);
+        // updating the model in place, no bias
+        linearModel.addScaledToW(X.getSparseVector(), val);
     }
 
     /**
@@ -242,7 +293,8 @@ public class PocketPerceptron implements OnlineLearning {
      * @param wasThereError : A boolean variable specifying if there was an error or not
      * @throws Exception
      */
-    private void update_exponentialMovingAverageError(boolean wasThereError) throws Exception {
+    @Override
+    public void update_exponentialMovingAverageError(boolean wasThereError) throws Exception {
         if (wasThereError) {
             expMovingAverage_error = expMovingAverage_a + (1.0 - expMovingAverage_a) * expMovingAverage_error;
         } else {
@@ -250,6 +302,41 @@ public class PocketPerceptron implements OnlineLearning {
         }
     }
 
+    @Override
+    public double expMovAvGetValidationError() throws Exception {
+        return validation.getExpMovingAverageError();
+    }
+
+    @Override
+    public double[] getValidationConfusion() {
+        return validation.getConfusion();
+    }
+
+    @Override
+    public int getNValidation() {
+        return validation.getN();
+    }
+
+    @Override
+    public int getNpos() {
+        return validation.getNpos();
+    }
+
+    @Override
+    public int getNneg() {
+        return validation.getNneg();
+    }
+
+    /**
+     * Updates the validation counters with the prediction of a sample that
+     * was not used for training
+     */
+    @Override
+    public void update_validationError(double prediction, int realLabel)
+            throws Exception {
+        validation.update(prediction, realLabel, expMovingAverage_a);
+    }
+
     /**
      * This function performs (only) the prediction procedure taking into account the model,
      * of the given input sample
@@ -261,6 +348,29 @@ public class PocketPerceptron implements OnlineLearning {
         return linearModel.predict(sample);
     }
 
+    /**
+     * Trains on the samples in turn, as train() on each sample
+     */
+    @Override
+    public void trainBatch(List<DataPoint> samples) throws Exception {
+        for (DataPoint sample : samples) {
+            train(sample);
+        }
+    }
+
+    /**
+     * Predicts the samples with the current model, as predict()
+     */
+    @Override
+    public double[] predictBatch(List<DataPoint> samples) throws Exception {
+        double[] predictions = new double[samples.size()];
+        int i = 0;
+        for (DataPoint sample : samples) {
+            predictions[i++] = linearModel.predict(sample);
+        }
+        return predictions;
+    }
+
     /**
      * This function is used for updating the exponential moving average of the
      * instances per class
@@ -268,25 +378,32 @@ public class PocketPerceptron implements OnlineLearning {
      */
     @Override
     public void updateNum(DataPoint X) {
+        updateNum(X.getRealLabel(), linearModel.score(X));
+    }
+
+    /**
+     * Same as updateNum(DataPoint) for a sample with given label and score wx
+     */
+    private void updateNum(int realLabel, double score) {
         // if this is the first time for the positive class initialise
-        if (first_pos && X.getRealLabel() == 1) {
-            M_pos = linearModel.score(X);
+        if (first_pos && realLabel == 1) {
+            M_pos = score;
             first_pos = false;
             return;
         }
         // if this is the first time for the negative class initialise
-        if (first_neg && X.getRealLabel() == -1) {
-            M_neg = linearModel.score(X);
+        if (first_neg && realLabel == -1) {
+            M_neg = score;
             first_neg = false;
             return;
         }
         // else
-        if (X.getRealLabel() == 1) {
+        if (realLabel == 1) {
             M_pos = expMovingAverage_a * M_pos
-                    + (1 - expMovingAverage_a) * linearModel.score(X);
+                    + (1 - expMovingAverage_a) * score;
         } else {
             M_neg = expMovingAverage_a * M_neg
-                    + (1 - expMovingAverage_a) * linearModel.score(X);
+                    + (1 - expMovingAverage_a) * score;
         }
     }
 
@@ -301,9 +418,20 @@ public class PocketPerceptron implements OnlineLearning {
 
         filename += filename + ".model";
 
+        linearModel.setTrainingCounters(TrainingCounters.of(N_overall,
+                StatisticsMatrix));
         linearModel.saveModel(filename);
     }
 
+    /**
+     * The pocket weights replace the whole model, so there is no delta log
+     * and the model is saved in full.
+     */
+    @Override
+    public void saveCheckpoint(String filename) throws IOException {
+        saveModel(filename);
+    }
+
     public void saveLog(String filename) throws IOException {
 
         Results logResults = new Results(".", filename + ".log", true, true);
@@ -364,10 +492,14 @@ public class PocketPerceptron implements OnlineLearning {
      */
     @SuppressWarnings("resource")
     @Override
-    public void loadModel(String filename) {
+    public void loadModel(String filename) throws Exception {
+        // initialise the weights (if the model is not already saved make one with zeros)
+        linearModel = LinearModelFactory.loadModel(filename + ".model");
         try {
-            // initialise the weights (if the model is not already saved make one with zeros)
-            linearModel = new BasicLinearModel(filename + ".model");
+
+            // the counters saved with the model, for a model without a log
+            N_overall = TrainingCounters.restore(linearModel, StatisticsMatrix,
+                    N_overall);
 
             //LOAD LOG FILE
             File loginFilename = new File(filename + ".log");
@@ -448,14 +580,16 @@ public class PocketPerceptron implements OnlineLearning {
     }
 
     /**
-     * Returns the value of the AUC of our experiment
+     * Updates the value of the AUC of our experiment with a sample of given
+     * label and prediction wx - b
+     *
      * @throws Exception
      */
-    private void statsGetAUC(DataPoint sample) throws Exception {
-        if (sample.getRealLabel() >= 0) {
-            AUC_object.setLast_pos_score(linearModel.predict(sample));
+    private void statsGetAUC(int realLabel, double prediction) throws Exception {
+        if (realLabel >= 0) {
+            AUC_object.setLast_pos_score(prediction);
         } else {
-            AUC_object.setLast_neg_score(linearModel.predict(sample));
+            AUC_object.setLast_neg_score(prediction);
         }
 
         //System.out.println(AUC_object.getLast_pos_score()+ " , " +
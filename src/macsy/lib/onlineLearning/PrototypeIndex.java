@@ -0,0 +1,364 @@
+package macsy.lib.onlineLearning;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Inverted index over the non zero dimensions of the prototypes of the regions
+ * of a Clasher, to compute the dot products of a document with all the
+ * prototypes in one pass over the features of the document, instead of a dot
+ * product per region. The prototypes and the documents are sparse vectors,
+ * maps from dimension to value sorted by dimension.
+ *
+ * The postings of a dimension (the regions whose prototype has it, and the
+ * values) are kept in flat arrays, sorted by dimension. A prototype changes
+ * with each document added to its region; such a region is marked as changed
+ * (invalidate()) and its dot product is then computed directly, until the
+ * index is rebuilt, which happens when the changed regions are more than a
+ * fraction of all the regions (see setRebuildFraction()).
+ *
+ * The dot products of the last document are kept: with the same document
+ * index (as the cache of the dot products of Clasher did) they are not
+ * computed again, even if a region has changed meanwhile.
+ *
+ * Optionally (setProjectionFilter()) only the regions closest to the document
+ * by random projections are considered: each vector gets a signature of up
+ * to 64 bits, the signs of its projections on random +1/-1 vectors, and the
+ * dot products are computed only for the given number of regions whose
+ * signatures differ the least from the one of the document. As the signatures
+ * only depend on the angle, this is an approximation, worth it with many
+ * regions.
+ *
+ */
+public class PrototypeIndex {
+
+	/**
+	 * The prototypes of the regions, whose position is their ID.
+	 */
+	public interface Prototypes {
+		int size();
+
+		SortedMap<Integer, Double> get(int position);
+	}
+
+	public static final double DEFAULT_REBUILD_FRACTION = 0.125;
+
+	private static final long PROJECTION_SEED = 0x5DEECE66DL;
+
+	private final Prototypes prototypes;
+
+	// postings: the regions and values of dimension features[k] are in
+	// [offsets[k], offsets[k + 1])
+	private int[] features = new int[0];
+	private int[] offsets = new int[] { 0 };
+	private int[] postingRegions = new int[0];
+	private double[] postingValues = new double[0];
+	// the regions in the postings
+	private int indexedRegions = 0;
+	// the regions changed since the index was built
+	private final BitSet changed = new BitSet();
+	private double rebuildFraction = DEFAULT_REBUILD_FRACTION;
+
+	// the dot products with the last document
+	private double[] dots = new double[0];
+	private Integer lastIndex = null;
+	private int computedRegions = 0;
+
+	// random projection filter (0 bits := no filter)
+	private int projectionBits = 0;
+	private int projectionCandidates = 0;
+	private long[] signatures = new long[0];
+	private final BitSet staleSignatures = new BitSet();
+
+	/**
+	 * @param prototypes
+	 *            : the prototypes of the regions (read when needed, not
+	 *            copied)
+	 */
+	public PrototypeIndex(Prototypes prototypes) {
+		this.prototypes = prototypes;
+	}
+
+	/**
+	 * Sets the fraction of the regions that may change before the index is
+	 * rebuilt.
+	 */
+	public void setRebuildFraction(double rebuildFraction) {
+		this.rebuildFraction = rebuildFraction;
+	}
+
+	public double getRebuildFraction() {
+		return rebuildFraction;
+	}
+
+	/**
+	 * Enables the random projection filter.
+	 *
+	 * @param bits
+	 *            : the number of random projections, up to 64, 0 to disable
+	 *            the filter
+	 * @param candidates
+	 *            : the number of regions for which the dot products are
+	 *            computed. The filter is used only with more regions.
+	 * @throws Exception
+	 */
+	public void setProjectionFilter(int bits, int candidates) throws Exception {
+		if (bits < 0 || bits > 64)
+			throw new Exception("Number of projections must be in [0, 64]: "
+					+ bits);
+		projectionBits = bits;
+		projectionCandidates = candidates;
+		staleSignatures.set(0, prototypes.size());
+		lastIndex = null;
+	}
+
+	public int getProjectionBits() {
+		return projectionBits;
+	}
+
+	/**
+	 * Marks the prototype of the region as changed (or new).
+	 */
+	public void invalidate(int position) {
+		changed.set(position);
+		staleSignatures.set(position);
+	}
+
+	/**
+	 * Builds the postings from all the prototypes.
+	 */
+	public void rebuild() {
+		int n = prototypes.size();
+
+		Map<Integer, int[]> counts = new HashMap<Integer, int[]>();
+		int size = 0;
+		for (int r = 0; r < n; r++)
+			for (Integer dim : prototypes.get(r).keySet()) {
+				int[] count = counts.get(dim);
+				if (count == null) {
+					count = new int[1];
+					counts.put(dim, count);
+				}
+				count[0]++;
+				size++;
+			}
+
+		features = new int[counts.size()];
+		int k = 0;
+		for (Integer dim : counts.keySet())
+			features[k++] = dim;
+		Arrays.sort(features);
+		offsets = new int[features.length + 1];
+		for (k = 0; k < features.length; k++)
+			offsets[k + 1] = offsets[k] + counts.get(features[k])[0];
+
+		int[] next = Arrays.copyOf(offsets, features.length);
+		postingRegions = new int[size];
+		postingValues = new double[size];
+		for (int r = 0; r < n; r++)
+			for (Map.Entry<Integer, Double> e : prototypes.get(r)
+					.entrySet()) {
+				k = Arrays.binarySearch(features, e.getKey());
+				postingRegions[next[k]] = r;
+				postingValues[next[k]++] = e.getValue();
+			}
+
+		indexedRegions = n;
+		changed.clear();
+		lastIndex = null;
+	}
+
+	/**
+	 * Returns the dot products of the document with the prototypes of all the
+	 * regions, or, with the projection filter, of the candidate regions and
+	 * NaN for the others. The array belongs to the index and is valid until
+	 * the next call; its length may be larger than the number of regions.
+	 *
+	 * @param index
+	 *            : the index of the document (the dot products of the last
+	 *            document are kept), or null
+	 * @param document
+	 */
+	public double[] dotProducts(Integer index, SortedMap<Integer, Double> document) {
+		return compute(index, document, false);
+	}
+
+	/**
+	 * Same as dotProducts() without the projection filter.
+	 */
+	public double[] exactDotProducts(Integer index, SortedMap<Integer, Double> document) {
+		return compute(index, document, true);
+	}
+
+	/**
+	 * Returns the dot product of the document with the prototype of a region,
+	 * kept from the last document if it has the same index.
+	 */
+	public double dotProduct(Integer index, SortedMap<Integer, Double> document, int position) {
+		if (index != null && index.equals(lastIndex)
+				&& position < computedRegions && !Double.isNaN(dots[position]))
+			return dots[position];
+		return dot(prototypes.get(position), document);
+	}
+
+	private double[] compute(Integer index, SortedMap<Integer, Double> document,
+			boolean exact) {
+		int n = prototypes.size();
+		if (dots.length < n)
+			dots = Arrays.copyOf(dots, Math.max(n, 2 * dots.length));
+		if (index == null || !index.equals(lastIndex)) {
+			if (!exact && projectionBits > 0 && n > projectionCandidates)
+				filter(document, n);
+			else
+				accumulate(document, n);
+			lastIndex = index;
+			computedRegions = n;
+		}
+
+		// regions added since the last call (with the same document)
+		for (int r = computedRegions; r < n; r++)
+			dots[r] = dot(prototypes.get(r), document);
+		computedRegions = n;
+
+		if (exact)
+			for (int r = 0; r < n; r++)
+				if (Double.isNaN(dots[r]))
+					dots[r] = dot(prototypes.get(r), document);
+		return dots;
+	}
+
+	/**
+	 * Computes the dot products with all the regions from the postings.
+	 */
+	private void accumulate(SortedMap<Integer, Double> document, int n) {
+		if (n < indexedRegions || changed.cardinality() > rebuildFraction * n)
+			rebuild();
+
+		Arrays.fill(dots, 0, n, 0.0);
+		// the dimensions of the document are increasing
+		int from = 0;
+		for (Map.Entry<Integer, Double> e : document.entrySet()) {
+			int k = Arrays.binarySearch(features, from, features.length,
+					e.getKey());
+			if (k < 0) {
+				from = -k - 1;
+				continue;
+			}
+			from = k + 1;
+			double value = e.getValue();
+			for (int p = offsets[k]; p < offsets[k + 1]; p++)
+				dots[postingRegions[p]] += value * postingValues[p];
+		}
+
+		// the postings of the changed and new regions are out of date
+		for (int r = changed.nextSetBit(0); r >= 0 && r < n; r = changed
+				.nextSetBit(r + 1))
+			dots[r] = dot(prototypes.get(r), document);
+		for (int r = indexedRegions; r < n; r++)
+			if (!changed.get(r))
+				dots[r] = dot(prototypes.get(r), document);
+	}
+
+	/**
+	 * Computes the dot products with the projectionCandidates regions whose
+	 * signatures are the closest to the one of the document.
+	 */
+	private void filter(SortedMap<Integer, Double> document, int n) {
+		if (signatures.length < n) {
+			signatures = Arrays.copyOf(signatures, Math.max(n,
+					2 * signatures.length));
+			staleSignatures.set(0, n);
+		}
+		for (int r = staleSignatures.nextSetBit(0); r >= 0 && r < n; r = staleSignatures
+				.nextSetBit(r + 1))
+			signatures[r] = signature(prototypes.get(r));
+		staleSignatures.clear(0, n);
+
+		// the largest Hamming distance of the candidates, and how many of the
+		// regions at this distance are candidates
+		long signature = signature(document);
+		int[] histogram = new int[projectionBits + 1];
+		for (int r = 0; r < n; r++)
+			histogram[Long.bitCount(signature ^ signatures[r])]++;
+		int maxDistance = 0;
+		int remaining = projectionCandidates;
+		while (remaining > histogram[maxDistance]) {
+			remaining -= histogram[maxDistance];
+			maxDistance++;
+		}
+
+		Arrays.fill(dots, 0, n, Double.NaN);
+		for (int r = 0; r < n; r++) {
+			int distance = Long.bitCount(signature ^ signatures[r]);
+			if (distance < maxDistance
+					|| (distance == maxDistance && remaining-- > 0))
+				dots[r] = dot(prototypes.get(r), document);
+		}
+	}
+
+	/**
+	 * Returns the signs of the projections of the vector on projectionBits
+	 * random +1/-1 vectors. The components of the random vectors for a
+	 * dimension are the bits of a hash of the dimension.
+	 */
+	private long signature(SortedMap<Integer, Double> vector) {
+		double[] projections = new double[projectionBits];
+		for (Map.Entry<Integer, Double> e : vector.entrySet()) {
+			long signs = hash(e.getKey());
+			double value = e.getValue();
+			for (int b = 0; b < projectionBits; b++)
+				projections[b] += ((signs >>> b) & 1L) != 0 ? value : -value;
+		}
+		long signature = 0L;
+		for (int b = 0; b < projectionBits; b++)
+			if (projections[b] > 0.0)
+				signature |= 1L << b;
+		return signature;
+	}
+
+	/**
+	 * Returns the dot product of two sparse vectors, in one pass over both.
+	 */
+	private static double dot(SortedMap<Integer, Double> a,
+			SortedMap<Integer, Double> b) {
+		Iterator<Map.Entry<Integer, Double>> i = a.entrySet().iterator();
+		Iterator<Map.Entry<Integer, Double>> j = b.entrySet().iterator();
+		if (!i.hasNext() || !j.hasNext())
+			return 0.0;
+
+		double dot = 0.0;
+		Map.Entry<Integer, Double> x = i.next();
+		Map.Entry<Integer, Double> y = j.next();
+		while (true) {
+			int c = x.getKey().compareTo(y.getKey());
+			if (c == 0)
+				dot += x.getValue() * y.getValue();
+			if (c <= 0) {
+				if (!i.hasNext())
+					break;
+				x = i.next();
+			}
+			if (c >= 0) {
+				if (!j.hasNext())
+					break;
+				y = j.next();
+			}
+		}
+		return dot;
+	}
+
+	private static long hash(int dimension) {
+		// the finalizer of MurmurHash3
+		long h = PROJECTION_SEED ^ (dimension * 0x9E3779B97F4A7C15L);
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -31,23 +31,27 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
 import macsy.lib.AUC;
-import macsy.lib.BasicLinearModel;
 import macsy.lib.DataPoint;
 import macsy.lib.Helpers;
 import macsy.lib.LinearModel;
+import macsy.lib.LinearModelFactory;
 import macsy.lib.Results;
+import macsy.lib.SparseVector;
 import macsy.lib.Helpers.SGDLearningRateStrategy;
 import macsy.lib.Helpers.SGDLoss;
 import macsy.lib.Helpers.SGDRegularizerFunction;
 import macsy.lib.Helpers.SGDTransfertFunction;
 
 
-public class SGD implements OnlineLearning {
+public class SGD implements PairwiseLearning {
 	// variable for the time (timestamp)
 	private long timestamp;
 	// variable to store the desired precision the user defines. This is used
@@ -144,6 +148,23 @@ public class SGD implements OnlineLearning {
 	Double _lambdaReg = 1.0;
 	DataPoint[] posComponentsOfWForL1;
 
+	// Lazy regularization: per sample only the features of the sample are
+	// touched (see setLazyRegularization)
+	boolean _lazyRegularization = false;
+	// L2: the actual weights are _wScale * (the weights of linearModel)
+	private double _wScale = 1.0;
+	// below this _wScale is folded into the weights of linearModel
+	private static final double MIN_W_SCALE = 1e-9;
+	// L1: featureID to {u, v, cumulative penalty already applied}
+	private Map<Integer, double[]> _lazyL1Components = null;
+	// L1: cumulative penalty lambda * sum(eta) of all samples so far
+	private double _cumulativeL1Penalty = 0.0;
+
+	// Mini-batch mode: one step per _miniBatchSize samples (see
+	// setMiniBatchSize)
+	private int _miniBatchSize = 1;
+	private List<DataPoint> _pendingSamples = new ArrayList<DataPoint>();
+
 	Date lastDate = null;
 
 	public void setLearningRateStrategy(
@@ -164,9 +185,96 @@ public class SGD implements OnlineLearning {
 	}
 
 	public void setRegularizerFunction(SGDRegularizerFunction regularizer) {
+		materializeLazyWeights();
 		_regularizer = regularizer;
 	}
 
+	/**
+	 * Enables/disables lazy regularization.
+	 * 
+	 * The eager path rewrites the whole weight vector on every sample, so its
+	 * cost grows with the vocabulary. In lazy mode each sample only touches
+	 * its own features:
+	 * 
+	 * L2: w is kept as a scalar times the weights of the model, so that the
+	 * shrinking w = (1 - lambda*eta)w is a single multiplication.
+	 * 
+	 * L1: each feature records the cumulative penalty lambda*sum(eta) applied
+	 * to it, and the missing penalty (with clipping) is applied the next time
+	 * the feature is met (cumulative penalty truncated gradient).
+	 * 
+	 * Both give the same model as the eager path (within floating point
+	 * precision). The model is brought up to date by getLinearModel() and
+	 * saveModel().
+	 * 
+	 * @param lazy
+	 */
+	public void setLazyRegularization(boolean lazy) {
+		if (lazy == _lazyRegularization)
+			return;
+		if (lazy) {
+			if (posComponentsOfWForL1 != null
+					&& posComponentsOfWForL1[0] != null
+					&& posComponentsOfWForL1[0].getSparseVector().size() > 0) {
+				SparseVector u = posComponentsOfWForL1[0].getSparseVector();
+				_lazyL1Components = new HashMap<Integer, double[]>();
+				for (int k = 0; k < u.size(); k++)
+					_lazyL1Components.put(u.indexAt(k), new double[] {
+							u.valueAt(k),
+							posComponentsOfWForL1[1].getSparseVector().get(
+									u.indexAt(k)),
+							_cumulativeL1Penalty });
+			}
+		} else {
+			materializeLazyWeights();
+			if (_lazyL1Components != null) {
+				Map<Integer, Double> u = new TreeMap<Integer, Double>();
+				Map<Integer, Double> v = new TreeMap<Integer, Double>();
+				for (Map.Entry<Integer, double[]> e : _lazyL1Components
+						.entrySet()) {
+					u.put(e.getKey(), e.getValue()[0]);
+					v.put(e.getKey(), e.getValue()[1]);
+				}
+				posComponentsOfWForL1[0] = new DataPoint(u);
+				posComponentsOfWForL1[1] = new DataPoint(v);
+				_lazyL1Components = null;
+			}
+		}
+		_lazyRegularization = lazy;
+	}
+
+	/**
+	 * Sets the number of samples of a step. With 1 (the default) each sample
+	 * is a step, as before. With B > 1 train() keeps the samples until B of
+	 * them are given, and then makes one step with the mean of their
+	 * gradients: the B samples are predicted with the same weights, the
+	 * statistics are updated for each of them, and the weights (and the
+	 * regularization) are updated once. The samples not yet used are used by
+	 * flushMiniBatch(), which saveModel() and saveAll() call.
+	 * 
+	 * @param miniBatchSize
+	 * @throws Exception
+	 */
+	public void setMiniBatchSize(int miniBatchSize) throws Exception {
+		if (miniBatchSize < 1)
+			throw new Exception("SGD mini-batch size must be at least 1: "
+					+ miniBatchSize);
+		flushMiniBatch();
+		_miniBatchSize = miniBatchSize;
+	}
+
+	public int getMiniBatchSize() {
+		return _miniBatchSize;
+	}
+
+	/**
+	 * Returns the number of samples kept by train() for the next mini-batch
+	 * step (0 after each step, and always 0 without mini-batches).
+	 */
+	public int getPendingSampleCount() {
+		return _pendingSamples.size();
+	}
+
 	public void setLoss(SGDLoss loss) {
 		setRegularizerFunction(SGDRegularizerFunction.NONE);
 		switch (loss) {
@@ -308,36 +416,104 @@ public class SGD implements OnlineLearning {
 	}
 
 	private boolean checkAndRecordError(DataPoint sample) {
-		boolean error = sample.getPredictedLabel() != sample.getRealLabel();
+		return checkAndRecordError(sample.getPredictedLabel(),
+				sample.getRealLabel());
+	}
+
+	private boolean checkAndRecordError(int predictedLabel, int realLabel) {
+		boolean error = predictedLabel != realLabel;
 		if (!error) { // Correct prediction
-			int T = (sample.getPredictedLabel() == Helpers.LABEL_POS_CLASS) ? TP
-					: TN;
+			int T = (predictedLabel == Helpers.LABEL_POS_CLASS) ? TP : TN;
 			getStatisticsMatrix()[T]++;
 		} else {// Incorrect prediction
-			int F = (sample.getPredictedLabel() == Helpers.LABEL_NEG_CLASS) ? FP
-					: FN;
+			int F = (predictedLabel == Helpers.LABEL_NEG_CLASS) ? FP : FN;
 			getStatisticsMatrix()[F]++;
 		}
 		return error;
 	}
 
 	public void updateLearningFactor(int epoch) {
+		setLearningFactor(learningFactorAt(epoch));
+	}
+
+	/**
+	 * Returns the learning factor of the given step.
+	 */
+	double learningFactorAt(int epoch) {
 		switch (_learningRateStrategy) {
 		case CONSTANT:
 			break;
 		case DECAYING:
-			setLearningFactor(1.0 / (1.0 + _lambdaReg * (double) epoch));
-			break;
+			return 1.0 / (1.0 + _lambdaReg * (double) epoch);
 		case ADAPTIVE:
-			setLearningFactor(1.0); // FIXME implements the SGD rule here
-			break;
+			return 1.0; // FIXME implements the SGD rule here
 		}
+		return _learningFactor;
+	}
+
+	/**
+	 * Returns the number of steps so far.
+	 */
+	int getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * Adds the statistics of samples trained outside train() (see
+	 * ParallelSGDTrainer), and moves on the step counter and the learning
+	 * factor. The confusion matrix is exact. As the order of the samples is
+	 * not known, each exponential moving average is moved to its expected
+	 * value for the samples in a random order (the AUC is not changed).
+	 */
+	void mergeStatistics(ParallelSGDTrainer.Statistics stats) {
+		long n = stats.size();
+		if (n == 0)
+			return;
+		StatisticsMatrix[TP] += stats.tp;
+		StatisticsMatrix[TN] += stats.tn;
+		StatisticsMatrix[FP] += stats.fp;
+		StatisticsMatrix[FN] += stats.fn;
+
+		// (1 - a) is the weight of the past in the error and class counters
+		double keep = Math.pow(1.0 - expMovingAverage_a, n);
+		expMovingAverage_error = keep * expMovingAverage_error + (1.0 - keep)
+				* stats.errors() / n;
+		N_hat_Pos = keep * N_hat_Pos + (1.0 - keep) * stats.positives
+				/ (n * expMovingAverage_a);
+		N_hat_Neg = keep * N_hat_Neg + (1.0 - keep) * stats.negatives
+				/ (n * expMovingAverage_a);
+
+		// a is the weight of the past in the mean scores
+		if (stats.positives > 0) {
+			double mean = stats.positiveScores / stats.positives;
+			double keepPos = first_pos ? 0.0 : Math.pow(expMovingAverage_a,
+					stats.positives);
+			M_pos = keepPos * M_pos + (1.0 - keepPos) * mean;
+			first_pos = false;
+		}
+		if (stats.negatives > 0) {
+			double mean = stats.negativeScores / stats.negatives;
+			double keepNeg = first_neg ? 0.0 : Math.pow(expMovingAverage_a,
+					stats.negatives);
+			M_neg = keepNeg * M_neg + (1.0 - keepNeg) * mean;
+			first_neg = false;
+		}
+
+		epoch += n;
+		updateLearningFactor(epoch);
 	}
 
 	@Override
 	public void train(DataPoint sample) throws Exception {
+		if (_miniBatchSize > 1) {
+			_pendingSamples.add(sample);
+			if (_pendingSamples.size() >= _miniBatchSize)
+				flushMiniBatch();
+			return;
+		}
+
 		// basic info
-		double yHat = linearModel.predict(sample);
+		double yHat = modelPredict(sample);
 		sample.setPredictedLabel_Value(yHat);
 		Integer predictedLabel = (yHat > 0) ? Helpers.LABEL_POS_CLASS
 				: Helpers.LABEL_NEG_CLASS;
@@ -349,22 +525,7 @@ public class SGD implements OnlineLearning {
 		boolean error = checkAndRecordError(sample);
 
 		// compute error value with transfer function
-		Double errorValue = null;
-		switch (_transfer) {
-		case SIGN:
-			errorValue = error ? learningProcessSign(realLabel, predictedLabel)
-					: 0.0;
-			break;
-		case LOGISTIC:
-			errorValue = learningProcessLogistic(realLabel, yHat);
-			break;
-		case LINEAR:
-			errorValue = learningProcessLinear(realLabel, yHat);
-			break;
-		case HINGE:
-			errorValue = learningProcessHinge(realLabel, yHat);
-			break;
-		}
+		double errorValue = errorValue(realLabel, predictedLabel, error, yHat);
 
 		++epoch;
 //		Date curDate = Helpers.extractDateFromArticleId((ObjectId) sample
@@ -375,6 +536,193 @@ public class SGD implements OnlineLearning {
 //		}
 		updateLearningFactor(epoch);
 
+		if (_lazyRegularization)
+			updateWeightsLazy(sample, errorValue, errorValue);
+		else
+			updateWeights(sample, errorValue, errorValue);
+
+		// calculate the error rate (exponential moving error average)
+		update_exponentialMovingAverageError(error);
+		// update the counter of the negative instances
+		update_exponentialMovingAverageCounter(sample.getRealLabel());
+		statsGetAUC(sample);
+		// if (error)
+		// throw new Exception("Done.");
+	}
+
+	/**
+	 * Trains on the samples in turn (with mini-batches, see setMiniBatchSize)
+	 */
+	@Override
+	public void trainBatch(List<DataPoint> samples) throws Exception {
+		for (DataPoint sample : samples)
+			train(sample);
+	}
+
+	/**
+	 * Predicts the samples with the current model, as predict()
+	 */
+	@Override
+	public double[] predictBatch(List<DataPoint> samples) throws Exception {
+		double[] predictions = new double[samples.size()];
+		int i = 0;
+		for (DataPoint sample : samples)
+			predictions[i++] = modelPredict(sample);
+		return predictions;
+	}
+
+	/**
+	 * Makes a step with the samples kept by train() in mini-batch mode, if
+	 * any.
+	 * 
+	 * @throws Exception
+	 */
+	public void flushMiniBatch() throws Exception {
+		if (_pendingSamples.isEmpty())
+			return;
+		List<DataPoint> batch = _pendingSamples;
+		_pendingSamples = new ArrayList<DataPoint>();
+		trainMiniBatch(batch);
+	}
+
+	/**
+	 * One step with the mean gradient of the samples. All the samples are
+	 * predicted with the weights before the step.
+	 */
+	private void trainMiniBatch(List<DataPoint> batch) throws Exception {
+		SparseVector gradient = new SparseVector();
+		double errorSum = 0.0;
+		for (DataPoint sample : batch) {
+			double score = modelScore(sample);
+			double yHat = score - linearModel.getB();
+			sample.setPredictedLabel_Value(yHat);
+			int predictedLabel = (yHat > 0) ? Helpers.LABEL_POS_CLASS
+					: Helpers.LABEL_NEG_CLASS;
+			sample.setPredictedLabel(predictedLabel);
+			int realLabel = sample.getRealLabel();
+
+			updateNum(realLabel, score);
+			boolean error = checkAndRecordError(predictedLabel, realLabel);
+			double errorValue = errorValue(realLabel, predictedLabel, error,
+					yHat);
+			if (errorValue != 0.0)
+				gradient.addScaled(sample.getSparseVector(), errorValue);
+			errorSum += errorValue;
+
+			update_exponentialMovingAverageError(error);
+			update_exponentialMovingAverageCounter(realLabel);
+			statsGetAUC(realLabel, yHat);
+		}
+		gradient.scale(1.0 / batch.size());
+
+		++epoch;
+		updateLearningFactor(epoch);
+
+		// the mean gradient is the sample, with error value 1
+		DataPoint mean = new DataPoint(gradient);
+		double biasError = errorSum / batch.size();
+		if (_lazyRegularization)
+			updateWeightsLazy(mean, 1.0, biasError);
+		else
+			updateWeights(mean, 1.0, biasError);
+	}
+
+	/**
+	 * Returns w.x (without the bias), taking into account the pending lazy
+	 * regularization.
+	 */
+	@Override
+	public double score(DataPoint x) throws Exception {
+		return modelScore(x);
+	}
+
+	/**
+	 * Same as train() on the pair sample z = scale * (x - y), where the margin
+	 * w.z is given (see PairwiseLearning). As the regularizers work on the
+	 * whole update, z is built, but only if the weights are updated. In
+	 * mini-batch mode z is kept by train() and the model changes only when
+	 * the mini-batch is flushed.
+	 */
+	@Override
+	public boolean trainPair(DataPoint x, DataPoint y, double scale,
+			double squaredNorm, double margin, int label) throws Exception {
+		if (_miniBatchSize > 1) {
+			train(pairSample(x, y, scale, label));
+			return _pendingSamples.isEmpty();
+		}
+
+		double yHat = margin - linearModel.getB();
+		int predictedLabel = (yHat > 0) ? Helpers.LABEL_POS_CLASS
+				: Helpers.LABEL_NEG_CLASS;
+
+		// update stats
+		updateNum(label, margin);
+		boolean error = checkAndRecordError(predictedLabel, label);
+
+		double errorValue = errorValue(label, predictedLabel, error, yHat);
+
+		++epoch;
+		updateLearningFactor(epoch);
+
+		// without error, regularization or bias the update only resets the
+		// bias (see updateWeights())
+		boolean update = errorValue != 0.0
+				|| _regularizer != SGDRegularizerFunction.NONE || _updateBias
+				|| linearModel.getB() != 0.0;
+		if (update) {
+			DataPoint sample = pairSample(x, y, scale, label);
+			if (_lazyRegularization)
+				updateWeightsLazy(sample, errorValue, errorValue);
+			else
+				updateWeights(sample, errorValue, errorValue);
+		}
+
+		update_exponentialMovingAverageError(error);
+		update_exponentialMovingAverageCounter(label);
+		statsGetAUC(label, yHat);
+		return update;
+	}
+
+	/**
+	 * Returns the pair sample z = scale * (x - y) with given label.
+	 */
+	private static DataPoint pairSample(DataPoint x, DataPoint y,
+			double scale, int label) {
+		SparseVector z = SparseVector.difference(x.getSparseVector(),
+				y.getSparseVector());
+		z.scale(scale);
+		DataPoint sample = new DataPoint(z);
+		sample.setRealLabel(label);
+		return sample;
+	}
+
+	/**
+	 * Returns the error value of the transfer function.
+	 */
+	double errorValue(int realLabel, int predictedLabel,
+			boolean error, double yHat) throws Exception {
+		switch (_transfer) {
+		case SIGN:
+			return error ? learningProcessSign(realLabel, predictedLabel) : 0.0;
+		case LOGISTIC:
+			return learningProcessLogistic(realLabel, yHat);
+		case LINEAR:
+			return learningProcessLinear(realLabel, yHat);
+		case HINGE:
+			return learningProcessHinge(realLabel, yHat);
+		}
+		return 0.0;
+	}
+
+	/**
+	 * Regularizes and updates the whole weight vector.
+	 * 
+	 * @param biasErrorValue
+	 *            : the error value of the bias update (errorValue, but for a
+	 *            mini-batch, where the sample is the mean gradient)
+	 */
+	private void updateWeights(DataPoint sample, double errorValue,
+			double biasErrorValue) throws Exception {
 		// then regularize the weights
 		DataPoint wNew = linearModel.getW();
 		switch (_regularizer) {
@@ -392,7 +740,7 @@ public class SGD implements OnlineLearning {
 
 		// update the bias, if needed, according to the error made and the
 		// learning factor
-		Double biasUpdate = _updateBias ? errorValue * _learningFactor
+		Double biasUpdate = _updateBias ? biasErrorValue * _learningFactor
 				* linearModel.getB() : 0.0;
 
 		// update the weight according to the error made and the learning factor
@@ -414,14 +762,156 @@ public class SGD implements OnlineLearning {
 		linearModel.setW(wNew);
 		if (_updateBias)
 			linearModel.setB(biasNew);
+	}
 
-		// calculate the error rate (exponential moving error average)
-		update_exponentialMovingAverageError(error);
-		// update the counter of the negative instances
-		update_exponentialMovingAverageCounter(sample.getRealLabel());
-		statsGetAUC(sample);
-		// if (error)
-		// throw new Exception("Done.");
+	/**
+	 * Same as updateWeights() but only the features of the sample are
+	 * touched.
+	 */
+	private void updateWeightsLazy(DataPoint sample, double errorValue,
+			double biasErrorValue) throws Exception {
+		// as in updateWeights(), setW() resets the bias unless it is updated
+		double biasNew = _updateBias ? linearModel.getB() + biasErrorValue
+				* _learningFactor * linearModel.getB() : 0.0;
+
+		SparseVector x = sample.getSparseVector();
+		double step = errorValue * _learningFactor;
+		switch (_regularizer) {
+		case NONE:
+			for (int k = 0; k < x.size(); k++)
+				linearModel.addToWi(x.indexAt(k), x.valueAt(k) * step);
+			break;
+
+		case L2:
+			double shrink = 1.0 - _lambdaReg * _learningFactor;
+			if (shrink == 0.0) {
+				// w = 0
+				linearModel.setW(new DataPoint());
+				_wScale = 1.0;
+			} else
+				_wScale *= shrink;
+			double scaledStep = errorValue * (_learningFactor / _wScale);
+			for (int k = 0; k < x.size(); k++)
+				linearModel.addToWi(x.indexAt(k), x.valueAt(k) * scaledStep);
+			if (Math.abs(_wScale) < MIN_W_SCALE)
+				materializeLazyWeights();
+			break;
+
+		case L1:
+			if (_lazyL1Components == null) {
+				// w is rebuilt from u and v only (as in buildWfromClippedL1Weights)
+				_lazyL1Components = new HashMap<Integer, double[]>();
+				linearModel.setW(new DataPoint());
+			}
+			double penalty = _lambdaReg * _learningFactor;
+			for (int k = 0; k < x.size(); k++) {
+				int i = x.indexAt(k);
+				double[] c = _lazyL1Components.get(i);
+				double uNew = step * x.valueAt(k);
+				double vNew = -step * x.valueAt(k);
+				if (c == null) {
+					// new component: nothing to regularize yet
+					c = new double[3];
+					_lazyL1Components.put(i, c);
+				} else {
+					catchUpL1(c);
+					uNew += c[0] - penalty;
+					vNew += c[1] - penalty;
+				}
+				c[0] = Math.max(0.0, uNew);
+				c[1] = Math.max(0.0, vNew);
+				c[2] = _cumulativeL1Penalty + penalty;
+				linearModel.setWi(i, c[0] - c[1]);
+			}
+			_cumulativeL1Penalty += penalty;
+			break;
+		}
+
+		linearModel.setB(biasNew);
+	}
+
+	/**
+	 * Applies to u and v the L1 penalty of the samples since they were last
+	 * updated. Clipping after each penalty is the same as clipping once after
+	 * their sum, as u, v >= 0.
+	 */
+	private void catchUpL1(double[] c) {
+		double pending = _cumulativeL1Penalty - c[2];
+		if (pending != 0.0) {
+			c[0] = Math.max(0.0, c[0] - pending);
+			c[1] = Math.max(0.0, c[1] - pending);
+			c[2] = _cumulativeL1Penalty;
+		}
+	}
+
+	/**
+	 * Brings the weights of linearModel up to date (lazy regularization).
+	 */
+	private void materializeLazyWeights() {
+		if (!_lazyRegularization || linearModel == null)
+			return;
+
+		if (_wScale != 1.0) {
+			double b = linearModel.getB();
+			DataPoint w = linearModel.getW();
+			w.getSparseVector().scale(_wScale);
+			linearModel.setW(w);
+			linearModel.setB(b);
+			_wScale = 1.0;
+		}
+
+		if (_lazyL1Components != null)
+			for (Map.Entry<Integer, double[]> e : _lazyL1Components.entrySet()) {
+				double[] c = e.getValue();
+				catchUpL1(c);
+				linearModel.setWi(e.getKey(), c[0] - c[1]);
+			}
+	}
+
+	/**
+	 * flushMiniBatch() for the save methods, which only throw IOException.
+	 */
+	private void flushPendingSamples() throws IOException {
+		try {
+			flushMiniBatch();
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Returns wx, taking into account the pending lazy regularization.
+	 */
+	private double modelScore(DataPoint x) {
+		if (!_lazyRegularization)
+			return linearModel.score(x);
+
+		if (_regularizer == SGDRegularizerFunction.L2)
+			return _wScale * linearModel.score(x);
+
+		if (_regularizer == SGDRegularizerFunction.L1
+				&& _lazyL1Components != null) {
+			SparseVector features = x.getSparseVector();
+			for (int k = 0; k < features.size(); k++) {
+				double[] c = _lazyL1Components.get(features.indexAt(k));
+				if (c != null && c[2] != _cumulativeL1Penalty) {
+					catchUpL1(c);
+					linearModel.setWi(features.indexAt(k), c[0] - c[1]);
+				}
+			}
+		}
+		return linearModel.score(x);
+	}
+
+	/**
+	 * Returns wx - b, taking into account the pending lazy regularization.
+	 */
+	private double modelPredict(DataPoint x) {
+		if (!_lazyRegularization)
+			return linearModel.predict(x);
+		return modelScore(x) - linearModel.getB();
 	}
 
 	/**
@@ -441,16 +931,9 @@ public class SGD implements OnlineLearning {
 
 	private DataPoint learningProcess(DataPoint x, double errorValue,
 			double etha) throws Exception {
-		DataPoint wUpdate = new DataPoint();
-		Map<Integer, Double> xFeatures = x.getFeaturesMap();
-		Map<Integer, Double> wFeatures = wUpdate.getFeaturesMap();
-		for (Map.Entry<Integer, Double> e : xFeatures.entrySet()) {
-			Integer i = e.getKey();
-			Double x_i = e.getValue();
-			double errorAmount = errorValue * x_i * etha;
-			wFeatures.put(i, errorAmount);
-		}
-		return wUpdate;
+		SparseVector wFeatures = x.getSparseVector().copy();
+		wFeatures.scale(errorValue * etha);
+		return new DataPoint(wFeatures);
 	}
 
 	private double learningProcessSign(Integer realLabel, Integer predictedLabel)
@@ -553,7 +1036,7 @@ public class SGD implements OnlineLearning {
 	 */
 	@Override
 	public double predict(DataPoint sample) throws Exception {
-		return linearModel.predict(sample);
+		return modelPredict(sample);
 	}
 
 	/**
@@ -565,29 +1048,37 @@ public class SGD implements OnlineLearning {
 	 */
 	@Override
 	public void updateNum(DataPoint X) {
+		updateNum(X.getRealLabel(), modelScore(X));
+	}
+
+	/**
+	 * Same as updateNum(DataPoint) for a sample with given label and score wx
+	 */
+	private void updateNum(int realLabel, double score) {
 		// if this is the first time for the positive class initialise
-		if (first_pos && X.getRealLabel() == 1) {
-			M_pos = linearModel.score(X);
+		if (first_pos && realLabel == 1) {
+			M_pos = score;
 			first_pos = false;
 			return;
 		}
 		// if this is the first time for the negative class initialise
-		if (first_neg && X.getRealLabel() == -1) {
-			M_neg = linearModel.score(X);
+		if (first_neg && realLabel == -1) {
+			M_neg = score;
 			first_neg = false;
 			return;
 		}
 		// else
-		if (X.getRealLabel() == 1) {
+		if (realLabel == 1) {
 			M_pos = expMovingAverage_a * M_pos + (1 - expMovingAverage_a)
-					* linearModel.score(X);
+					* score;
 		} else {
 			M_neg = expMovingAverage_a * M_neg + (1 - expMovingAverage_a)
-					* linearModel.score(X);
+					* score;
 		}
 	}
 
 	public void saveAll(String filename) throws IOException {
+		flushPendingSamples();
 		Results logResults = new Results(".", filename + ".log", true, true);
 
 		String str = desiredPrecision + "\t" + linearModel.getB() + "\t"
@@ -603,6 +1094,9 @@ public class SGD implements OnlineLearning {
 		logResults.print(Long.toString(this.timestamp) + "\t");
 		logResults.println(str);
 		logResults.SaveOutput();
+		materializeLazyWeights();
+		linearModel.setTrainingCounters(TrainingCounters.of(N_overall,
+				StatisticsMatrix));
 		linearModel.saveModel(filename);
 	}
 
@@ -618,9 +1112,22 @@ public class SGD implements OnlineLearning {
 
 		// filename += filename + ".model";
 		filename = filename + ".model";
+		flushPendingSamples();
+		materializeLazyWeights();
+		linearModel.setTrainingCounters(TrainingCounters.of(N_overall,
+				StatisticsMatrix));
 		linearModel.saveModel(filename);
 	}
 
+	/**
+	 * A step may update all the weights (e.g. the regularisation), so there is
+	 * no delta log and the model is saved in full.
+	 */
+	@Override
+	public void saveCheckpoint(String filename) throws IOException {
+		saveModel(filename);
+	}
+
 	public void saveLog(String filename) throws IOException {
 
 		Results logResults = new Results(".", filename + ".log", true, true);
@@ -675,11 +1182,23 @@ public class SGD implements OnlineLearning {
 	 *            :The filename the model will be stored
 	 */
 	@Override
-	public void loadModel(String filename) {
+	public void loadModel(String filename) throws Exception {
+		// initialise the weights (if the model is not already saved make
+		// one with zeros)
+		linearModel = LinearModelFactory.loadModel(filename + ".model");
 		try {
-			// initialise the weights (if the model is not already saved make
-			// one with zeros)
-			linearModel = new BasicLinearModel(filename + ".model");
+			_wScale = 1.0;
+			if (_lazyL1Components != null) {
+				// w is rebuilt from u and v (as in buildWfromClippedL1Weights)
+				double b = linearModel.getB();
+				linearModel.setW(new DataPoint());
+				linearModel.setB(b);
+				materializeLazyWeights();
+			}
+
+			// the counters saved with the model, for a model without a log
+			N_overall = TrainingCounters.restore(linearModel, StatisticsMatrix,
+					N_overall);
 
 			// LOAD LOG FILE
 			File loginFilename = new File(filename + ".log");
@@ -764,10 +1283,18 @@ public class SGD implements OnlineLearning {
 	 * @throws Exception
 	 */
 	private void statsGetAUC(DataPoint sample) throws Exception {
-		if (sample.getRealLabel() >= 0) {
-			AUC_object.setLast_pos_score(linearModel.predict(sample));
+		statsGetAUC(sample.getRealLabel(), modelPredict(sample));
+	}
+
+	/**
+	 * Same as statsGetAUC(DataPoint) for a sample with given label and
+	 * prediction wx - b
+	 */
+	private void statsGetAUC(int realLabel, double prediction) throws Exception {
+		if (realLabel >= 0) {
+			AUC_object.setLast_pos_score(prediction);
 		} else {
-			AUC_object.setLast_neg_score(linearModel.predict(sample));
+			AUC_object.setLast_neg_score(prediction);
 		}
 
 		// System.out.println(AUC_object.getLast_pos_score()+ " , " +
@@ -982,6 +1509,7 @@ public class SGD implements OnlineLearning {
 	@Override
 	public LinearModel getLinearModel() {
 		// TODO: This should return a deep copy!!!
+		materializeLazyWeights();
 		return linearModel;
 	}
 
@@ -0,0 +1,66 @@
+package macsy.lib.onlineLearning;
+
+import macsy.lib.LinearModel;
+
+/**
+ * The training counters that the learners save with their model (see
+ * LinearModel.setTrainingCounters()): N_overall, TP, FP, TN, FN.
+ *
+ * The confusion matrix of a learner is a long[4] indexed by TP, TN, FP, FN.
+ *
+ */
+final class TrainingCounters {
+
+	static final int TP = 0;
+	static final int TN = 1;
+	static final int FP = 2;
+	static final int FN = 3;
+
+	private TrainingCounters() {
+	}
+
+	/**
+	 * Returns the counters to save with the model.
+	 *
+	 * @param nOverall
+	 *            : the number of samples seen
+	 * @param statisticsMatrix
+	 *            : the confusion matrix
+	 */
+	static long[] of(int nOverall, long[] statisticsMatrix) {
+		return new long[] { nOverall, statisticsMatrix[TP],
+				statisticsMatrix[FP], statisticsMatrix[TN],
+				statisticsMatrix[FN] };
+	}
+
+	/**
+	 * Returns true if the model was loaded (or recovered from its checkpoint)
+	 * with training counters.
+	 */
+	static boolean isSaved(LinearModel model) {
+		long[] counters = model.getTrainingCounters();
+		return counters != null && counters.length >= 5;
+	}
+
+	/**
+	 * Copies the confusion matrix saved with the model into statisticsMatrix
+	 * and returns N_overall. If the model has no counters (e.g. a text model)
+	 * statisticsMatrix is unchanged and nOverall is returned.
+	 *
+	 * @param model
+	 * @param statisticsMatrix
+	 * @param nOverall
+	 *            : the current number of samples seen
+	 */
+	static int restore(LinearModel model, long[] statisticsMatrix,
+			int nOverall) {
+		if (!isSaved(model))
+			return nOverall;
+		long[] counters = model.getTrainingCounters();
+		statisticsMatrix[TP] = counters[1];
+		statisticsMatrix[FP] = counters[2];
+		statisticsMatrix[TN] = counters[3];
+		statisticsMatrix[FN] = counters[4];
+		return (int) counters[0];
+	}
+}
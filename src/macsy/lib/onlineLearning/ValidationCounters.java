@@ -0,0 +1,69 @@
+package macsy.lib.onlineLearning;
+
+/**
+ * The validation counters of a learner (see
+ * OnlineLearning.update_validationError()): the confusion matrix, the number
+ * of positive and negative samples and the exponential moving average of the
+ * error of the samples that were predicted but not used for training.
+ *
+ */
+final class ValidationCounters {
+
+	private int n;
+	private int tp;
+	private int tn;
+	private int fp;
+	private int fn;
+	private int nPos;
+	private int nNeg;
+	private double expMovingAverageError;
+
+	/**
+	 * Counts the prediction of a validation sample.
+	 *
+	 * @param prediction
+	 *            : w.x - b, positive for the positive class
+	 * @param realLabel
+	 *            : 1 or -1
+	 * @param a
+	 *            : the factor of the exponential moving average of the
+	 *            learner
+	 */
+	void update(double prediction, int realLabel, double a) {
+		++n;
+		nPos += realLabel == 1 ? 1 : 0;
+		nNeg += realLabel == -1 ? 1 : 0;
+		tp += prediction > 0 && realLabel == 1 ? 1 : 0;
+		fp += prediction > 0 && realLabel == -1 ? 1 : 0;
+		tn += prediction <= 0 && realLabel == -1 ? 1 : 0;
+		fn += prediction <= 0 && realLabel == 1 ? 1 : 0;
+
+		boolean error = prediction > 0 && realLabel == -1 || prediction <= 0
+				&& realLabel == 1;
+		expMovingAverageError = a * (error ? 1 : 0) + (1.0 - a)
+				* expMovingAverageError;
+	}
+
+	double getExpMovingAverageError() {
+		return expMovingAverageError;
+	}
+
+	/**
+	 * Returns the confusion matrix TP, TN, FP, FN.
+	 */
+	double[] getConfusion() {
+		return new double[] { tp, tn, fp, fn };
+	}
+
+	int getN() {
+		return n;
+	}
+
+	int getNpos() {
+		return nPos;
+	}
+
+	int getNneg() {
+		return nNeg;
+	}
+}
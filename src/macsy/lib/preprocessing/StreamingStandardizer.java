@@ -0,0 +1,196 @@
+package macsy.lib.preprocessing;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import macsy.lib.DataPoint;
+import macsy.lib.SparseVector;
+
+/**
+ * One-pass standardisation of the features: x_i <- (x_i - mean_i) / std_i.
+ *
+ * The mean and variance of each feature are updated with each sample
+ * (Welford's algorithm) in primitive arrays indexed by feature ID, so the
+ * samples do not have to be kept for the statistics. The statistics of a
+ * feature are over the samples that have it, and only the features of a
+ * sample are standardised, so sparse vectors stay sparse. Features with std 0
+ * are set to 0, as in FeatureStandardizer.
+ *
+ * With endDay() the statistics carry across days with exponential decay: the
+ * weight of the past samples is multiplied by the decay factor (0 := each day
+ * on its own, as FeatureStandardizer, 1 := all days with the same weight).
+ *
+ * The statistics can be saved next to the model with save() and load().
+ * Features with negative IDs are not standardised.
+ *
+ */
+public class StreamingStandardizer {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private double decay;
+
+	// per feature ID: the (decayed) number of samples, the mean and the sum of
+	// squared differences from the mean
+	private double[] count = new double[INITIAL_CAPACITY];
+	private double[] mean = new double[INITIAL_CAPACITY];
+	private double[] m2 = new double[INITIAL_CAPACITY];
+
+	/**
+	 * @param decay
+	 *            : the weight of the past samples after each day, in [0, 1]
+	 */
+	public StreamingStandardizer(double decay) throws Exception {
+		setDecay(decay);
+	}
+
+	public void setDecay(double decay) throws Exception {
+		if (decay < 0.0 || decay > 1.0)
+			throw new Exception("Standardizer decay must be in [0, 1]: "
+					+ decay);
+		this.decay = decay;
+	}
+
+	public double getDecay() {
+		return decay;
+	}
+
+	private void ensureCapacity(int featureID) {
+		if (featureID < count.length)
+			return;
+		int capacity = Math.max(featureID + 1, 2 * count.length);
+		count = grow(count, capacity);
+		mean = grow(mean, capacity);
+		m2 = grow(m2, capacity);
+	}
+
+	private static double[] grow(double[] a, int capacity) {
+		double[] res = new double[capacity];
+		System.arraycopy(a, 0, res, 0, a.length);
+		return res;
+	}
+
+	/**
+	 * Adds the features of the sample to the statistics.
+	 */
+	public void update(DataPoint x) {
+		SparseVector features = x.getSparseVector();
+		for (int k = 0; k < features.size(); k++) {
+			int i = features.indexAt(k);
+			if (i < 0)
+				continue;
+			ensureCapacity(i);
+			double value = features.valueAt(k);
+			count[i] += 1.0;
+			double delta = value - mean[i];
+			mean[i] += delta / count[i];
+			m2[i] += delta * (value - mean[i]);
+		}
+	}
+
+	/**
+	 * Standardises the features of the sample in place with the current
+	 * statistics.
+	 */
+	public void standardize(DataPoint x) {
+		SparseVector features = x.getSparseVector();
+		for (int k = 0; k < features.size(); k++) {
+			int i = features.indexAt(k);
+			if (i < 0)
+				continue;
+			double std = getStd(i);
+			features.setValueAt(k, std > 0.0 ? (features.valueAt(k) - mean[i])
+					/ std : 0.0);
+		}
+	}
+
+	/**
+	 * Applies the decay to the statistics, before the samples of the next day.
+	 */
+	public void endDay() {
+		if (decay == 1.0)
+			return;
+		for (int i = 0; i < count.length; i++) {
+			count[i] *= decay;
+			m2[i] *= decay;
+		}
+	}
+
+	/**
+	 * Returns the mean of the feature (0 if never seen).
+	 */
+	public double getMean(int featureID) {
+		return featureID >= 0 && featureID < mean.length ? mean[featureID] : 0.0;
+	}
+
+	/**
+	 * Returns the (population) standard deviation of the feature (0 if never
+	 * seen).
+	 */
+	public double getStd(int featureID) {
+		if (featureID < 0 || featureID >= count.length
+				|| count[featureID] <= 0.0)
+			return 0.0;
+		return Math.sqrt(Math.max(0.0, m2[featureID] / count[featureID]));
+	}
+
+	/**
+	 * Saves the statistics: a line "decay <decay>" and then a line
+	 * "<featureID> <count> <mean> <m2>" per feature.
+	 *
+	 * @param fileName
+	 * @throws IOException
+	 */
+	public void save(String fileName) throws IOException {
+		BufferedWriter out = new BufferedWriter(new FileWriter(fileName));
+		try {
+			out.write("decay\t" + decay + "\n");
+			for (int i = 0; i < count.length; i++)
+				if (count[i] > 0.0)
+					out.write(i + "\t" + count[i] + "\t" + mean[i] + "\t"
+							+ m2[i] + "\n");
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Loads the statistics saved by save(), if the file exists. The decay is
+	 * not changed.
+	 *
+	 * @param fileName
+	 * @return true if the file was loaded
+	 * @throws Exception
+	 */
+	public boolean load(String fileName) throws Exception {
+		if (!new File(fileName).exists())
+			return false;
+
+		BufferedReader in = new BufferedReader(new FileReader(fileName));
+		try {
+			String line = in.readLine();
+			if (line == null || !line.startsWith("decay"))
+				throw new Exception("Not a standardizer file: " + fileName);
+			count = new double[INITIAL_CAPACITY];
+			mean = new double[INITIAL_CAPACITY];
+			m2 = new double[INITIAL_CAPACITY];
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (fields.length != 4)
+					continue;
+				int i = Integer.parseInt(fields[0]);
+				ensureCapacity(i);
+				count[i] = Double.parseDouble(fields[1]);
+				mean[i] = Double.parseDouble(fields[2]);
+				m2[i] = Double.parseDouble(fields[3]);
+			}
+		} finally {
+			in.close();
+		}
+		return true;
+	}
+}
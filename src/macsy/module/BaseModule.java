@@ -14,7 +14,12 @@ import java.util.Properties;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
 
+import com.mongodb.WriteConcern;
+
+import macsy.blackBoardsSystem.AnnotationBatch;
+import macsy.blackBoardsSystem.BlackBoard;
 import macsy.blackBoardsSystem.BlackBoardsAPI;
+import macsy.lib.LinearModel;
 
 
 
@@ -80,6 +85,17 @@ public abstract class BaseModule {
 	private final String PROPERTY_OUTPUT_TAGS 		= "OUTPUT_TAGS";
 	private final String PROPERTY_OUTPUT_FIELDS 	= "OUTPUT_FIELDS";
 
+	//Optional Property Names for bulk writes (see newAnnotationBatch)
+	private final String PROPERTY_BATCH_SIZE 		= "BATCH_SIZE";
+	private final String PROPERTY_BATCH_FLUSH_MS 	= "BATCH_FLUSH_MS";
+	private final String PROPERTY_BATCH_WRITE_CONCERN = "BATCH_WRITE_CONCERN";
+
+	//Optional Property Name for the modules with a LinearModel (see setModelFormat)
+	private final String PROPERTY_MODEL_FORMAT 		= "MODEL_FORMAT";
+
+	//Batches created by the module. They are flushed by postRunModule().
+	private List<AnnotationBatch> _batches = new LinkedList<AnnotationBatch>();
+
 
 	private BaseModuleDAO _storage;
 
@@ -122,7 +138,7 @@ public abstract class BaseModule {
 	 * 
 	 * @throws Exception
 	 */
-	public void saveModuleResults(int docsInput, int docsOutput) throws Exception
+	public synchronized void saveModuleResults(int docsInput, int docsOutput) throws Exception
 	{
 		MODULE_NUM_INPUT += docsInput;
 		MODULE_NUM_OUTPUT+= docsOutput;
@@ -140,7 +156,7 @@ public abstract class BaseModule {
 	 * 
 	 * @throws Exception
 	 */
-	public void saveModuleResults(int docsInput, int docsOutput, String comment) throws Exception
+	public synchronized void saveModuleResults(int docsInput, int docsOutput, String comment) throws Exception
 	{
 		MODULE_NUM_INPUT += docsInput;
 		MODULE_NUM_OUTPUT+= docsOutput;
@@ -148,6 +164,58 @@ public abstract class BaseModule {
 	}
 
 
+	/**
+	 * Returns a new AnnotationBatch for the given BlackBoard. Updates made through the batch
+	 * are written in bulk, and any pending ones are written when the module finishes.
+	 * 
+	 * The batch is configured by the optional properties 
+	 * BATCH_SIZE (docs per bulk write), BATCH_FLUSH_MS (max delay of an update) and
+	 * BATCH_WRITE_CONCERN (e.g. ACKNOWLEDGED, UNACKNOWLEDGED, JOURNALED).
+	 * 
+	 * @param bb The BlackBoard that the batch will update.
+	 * @return The new batch.
+	 * @throws Exception
+	 */
+	public AnnotationBatch newAnnotationBatch(BlackBoard bb) throws Exception
+	{
+		int maxDocs = AnnotationBatch.DEFAULT_MAX_DOCS;
+		if(getProperty(PROPERTY_BATCH_SIZE)!=null)
+			maxDocs = Integer.parseInt(getProperty(PROPERTY_BATCH_SIZE));
+
+		long maxDelayMs = AnnotationBatch.DEFAULT_MAX_DELAY_MS;
+		if(getProperty(PROPERTY_BATCH_FLUSH_MS)!=null)
+			maxDelayMs = Long.parseLong(getProperty(PROPERTY_BATCH_FLUSH_MS));
+
+		WriteConcern writeConcern = WriteConcern.ACKNOWLEDGED;
+		if(getProperty(PROPERTY_BATCH_WRITE_CONCERN)!=null)
+		{
+			writeConcern = WriteConcern.valueOf(getProperty(PROPERTY_BATCH_WRITE_CONCERN));
+			if(writeConcern==null)
+				throw new Exception("Unknown write concern: "+getProperty(PROPERTY_BATCH_WRITE_CONCERN));
+		}
+
+		AnnotationBatch batch = bb.newAnnotationBatch(maxDocs, maxDelayMs, writeConcern);
+		synchronized(_batches) {
+			_batches.add(batch);
+		}
+		return batch;
+	}
+
+
+	/**
+	 * Sets the format in which the model is saved from the optional property 
+	 * MODEL_FORMAT (TEXT or BINARY). Without it the model keeps the format of its file
+	 * (TEXT for a new model).
+	 * 
+	 * @param model The model of the module.
+	 */
+	public void setModelFormat(LinearModel model)
+	{
+		if(getProperty(PROPERTY_MODEL_FORMAT)!=null)
+			model.setBinaryFormat(getProperty(PROPERTY_MODEL_FORMAT).equalsIgnoreCase("BINARY"));
+	}
+
+
 	/**
 	 * Executes the module. This is a three phase process:
 	 * Some initialization is made first,including the storing of the current timestamp;
@@ -173,6 +241,19 @@ public abstract class BaseModule {
 	abstract public void runModuleCore() throws Exception;
 
 
+	/**
+	 * Prepares the module to run as a stage of a ModulePipeline: loads its properties
+	 * and uses the API of the pipeline. The run is registered by the pipeline.
+	 * 
+	 * @param bbAPI The API of the pipeline.
+	 * @throws Exception
+	 */
+	void prepareStage(BlackBoardsAPI bbAPI) throws Exception
+	{
+		loadProperties();
+		this._bbAPI = bbAPI;
+	}
+
 	/**
 	 * Actions to be performed before the runModuleCore()
 	 * 
@@ -316,6 +397,13 @@ public abstract class BaseModule {
 	 * @throws Exception
 	 */
 	private void postRunModule() throws Exception  {
+		//Write any pending bulk updates
+		synchronized(_batches) {
+			for(AnnotationBatch batch : _batches)
+				batch.flush();
+			_batches.clear();
+		}
+
 		MODULE_LAST_FINISH_EXECUTION_DATE = new Date();
 
 		System.out.println("Finished: " + MODULE_NAME );
@@ -0,0 +1,345 @@
+package macsy.module;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import macsy.blackBoardsSystem.AnnotationBatch;
+import macsy.blackBoardsSystem.BBDoc;
+import macsy.blackBoardsSystem.BBDocSet;
+import macsy.blackBoardsSystem.BlackBoard;
+import macsy.blackBoardsSystem.BlackBoardDateBased;
+
+/**
+ * Runs several modules in one process, as stages connected by bounded queues.
+ *
+ * The docs with the input tags of the first stage are read once, with the fields
+ * of all stages, and pass through the stages in memory as PipelineDocs. A stage processes
+ * only the docs that carry its input tags (e.g. the output tag of the previous stage)
+ * and passes the rest on. The annotations of all stages are written when a doc leaves
+ * the last stage, with a single AnnotationBatch, so the tags that one stage adds for the
+ * next one and the fields the next one reads are never written and read back.
+ *
+ * Each stage is run by its own threads. A stage that is slower than the previous one
+ * fills its queue, which blocks the previous one (and so on up to the reading of the docs),
+ * so at most QUEUE_SIZE docs wait in front of each stage.
+ *
+ * Properties:
+ * INPUT_BLACKBOARD=The Black Board of the docs. The stages should use the same one.
+ * STAGES=Comma separated class names of the modules (see PipelineStage), e.g.
+ * macsy.module.featuresExtractorTFIDF.FeaturesExtractorTFIDF,macsy.module.onlineClassification.OnlineClassifierPerceptron
+ * STAGE_PROPERTIES=Comma separated properties files of the modules, in the same order.
+ * STAGE_THREADS=Comma separated number of threads per stage (Optional). Default 1 per stage.
+ * A stage may run with fewer threads (see PipelineStage.getMaxStageThreads()).
+ * QUEUE_SIZE=Max number of docs waiting in front of each stage (Optional). Default 1000.
+ * PROCESS_LIMIT=Max number of docs read.
+ * BATCH_SIZE, BATCH_FLUSH_MS, BATCH_WRITE_CONCERN=The writes of the annotations (Optional,
+ * see BaseModule.newAnnotationBatch()).
+ *
+ */
+public class ModulePipeline extends BaseModule {
+
+	//Property Names
+	private final String PROPERTY_STAGES 			= "STAGES";
+	private final String PROPERTY_STAGE_PROPERTIES 	= "STAGE_PROPERTIES";
+	private final String PROPERTY_STAGE_THREADS 	= "STAGE_THREADS";
+	private final String PROPERTY_QUEUE_SIZE 		= "QUEUE_SIZE";
+
+	public static final int DEFAULT_QUEUE_SIZE = 1000;
+
+	private final int PROGRESS_REPORT_DOCS = 1000;
+
+	/**
+	 * Marks the end of the docs in a queue. Each thread of a stage takes one.
+	 */
+	private static final PipelineDoc END = new PipelineDoc(new BBDoc());
+
+	/**
+	 * A stage with its threads and the queue of its docs.
+	 */
+	private static final class StageRunner implements PipelineStage.Output {
+		final String name;
+		final PipelineStage stage;
+		final List<Integer> inputTags;
+		final int threads;
+		final BlockingQueue<PipelineDoc> input;
+
+		//The queue of the next stage (or of the writer) and how many threads take from it
+		BlockingQueue<PipelineDoc> next;
+		int nextThreads;
+
+		final AtomicInteger running;
+		final AtomicLong processed = new AtomicLong();
+		final AtomicLong blockedNanos = new AtomicLong();
+
+		StageRunner(String name, PipelineStage stage, int threads, int queueSize)
+		{
+			this.name = name;
+			this.stage = stage;
+			this.inputTags = stage.getStageInputTags();
+			this.threads = threads;
+			this.input = new ArrayBlockingQueue<PipelineDoc>(queueSize);
+			this.running = new AtomicInteger(threads);
+		}
+
+		@Override
+		public void emit(PipelineDoc doc) throws Exception
+		{
+			long start = System.nanoTime();
+			next.put(doc);
+			blockedNanos.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	private final AtomicInteger docsRead = new AtomicInteger();
+	private ExecutorService pool = null;
+	private volatile Exception failure = null;
+
+	public ModulePipeline(String propertiesFileName) throws Exception
+	{
+		super(propertiesFileName);
+	}
+
+	@Override
+	public void runModuleCore() throws Exception
+	{
+		BlackBoardDateBased bb = _bbAPI.blackBoardLoadDateBased(MODULE_INPUT_BLACKBOARD);
+		AnnotationBatch batch = newAnnotationBatch(bb);
+
+		if(getProperty(PROPERTY_STAGES)==null || getProperty(PROPERTY_STAGE_PROPERTIES)==null)
+			throw new Exception("Set the "+PROPERTY_STAGES+" and "+PROPERTY_STAGE_PROPERTIES+" properties");
+		String[] classNames = getProperty(PROPERTY_STAGES).split(",");
+		String[] propertiesFiles = getProperty(PROPERTY_STAGE_PROPERTIES).split(",");
+		if(propertiesFiles.length!=classNames.length)
+			throw new Exception("Expected "+classNames.length+" "+PROPERTY_STAGE_PROPERTIES);
+
+		String[] threadCounts = null;
+		if(getProperty(PROPERTY_STAGE_THREADS)!=null)
+			threadCounts = getProperty(PROPERTY_STAGE_THREADS).split(",");
+
+		int queueSize = DEFAULT_QUEUE_SIZE;
+		if(getProperty(PROPERTY_QUEUE_SIZE)!=null)
+			queueSize = Integer.parseInt(getProperty(PROPERTY_QUEUE_SIZE).trim());
+
+		//Load the stages and the fields they read
+		List<StageRunner> stages = new ArrayList<StageRunner>();
+		List<String> fields = new ArrayList<String>();
+		fields.add(BlackBoard.DOC_TAGS);
+		fields.add(BlackBoard.DOC_FOR_TAGS);
+		boolean allFields = false;
+		for(int i=0; i<classNames.length; i++)
+		{
+			Object module = Class.forName(classNames[i].trim())
+					.getConstructor(String.class).newInstance(propertiesFiles[i].trim());
+			if(!(module instanceof BaseModule) || !(module instanceof PipelineStage))
+				throw new Exception(classNames[i]+" can not run as a stage of a pipeline");
+
+			BaseModule stageModule = (BaseModule) module;
+			stageModule.prepareStage(_bbAPI);
+			checkBlackBoard(stageModule, stageModule.MODULE_INPUT_BLACKBOARD);
+			checkBlackBoard(stageModule, stageModule.MODULE_OUTPUT_BLACKBOARD);
+
+			PipelineStage stage = (PipelineStage) module;
+			stage.openStage(bb);
+
+			int threads = 1;
+			if(threadCounts!=null && i<threadCounts.length)
+				threads = Math.max(1, Integer.parseInt(threadCounts[i].trim()));
+			if(threads > stage.getMaxStageThreads())
+			{
+				System.out.println(stageModule.MODULE_NAME+" runs with "+stage.getMaxStageThreads()+" threads");
+				threads = stage.getMaxStageThreads();
+			}
+
+			List<String> stageFields = stage.getStageInputFields();
+			if(stageFields==null)
+				allFields = true;
+			else
+				for(String f : stageFields)
+					if(!fields.contains(f))
+						fields.add(f);
+
+			stages.add(new StageRunner(stageModule.MODULE_NAME, stage, threads, queueSize));
+		}
+
+		//Connect the stages
+		BlockingQueue<PipelineDoc> output = new ArrayBlockingQueue<PipelineDoc>(queueSize);
+		for(int i=0; i<stages.size(); i++)
+		{
+			StageRunner runner = stages.get(i);
+			if(i+1 < stages.size())
+			{
+				runner.next = stages.get(i+1).input;
+				runner.nextThreads = stages.get(i+1).threads;
+			}
+			else
+			{
+				runner.next = output;
+				runner.nextThreads = 1;
+			}
+		}
+
+		final StageRunner first = stages.get(0);
+		if(first.inputTags==null || first.inputTags.isEmpty())
+			throw new Exception(first.name+" has no input tags");
+		final BBDocSet input = bb.findDocsByTagsSet(first.inputTags, null,
+				allFields ? null : fields, MODULE_DATA_PROCESS_LIMIT);
+
+		int threads = 1;
+		for(StageRunner runner : stages)
+			threads += runner.threads;
+		System.out.println("Running "+stages.size()+" stages with "+threads+" threads.");
+
+		docsRead.set(0);
+		failure = null;
+		pool = Executors.newFixedThreadPool(threads);
+		int docsWritten = 0;
+		try {
+			pool.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					readInput(input, first);
+					return null;
+				}
+			});
+			for(final StageRunner runner : stages)
+				for(int t=0; t<runner.threads; t++)
+					pool.submit(new Callable<Void>() {
+						public Void call() throws Exception {
+							runStage(runner);
+							return null;
+						}
+					});
+
+			//Write the docs that leave the last stage
+			int docsOut = 0;
+			while(failure==null)
+			{
+				PipelineDoc doc = output.poll(100, TimeUnit.MILLISECONDS);
+				if(doc==null)
+					continue;
+				if(doc==END)
+					break;
+
+				if(doc.isModified())
+				{
+					doc.writeTo(batch);
+					docsWritten++;
+				}
+
+				if(++docsOut%PROGRESS_REPORT_DOCS==0)
+				{
+					if(MODULE_DATA_PROCESS_LIMIT > 0)
+						System.out.printf("%.2f%%\n", docsOut*100.0/MODULE_DATA_PROCESS_LIMIT);
+					else
+						System.out.printf("%d docs\n", docsOut);
+				}
+			}
+		}
+		catch(Exception e) {
+			fail(e);
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		if(failure!=null)
+			throw failure;
+
+		for(StageRunner runner : stages)
+			System.out.printf("%s: %d docs, %d threads, %.1f s waiting for the next stage\n",
+					runner.name, runner.processed.get(), runner.threads, runner.blockedNanos.get()/1e9);
+
+		saveModuleResults(docsRead.get(), docsWritten);
+	}
+
+	/**
+	 * Fails if a stage uses another Black Board than the pipeline.
+	 */
+	private void checkBlackBoard(BaseModule stageModule, String bbName) throws Exception
+	{
+		if(bbName!=null && !bbName.equals("") && !bbName.equals(MODULE_INPUT_BLACKBOARD))
+			throw new Exception(stageModule.MODULE_NAME+" uses the Black Board "+bbName
+					+" instead of "+MODULE_INPUT_BLACKBOARD);
+	}
+
+	/**
+	 * Stops the pipeline after the first error.
+	 */
+	private synchronized void fail(Exception e)
+	{
+		if(failure==null)
+		{
+			failure = e;
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Reads the input docs and puts them in the queue of the first stage.
+	 */
+	private void readInput(BBDocSet input, StageRunner first)
+	{
+		try {
+			BBDoc doc;
+			while((doc = input.getNext())!=null)
+			{
+				first.input.put(new PipelineDoc(doc));
+				docsRead.incrementAndGet();
+			}
+			for(int t=0; t<first.threads; t++)
+				first.input.put(END);
+		}
+		catch(Exception e) {
+			fail(e);
+		}
+		finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Processes the docs of a stage until the end of its queue. The last
+	 * thread of the stage closes it and marks the end of the next queue.
+	 */
+	private void runStage(StageRunner runner)
+	{
+		try {
+			PipelineDoc doc;
+			while((doc = runner.input.take())!=END)
+			{
+				if(doc.hasTags(runner.inputTags))
+				{
+					runner.stage.processStageDoc(doc, runner);
+					runner.processed.incrementAndGet();
+				}
+				else
+					runner.emit(doc);
+			}
+
+			if(runner.running.decrementAndGet()==0)
+			{
+				runner.stage.closeStage(runner);
+				for(int t=0; t<runner.nextThreads; t++)
+					runner.next.put(END);
+			}
+		}
+		catch(Exception e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * @param args The properties file of the pipeline.
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		ModulePipeline app = new ModulePipeline(args[0]);
+		app.run();
+	}
+}
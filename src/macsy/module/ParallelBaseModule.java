@@ -0,0 +1,248 @@
+package macsy.module;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import macsy.blackBoardsSystem.BBDoc;
+import macsy.blackBoardsSystem.BBDocSet;
+import macsy.blackBoardsSystem.BlackBoardDateBased;
+import macsy.blackBoardsSystem.PrefetchingBBDocSet;
+
+/**
+ * Base class for modules that process each input doc independently of the others.
+ *
+ * The input docs are split in partitions which are processed in parallel by a pool
+ * of worker threads. A partition is either a year collection of the BlackBoardDateBased
+ * or an _id range (i.e. a period of time, see BlackBoardDateBased.splitDateRange()).
+ *
+ * The module prepares everything it needs in runModuleCore() and then calls processInputDocs().
+ * It implements:
+ * findInputDocs() that returns the input docs of a period, and
+ * processDoc() that processes a single doc. processDoc() is called concurrently by the
+ * worker threads so it should only use thread safe objects (e.g. an AnnotationBatch).
+ *
+ * Optional Properties:
+ * THREADS=Number of worker threads. Default 1 (docs are processed by the calling thread).
+ * PARTITION=YEAR (default) or ID_RANGE.
+ * PARTITIONS=Number of _id ranges for ID_RANGE. Default 4 x THREADS.
+ * PREFETCH=Number of docs each partition reads ahead in the background (see PrefetchingBBDocSet).
+ * Default 0 (no prefetching).
+ * PREFETCH_BATCH_SIZE=Number of docs fetched per database round trip when prefetching.
+ *
+ * PROCESS_LIMIT applies to the total number of docs read by all threads.
+ *
+ */
+public abstract class ParallelBaseModule extends BaseModule {
+
+	//Optional Property Names
+	private final String PROPERTY_THREADS 		= "THREADS";
+	private final String PROPERTY_PARTITION 	= "PARTITION";
+	private final String PROPERTY_PARTITIONS 	= "PARTITIONS";
+	private final String PROPERTY_PREFETCH 		= "PREFETCH";
+	private final String PROPERTY_PREFETCH_BATCH_SIZE 	= "PREFETCH_BATCH_SIZE";
+
+	/**
+	 * How the input docs are split in partitions.
+	 */
+	public enum Partitioning {
+		YEAR, ID_RANGE
+	}
+
+	private final int PROGRESS_REPORT_DOCS = 1000;
+
+	private final AtomicInteger docsRead = new AtomicInteger();
+	private final AtomicInteger docsProcessed = new AtomicInteger();
+
+	private int prefetchQueueDepth = 0;
+	private int prefetchBatchSize = PrefetchingBBDocSet.DEFAULT_BATCH_SIZE;
+
+	public ParallelBaseModule(String propertiesFileName) throws Exception
+	{
+		super(propertiesFileName);
+	}
+
+	/**
+	 * Returns the input docs of the period [fromDate, toDate).
+	 *
+	 * @param fromDate The start of the period, or null (with toDate) for all docs.
+	 * @param toDate The end of the period (excluded), or null (with fromDate) for all docs.
+	 * @param maxDocs The max number of docs. Zero to get all.
+	 * @return The docs.
+	 * @throws Exception
+	 */
+	protected abstract BBDocSet findInputDocs(Date fromDate, Date toDate, int maxDocs) throws Exception;
+
+	/**
+	 * Processes a single doc. Called concurrently by the worker threads.
+	 *
+	 * @param doc The doc.
+	 * @return true if the doc was processed (counts as output), false if it was skipped.
+	 * @throws Exception
+	 */
+	protected abstract boolean processDoc(BBDoc doc) throws Exception;
+
+	/**
+	 * Returns the number of worker threads (THREADS property).
+	 */
+	public int getNumThreads()
+	{
+		if(getProperty(PROPERTY_THREADS)==null)
+			return 1;
+		return Math.max(1, Integer.parseInt(getProperty(PROPERTY_THREADS).trim()));
+	}
+
+	/**
+	 * Processes all input docs of the period [fromDate, toDate) with processDoc(),
+	 * and saves the number of docs read and processed with saveModuleResults().
+	 *
+	 * @param bb The Black Board of the input docs.
+	 * @param fromDate The start of the period, or null (with toDate) for all docs.
+	 * @param toDate The end of the period (excluded), or null (with fromDate) for all docs.
+	 * @throws Exception
+	 */
+	protected void processInputDocs(BlackBoardDateBased bb, Date fromDate, Date toDate) throws Exception
+	{
+		int threads = getNumThreads();
+
+		Partitioning partitioning = Partitioning.YEAR;
+		if(getProperty(PROPERTY_PARTITION)!=null)
+			partitioning = Partitioning.valueOf(getProperty(PROPERTY_PARTITION).trim().toUpperCase());
+
+		List<BBDocSet> partitions = new ArrayList<BBDocSet>();
+		if(partitioning==Partitioning.YEAR)
+		{
+			partitions.addAll(findInputDocs(fromDate, toDate, MODULE_DATA_PROCESS_LIMIT).split());
+		}
+		else
+		{
+			int numRanges = 4 * threads;
+			if(getProperty(PROPERTY_PARTITIONS)!=null)
+				numRanges = Integer.parseInt(getProperty(PROPERTY_PARTITIONS).trim());
+
+			for(Date[] range : bb.splitDateRange(fromDate, toDate, numRanges))
+				partitions.addAll(findInputDocs(range[0], range[1], MODULE_DATA_PROCESS_LIMIT).split());
+		}
+
+		if(getProperty(PROPERTY_PREFETCH)!=null)
+			prefetchQueueDepth = Integer.parseInt(getProperty(PROPERTY_PREFETCH).trim());
+		if(getProperty(PROPERTY_PREFETCH_BATCH_SIZE)!=null)
+			prefetchBatchSize = Integer.parseInt(getProperty(PROPERTY_PREFETCH_BATCH_SIZE).trim());
+
+		System.out.println("Processing "+partitions.size()+" partitions ("+partitioning+") with "+threads+" threads.");
+
+		docsRead.set(0);
+		docsProcessed.set(0);
+
+		//The partitions that no thread has started, they are closed here if the run fails
+		final List<BBDocSet> pending = Collections.synchronizedList(new ArrayList<BBDocSet>(partitions));
+
+		if(threads==1)
+		{
+			try {
+				for(BBDocSet partition : partitions)
+					if(pending.remove(partition))
+						processPartition(partition);
+			}
+			finally {
+				closePending(pending);
+			}
+		}
+		else
+		{
+			ExecutorService pool = Executors.newFixedThreadPool(threads);
+			try {
+				List<Future<Void>> results = new ArrayList<Future<Void>>();
+				for(final BBDocSet partition : partitions)
+				{
+					results.add(pool.submit(new Callable<Void>() {
+						public Void call() throws Exception {
+							if(pending.remove(partition))
+								processPartition(partition);
+							return null;
+						}
+					}));
+				}
+
+				for(Future<Void> result : results)
+				{
+					try {
+						result.get();
+					}
+					catch(ExecutionException e) {
+						if(e.getCause() instanceof Exception)
+							throw (Exception) e.getCause();
+						throw e;
+					}
+				}
+			}
+			finally {
+				pool.shutdownNow();
+				closePending(pending);
+			}
+		}
+
+		saveModuleResults(docsRead.get(), docsProcessed.get());
+	}
+
+	/**
+	 * Closes the partitions that were never processed.
+	 * The running workers close their own partitions (see processPartition()).
+	 */
+	private void closePending(List<BBDocSet> pending)
+	{
+		synchronized(pending)
+		{
+			for(BBDocSet partition : pending)
+				partition.close();
+			pending.clear();
+		}
+	}
+
+	/**
+	 * Processes the docs of a partition, until the PROCESS_LIMIT is reached.
+	 */
+	private void processPartition(BBDocSet partition) throws Exception
+	{
+		//Prefetch only while the partition is processed, to bound the docs held in memory
+		if(prefetchQueueDepth > 0)
+			partition = partition.prefetch(prefetchBatchSize, prefetchQueueDepth, 1);
+
+		try {
+			BBDoc doc;
+			while((doc = partition.getNext())!=null)
+			{
+				int read = docsRead.incrementAndGet();
+				if(MODULE_DATA_PROCESS_LIMIT > 0 && read > MODULE_DATA_PROCESS_LIMIT)
+				{
+					docsRead.decrementAndGet();
+					return;
+				}
+
+				if(processDoc(doc))
+					docsProcessed.incrementAndGet();
+
+				if(read%PROGRESS_REPORT_DOCS==0)
+				{
+					if(MODULE_DATA_PROCESS_LIMIT > 0)
+						System.out.printf("%.2f%%\n", read*100.0/MODULE_DATA_PROCESS_LIMIT);
+					else
+						System.out.printf("%d docs\n", read);
+				}
+
+				if(Thread.currentThread().isInterrupted())
+					return;
+			}
+		}
+		finally {
+			partition.close();
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package macsy.module;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import macsy.blackBoardsSystem.AnnotationBatch;
+import macsy.blackBoardsSystem.BBDoc;
+import macsy.lib.DataPoint;
+import macsy.lib.FeatureVectorCodec;
+
+/**
+ * A doc that passes through the stages of a ModulePipeline.
+ *
+ * The stages annotate the doc in memory: fields are set in the BBDoc, so that the
+ * next stages read them without a DB round trip, and the tag changes are kept as
+ * the tags to add and to remove compared to the tags the doc was read with. A tag
+ * added by a stage and removed by a next one (e.g. the FOR> tag of the next stage)
+ * is never written. The pipeline writes the remaining changes with writeTo() when
+ * the doc leaves the last stage.
+ *
+ * The decoded feature vectors of the fields are kept too, so that a stage that
+ * creates a vector can hand it to the next ones as a DataPoint.
+ *
+ * A doc is used by one stage at a time, so it is not thread safe.
+ *
+ */
+public final class PipelineDoc {
+
+	private final BBDoc doc;
+
+	//The tags of the doc when read, and as changed by the stages
+	private final Set<Integer> readTags = new HashSet<Integer>();
+	private final Set<Integer> tags = new HashSet<Integer>();
+
+	private final Map<String,Object> setFields = new LinkedHashMap<String,Object>();
+	private final Set<String> removedFields = new LinkedHashSet<String>();
+	private final Set<Integer> addedTags = new LinkedHashSet<Integer>();
+	private final Set<Integer> removedTags = new LinkedHashSet<Integer>();
+
+	//Field name to its decoded feature vector
+	private final Map<String,DataPoint> features = new HashMap<String,DataPoint>();
+
+	/**
+	 * @param doc The doc as read from the Black Board, with its tags.
+	 */
+	public PipelineDoc(BBDoc doc)
+	{
+		this.doc = doc;
+		List<Integer> docTags = doc.getAllTagIDs();
+		readTags.addAll(docTags);
+		tags.addAll(docTags);
+	}
+
+	/**
+	 * Returns the doc with the fields set by the stages so far.
+	 */
+	public BBDoc getDoc()
+	{
+		return doc;
+	}
+
+	public Object getID()
+	{
+		return doc.getID();
+	}
+
+	/**
+	 * Returns true if the doc carries the tag, after the changes of the stages so far.
+	 */
+	public boolean hasTag(int tagID)
+	{
+		return tags.contains(tagID);
+	}
+
+	/**
+	 * Returns true if the doc carries all the tags.
+	 */
+	public boolean hasTags(List<Integer> tagIDs)
+	{
+		return tags.containsAll(tagIDs);
+	}
+
+	public void addTagToDoc(int tagID) throws Exception
+	{
+		if(tagID<=0)
+			throw new Exception("TagID should be >0");
+
+		tags.add(tagID);
+		removedTags.remove(tagID);
+		if(!readTags.contains(tagID))
+			addedTags.add(tagID);
+	}
+
+	public void removeTagFromDoc(int tagID)
+	{
+		tags.remove(tagID);
+		addedTags.remove(tagID);
+		if(readTags.contains(tagID))
+			removedTags.add(tagID);
+	}
+
+	public void removeTagsFromDoc(List<Integer> tagIDs)
+	{
+		for(int tagID : tagIDs)
+			removeTagFromDoc(tagID);
+	}
+
+	public void addFieldToDoc(String fieldName, Object fieldValue)
+	{
+		doc.setField(fieldName, fieldValue);
+		features.remove(fieldName);
+		removedFields.remove(fieldName);
+		setFields.put(fieldName, fieldValue);
+	}
+
+	/**
+	 * Removes a field. The field is set to null in the BBDoc until the doc is written.
+	 */
+	public void removeFieldFromDoc(String fieldName)
+	{
+		doc.setField(fieldName, null);
+		features.remove(fieldName);
+		setFields.remove(fieldName);
+		removedFields.add(fieldName);
+	}
+
+	/**
+	 * Sets a feature vector field, and keeps the vector for the next stages.
+	 *
+	 * @param fieldName The name of the field.
+	 * @param fieldValue The encoded vector (see FeatureVectorCodec).
+	 * @param vector The vector as getFeatures() should return it, i.e. as decoded from fieldValue.
+	 */
+	public void addFeaturesToDoc(String fieldName, Object fieldValue, DataPoint vector)
+	{
+		addFieldToDoc(fieldName, fieldValue);
+		features.put(fieldName, vector);
+	}
+
+	/**
+	 * Returns the feature vector of a field, decoding it the first time.
+	 * The DataPoint is shared by the stages, so its label is the one set by the last stage.
+	 *
+	 * @return The vector, or null if the doc does not have the field.
+	 * @throws Exception If the field is not a feature vector.
+	 */
+	public DataPoint getFeatures(String fieldName) throws Exception
+	{
+		DataPoint vector = features.get(fieldName);
+		if(vector==null)
+		{
+			vector = FeatureVectorCodec.toDataPoint(doc.getField(fieldName));
+			if(vector!=null)
+				features.put(fieldName, vector);
+		}
+		return vector;
+	}
+
+	/**
+	 * Returns true if the stages changed the doc.
+	 */
+	public boolean isModified()
+	{
+		return !setFields.isEmpty() || !removedFields.isEmpty()
+				|| !addedTags.isEmpty() || !removedTags.isEmpty();
+	}
+
+	/**
+	 * Queues the changes of the stages to the batch, in a single update where possible.
+	 */
+	public void writeTo(AnnotationBatch batch) throws Exception
+	{
+		Object docID = doc.getID();
+		for(Map.Entry<String,Object> e : setFields.entrySet())
+			batch.addFieldToDoc(docID, e.getKey(), e.getValue());
+		for(String fieldName : removedFields)
+			batch.removeFieldFromDoc(docID, fieldName);
+		for(int tagID : removedTags)
+			batch.removeTagFromDoc(docID, tagID);
+		for(int tagID : addedTags)
+			batch.addTagToDoc(docID, tagID);
+	}
+}
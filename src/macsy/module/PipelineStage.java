@@ -0,0 +1,73 @@
+package macsy.module;
+
+import java.util.List;
+
+import macsy.blackBoardsSystem.BlackBoardDateBased;
+
+/**
+ * A module that can run as a stage of a ModulePipeline, i.e. process the docs
+ * handed to it by the previous stage in memory instead of reading them from the
+ * Black Board.
+ *
+ * A stage must extend BaseModule and have a constructor with the name of its properties
+ * file, like any module. Its properties are loaded by the pipeline before openStage().
+ * A stage does not write to the Black Board: it records its annotations in the
+ * PipelineDoc, and the pipeline writes them when the doc leaves the last stage.
+ *
+ */
+public interface PipelineStage {
+
+	/**
+	 * Receives the docs a stage has finished with.
+	 */
+	interface Output {
+		/**
+		 * Hands a doc to the next stage. Blocks while the queue of the next stage is full.
+		 */
+		void emit(PipelineDoc doc) throws Exception;
+	}
+
+	/**
+	 * Prepares the stage, e.g. looks up its tags and loads its model.
+	 *
+	 * @param bb The Black Board of the pipeline, instead of the INPUT_BLACKBOARD of the module.
+	 * @throws Exception
+	 */
+	void openStage(BlackBoardDateBased bb) throws Exception;
+
+	/**
+	 * Returns the tags a doc should carry to be processed by this stage. Other docs are
+	 * passed to the next stage as they are.
+	 */
+	List<Integer> getStageInputTags();
+
+	/**
+	 * Returns the fields the stage reads, or null for all fields.
+	 */
+	List<String> getStageInputFields();
+
+	/**
+	 * Returns the max number of threads that may call processStageDoc() at the same
+	 * time, e.g. 1 for a stage that trains a model.
+	 */
+	int getMaxStageThreads();
+
+	/**
+	 * Processes a doc and emits it to the output, either before returning or later
+	 * (e.g. together with the next docs of a batch).
+	 *
+	 * @param doc The doc, which carries the input tags of the stage.
+	 * @param output The next stage.
+	 * @throws Exception
+	 */
+	void processStageDoc(PipelineDoc doc, Output output) throws Exception;
+
+	/**
+	 * Called once after the last doc, to emit the docs the stage still holds and
+	 * save its state.
+	 *
+	 * @param output The next stage.
+	 * @throws Exception
+	 */
+	void closeStage(Output output) throws Exception;
+}
@@ -0,0 +1,209 @@
+package macsy.module;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Calendar;
+
+import macsy.blackBoardsSystem.BBDoc;
+import macsy.blackBoardsSystem.BlackBoardDateBased;
+import macsy.blackBoardsSystem.BlackBoardsAPI;
+import macsy.blackBoardsSystem.DocCollection;
+import macsy.blackBoardsSystem.DocCursor;
+import macsy.blackBoardsSystem.LocalStorage;
+import macsy.blackBoardsSystem.StorageException;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Tests the LocalStorage in a temporary directory: the docs survive a
+ * close and reopen, the file is compacted without losing docs, the queries
+ * give the expected docs, and the directory is locked while it is open.
+ */
+public class TestLocalStorage {
+
+	public static void main(String[] args) {
+
+		System.out.println("Testing LocalStorage...");
+
+		File dir = null;
+		try
+		{
+			dir = File.createTempFile("macsy-local", "");
+			dir.delete();
+
+			testRoundTrip(dir.getPath());
+			testCompaction(dir.getPath());
+			testQueries(dir.getPath());
+			testLock(dir.getPath());
+			testMapReduce(dir.getPath());
+		}
+		catch(Exception e)
+		{
+			System.out.println("Some error occured: " + e.toString());
+			System.exit(-1);
+		}
+		finally
+		{
+			delete(dir);
+		}
+		System.out.println("DONE");
+	}
+
+	private static void testRoundTrip(String path) throws Exception
+	{
+		LocalStorage storage = new LocalStorage(path);
+		DocCollection coll = storage.getCollection("roundTrip");
+		for(int i=0; i<100; i++)
+		{
+			coll.insert(new BasicDBObject("_id", i).append("n", i).append("Text", "doc "+i));
+			coll.update(new BasicDBObject("_id", i),
+					new BasicDBObject("$addToSet", new BasicDBObject("Tg", i%3)));
+		}
+		coll.remove(new BasicDBObject("n", new BasicDBObject("$gte", 90)));
+		coll.update(new BasicDBObject("_id", "counter"),
+				new BasicDBObject("$inc", new BasicDBObject("v", 2)), true, false);
+		storage.close();
+
+		storage = new LocalStorage(path);
+		coll = storage.getCollection("roundTrip");
+		check(coll.count()==91, "Docs after reopen: "+coll.count());
+		DBObject doc = coll.findOne(new BasicDBObject("_id", 42));
+		check(doc!=null && "doc 42".equals(doc.get("Text")) && ((BasicDBList) doc.get("Tg")).contains(0),
+				"Doc after reopen: "+doc);
+		check(coll.findOne(new BasicDBObject("_id", 95))==null, "Removed doc after reopen");
+		check(((Number) coll.findOne(new BasicDBObject("_id", "counter")).get("v")).intValue()==2,
+				"Upserted counter after reopen");
+		check(storage.getCollectionNames().contains("roundTrip"), "Collection names");
+		storage.close();
+	}
+
+	private static void testCompaction(String path) throws Exception
+	{
+		char[] padding = new char[2000];
+		Arrays.fill(padding, 'x');
+
+		LocalStorage storage = new LocalStorage(path);
+		DocCollection coll = storage.getCollection("compaction");
+		for(int i=0; i<500; i++)
+			coll.insert(new BasicDBObject("_id", i).append("n", 0).append("Pad", new String(padding)));
+
+		//Each round rewrites all the docs, so most of the file is dead space
+		File file = new File(path, "compaction.bbl");
+		long maxLength = 0;
+		for(int round=1; round<=10; round++)
+		{
+			for(int i=0; i<500; i++)
+				coll.update(new BasicDBObject("_id", i), new BasicDBObject("$inc", new BasicDBObject("n", 1)));
+			maxLength = Math.max(maxLength, file.length());
+		}
+		check(maxLength < 500L*2000*6, "Compacted while writing, max file "+maxLength);
+		check(coll.count(new BasicDBObject("n", 10))==500, "Docs after compaction");
+		storage.close();
+
+		storage = new LocalStorage(path);
+		coll = storage.getCollection("compaction");
+		check(coll.count(new BasicDBObject("n", 10))==500, "Docs after compaction and reopen");
+		DBObject doc = coll.findOne(new BasicDBObject("_id", 499));
+		check(doc!=null && new String(padding).equals(doc.get("Pad")), "Doc after compaction and reopen");
+		storage.close();
+	}
+
+	private static void testQueries(String path) throws Exception
+	{
+		LocalStorage storage = new LocalStorage(path);
+		DocCollection coll = storage.getCollection("queries");
+		for(int i=0; i<60; i++)
+		{
+			BasicDBList tags = new BasicDBList();
+			tags.add(i%2);
+			if(i%3==0)
+				tags.add(3);
+			coll.insert(new BasicDBObject("_id", i).append("n", i).append("Tg", tags));
+		}
+
+		BasicDBList all = new BasicDBList();
+		all.add(0);
+		all.add(3);
+		BasicDBList in = new BasicDBList();
+		in.add(1);
+		in.add(3);
+		check(coll.count(new BasicDBObject("Tg", 3))==20, "Equality on a list");
+		check(coll.count(new BasicDBObject("Tg", new BasicDBObject("$all", all)))==10, "$all");
+		check(coll.count(new BasicDBObject("Tg", new BasicDBObject("$in", in)))==40, "$in");
+		check(coll.count(new BasicDBObject("Tg", new BasicDBObject("$nin", in)))==20, "$nin");
+		check(coll.count(new BasicDBObject("Tg", 3).append("n", new BasicDBObject("$gt", 30)))==9,
+				"Indexed and not indexed conditions");
+		check(coll.count(new BasicDBObject("_id", new BasicDBObject("$gte", 10).append("$lt", 20)))==10,
+				"_id range");
+
+		DocCursor cursor = coll.find(new BasicDBObject("Tg", 3), new BasicDBObject("n", 1))
+				.sort(new BasicDBObject("n", -1)).skip(1).limit(3);
+		StringBuilder found = new StringBuilder();
+		while(cursor.hasNext())
+		{
+			DBObject doc = cursor.next();
+			check(!doc.containsField("Tg"), "Projection");
+			found.append(doc.get("n")).append(' ');
+		}
+		cursor.close();
+		check(found.toString().equals("54 51 48 "), "Sort, skip and limit: "+found);
+		storage.close();
+	}
+
+	private static void testLock(String path) throws Exception
+	{
+		LocalStorage storage = new LocalStorage(path);
+		boolean locked = false;
+		try {
+			new LocalStorage(path);
+		}
+		catch(StorageException e) {
+			locked = true;
+		}
+		check(locked, "Directory locked while open");
+		storage.close();
+
+		storage = new LocalStorage(path);
+		storage.close();
+		check(true, "Directory unlocked by close");
+	}
+
+	private static void testMapReduce(String path) throws Exception
+	{
+		LocalStorage storage = new LocalStorage(path);
+		BlackBoardDateBased bb = BlackBoardsAPI.forStorage(storage, true).blackBoardLoadDateBased("MapReduce");
+		Calendar date = Calendar.getInstance();
+		date.set(2020, Calendar.JANUARY, 1);
+		bb.insertNewDoc(new BBDoc(date.getTime()));
+
+		boolean failed = false;
+		try {
+			bb.runMapReduce("test", "function() {}", "function(k, v) {}");
+		}
+		catch(UnsupportedOperationException e) {
+			failed = true;
+		}
+		check(failed, "Map/Reduce fails on the local storage");
+		storage.close();
+	}
+
+	private static void check(boolean ok, String test) throws Exception
+	{
+		if(!ok)
+			throw new Exception("Failed: "+test);
+		System.out.println(test+" OK");
+	}
+
+	private static void delete(File file)
+	{
+		if(file==null)
+			return;
+		File[] files = file.listFiles();
+		if(files!=null)
+			for(File f : files)
+				delete(f);
+		file.delete();
+	}
+}
@@ -0,0 +1,142 @@
+package macsy.module;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import macsy.lib.DataPoint;
+import macsy.lib.onlineLearning.OnlinePerceptron;
+import macsy.lib.onlineLearning.PairwiseRankingTrainer;
+
+/**
+ * Checks PairwiseRankingTrainer against the way the rankers trained before it:
+ * a difference DataPoint per pair (as DataSampleBuilderForRanking builds them)
+ * given to train(). The samples are synthetic, with a fixed seed.
+ *
+ * With all pairs both must give the same model. The popular and the disliked
+ * samples mostly use different features, so the ranking of held out samples
+ * must be well above chance, with all pairs and with a pair budget.
+ */
+public class TestPairwiseRanking {
+
+	private static final long SEED = 7;
+	private static final int NUM_FEATURES = 50;
+	// the popular samples use the features 1-30, the disliked ones 21-50
+	private static final int SHARED_FEATURES = 10;
+	private static final double MIN_ACCURACY = 0.8;
+
+	public static void main(String[] args) {
+
+		System.out.println("Testing PairwiseRankingTrainer...");
+
+		try
+		{
+			Random rand = new Random(SEED);
+			List<DataPoint> popular = samples(rand, 40, true);
+			List<DataPoint> disliked = samples(rand, 40, false);
+			List<DataPoint> testPopular = samples(rand, 100, true);
+			List<DataPoint> testDisliked = samples(rand, 100, false);
+
+			//The old way: a difference vector per pair, oriented at random
+			OnlinePerceptron old = new OnlinePerceptron(tempFile("old"));
+			Random orientation = new Random(SEED);
+			for(DataPoint x : popular)
+				for(DataPoint y : disliked)
+				{
+					int label = orientation.nextDouble() >= 0.5 ? 1 : -1;
+					DataPoint z = (label==1) ? DataPoint.difference(x, y) : DataPoint.difference(y, x);
+					z.setRealLabel(label);
+					old.train(z);
+				}
+
+			OnlinePerceptron all = new OnlinePerceptron(tempFile("all"));
+			PairwiseRankingTrainer trainer = new PairwiseRankingTrainer(all);
+			trainer.setNormalizePairs(false);
+			trainer.setSeed(SEED);
+			int pairs = trainer.train(popular, disliked, null);
+			check(pairs==popular.size()*disliked.size(), "All pairs used by default: "+pairs);
+
+			int differences = 0;
+			for(int i=1; i<=NUM_FEATURES; i++)
+				if(Math.abs(old.getLinearModel().getWi(i) - all.getLinearModel().getWi(i)) > 1e-9)
+					differences++;
+			check(differences==0, "Same weights");
+			check(Math.abs(old.getBias() - all.getBias()) < 1e-9, "Same bias");
+
+			double oldAccuracy = rankingAccuracy(old, testPopular, testDisliked);
+			double allAccuracy = rankingAccuracy(all, testPopular, testDisliked);
+			check(oldAccuracy==allAccuracy, "Same ranking with all pairs: "+allAccuracy);
+			check(allAccuracy > MIN_ACCURACY, "Ranking with all pairs: "+allAccuracy);
+
+			OnlinePerceptron sampled = new OnlinePerceptron(tempFile("sampled"));
+			trainer = new PairwiseRankingTrainer(sampled);
+			trainer.setNormalizePairs(false);
+			trainer.setPairBudget(400);
+			trainer.setSeed(SEED);
+			pairs = trainer.train(popular, disliked, null);
+			check(pairs==400, "Pair budget used: "+pairs);
+
+			double sampledAccuracy = rankingAccuracy(sampled, testPopular, testDisliked);
+			check(sampledAccuracy > MIN_ACCURACY,
+					"Ranking with 400 pairs: "+sampledAccuracy+" (all pairs: "+allAccuracy+")");
+		}
+		catch(Exception e)
+		{
+			System.out.println("Some error occured: " + e.toString());
+			System.exit(-1);
+		}
+		System.out.println("DONE");
+	}
+
+	/**
+	 * Samples with small integer values (so that the sums are exact).
+	 * The popular and the disliked ones share SHARED_FEATURES features.
+	 */
+	private static List<DataPoint> samples(Random rand, int n, boolean popular)
+	{
+		int range = (NUM_FEATURES+SHARED_FEATURES)/2;
+		int first = popular ? 1 : NUM_FEATURES-range+1;
+		List<DataPoint> samples = new ArrayList<DataPoint>();
+		for(int s=0; s<n; s++)
+		{
+			Map<Integer, Double> features = new TreeMap<Integer, Double>();
+			for(int k=0; k<8; k++)
+				features.put(first+rand.nextInt(range), (double) (1+rand.nextInt(3)));
+			samples.add(new DataPoint(features));
+		}
+		return samples;
+	}
+
+	/**
+	 * Returns the fraction of the (popular, disliked) pairs where the popular sample
+	 * is scored higher.
+	 */
+	private static double rankingAccuracy(OnlinePerceptron learner,
+			List<DataPoint> popular, List<DataPoint> disliked) throws Exception
+	{
+		int correct = 0;
+		for(DataPoint x : popular)
+			for(DataPoint y : disliked)
+				if(learner.score(x) > learner.score(y))
+					correct++;
+		return (double) correct / (popular.size()*disliked.size());
+	}
+
+	private static String tempFile(String name) throws Exception
+	{
+		File file = File.createTempFile("ranking-"+name, ".model");
+		file.delete();
+		file.deleteOnExit();
+		return file.getPath();
+	}
+
+	private static void check(boolean ok, String test) throws Exception
+	{
+		if(!ok)
+			throw new Exception("Failed: "+test);
+		System.out.println(test+" OK");
+	}
+}
@@ -0,0 +1,180 @@
+package macsy.module;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import macsy.blackBoardsSystem.BBDoc;
+import macsy.blackBoardsSystem.BBDocSet;
+import macsy.blackBoardsSystem.BlackBoardDateBased;
+import macsy.blackBoardsSystem.BlackBoardsAPI;
+import macsy.blackBoardsSystem.LocalStorage;
+
+/**
+ * Compares the queries of a Black Board that uses the TagIndex with the same
+ * queries of a Black Board that does not, on the same docs of a LocalStorage
+ * in a temporary directory: counts, docs found with and without a limit, after
+ * changes made through the indexed Black Board, and after changes made by the
+ * other one, which the index sees only once it is older than its max age.
+ */
+public class TestTagIndex {
+
+	private static final long SEED = 3;
+	private static final int NUM_TAGS = 5;
+
+	private static final Random rand = new Random(SEED);
+	private static final int[] tags = new int[NUM_TAGS];
+
+	public static void main(String[] args) {
+
+		System.out.println("Testing TagIndex...");
+
+		File dir = null;
+		LocalStorage storage = null;
+		try
+		{
+			dir = File.createTempFile("macsy-tagindex", "");
+			dir.delete();
+			storage = new LocalStorage(dir.getPath());
+
+			//Same docs, with and without the index
+			BlackBoardDateBased indexed = BlackBoardsAPI.forStorage(storage, true).blackBoardLoadDateBased("TagIndex");
+			BlackBoardDateBased plain = BlackBoardsAPI.forStorage(storage, true).blackBoardLoadDateBased("TagIndex");
+			indexed.getTagIndex().setMaxAge(3600*1000L);
+			plain.getTagIndex().setMaxAge(0);
+
+			for(int t=0; t<NUM_TAGS; t++)
+				tags[t] = indexed.insertNewTag("tag"+t);
+
+			List<Object> ids = new ArrayList<Object>();
+			for(int i=0; i<2000; i++)
+				ids.add(insertDoc(indexed));
+			compare(indexed, plain, "Initial docs");
+
+			//Through the indexed Black Board, which keeps its index up to date
+			for(int i=0; i<500; i++)
+				ids.add(insertDoc(indexed));
+			for(int i=0; i<300; i++)
+				indexed.removeTagFromDoc(ids.get(rand.nextInt(ids.size())), tags[rand.nextInt(NUM_TAGS)]);
+			for(int i=0; i<50; i++)
+				indexed.removeDoc(ids.remove(rand.nextInt(ids.size())));
+			compare(indexed, plain, "Changes through the index");
+
+			//Through the other Black Board, as another process would: the index is stale
+			//until it is older than its max age
+			for(int i=0; i<300; i++)
+				plain.addTagToDoc(ids.get(rand.nextInt(ids.size())), tags[rand.nextInt(NUM_TAGS)]);
+			for(int i=0; i<200; i++)
+				ids.add(insertDoc(plain));
+			Thread.sleep(20);
+			indexed.getTagIndex().setMaxAge(10);
+			compare(indexed, plain, "Stale index after its max age");
+			check(indexed.getTagIndex().getBuilds() > 1, "Stale index rebuilt");
+		}
+		catch(Exception e)
+		{
+			System.out.println("Some error occured: " + e.toString());
+			System.exit(-1);
+		}
+		finally
+		{
+			if(storage!=null)
+				storage.close();
+			delete(dir);
+		}
+		System.out.println("DONE");
+	}
+
+	private static Object insertDoc(BlackBoardDateBased bb) throws Exception
+	{
+		Calendar date = Calendar.getInstance();
+		date.set(2019+rand.nextInt(2), rand.nextInt(12), 1+rand.nextInt(28), rand.nextInt(24), 0);
+		BBDoc doc = new BBDoc(date.getTime());
+		doc.setField("Title", "doc");
+		bb.insertNewDoc(doc);
+		for(int t : tags)
+			if(rand.nextInt(3)==0)
+				bb.addTagToDoc(doc.getID(), t);
+		return doc.getID();
+	}
+
+	/**
+	 * Runs random queries on both Black Boards and checks that they give the same docs.
+	 */
+	private static void compare(BlackBoardDateBased indexed, BlackBoardDateBased plain, String test) throws Exception
+	{
+		Calendar date = Calendar.getInstance();
+		for(int q=0; q<100; q++)
+		{
+			date.set(2019+rand.nextInt(2), rand.nextInt(12), 1+rand.nextInt(28), 0, 0);
+			Date from = date.getTime();
+			date.add(Calendar.DAY_OF_MONTH, rand.nextInt(q%2==0 ? 400 : 5));
+			Date to = date.getTime();
+
+			List<Integer> withTags = randomTags();
+			List<Integer> withoutTags = rand.nextBoolean() ? null : randomTags();
+			int limit = (q%3==0) ? 7 : 0;
+			List<String> fields = Arrays.asList("Title");
+			//findDocsByFieldsTagsSet() takes either tags to have or tags not to have
+			List<Integer> findWithoutTags = (withTags==null) ? withoutTags : null;
+
+			check(indexed.countDocs(from, to, withTags, withoutTags)==plain.countDocs(from, to, withTags, withoutTags),
+					test+": count of query "+q, false);
+			check(ids(indexed.findDocsByFieldsTagsSet(from, to, null, null, withTags, findWithoutTags, fields, limit)).equals(
+					ids(plain.findDocsByFieldsTagsSet(from, to, null, null, withTags, findWithoutTags, fields, limit))),
+					test+": docs of query "+q+" (limit "+limit+")", false);
+			if(withTags!=null)
+				check(ids(indexed.findDocIDsByTags(withTags, 5)).equals(ids(plain.findDocIDsByTags(withTags, 5))),
+						test+": IDs of query "+q+" (limit 5)", false);
+		}
+		check(true, test);
+	}
+
+	private static List<Integer> randomTags()
+	{
+		if(rand.nextInt(4)==0)
+			return null;
+		List<Integer> list = new ArrayList<Integer>();
+		int n = 1+rand.nextInt(2);
+		for(int i=0; i<n; i++)
+			list.add(tags[rand.nextInt(NUM_TAGS)]);
+		return list;
+	}
+
+	private static List<Object> ids(BBDocSet docs) throws Exception
+	{
+		List<Object> ids = new ArrayList<Object>();
+		BBDoc doc;
+		while((doc = docs.getNext())!=null)
+			ids.add(doc.getID());
+		return ids;
+	}
+
+	private static void check(boolean ok, String test) throws Exception
+	{
+		check(ok, test, true);
+	}
+
+	private static void check(boolean ok, String test, boolean print) throws Exception
+	{
+		if(!ok)
+			throw new Exception("Failed: "+test);
+		if(print)
+			System.out.println(test+" OK");
+	}
+
+	private static void delete(File file)
+	{
+		if(file==null)
+			return;
+		File[] files = file.listFiles();
+		if(files!=null)
+			for(File f : files)
+				delete(f);
+		file.delete();
+	}
+}
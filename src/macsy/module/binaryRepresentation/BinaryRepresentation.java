@@ -18,15 +18,30 @@ import java.util.TreeSet;
 import macsy.blackBoardsSystem.BBDoc;
 import macsy.blackBoardsSystem.BBDocSet;
 import macsy.blackBoardsSystem.BlackBoardDateBased;
-import macsy.module.BaseModule;
+import macsy.module.ParallelBaseModule;
 
-public class BinaryRepresentation extends BaseModule{
+/**
+ * Tags the docs of a period whose input fields contain more than THRESHOLD
+ * words of the vocabulary.
+ * 
+ * Optional:
+ * THREADS=Number of worker threads (see ParallelBaseModule)
+ * 
+ */
+public class BinaryRepresentation extends ParallelBaseModule{
 	// temporal variables to hold information given by the user
 	static final String PROPERTY_INPUT_VOCABULARY_FILENAME = "INPUT_VOCABULARY_FILENAME";
 	static final String PROPERTY_ON_START_DATE = "START_DATE";
 	static final String PROPERTY_ON_STOP_DATE = "STOP_DATE";
 	static final String PROPERTY_THRESHOLD = "THRESHOLD";
 	
+	// set by runModuleCore(), used by the worker threads
+	private BlackBoardDateBased bb;
+	private List<String> inputFields;
+	private int outputTagID;
+	private Map<String, Double> wordsAndWeights;
+	private int threshold;
+	
 	
 	public BinaryRepresentation(String propertiesFilename ) throws Exception 
 	{
@@ -69,16 +84,16 @@ public class BinaryRepresentation extends BaseModule{
 	public void runModuleCore() throws Exception 
 	{	
 		//Load Black Board of interest (with data based)
-		BlackBoardDateBased bb = _bbAPI.blackBoardLoadDateBased(MODULE_INPUT_BLACKBOARD );
+		bb = _bbAPI.blackBoardLoadDateBased(MODULE_INPUT_BLACKBOARD );
 		
 		//Input Fields
-		List<String> inputFields = new ArrayList<String>();
+		inputFields = new ArrayList<String>();
 		String inFields_toks[] = MODULE_INPUT_FIELDS.split(",");
 		for(String f : inFields_toks)
 			inputFields.add(f);
 		
 		//Prepare output tags 
-		int outputTagID = 0;
+		outputTagID = 0;
 		String outTagNames[] = MODULE_OUTPUT_TAGS.split(",");
 		List<Integer> outTag_List = new LinkedList<Integer>(); //Variable name clarification
 		for(String tagName : outTagNames) 
@@ -95,13 +110,9 @@ public class BinaryRepresentation extends BaseModule{
 		//Initialize indexer (Input Voc)
 		String vocabularyFilename = this.getProperty(PROPERTY_INPUT_VOCABULARY_FILENAME);
 		
-		// variables to hold information about the number of data that were read and data
-		// that were processed so that the module can print them on the screen
-		int dataRead = 0;
-		int dataProcessed = 0;
-		
 		// create map which maps each word with its weight
-		Map<String, Double> wordsAndWeights = LoadFileToMap(vocabularyFilename);
+		wordsAndWeights = LoadFileToMap(vocabularyFilename);
+		threshold = Integer.parseInt(this.getProperty(PROPERTY_THRESHOLD));
 		
 		// make the day in the desired format
 		DateFormat dateFormat = new SimpleDateFormat("dd-MM-yyyy");
@@ -109,55 +120,53 @@ public class BinaryRepresentation extends BaseModule{
 		Date fromDate = dateFormat.parse(this.getProperty(PROPERTY_ON_START_DATE));
 		Date toDate = dateFormat.parse(this.getProperty(PROPERTY_ON_STOP_DATE));
 		
-		// get the article of interest
-		// find the documents in a desired period of time with the Tag list of interest 
-		BBDocSet DocSet = bb.findDocsByFieldsTagsSet(fromDate, toDate, null, null, null, null, this.MODULE_DATA_PROCESS_LIMIT);
-
-		BBDoc s;
-		while((s = DocSet.getNext())!=null){
-			// initialize the sum needed for the inner product
-			double sum = 0.0;
-			SortedSet<String> word_counts=new TreeSet<String>();
-			
-			dataRead++;
-			// initialize the sum of inner product
-			sum = 0.0;
-			// for each field in the input fields list
-			for(String f : inputFields)
-			{
-				// take the text from that field
-				String txt = s.getFieldString(f);;
-				if (txt != null){
-					// split the text into words
-					String inputWords_toks[] = txt.split("\\s*[^a-zA-Z]+\\s*");
-					// make a list of those words
-					for(String w : inputWords_toks){
-						// no dublicates
-						word_counts.add(w);
-					}
-					
-					for (String word : word_counts) {
-						// if word already exists in the map
-						if(wordsAndWeights.containsKey(word)==true){
-							// increase the value by one
-							sum = sum + 1;
-						}
-					}
+		// find the documents in a desired period of time and process them
+		// (this also saves the number of input and output items)
+		processInputDocs(bb, fromDate, toDate);
+	}
+	
+	@Override
+	protected BBDocSet findInputDocs(Date fromDate, Date toDate, int maxDocs) throws Exception
+	{
+		return bb.findDocsByFieldsTagsSet(fromDate, toDate, null, null, null, null, inputFields, maxDocs);
+	}
+	
+	@Override
+	protected boolean processDoc(BBDoc s) throws Exception
+	{
+		// initialize the sum needed for the inner product
+		double sum = 0.0;
+		SortedSet<String> word_counts=new TreeSet<String>();
+		
+		// for each field in the input fields list
+		for(String f : inputFields)
+		{
+			// take the text from that field
+			String txt = s.getFieldString(f);;
+			if (txt != null){
+				// split the text into words
+				String inputWords_toks[] = txt.split("\\s*[^a-zA-Z]+\\s*");
+				// make a list of those words
+				for(String w : inputWords_toks){
+					// no dublicates
+					word_counts.add(w);
 				}
 				
+				for (String word : word_counts) {
+					// if word already exists in the map
+					if(wordsAndWeights.containsKey(word)==true){
+						// increase the value by one
+						sum = sum + 1;
+					}
+				}
 			}
-			if(sum > Integer.parseInt(this.getProperty(PROPERTY_THRESHOLD)))
-				//add the result to the proper field
-				bb.addTagToDoc(s.getID(), outputTagID);
-			
-			//Data point was processed output report
-			if(dataProcessed++%1000==0)	//Progress report every 1K docs
-				System.out.printf("%.2f\n", dataProcessed *100.0 / MODULE_DATA_PROCESS_LIMIT );
 			
-			s = DocSet.getNext();
 		}
-		this.saveModuleResults(dataRead, dataProcessed);
+		if(sum > threshold)
+			//add the result to the proper field
+			bb.addTagToDoc(s.getID(), outputTagID);
 		
+		return true;
 	}
 	
 	/**
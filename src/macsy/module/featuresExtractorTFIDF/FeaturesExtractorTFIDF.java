@@ -10,10 +10,19 @@ package macsy.module.featuresExtractorTFIDF;
  * the module have run.
  * INPUT_STOPWORDS_FILENAME=The path and name of the file that stores stopwords that will be removed.
  * INPUT_VOCABULARY_FILENAME=The path and name of the file that stores a vocabulary with IDFs.
+ * INPUT_VOCABULARY_SNAPSHOT=The path and name of a binary snapshot of the vocabulary (Optional).
+ * It is written on the first run and loaded instead of the vocabulary while it is up to date (see NGVoc).
  * 
  * Output:
  * OUTPUT_FIELD=The features vector as a list of FeatureID,FeatureValue pairs. 
  * OUTPUT_TAG=Add this tag to processed docs.  
+ * OUTPUT_FORMAT=The format of the features vector (Optional): LIST (default), or the more compact
+ * binary FLOAT32 or QUANTISED16 (see FeatureVectorCodec). Readers accept all formats.
+ * 
+ * THREADS=Number of worker threads (Optional, see ParallelBaseModule).
+ * 
+ * It can also run as a stage of a ModulePipeline, which hands the feature vectors 
+ * to the next stages in memory.
  * 
  * Author: Ilias Flaounas
  * Last Update: 01-10-2012
@@ -21,18 +30,33 @@ package macsy.module.featuresExtractorTFIDF;
  */
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import macsy.blackBoardsSystem.BBDoc;
 import macsy.blackBoardsSystem.BBDocSet;
-import macsy.blackBoardsSystem.BlackBoard;
-import macsy.module.BaseModule;
+import macsy.blackBoardsSystem.BlackBoardDateBased;
+import macsy.lib.DataPoint;
+import macsy.lib.FeatureVectorCodec;
+import macsy.lib.SparseVector;
+import macsy.module.ParallelBaseModule;
+import macsy.module.PipelineDoc;
+import macsy.module.PipelineStage;
 
 
-public class FeaturesExtractorTFIDF  extends BaseModule {
+public class FeaturesExtractorTFIDF  extends ParallelBaseModule implements PipelineStage {
 	
 	static final String PROPERTY_INPUT_STOPWORDS_FILENAME = "INPUT_STOPWORDS_FILENAME";
 	static final String PROPERTY_INPUT_VOCABULARY_FILENAME = "INPUT_VOCABULARY_FILENAME";
+	static final String PROPERTY_INPUT_VOCABULARY_SNAPSHOT = "INPUT_VOCABULARY_SNAPSHOT";
+	static final String PROPERTY_OUTPUT_FORMAT = "OUTPUT_FORMAT";
+
+	//Set by openModule(), used by the worker threads
+	private FeaturesExtractorTFIDF_DAO _storage;
+	private NGIndexer _ng;
+	private List<String> inputFields;
+	private int inputTagID;
+	private int outputTagID;
 
 	public FeaturesExtractorTFIDF(String propertiesFilename ) throws Exception {
 		super(propertiesFilename);
@@ -55,14 +79,27 @@ public class FeaturesExtractorTFIDF  extends BaseModule {
 	public void runModuleCore() throws Exception {
 		
 		//Load Black Board of interest
-		BlackBoard bb = _bbAPI.blackBoardLoadDateBased(  MODULE_INPUT_BLACKBOARD );
-		FeaturesExtractorTFIDF_DAO _storage= new FeaturesExtractorTFIDF_DAO( bb ); 
+		BlackBoardDateBased bb = _bbAPI.blackBoardLoadDateBased(  MODULE_INPUT_BLACKBOARD );
+		openModule( new FeaturesExtractorTFIDF_DAO( bb, newAnnotationBatch(bb) ) );
+		
+		System.out.println("Finding articles to be indexed...");
+		processInputDocs(bb, null, null);
+	}
+
+	/**
+	 * Reads the tags, fields and vocabulary of the module.
+	 */
+	private void openModule(FeaturesExtractorTFIDF_DAO storage) throws Exception {
+		_storage = storage;
+		if(this.getProperty(PROPERTY_OUTPUT_FORMAT)!=null)
+			_storage.setOutputFormat( FeatureVectorCodec.Format.valueOf(
+					this.getProperty(PROPERTY_OUTPUT_FORMAT).trim().toUpperCase()) );
 
 		//Input Tag
-		int inputTagID = _storage.getTagID( this.MODULE_INPUT_TAGS );
+		inputTagID = _storage.getTagID( this.MODULE_INPUT_TAGS );
 		
 		//Input Fields
-		List<String> inputFields = new ArrayList<String>();
+		inputFields = new ArrayList<String>();
 		String inFields_toks[] = MODULE_INPUT_FIELDS.split(",");
 		for(String f : inFields_toks)
 			inputFields.add(f);
@@ -70,41 +107,88 @@ public class FeaturesExtractorTFIDF  extends BaseModule {
 		//Input Voc / Stopwords
 		String stopwordsFilename  = this.getProperty(PROPERTY_INPUT_STOPWORDS_FILENAME );
 		String vocabularyFilename = this.getProperty(PROPERTY_INPUT_VOCABULARY_FILENAME);
+		String vocabularySnapshot = this.getProperty(PROPERTY_INPUT_VOCABULARY_SNAPSHOT);
 		
 		//Output Tag 
-		int outputTagID = 0;
+		outputTagID = 0;
 		if( !this.MODULE_OUTPUT_TAGS.equals("") )
 			outputTagID = _storage.getTagID( this.MODULE_OUTPUT_TAGS );
 		
 		//String outputField = this.MODULE_OUTPUT_FIELDS ;
 
-		System.out.println("Finding articles to be indexed...");
-		BBDocSet articles = _storage.getInputDocs(inputTagID,this.MODULE_DATA_PROCESS_LIMIT);
-
 		//Initilize indexer
-		NGIndexer _ng = new NGIndexer(	vocabularyFilename, stopwordsFilename );
-		
+		_ng = new NGIndexer(	vocabularyFilename, stopwordsFilename, vocabularySnapshot );
+	}
+
+	@Override
+	protected BBDocSet findInputDocs(Date fromDate, Date toDate, int maxDocs) throws Exception {
+		return _storage.getInputDocs(inputTagID, inputFields, fromDate, toDate, maxDocs);
+	}
+
+	@Override
+	protected boolean processDoc(BBDoc article) throws Exception {
+		String artText = _storage.getDocText(article, inputFields);
+
+		Map<Integer,Double> key_val = _ng.CreateBOW_Map( artText  );
+
+		_storage.storeIndexed(article.getID(), this.MODULE_OUTPUT_FIELDS, key_val);
+
+		_storage.removeTagFromDoc( article.getID(), inputTagID );
 		
-		BBDoc article;
-		int i=0;
-		while((article=articles.getNext())!=null)
-		{
-			if(++i%1000==0) 
-				System.out.printf("%.2f%%\n",i*100.0/this.MODULE_DATA_PROCESS_LIMIT);
+		if(outputTagID!=0)
+			_storage.addTagToDoc(article.getID(), outputTagID);
 
-			String artText = _storage.getDocText(article.getID(), inputFields);
+		return true;
+	}
 
-			Map<Integer,Double> key_val = _ng.CreateBOW_Map( artText  );
+	@Override
+	public void openStage(BlackBoardDateBased bb) throws Exception {
+		//Annotations are kept in the PipelineDocs
+		openModule( new FeaturesExtractorTFIDF_DAO( bb ) );
+	}
 
-			_storage.storeIndexed(article.getID(), this.MODULE_OUTPUT_FIELDS, key_val);
+	@Override
+	public List<Integer> getStageInputTags() {
+		List<Integer> tags = new ArrayList<Integer>();
+		tags.add(inputTagID);
+		return tags;
+	}
 
-			_storage.removeTagFromDoc( article.getID(), inputTagID );
-			
-			if(outputTagID!=0)
-				_storage.addTagToDoc(article.getID(), outputTagID);
-		}
+	@Override
+	public List<String> getStageInputFields() {
+		return inputFields;
+	}
 
-		saveModuleResults(i,i );
+	@Override
+	public int getMaxStageThreads() {
+		return Integer.MAX_VALUE;
+	}
+
+	@Override
+	public void processStageDoc(PipelineDoc doc, Output output) throws Exception {
+		String artText = _storage.getDocText(doc.getDoc(), inputFields);
+
+		SparseVector features = new SparseVector( _ng.CreateBOW_Map( artText ) );
+		Object encoded = FeatureVectorCodec.encode(features, _storage.outputFormat);
+		
+		//The next stages get the vector as they would read it from the field
+		DataPoint vector;
+		if(_storage.outputFormat==FeatureVectorCodec.Format.LIST)
+			vector = new DataPoint(features);
+		else
+			vector = FeatureVectorCodec.toDataPoint(encoded);
+		doc.addFeaturesToDoc(this.MODULE_OUTPUT_FIELDS, encoded, vector);
+
+		doc.removeTagFromDoc( inputTagID );
+		
+		if(outputTagID!=0)
+			doc.addTagToDoc( outputTagID );
+
+		output.emit(doc);
+	}
+
+	@Override
+	public void closeStage(Output output) throws Exception {
 	}
 
 
@@ -1,12 +1,16 @@
 package macsy.module.featuresExtractorTFIDF;
 
 
+import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import macsy.blackBoardsSystem.AnnotationBatch;
 import macsy.blackBoardsSystem.BBDoc;
 import macsy.blackBoardsSystem.BBDocSet;
 import macsy.blackBoardsSystem.BlackBoard;
+import macsy.blackBoardsSystem.BlackBoardDateBased;
+import macsy.lib.FeatureVectorCodec;
 
 
 public class FeaturesExtractorTFIDF_DAO {
@@ -27,6 +31,17 @@ public class FeaturesExtractorTFIDF_DAO {
 	
 	BlackBoard bb; 
 	
+	//If set, updates are written in bulk through it.
+	AnnotationBatch batch = null;
+	
+	//The format of the stored feature vectors.
+	FeatureVectorCodec.Format outputFormat = FeatureVectorCodec.Format.LIST;
+
+	public FeaturesExtractorTFIDF_DAO(BlackBoard bb, AnnotationBatch batch) throws Exception
+	{
+		this(bb);
+		this.batch = batch;
+	}
 
 	public FeaturesExtractorTFIDF_DAO(BlackBoard bb  ) throws Exception
 	{
@@ -58,11 +73,40 @@ public class FeaturesExtractorTFIDF_DAO {
 
 		return articles;
 	}
+
+	/**
+	 * Returns the docs with the input tag in the period [fromDate, toDate),
+	 * with only the specified fields fetched.
+	 * Set both dates to null to get all.
+	 */
+	public BBDocSet getInputDocs(int inputTagID, List<String> fields, Date fromDate, Date toDate, int limit) throws Exception
+	{
+		LinkedList<Integer> requiredTags = new LinkedList<Integer>();
+		requiredTags.add( inputTagID  );
+
+		if(fromDate==null && toDate==null)
+			return bb.findDocsByTagsSet(requiredTags, null, fields, limit);
+
+		return ((BlackBoardDateBased) bb).findDocsByFieldsTagsSet(
+				fromDate, toDate,
+				null, null,
+				requiredTags,
+				null,
+				fields,
+				limit);
+	}
 	
 	
 	public String getDocText(Object docID, List<String> inputFields) throws Exception
 	{
-		BBDoc doc = bb.findDocByID(docID);
+		return getDocText(bb.findDocByID(docID), inputFields);
+	}
+
+	/**
+	 * Returns the concatenated text of the fields of an already fetched doc.
+	 */
+	public String getDocText(BBDoc doc, List<String> inputFields) throws Exception
+	{
 		StringBuilder artText = new StringBuilder(); 
 		
 		for(String field : inputFields)
@@ -75,17 +119,23 @@ public class FeaturesExtractorTFIDF_DAO {
 		return artText.toString();
 	}
 	
+	/**
+	 * Sets the format of the feature vectors written by storeIndexed().
+	 * The default is the legacy list (FeatureVectorCodec.Format.LIST).
+	 */
+	public void setOutputFormat(FeatureVectorCodec.Format outputFormat)
+	{
+		this.outputFormat = outputFormat;
+	}
+	
 	public void storeIndexed(Object docID, String outputField, Map<Integer,Double> key_val) throws Exception
 	{
-		List<Double> keyval_list = new LinkedList<Double>();
-		
-		for (Map.Entry<Integer, Double> e : key_val.entrySet()) 
-		{
-			keyval_list.add((double)e.getKey());
-			keyval_list.add(e.getValue());
-		}
+		Object features = FeatureVectorCodec.encode(key_val, outputFormat);
 		
-		bb.addFieldToDoc(docID, outputField, keyval_list);
+		if(batch!=null)
+			batch.addFieldToDoc(docID, outputField, features);
+		else
+			bb.addFieldToDoc(docID, outputField, features);
 	}
 
 	
@@ -99,12 +149,18 @@ public class FeaturesExtractorTFIDF_DAO {
 //	
 	public void addTagToDoc(Object articleID, int tagID) throws Exception
 	{
-		bb.addTagToDoc(articleID, tagID);
+		if(batch!=null)
+			batch.addTagToDoc(articleID, tagID);
+		else
+			bb.addTagToDoc(articleID, tagID);
 	}
 
 	public void removeTagFromDoc(Object articleID, int tagID) throws Exception
 	{
-		bb.removeTagFromDoc(articleID, tagID);
+		if(batch!=null)
+			batch.removeTagFromDoc(articleID, tagID);
+		else
+			bb.removeTagFromDoc(articleID, tagID);
 	}
 
 	
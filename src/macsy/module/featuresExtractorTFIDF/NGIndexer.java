@@ -8,6 +8,7 @@
 
 package macsy.module.featuresExtractorTFIDF;
 
+import java.util.Arrays;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -20,6 +21,8 @@ public class NGIndexer {
 
 	public NGVoc _voc = null;
 
+	private boolean _singlePass = true;
+
 
 	/**
 	 * Constructor 
@@ -28,17 +31,42 @@ public class NGIndexer {
 	 * @throws Exception
 	 */
 	public NGIndexer(String voc_filename, String stopwords_filename) throws Exception {
+		this(voc_filename, stopwords_filename, null);
+	}
+
+	/**
+	 * Constructor 
+	 * @param voc_filename  = The vocabulary to use
+	 * @param stopwords_filename	=Stopwordsfile to use
+	 * @param voc_snapshot_filename	=Binary snapshot of the vocabulary (see NGVoc), or null
+	 * @throws Exception
+	 */
+	public NGIndexer(String voc_filename, String stopwords_filename, String voc_snapshot_filename) throws Exception {
 		System.out.print("Reading Vocabulary and Stop words...");
 
 		if(voc_filename==null)
 			_voc=null;
 		else
-			_voc = new NGVoc( voc_filename );
+			_voc = new NGVoc( voc_filename, voc_snapshot_filename );
 		System.out.println("\t[ DONE ]");
 
 		_pre = new NGPreprocessing(stopwords_filename);	
 	}
 
+	/**
+	 * Selects how the text is indexed (true by default):
+	 * true = a single pass that tokenises, stems, removes stop words and looks
+	 * the stems up in the vocabulary without creating a String per word
+	 * (see NGPreprocessing.doPreprocessToIDs()),
+	 * false = doPreprocess(), then split and look up each word.
+	 * Both give the same B-O-W. Without a vocabulary the second is used.
+	 * @param singlePass
+	 */
+	public void setSinglePass(boolean singlePass)
+	{
+		_singlePass = singlePass;
+	}
+
 	/**
 	 * Return the next available Feature ID
 	 * @return
@@ -61,9 +89,7 @@ public class NGIndexer {
 	 */
 	public String CreateBOW(String input) throws Exception
 	{
-		String Input_pre =  _pre.doPreprocess(input);
-
-		Map<Integer, Integer> TF = String2TF(Input_pre); 
+		Map<Integer, Integer> TF = Input2TF(input); 
 
 		if(_voc!=null)
 			return Indexed2TFIDF(TF);
@@ -84,9 +110,7 @@ public class NGIndexer {
 	 */
 	public Map<Integer,Double> CreateBOW_Map(String input) throws Exception
 	{
-		String Input_pre =  _pre.doPreprocess(input);
-
-		Map<Integer, Integer> TF = String2TF(Input_pre); 
+		Map<Integer, Integer> TF = Input2TF(input); 
 
 		if(_voc!=null)
 			return Indexed2TFIDF_Map(TF);
@@ -103,9 +127,11 @@ public class NGIndexer {
 	 */
 	public String CreateBinary(String input) throws Exception
 	{
-		String Input_pre =  _pre.doPreprocess(input);
-
-		Map<Integer, Integer> TF = String2Bin(Input_pre); 
+		Map<Integer, Integer> TF;
+		if(_singlePass && _voc!=null)
+			TF = IDs2Bin(_pre.doPreprocessToIDs(input, _voc));
+		else
+			TF = String2Bin(_pre.doPreprocess(input)); 
 
 
 		StringBuffer Bin_featurevector=new StringBuffer(1000);
@@ -206,6 +232,36 @@ public class NGIndexer {
 	}
 
 
+	/**
+	 * TF(WordID-> Frequency) of the input text, with the path selected by
+	 * setSinglePass().
+	 */
+	private Map<Integer, Integer> Input2TF(String input) throws Exception {
+		if(_singlePass && _voc!=null)
+			return IDs2TF(_pre.doPreprocessToIDs(input, _voc));
+		return String2TF(_pre.doPreprocess(input));
+	}
+
+	/**
+	 * TF(WordID-> Frequency) of the word IDs of a text.
+	 * Sorts ids.
+	 */
+	private Map<Integer, Integer> IDs2TF(int[] ids) {
+		Map<Integer, Integer> wordfreq = new TreeMap<Integer, Integer>(); 
+		Arrays.sort(ids);
+
+		int t=0;
+		while(t<ids.length) {				//For each distinct word
+			int next = t+1;
+			while(next<ids.length && ids[next]==ids[t])
+				next++;
+			wordfreq.put(ids[t], next-t);
+			t = next;
+		}
+
+		return wordfreq;
+	}
+
 	/**
 	 * index a phrase. 
 	 *
@@ -250,4 +306,17 @@ public class NGIndexer {
 
 		return wordfreq;
 	}
+
+	/**
+	 * Binary representation of the word IDs of a text
+	 * @param ids
+	 * @return
+	 */
+	private Map<Integer, Integer> IDs2Bin(int[] ids) {
+		Map<Integer, Integer> wordfreq = new TreeMap<Integer, Integer>(); 
+		for (int t=0;t<ids.length;t++)
+			wordfreq.put(ids[t], 1);
+
+		return wordfreq;
+	}
 }
@@ -14,7 +14,9 @@ package macsy.module.featuresExtractorTFIDF;
 import java.io.IOException;
 //import java.util.ArrayList;
 import java.io.*;
-import java.util.TreeSet;
+import java.util.Arrays;
+
+import macsy.lib.VocabularyStore;
 
 
 public class NGPreprocessing {
@@ -24,15 +26,12 @@ public class NGPreprocessing {
 	
 
 	
-	private TreeSet<String> m_StopWords;
-
-	private Stemmer m_stemmer;	//Stemmer object
+	private VocabularyStore m_StopWords;	//Stemmed stop words
 
 
 	public NGPreprocessing(String stopwords_filename) {
-		m_stemmer = new Stemmer();	//stemmer;
 		//	System.out.print("Loading stop words...");
-		m_StopWords = new TreeSet<String>();
+		m_StopWords = new VocabularyStore();
 		if(stopwords_filename!=null)
 			LoadStopWords(stopwords_filename);
 	}
@@ -61,8 +60,10 @@ public class NGPreprocessing {
 
 	/*
 	 * Uses Porter stemmer and stop world removal. 
+	 * Thread safe: each call uses its own stemmer.
 	 */
 	public String doPreprocess(String inp) {
+		Stemmer stemmer = new Stemmer();	//Stemmer object
 		String input =  inp+" ";
 		char[] w  =  new char[MAX_WORD_LENGTH];	//MAX wordlength
 		int input_size = input.length();
@@ -86,13 +87,13 @@ public class NGPreprocessing {
 				{
 					if (k>=MIN_WORD_LENGTH)	//MIN LENGTH OF A WORD 
 					{
-						m_stemmer.add(w, k);
-						m_stemmer.stem();
+						stemmer.add(w, k);
+						stemmer.stem();
 						//REMOVE IF IS A STOP WORD!!!
-						if(!m_StopWords.contains(m_stemmer.toString()))
+						if(m_StopWords.getID(stemmer.getResultBuffer(), 0, stemmer.getResultLength())==VocabularyStore.NOT_FOUND)
 						{
 							//	System.out.print( s.toString()+" " );
-							buf_out.append(m_stemmer.toString()+" ");
+							buf_out.append(stemmer.getResultBuffer(), 0, stemmer.getResultLength()).append(' ');
 						}
 
 						//	dic.add(s.toString());
@@ -109,6 +110,70 @@ public class NGPreprocessing {
 
 	}
 
+	/**
+	 * Single pass version of doPreprocess() followed by the lookup of each
+	 * stem in the vocabulary, as done by NGIndexer.
+	 * It tokenises, lowercases, stems and removes stop words in reused buffers,
+	 * and looks the stems up in voc without creating a String per word.
+	 * Thread safe: each call uses its own stemmer.
+	 * 
+	 * @param input
+	 * @param voc
+	 * @return The IDs of the stems that are in voc, in the order of the text.
+	 */
+	public int[] doPreprocessToIDs(String input, NGVoc voc) {
+		Stemmer stemmer = new Stemmer();	//Stemmer object
+		char[] w  =  new char[MAX_WORD_LENGTH];	//MAX wordlength
+		int input_size = input.length();
+
+		int[] ids = new int[16 + input_size/8];
+		int n = 0;
+		int kept = 0;	//Number of stems that are not stop words
+
+		int k=0; //word pointer;
+		for(int i=0;i<=input_size;i++)	//Char in input pointer, plus a final separator
+		{
+			char c = (i<input_size ? input.charAt(i) : ' ');
+			if ( IsAcceptedLetter(c) )
+			{
+				if(k < MAX_WORD_LENGTH -1 )	//Cut word if too large
+				{
+					w[k++]= (c<='Z' ? (char)(c + ('a'-'A')) : c);
+				}
+			}
+			else 
+			{
+				if (k>=MIN_WORD_LENGTH)	//MIN LENGTH OF A WORD 
+				{
+					stemmer.add(w, k);
+					stemmer.stem();
+					char[] stem = stemmer.getResultBuffer();
+					int stem_length = stemmer.getResultLength();
+
+					//REMOVE IF IS A STOP WORD, IGNORE IF NOT IN VOCABULARY
+					if(m_StopWords.getID(stem, 0, stem_length)==VocabularyStore.NOT_FOUND)
+					{
+						kept++;
+						int id = voc.getWordID(stem, stem_length);
+						if(id > 0)
+						{
+							if(n==ids.length)
+								ids = Arrays.copyOf(ids, 2*n);
+							ids[n++] = id;
+						}
+					}
+				}
+				k=0;
+			}
+		}
+
+		//As the split of an empty doPreprocess() output gives one empty word
+		if(kept==0 && voc.getWordID(w, 0)>0)
+			ids[n++] = voc.getWordID(w, 0);
+
+		return Arrays.copyOf(ids, n);
+	}
+
 	private void LoadStopWords(String stop_words_filename) 
 	{
 		try {
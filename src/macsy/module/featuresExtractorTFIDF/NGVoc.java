@@ -4,6 +4,12 @@ Word with ID 0 has a special meaning:
 ID: 0
 IDF: Number of documents processed so far to create IDFs
 
+The words are kept in a VocabularyStore (word ID = store ID + 1).
+Optionally a binary snapshot of the vocabulary is kept in a file given to the
+constructor: while the snapshot is newer than the vocabulary file and has the
+number of documents and words of its header, it is memory-mapped instead of
+parsing the file. Otherwise the file is parsed and the snapshot is rewritten.
+
  */
 package macsy.module.featuresExtractorTFIDF;
 
@@ -11,14 +17,14 @@ package macsy.module.featuresExtractorTFIDF;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
-import java.util.Iterator;
-import java.util.TreeMap;
+
+import macsy.lib.VocabularyStore;
 
 
 //READ ONLY
 public class NGVoc   {
 
-	private TreeMap<String, Integer> m_Word2ID = null;	//Word to ID
+	private VocabularyStore m_Words = null;	//Word to ID-1 and ID-1 to word
 	private double[] m_ID2IDF = null;
 
 	public int currentID = 0; //Number of words in Vocabulary (with the special one)
@@ -30,7 +36,30 @@ public class NGVoc   {
 	private int MIN_DF_VALUE = 3;
 
 	public NGVoc(String voc_filename)  throws Exception {
+		this(voc_filename, null);
+	}
+
+	/**
+	 * @param voc_filename
+	 * @param snapshot_filename The snapshot of the vocabulary, or null to always parse the file
+	 * @throws Exception
+	 */
+	public NGVoc(String voc_filename, String snapshot_filename)  throws Exception {
+		if(snapshot_filename==null)
+		{
+			LoadVocabulary(voc_filename);
+			return;
+		}
+
+		File vocFile = new File(voc_filename);
+		File snapshotFile = new File(snapshot_filename);
+
+		if(snapshotFile.lastModified() > vocFile.lastModified() && LoadSnapshot(snapshot_filename)
+				&& MatchesHeader(voc_filename))
+			return;
+
 		LoadVocabulary(voc_filename);
+		m_Words.save(snapshot_filename, m_ID2IDF);
 	}
 
 	/**
@@ -39,7 +68,24 @@ public class NGVoc   {
 	 * @return
 	 */
 	public Integer getWordID(String word) {
-		return m_Word2ID.get(word);
+		int id = m_Words.getID(word);
+		if(id==VocabularyStore.NOT_FOUND)
+			return null;
+		return id+1;
+	}
+
+	/**
+	 * Return the ID of the word in w[0..len) or -1 if unknown word.
+	 * Does not create a String, for the single pass indexing of NGIndexer.
+	 * @param w
+	 * @param len
+	 * @return
+	 */
+	public int getWordID(char[] w, int len) {
+		int id = m_Words.getID(w, 0, len);
+		if(id==VocabularyStore.NOT_FOUND)
+			return -1;
+		return id+1;
 	}
 
 	/**
@@ -66,25 +112,50 @@ public class NGVoc   {
 	}
 
 	/**
-	 * Warning. IT IS SLOW
+	 * Return the word with the ID or NULL if unknown ID.
 	 * @param WordID
 	 * @return
 	 */
 	public String getWord(int WordID)
 	{
-		if(m_Word2ID.containsValue(WordID))
-		{
-			Iterator<String> iter = m_Word2ID.keySet().iterator();
-			
-			while(iter.hasNext())
-			{
-				String key = iter.next() ;
-				if(m_Word2ID.get( key ) == WordID)
-					return key;
-			}
-			
+		return m_Words.getWord(WordID-1);
+	}
+
+	/**
+	 * Maps a snapshot written by the constructor.
+	 * @param snapshot_filename
+	 * @return false if the snapshot can not be used
+	 */
+	private boolean LoadSnapshot(String snapshot_filename)
+	{
+		try {
+			m_Words = VocabularyStore.map(snapshot_filename);
 		}
-		return null;
+		catch(Exception e) {
+			System.err.println("Ignoring vocabulary snapshot "+snapshot_filename+": "+e.getMessage());
+			return false;
+		}
+		m_ID2IDF = m_Words.getSnapshotValues();
+		currentID = m_ID2IDF.length;
+		m_NumOfDocuments = (int) m_ID2IDF[0];
+		return true;
+	}
+
+	/**
+	 * Checks a mapped snapshot against the header of the vocabulary file.
+	 * @param voc_filename
+	 * @return true if the snapshot has the number of documents and words of the file
+	 * @throws Exception
+	 */
+	private boolean MatchesHeader(String voc_filename) throws Exception
+	{
+		BufferedReader input = new BufferedReader( new FileReader(voc_filename) );
+		String[] tokens = input.readLine().split("\t");
+		input.close();
+
+		int numOfWords = Integer.parseInt(tokens[3]);
+		return m_NumOfDocuments==Integer.parseInt(tokens[1])
+				&& currentID==numOfWords+1 && m_Words.size()==numOfWords;
 	}
 	
 	
@@ -113,7 +184,7 @@ public class NGVoc   {
 		currentID = Integer.parseInt(tokens[3]) + 1;
 
 		//Initialize structures
-		m_Word2ID = new TreeMap<String, Integer>();
+		m_Words = new VocabularyStore(currentID);
 		m_ID2IDF = new double[currentID];	//Skip 0 as WordID
 
 		m_ID2IDF[0] = m_NumOfDocuments;
@@ -124,7 +195,7 @@ public class NGVoc   {
 		while (( line = input.readLine()) != null)
 		{
 			tokens = line.split("\t");
-			m_Word2ID.put(tokens[0], NextWordID);
+			m_Words.append(tokens[0]);	//Store ID = NextWordID-1
 			dfvalue = Double.parseDouble(tokens[1]);
 			m_ID2IDF[NextWordID]  = (dfvalue<=MIN_DF_VALUE? 0 : Math.log( m_NumOfDocuments / (double)dfvalue));
 
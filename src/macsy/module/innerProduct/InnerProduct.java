@@ -5,7 +5,8 @@ import java.util.*;
 
 import macsy.blackBoardsSystem.*;
 import macsy.lib.DataPoint;
-import macsy.module.BaseModule;
+import macsy.lib.FeatureVectorCodec;
+import macsy.module.ParallelBaseModule;
 import macsy.module.featuresExtractorTFIDF.NGIndexer;
 
 /**
@@ -21,6 +22,7 @@ import macsy.module.featuresExtractorTFIDF.NGIndexer;
  * INPUT_TXT_FILENAME=The name of the file that contains w.
  * INPUT_PRODUCT_COSINE=Set to "COSINE" or "PRODCUT" to select the corresponding function.  DEFAULT=Inner Product
  * PROCESS_LIMIT=The max number of documents. Set to zero to get all
+ * THREADS=Number of worker threads (Optional, see ParallelBaseModule)
  * 
  * Output:
  * OUTPUT_FIELD=The field's name where the module is going to write the calculated result.
@@ -32,13 +34,21 @@ import macsy.module.featuresExtractorTFIDF.NGIndexer;
  */
 
 
-public class InnerProduct  extends BaseModule {
+public class InnerProduct  extends ParallelBaseModule {
 	// temporal variables to hold information given by the user
 	static final String PROPERTY_INPUT_FILENAME = "INPUT_TXT_FILENAME";
 	static final String PROPERTY_INPUT_STOPWORDS_FILENAME = "INPUT_STOPWORDS_FILENAME";
 	static final String PROPERTY_INPUT_VOCABULARY_FILENAME = "INPUT_VOCABULARY_FILENAME";
 	static final String PROPERTY_INPUT_PRODUCT_COSINE = "INPUT_PRODUCT_COSINE";
 	
+	// set by runModuleCore(), used by the worker threads
+	private BlackBoardDateBased bb;
+	private AnnotationBatch batch;
+	private List<Integer> inputTagIDs;
+	private List<Integer> outputTagIDs;
+	private DataPoint w;
+	private boolean isFunctionInnerProduct;
+	
 	public InnerProduct(String propertiesFilename ) throws Exception {
 		super(propertiesFilename);
 	}
@@ -47,20 +57,21 @@ public class InnerProduct  extends BaseModule {
 	public void runModuleCore() throws Exception 
 	{
 //		Load Black Board of interest (with date based) // only with articles
-		BlackBoardDateBased bb = _bbAPI.blackBoardLoadDateBased(MODULE_INPUT_BLACKBOARD );
+		bb = _bbAPI.blackBoardLoadDateBased(MODULE_INPUT_BLACKBOARD );
 		//BlackBoard bb = _bbAPI.blackBoardLoad(MODULE_INPUT_BLACKBOARD );
+		batch = newAnnotationBatch(bb);
 		
 		
 		//check the decision of the user (inner product or cosine)
 		String product_or_cosine = this.getProperty(PROPERTY_INPUT_PRODUCT_COSINE);
-		boolean isFunctionInnerProduct = true;	//Variable name clarification
+		isFunctionInnerProduct = true;	//Variable name clarification
 		if("COSINE".equals(product_or_cosine))	//inverse to avoid seg.fault if variable==null
 			isFunctionInnerProduct = false;
 		
 		
 		//Prepare input tags 
 		String inputTagNames[] = MODULE_INPUT_TAGS.split(",");
-		List<Integer> inputTagIDs = new LinkedList<Integer>();	//Variable name clarification + Java style
+		inputTagIDs = new LinkedList<Integer>();	//Variable name clarification + Java style
 		for(String tagName : inputTagNames) 
 		{
 			if(!tagName.equals("")){
@@ -75,7 +86,7 @@ public class InnerProduct  extends BaseModule {
 		
 		//Prepare output tags 
 		String outTagNames[] = MODULE_OUTPUT_TAGS.split(",");
-		List<Integer> outputTagIDs = new LinkedList<Integer>();//Variable name clarification
+		outputTagIDs = new LinkedList<Integer>();//Variable name clarification
 		for(String tagName : outTagNames) 
 		{
 			if(!tagName.equals("")){
@@ -97,46 +108,44 @@ public class InnerProduct  extends BaseModule {
 		Map<Integer,Double> key_val = _ng.CreateBOW_Map( artText  ); 
 		
 		//transform the calculated it-idf into DataPoint format 
-		DataPoint w = new DataPoint(key_val);
-
-		//Find the documents in the BB that have that input tag (subset)
-		BBDocSet DocSet = bb.findDocsByTagsSet(inputTagIDs, null, this.MODULE_DATA_PROCESS_LIMIT);
-
-		// variables to hold information about the number of data that were read and data
-		// that were processed so that the module can print them on the screen
-		int dataRead = 0;
-		int dataProcessed = 0;
+		w = new DataPoint(key_val);
+		// cache the magnitude now, w is only read by the worker threads
+		w.getMagnitude();
 
-		// as long as there are still docs in the BBDocSet
-		// get the next doc int the BBDocSet
-		BBDoc s;
-		while((s = DocSet.getNext())!=null)
-		{
-			dataRead++;
-			
-			@SuppressWarnings("unchecked")
-			//take the already calculated tf-idf of the docs in BB
-			List<Double> tf_idf = (List<Double>) s.getField(MODULE_INPUT_FIELDS);
-			// check if the list is null
-			if(tf_idf==null)
-				continue;
-			
-			//	transform x into point
-			DataPoint x = new DataPoint(tf_idf);
-			
-			double res = (isFunctionInnerProduct ?  x.getDotProduct(w) : x.getCosineSimilarity(w) );	//Compact form
-			
-			//add the result to the proper field
-			bb.addFieldToDoc(s.getID(), MODULE_OUTPUT_FIELDS, res);
-			bb.addTagsToDoc(s.getID(), outputTagIDs);	//ILIAS: we add all output tags not only one!!!
-
-			//Doc was processed output report
-			if(dataProcessed++%1000==0)	//Progress report every 1K docs
-				System.out.printf("%.2f\n", dataProcessed *100.0 / MODULE_DATA_PROCESS_LIMIT );
-		}
+		//Find the documents in the BB that have that input tag (subset) and process them
+		//(this also saves the number of input and output items)
+		processInputDocs(bb, null, null);
+	}
+	
+	@Override
+	protected BBDocSet findInputDocs(Date fromDate, Date toDate, int maxDocs) throws Exception
+	{
+		// fetch only the field with the tf-idf of the docs
+		List<String> fields = new LinkedList<String>();
+		fields.add(MODULE_INPUT_FIELDS);
+		
+		if(fromDate==null && toDate==null)
+			return bb.findDocsByTagsSet(inputTagIDs, null, fields, maxDocs);
+		return bb.findDocsByFieldsTagsSet(fromDate, toDate, null, null, inputTagIDs, null, fields, maxDocs);
+	}
+	
+	@Override
+	protected boolean processDoc(BBDoc s) throws Exception
+	{
+		//take the already calculated tf-idf of the docs in BB (list or binary)
+		//	and transform x into point
+		DataPoint x = FeatureVectorCodec.toDataPoint(s.getField(MODULE_INPUT_FIELDS));
+		// check if the field is missing
+		if(x==null)
+			return false;
+		
+		double res = (isFunctionInnerProduct ?  x.getDotProduct(w) : x.getCosineSimilarity(w) );	//Compact form
+		
+		//add the result to the proper field
+		batch.addFieldToDoc(s.getID(), MODULE_OUTPUT_FIELDS, res);
+		batch.addTagsToDoc(s.getID(), outputTagIDs);	//ILIAS: we add all output tags not only one!!!
 		
-		// display the number of input items and the number of output items //ILIAS: Actually it does a lot more. EVery module should run this at the end
-		this.saveModuleResults(dataRead, dataProcessed);
+		return true;
 	}
 	
 	/**
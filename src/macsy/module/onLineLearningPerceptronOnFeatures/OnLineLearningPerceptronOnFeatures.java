@@ -6,6 +6,8 @@ import java.io.FileWriter;
 import java.util.*;
 
 import macsy.blackBoardsSystem.*;
+import macsy.lib.FeatureVectorCodec;
+import macsy.lib.SparseVector;
 import macsy.lib.VocabularyOnFeatures;
 import macsy.module.BaseModule;
 
@@ -79,17 +81,15 @@ public class OnLineLearningPerceptronOnFeatures extends BaseModule {
 		 * @return the map  of the words' IDs and their TF
 		 * @throws InterruptedException
 		 */
-		private Map<Integer,Double> Input_Feature_Vector(List<Double> features_list) throws Exception
+		private Map<Integer,Double> Input_Feature_Vector(Object features_field) throws Exception
 		{			
 			Map<Integer,Double> feat = new TreeMap<Integer,Double>();
-			int index;
-			double value;
-			for(int f=0; f<features_list.size(); f+=2)
+			//The features as a list or in a binary format
+			SparseVector features = FeatureVectorCodec.decode(features_field);
+			for(int k=0; k<features.size(); k++)
 			{
-				index = (int) Math.round(features_list.get(f));
-				w_voc.addWordByID(index);
-				value = features_list.get(f+1);
-				feat.put(index, value);
+				w_voc.addWordByID(features.indexAt(k));
+				feat.put(features.indexAt(k), features.valueAt(k));
 			}
 			return feat;
 		}
@@ -231,7 +231,7 @@ public class OnLineLearningPerceptronOnFeatures extends BaseModule {
 				dataRead++;
 					
 				// take the text from that field
-				List<Double> tf_idf = (List<Double>) s.getField(MODULE_INPUT_FIELDS);
+				Object tf_idf = s.getField(MODULE_INPUT_FIELDS);
 				
 				// Representation - Feature Extraction
 				Map<Integer,Double> X_i = Input_Feature_Vector(tf_idf);
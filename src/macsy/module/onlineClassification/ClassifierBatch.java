@@ -0,0 +1,224 @@
+package macsy.module.onlineClassification;
+
+import java.util.ArrayList;
+import java.util.List;
+import macsy.blackBoardsSystem.BBDoc;
+import macsy.lib.DataPoint;
+import macsy.lib.Results;
+import macsy.lib.onlineLearning.OnlineLearning;
+
+/**
+ * The batch of documents of the OnlineClassifier modules (TRAINING_BATCH_SIZE).
+ *
+ * The documents of a batch are predicted with the model as it was before the
+ * batch and the predictions are stored. Then the model is trained on the
+ * labelled samples of the batch, and the statistics are printed (and written
+ * in the performance file) once for the batch.
+ *
+ */
+class ClassifierBatch {
+
+    /**
+     * Where the annotations of the documents go.
+     */
+    interface Annotations {
+
+        void addTagsToDoc(Object docID, Integer tagID) throws Exception;
+
+        void addFieldToDoc(Object docID, String fieldName, Double fieldValue) throws Exception;
+
+        void removeTagsFromDoc(Object docID, List<Integer> tagIDs) throws Exception;
+    }
+
+    private final OnlineLearning onlineLearning;
+    private final Annotations annotations;
+    private final List<Integer> inputTags;
+    private final List<Integer> outputTags;
+    private final String outputField;
+    private final Results learningResults;
+
+    private final List<BBDoc> docs = new ArrayList<BBDoc>();
+    // the samples of the documents (null for a document without features)
+    private final List<DataPoint> samples = new ArrayList<DataPoint>();
+    private final List<DataPoint> trainingSamples = new ArrayList<DataPoint>();
+
+    /**
+     * @param onlineLearning:The object with the model
+     * @param annotations:Where the predictions and the tags are written
+     * @param inputTags:The tags to remove from the documents
+     * @param outputTags:The tags to add to the documents (the positive
+     * prediction tag must be second in the list)
+     * @param outputField:The field for the predicted values (or null)
+     * @param learningResults:The performance file (null if there is none)
+     */
+    ClassifierBatch(OnlineLearning onlineLearning,
+            Annotations annotations,
+            List<Integer> inputTags,
+            List<Integer> outputTags,
+            String outputField,
+            Results learningResults) {
+        this.onlineLearning = onlineLearning;
+        this.annotations = annotations;
+        this.inputTags = inputTags;
+        this.outputTags = outputTags;
+        this.outputField = outputField;
+        this.learningResults = learningResults;
+    }
+
+    /**
+     * Adds a document to the batch
+     * @param doc:The document
+     * @param sample:Its DataPoint (null for a document without features)
+     * @param training:True if the sample is labelled
+     */
+    void add(BBDoc doc, DataPoint sample, boolean training) {
+        docs.add(doc);
+        samples.add(sample);
+        if (training) {
+            trainingSamples.add(sample);
+        }
+    }
+
+    int size() {
+        return docs.size();
+    }
+
+    boolean isEmpty() {
+        return docs.isEmpty();
+    }
+
+    /**
+     * Returns the documents of the batch, in order
+     */
+    List<BBDoc> getDocs() {
+        return docs;
+    }
+
+    /**
+     * Processes the documents of the batch and empties it
+     * @return The number of training samples
+     * @throws Exception
+     */
+    int process() throws Exception {
+        List<DataPoint> features = new ArrayList<DataPoint>();
+        for (DataPoint sample : samples) {
+            if (sample != null) {
+                features.add(sample);
+            }
+        }
+        double[] predictions = onlineLearning.predictBatch(features);
+        for (int i = 0; i < predictions.length; i++) {
+            features.get(i).setPredictedLabel_Value(predictions[i]);
+            Object docID = features.get(i).getID();
+            // Add the result of the classifier in a new field
+            if (outputField != null) {
+                annotations.addFieldToDoc(docID, outputField, predictions[i]);
+            }
+            // Only for positive instances add a new tag
+            if (outputTags.size() > 1
+                    && predictions[i] >= onlineLearning.getDecisionThreshold()) {
+                annotations.addTagsToDoc(docID,
+                        outputTags.get(1)); // Positive prediction tag
+            }                               // must be second in list!
+        }
+
+        int trained = trainingSamples.size();
+        if (trained > 0) {
+            System.out.println("Training Procedure...");
+            onlineLearning.trainBatch(trainingSamples);
+
+            // display on the screen the statistical information
+            onlineLearning.statsPrintConfusionMatrix();
+
+            double N_hat_Pos = onlineLearning.expMovAvGetPositives();
+            double N_hat_Neg = onlineLearning.expMovAvGetNegatives();
+            double display_ALL = N_hat_Pos + N_hat_Neg;
+
+            // information on the screen
+            String str = "\t #POS \t #NEG \t #ALL \n" + "\t " + N_hat_Pos + "\t "
+                    + N_hat_Neg + "\t " + display_ALL + "\t";
+            System.out.println(str);
+
+            //calculate precision, recall and f-measure
+            str = calculatePrintStatistics();
+
+            // if we wish to have a performance file
+            if (learningResults != null) {
+                // inform the file which holds the corresponding statistical info
+                writingStatisticsInFile(str);
+            }
+        }
+        if (learningResults != null) {
+            learningResults.Flush();
+        }
+
+        for (BBDoc s : docs) {
+            annotations.removeTagsFromDoc(s.getID(),
+                    inputTags);
+
+            annotations.addTagsToDoc(s.getID(),
+                    outputTags.get(0));
+        }
+
+        docs.clear();
+        samples.clear();
+        trainingSamples.clear();
+        return trained;
+    }
+
+    /**
+     * This function calculates precision, recall and f-measure according to TP,FP,TN,FN
+     * @return A string which contains the right statistical information
+     * @throws Exception
+     */
+    private String calculatePrintStatistics() throws Exception {
+
+        double precision = 0.0, recall = 0.0, f_measure = 0;
+        precision = onlineLearning.statsGetPrecision();
+        recall = onlineLearning.statsGetRecall();
+        if (precision + recall != 0) {
+            f_measure = 2 * precision * recall / (precision + recall);
+        } else {
+            f_measure = 0.0;
+        }
+
+        return precision + " \t " + recall + " \t "
+                + f_measure + " \t ";
+    }
+
+    /**
+     * This function writes the statistical information of the model (precision,
+     * recall, f-measure, the confusion matrix, etc.) in the performance file
+     *
+     * @param str : The precision, recall and f-measure
+     * @throws Exception
+     */
+    private void writingStatisticsInFile(String str) throws Exception {
+        double N_hat_Pos = onlineLearning.expMovAvGetPositives();
+        double N_hat_Neg = onlineLearning.expMovAvGetNegatives();
+        double display_ALL = N_hat_Pos + N_hat_Neg;
+
+        learningResults.print(str);
+        learningResults.print(Long.toString(onlineLearning.statsGetTP()));
+        learningResults.print(" \t ");
+        learningResults.print(Long.toString(onlineLearning.statsGetFP()));
+        learningResults.print(" \t ");
+        learningResults.print(Long.toString(onlineLearning.statsGetTN()));
+        learningResults.print(" \t ");
+        learningResults.print(Long.toString(onlineLearning.statsGetFN()));
+        learningResults.print(" \t ");
+        learningResults.print(Double.toString(
+                onlineLearning.expMovAvGetError()));
+        learningResults.print(" \t ");
+        learningResults.print(Double.toString(N_hat_Pos));
+        learningResults.print(" \t ");
+        learningResults.print(Double.toString(N_hat_Neg));
+        learningResults.print(" \t ");
+        learningResults.print(Double.toString(N_hat_Pos / display_ALL));
+        learningResults.print(" \t ");
+        learningResults.print(Double.toString(onlineLearning.getAUC()));
+        learningResults.print(" \t ");
+        learningResults.println(Double.toString(
+                onlineLearning.getDecisionThreshold()));
+    }
+}
@@ -12,6 +12,7 @@ import macsy.blackBoardsSystem.BBDoc;
 import macsy.blackBoardsSystem.BBDocSet;
 import macsy.blackBoardsSystem.BlackBoardDateBased;
 import macsy.lib.DataPoint;
+import macsy.lib.FeatureVectorCodec;
 import macsy.lib.LinearModel;
 import macsy.lib.Results;
 import macsy.lib.onlineLearning.OnlineAdatron;
@@ -54,6 +55,11 @@ import macsy.module.BaseModule;
  * VOCABULARY=The filename with the words of the language (for the word clouds)
  * MODEL_FILENAME=The name of the model that the module will read (if exists) the weights
  * at the beginning and store them after termination.
+ * MODEL_FORMAT=TEXT or BINARY, the format in which the model is saved (optional, by default
+ * the format of the existing model file, TEXT for a new model). BINARY is much faster for
+ * large models; LinearModel.exportText() writes the text format for the word clouds.
+ * TRAINING_BATCH_SIZE=The number of documents predicted with the same model before the model
+ * is trained on them (optional, 1 by default)
  * PERFORMANCE=The boolean flag to specify if we want a large file with the performance
  * of the classifier per document
  *
@@ -90,6 +96,7 @@ public class OnlineClassifierAdatron extends BaseModule {
     static final String PROPERTY_UPDATE_LEARNING_FACTOR = "UPDATE_LEARNING_FACTOR";
     static final String PROPERTY_PERFORMANCE = "PERFORMANCE";
     static final String PROPERTY_MODEL_LAST_DATE_FILENAME = "MODEL_LAST_DATE_FILENAME";
+    static final String PROPERTY_TRAINING_BATCH_SIZE = "TRAINING_BATCH_SIZE";
     // Define the positions of positive (0) and negative (1) tags in the tag list
     static final int POSITIVE_INDEX = 1;
     static final int NEGATIVE_INDEX = -1;
@@ -227,9 +234,21 @@ public class OnlineClassifierAdatron extends BaseModule {
         String txtFilenameWords = fileName + ".WordCloud";
         String voc_filename = this.getProperty(PROPERTY_VOCABULARY);
         LinearModel model = onlineLearning.getLinearModel();
+        setModelFormat(model);
         model.wordCloudSetVocabulary(voc_filename);
 
+        // the number of documents predicted before the model is trained on them
+        int batchSize = 1;
+        if (this.getProperty(PROPERTY_TRAINING_BATCH_SIZE) != null) {
+            batchSize = Integer.parseInt(this.getProperty(PROPERTY_TRAINING_BATCH_SIZE));
+        }
+
         //process articles on a daily basis
+        // fetch only the fields used for learning
+        List<String> inputFields = new ArrayList<String>();
+        inputFields.add(this.getProperty(PROPERTY_INPUT_FEATURES_FIELDSNAME));
+        inputFields.add(MODULE_INPUT_FIELDS);
+
         while (dtToDate.before(toDay.getTime())) {
             System.out.println(dtToDate + "----" + toDay.getTime());
             lastDate = readLastDate(lastDateFilename);
@@ -243,12 +262,16 @@ public class OnlineClassifierAdatron extends BaseModule {
             //get articles per day
             BBDocSet DocSet = storageLayer.getDocSetWithTags(lastDate, dtToDate,
                     inputTag_List,
+                    inputFields,
                     this.MODULE_DATA_PROCESS_LIMIT);
 
             BBDoc s;
 
+            ClassifierBatch batch = new ClassifierBatch(onlineLearning,
+                    storageLayer, inputTag_List, outputTags, outputField,
+                    learningResults);
+
             while ((s = DocSet.getNext()) != null) {
-                
                 onlineLearning.incrementN_overall(1);
                 if (dataRead++ % 1000 == 0) {
                     System.out.printf("%d processed (%.2f%%)\n",
@@ -259,18 +282,16 @@ public class OnlineClassifierAdatron extends BaseModule {
                 @SuppressWarnings("unchecked")
                 List<Integer> f = (List<Integer>) s.getField(
                         this.getProperty(PROPERTY_INPUT_FEATURES_FIELDSNAME));
-                @SuppressWarnings("unchecked")
-                List<Double> tf_idf_x_i = (List<Double>) s.getField(MODULE_INPUT_FIELDS);
+                // the features, as a list or in a binary format
+                Object tf_idf_x_i = s.getField(MODULE_INPUT_FIELDS);
 
+                DataPoint sample = null;
+                boolean trainingsample = false;
                 if ((f != null) && (tf_idf_x_i != null)) {
-                  
-                    boolean trainingsample = false;
                     // create a new DataPoint with these tf-idf values
-                    DataPoint sample = new DataPoint(deseriliseFeatures(tf_idf_x_i));
+                    sample = FeatureVectorCodec.toDataPoint(tf_idf_x_i);
 
                     //assign labels to the samples
-
-
                     for (Integer negFeedID : inputNegLearnFeedIDs) {
                         for (Integer posFeedID : inputPosLearnFeedIDs) {
                             if (f.contains(negFeedID) && (f.contains(posFeedID))) {
@@ -283,69 +304,18 @@ public class OnlineClassifierAdatron extends BaseModule {
                                 trainingsample = true;
                             }
                         }
-
                     }
 
-
                     sample.setID(s.getID());
-
-                    // Add the result of the classifier in a new field
-                    if (outputField != null) {
-                        storageLayer.addFieldToDoc(sample.getID(),
-                                outputField,
-                                prediction(sample, onlineLearning));
-                    }
-
-                    // Only for positive instances add a new tag
-                    if (outputTags.size() > 1) {
-                        if (prediction(sample, onlineLearning)
-                                >= onlineLearning.getDecisionThreshold()) {
-                            storageLayer.addTagsToDoc(s.getID(),
-                                    outputTags.get(1)); // Positive prediction tag
-                        }														// must be second in list!
-                    }
-                    if (trainingsample) {
-                        dataProcessed++;
-                        System.out.println("Trainining Procedure...");
-                        training(sample, onlineLearning);
-
-                        // display on the screen the statistical information
-                        onlineLearning.statsPrintConfusionMatrix();
-
-                        double N_hat_Pos = onlineLearning.expMovAvGetPositives();
-                        double N_hat_Neg = onlineLearning.expMovAvGetNegatives();
-                        double display_ALL = N_hat_Pos + N_hat_Neg;
-
-                        // information on the screen
-                        String str = "\t #POS \t #NEG \t #ALL \n" + "\t " + N_hat_Pos + "\t "
-                                + N_hat_Neg + "\t " + display_ALL + "\t";
-                        System.out.println(str);
-
-                        //calculate precision, recall and f-measure
-                        str = calculatePrintStatistics(onlineLearning);
-
-                        // if we wish to have a performance file
-                        if (performance == true) {
-                            // because in file the header is printed only on the beginning
-                            System.out.println(header);
-                            // inform the file which holds the corresponding statistical info
-                            writingStatisticsInFile(onlineLearning,
-                                    learningResults,
-                                    str);
-                        }
-
-
-                    }
-                    if (performance == true) {
-                        learningResults.Flush();
-                    }
                 }
-                storageLayer.removeTagsFromDoc(s.getID(),
-                        inputTag_List);
-
-                storageLayer.addTagsToDoc(s.getID(),
-                        outputTags.get(0));
+                batch.add(s, sample, trainingsample);
 
+                if (batch.size() >= batchSize) {
+                    dataProcessed += batch.process();
+                }
+            }
+            if (!batch.isEmpty()) {
+                dataProcessed += batch.process();
             }
             System.out.println("TRAINING DONE");
 
@@ -356,8 +326,8 @@ public class OnlineClassifierAdatron extends BaseModule {
                     voc_filename, model);
 
 
-            //save model
-            onlineLearning.saveModel(fileName);
+            //save the weights changed during the day (the whole model from time to time)
+            onlineLearning.saveCheckpoint(fileName);
 
             //save log file
             onlineLearning.saveLog(this.getProperty(PROPERTY_MODEL_FILENAME));
@@ -608,106 +578,6 @@ public class OnlineClassifierAdatron extends BaseModule {
         return outTag_List;
     }
 
-    /**
-     * Transforms the input features to a features Map based on TF-IDF.
-     *
-     * @param featuresAsString the string text that you wand to transform into a Map based on TF
-     * @return the map  of the words' IDs and their TF-IDF
-     * @throws InterruptedException
-     */
-    public Map<Integer, Double> deseriliseFeatures(List<Double> features_list) throws Exception {
-        Map<Integer, Double> feat = new TreeMap<Integer, Double>();
-        int index;
-        double value;
-        for (int f = 0; f < features_list.size(); f += 2) {
-            index = (int) Math.round(features_list.get(f));
-            value = features_list.get(f + 1);
-            feat.put(index, value);
-        }
-        return feat;
-    }
-
-    /**
-     * Predicts the output of the model given the specific DataPoint
-     * @param sample:The DataPoint we want to classify
-     * @return The number calculated for the input DataPoint given the model
-     * @throws Exception
-     */
-    double prediction(DataPoint sample, OnlineLearning onlineLearning) throws Exception {
-        sample.setPredictedLabel_Value(onlineLearning.predict(sample));
-        return sample.getPredictedLabel_Value();
-    }
-
-    /**
-     * Training the model with the specific DataPoint
-     * @param sample:The DataPoint we want the model to be trained of
-     * @param onlineLearning:The object with the model
-     * @throws Exception
-     */
-    void training(DataPoint sample,
-            OnlineLearning onlineLearning) throws Exception {
-        onlineLearning.train(sample);
-    }
-
-    /**
-     * This function calculates precision, recall and f-measure according to TP,FP,TN,FN
-     * @param onlineLearning:The object which hold the information of interest
-     * @return A string which contains the right statistical information
-     * @throws Exception
-     */
-    private String calculatePrintStatistics(OnlineLearning onlineLearning) throws Exception {
-
-        double precision = 0.0, recall = 0.0, f_measure = 0;
-        precision = onlineLearning.statsGetPrecision();
-        recall = onlineLearning.statsGetRecall();
-        if (precision + recall != 0) {
-            f_measure = 2 * precision * recall / (precision + recall);
-        } else {
-            f_measure = 0.0;
-        }
-
-        return precision + " \t " + recall + " \t "
-                + f_measure + " \t ";
-    }
-
-    /**
-     * This function calculates the statistical information according to the matrix's
-     * values (precision, recall, f-measure, etc.). Then it informs the right file
-     *
-     * @param Statistics : The values of the confusion matrix
-     * @param learningResults : The file which is going to be informed with these information
-     * @throws Exception
-     */
-    private void writingStatisticsInFile(OnlineLearning onlineLearning,
-            Results learningResults, String str) throws Exception {
-        double N_hat_Pos = onlineLearning.expMovAvGetPositives();
-        double N_hat_Neg = onlineLearning.expMovAvGetNegatives();
-        double display_ALL = N_hat_Pos + N_hat_Neg;
-
-        learningResults.print(str);
-        learningResults.print(Long.toString(onlineLearning.statsGetTP()));
-        learningResults.print(" \t ");
-        learningResults.print(Long.toString(onlineLearning.statsGetFP()));
-        learningResults.print(" \t ");
-        learningResults.print(Long.toString(onlineLearning.statsGetTN()));
-        learningResults.print(" \t ");
-        learningResults.print(Long.toString(onlineLearning.statsGetFN()));
-        learningResults.print(" \t ");
-        learningResults.print(Double.toString(
-                onlineLearning.expMovAvGetError()));
-        learningResults.print(" \t ");
-        learningResults.print(Double.toString(N_hat_Pos));
-        learningResults.print(" \t ");
-        learningResults.print(Double.toString(N_hat_Neg));
-        learningResults.print(" \t ");
-        learningResults.print(Double.toString((double) N_hat_Pos / display_ALL));
-        learningResults.print(" \t ");
-        learningResults.print(Double.toString(onlineLearning.getAUC()));
-        learningResults.print(" \t ");
-        learningResults.println(Double.toString(
-                onlineLearning.getDecisionThreshold()));
-    }
-
     /**
      *
      * @param args The settings file that contains I/O and parameters info.
@@ -12,11 +12,14 @@ import macsy.blackBoardsSystem.BBDoc;
 import macsy.blackBoardsSystem.BBDocSet;
 import macsy.blackBoardsSystem.BlackBoardDateBased;
 import macsy.lib.DataPoint;
+import macsy.lib.FeatureVectorCodec;
 import macsy.lib.LinearModel;
 import macsy.lib.Results;
 import macsy.lib.onlineLearning.OnlineLearning;
 import macsy.lib.onlineLearning.OnlinePerceptron;
 import macsy.module.BaseModule;
+import macsy.module.PipelineDoc;
+import macsy.module.PipelineStage;
 
 
 /**
@@ -54,6 +57,11 @@ import macsy.module.BaseModule;
  * VOCABULARY=The filename with the words of the language (for the word clouds)
  * MODEL_FILENAME=The name of the model that the module will read (if exists) the weights
  * at the beginning and store them after termination.
+ * MODEL_FORMAT=TEXT or BINARY, the format in which the model is saved (optional, by default
+ * the format of the existing model file, TEXT for a new model). BINARY is much faster for
+ * large models; LinearModel.exportText() writes the text format for the word clouds.
+ * TRAINING_BATCH_SIZE=The number of documents predicted with the same model before the model
+ * is trained on them (optional, 1 by default)
  * PERFORMANCE=The boolean flag to specify if we want a large file with the performance
  * of the classifier per document
  *
@@ -69,11 +77,15 @@ import macsy.module.BaseModule;
  * and the useful information (per session/run) such as the learning factor, the window, the margin, etc.
  * are also stored in a file named model_name.log in order for the module to continue from the last run.
  *
+ * The module can also run as a stage of a ModulePipeline, e.g. after the FeaturesExtractorTFIDF,
+ * in which case it processes the documents in the order they arrive instead of per day, and it
+ * takes their features from the previous stage. OUTPUT_BLACKBOARD should be the INPUT_BLACKBOARD.
+ *
  * @author Panagiota Antonakaki
  * Last Update: 12-03-2014
  *
  */
-public class OnlineClassifierPerceptron extends BaseModule {
+public class OnlineClassifierPerceptron extends BaseModule implements PipelineStage {
     // temporal variables to hold information given by N_the user
 
     static final String PROPERTY_MODEL_FILENAME = "MODEL_FILENAME";
@@ -90,6 +102,7 @@ public class OnlineClassifierPerceptron extends BaseModule {
     static final String PROPERTY_UPDATE_LEARNING_FACTOR = "UPDATE_LEARNING_FACTOR";
     static final String PROPERTY_PERFORMANCE = "PERFORMANCE";
     static final String PROPERTY_MODEL_LAST_DATE_FILENAME = "MODEL_LAST_DATE_FILENAME";
+    static final String PROPERTY_TRAINING_BATCH_SIZE = "TRAINING_BATCH_SIZE";
     // Define the positions of positive (0) and negative (1) tags in the tag list
     static final int POSITIVE_INDEX = 1;
     static final int NEGATIVE_INDEX = -1;
@@ -98,6 +111,21 @@ public class OnlineClassifierPerceptron extends BaseModule {
     private BlackBoardDateBased outputBB;
     private OnlineClassifier_StorageLayer storageLayer = null;
     private String formattedDate;
+    // the path of the word clouds and the performance file
+    private static final String SUB_FOLDER = ".";
+    // set by openModel()
+    private List<Integer> inputTag_List;
+    private List<Integer> inputPosLearnFeedIDs;
+    private List<Integer> inputNegLearnFeedIDs;
+    private List<Integer> outputTags;
+    private String outputField;
+    private String fileName;
+    private Results learningResults;
+    private OnlineLearning onlineLearning;
+    private int batchSize;
+    // the documents of the current batch when the module runs as a stage of a ModulePipeline
+    private Map<Object, PipelineDoc> stageDocs = null;
+    private ClassifierBatch batch;
 
     public OnlineClassifierPerceptron(String propertiesFilename) throws Exception {
         super(propertiesFilename);
@@ -111,17 +139,103 @@ public class OnlineClassifierPerceptron extends BaseModule {
         // load the black board for writing
         outputBB = _bbAPI.blackBoardLoadDateBased(MODULE_OUTPUT_BLACKBOARD);
 
+        openModel();
+
+        // We read the last date that the model was modified from a file
+        String lastDateFilename = this.getProperty(PROPERTY_MODEL_LAST_DATE_FILENAME);
+        Date lastDate = readLastDate(lastDateFilename);
+
+        // We add 24 hours to last date the model was updated
+        Calendar cal = new GregorianCalendar();
+        cal.setTime(lastDate);
+        cal.add(Calendar.DAY_OF_MONTH, 1);
+        Calendar calToDate = (Calendar) cal;
+        Date dtToDate = calToDate.getTime();
+
+        Calendar toDay = new GregorianCalendar();
+
+        toDay.add(Calendar.DATE, 2); // Today
+
+        //-----------------------------------------------------------------
+        // variables to hold information about the number of data that were read and data
+        // that were processed so that the module can print them on the screen
+        int dataRead = 0;
+        int dataProcessed = 0;
+
+        //process articles on a daily basis
+        // fetch only the fields used for learning
+        List<String> inputFields = getStageInputFields();
+
+        while (dtToDate.before(toDay.getTime())) {
+            System.out.println(dtToDate + "----" + toDay.getTime());
+            lastDate = readLastDate(lastDateFilename);
+            cal.setTime(lastDate);
+            cal.add(Calendar.DAY_OF_MONTH, 1);
+            calToDate = (Calendar) cal;
+            dtToDate = calToDate.getTime();
+            System.out.println(lastDate + "----" + dtToDate);
+            formattedDate = formatDate(lastDate);
+
+            //get articles per day
+            BBDocSet DocSet = storageLayer.getDocSetWithTags(lastDate, dtToDate,
+                    inputTag_List,
+                    inputFields,
+                    this.MODULE_DATA_PROCESS_LIMIT);
+
+            BBDoc s;
+
+            while ((s = DocSet.getNext()) != null) {
+                if (dataRead++ % 1000 == 0) {
+                    System.out.printf("%d processed (%.2f%%)\n",
+                            dataRead, dataRead * 100.0 / this.MODULE_DATA_PROCESS_LIMIT);
+                    System.out.println("Now will process date: "
+                            + s.getIDasDate() + " ID=" + s.getID());
+                }
+                // the features, as a list or in a binary format
+                Object tf_idf_x_i = s.getField(MODULE_INPUT_FIELDS);
+                DataPoint sample = null;
+                if ((tf_idf_x_i != null) && (s.getField(
+                        this.getProperty(PROPERTY_INPUT_FEATURES_FIELDSNAME)) != null)) {
+                    sample = FeatureVectorCodec.toDataPoint(tf_idf_x_i);
+                }
+                addToBatch(s, sample);
+
+                if (batch.size() >= batchSize) {
+                    dataProcessed += batch.process();
+                }
+            }
+            if (!batch.isEmpty()) {
+                dataProcessed += batch.process();
+            }
+            System.out.println("TRAINING DONE");
+
+            saveModel();
+
+            saveLastDate(lastDateFilename, dtToDate);
+        }
+        if (learningResults != null) {
+            learningResults.SaveOutput();
+        }
+        // display the number of input items and the number of output items
+        this.saveModuleResults(dataRead, dataProcessed);
+    }
+
+    /**
+     * Reads the tags, the fields and the settings of the module and loads the model
+     * @throws Exception
+     */
+    private void openModel() throws Exception {
         storageLayer = new OnlineClassifier_StorageLayer(inputBB,
                 outputBB);
 
         // -----------------------------------------------------------
         //Prepare input tags
-        List<Integer> inputTag_List = readInputTags(MODULE_INPUT_TAGS);
+        inputTag_List = readInputTags(MODULE_INPUT_TAGS);
 
         //Input Learning Fields (their names and their IDs)
         List<String> inputLearnFieldNames = new ArrayList<String>();
-        List<Integer> inputPosLearnFeedIDs = new ArrayList<Integer>();
-        List<Integer> inputNegLearnFeedIDs = new ArrayList<Integer>();
+        inputPosLearnFeedIDs = new ArrayList<Integer>();
+        inputNegLearnFeedIDs = new ArrayList<Integer>();
         readFields(PROPERTY_INPUT_FEATURES_FIELDSNAME,
                 PROPERTY_POS_LEARNING_FIELDS_VALUES,
                 PROPERTY_NEG_LEARNING_FIELDS_VALUES,
@@ -130,47 +244,24 @@ public class OnlineClassifierPerceptron extends BaseModule {
                 inputNegLearnFeedIDs);
 
         //Prepare output tags and fields
-        List<Integer> outputTags = readOutputTags(MODULE_OUTPUT_TAGS);
-        String outputField = MODULE_OUTPUT_FIELDS;
+        outputTags = readOutputTags(MODULE_OUTPUT_TAGS);
+        outputField = MODULE_OUTPUT_FIELDS;
 
-        String fileName = this.getProperty(PROPERTY_MODEL_FILENAME);
+        fileName = this.getProperty(PROPERTY_MODEL_FILENAME);
 
 
         // a boolean value for holding info if we wish to have a performance file or not
         boolean performance =
                 this.getProperty(PROPERTY_PERFORMANCE).equals("TRUE");
 
-        String subFolder = ".";
-
-        Results learningResults = null;
+        learningResults = null;
         // if we wish to have a performance file we create it
         if (performance == true) {
             // PREPARE THE RIGHT FILES
             String txtFilenameL = fileName + ".Performance";
-            learningResults = new Results(subFolder, txtFilenameL, false);
+            learningResults = new Results(SUB_FOLDER, txtFilenameL, false);
         }
 
-        // We read the last date that the model was modified from a file
-        String lastDateFilename = this.getProperty(PROPERTY_MODEL_LAST_DATE_FILENAME);
-        Date lastDate = readLastDate(lastDateFilename);
-
-        // We add 24 hours to last date the model was updated
-        Calendar cal = new GregorianCalendar();
-        cal.setTime(lastDate);
-        cal.add(Calendar.DAY_OF_MONTH, 1);
-        Calendar calToDate = (Calendar) cal;
-        Date dtToDate = calToDate.getTime();
-
-        Calendar toDay = new GregorianCalendar();
-
-        toDay.add(Calendar.DATE, 2); // Today
-
-        //-----------------------------------------------------------------
-        // variables to hold information about the number of data that were read and data
-        // that were processed so that the module can print them on the screen
-        int dataRead = 0;
-        int dataProcessed = 0;
-
         // write headers to logging files
         String header = "Precision \t "
                 + "Recall \t "
@@ -189,7 +280,7 @@ public class OnlineClassifierPerceptron extends BaseModule {
             learningResults.println(header);
         }
 
-        OnlineLearning onlineLearning =
+        onlineLearning =
                 new OnlinePerceptron(fileName);
         // take the meta info file from the settings file
         File metaFile = new File(fileName + ".log");
@@ -223,153 +314,165 @@ public class OnlineClassifierPerceptron extends BaseModule {
         onlineLearning.setUpdateLearningFactor(
                 this.getProperty(PROPERTY_UPDATE_LEARNING_FACTOR).equals("TRUE"));
 
-        String txtFilenameWords = fileName + ".WordCloud";
-        String voc_filename = this.getProperty(PROPERTY_VOCABULARY);
         LinearModel model = onlineLearning.getLinearModel();
-        model.wordCloudSetVocabulary(voc_filename);
+        setModelFormat(model);
+        model.wordCloudSetVocabulary(this.getProperty(PROPERTY_VOCABULARY));
 
-        //process articles on a daily basis
-        while (dtToDate.before(toDay.getTime())) {
-            System.out.println(dtToDate + "----" + toDay.getTime());
-            lastDate = readLastDate(lastDateFilename);
-            cal.setTime(lastDate);
-            cal.add(Calendar.DAY_OF_MONTH, 1);
-            calToDate = (Calendar) cal;
-            dtToDate = calToDate.getTime();
-            System.out.println(lastDate + "----" + dtToDate);
-            formattedDate = formatDate(lastDate);
-
-            //get articles per day
-            BBDocSet DocSet = storageLayer.getDocSetWithTags(lastDate, dtToDate,
-                    inputTag_List,
-                    this.MODULE_DATA_PROCESS_LIMIT);
-
-            BBDoc s;
-
-            while ((s = DocSet.getNext()) != null) {
-              
+        // the number of documents predicted before the model is trained on them
+        batchSize = 1;
+        if (this.getProperty(PROPERTY_TRAINING_BATCH_SIZE) != null) {
+            batchSize = Integer.parseInt(this.getProperty(PROPERTY_TRAINING_BATCH_SIZE));
+        }
 
-                onlineLearning.incrementN_overall(1);
-                if (dataRead++ % 1000 == 0) {
-                    System.out.printf("%d processed (%.2f%%)\n",
-                            dataRead, dataRead * 100.0 / this.MODULE_DATA_PROCESS_LIMIT);
-                    System.out.println("Now will process date: "
-                            + s.getIDasDate() + " ID=" + s.getID());
+        // The annotations go to the storage layer, or to the PipelineDoc when the
+        // module runs as a stage of a ModulePipeline
+        ClassifierBatch.Annotations annotations = new ClassifierBatch.Annotations() {
+            @Override
+            public void addTagsToDoc(Object docID, Integer tagID) throws Exception {
+                if (stageDocs != null) {
+                    stageDocs.get(docID).addTagToDoc(tagID);
+                } else {
+                    storageLayer.addTagsToDoc(docID, tagID);
                 }
-                @SuppressWarnings("unchecked")
-                List<Integer> f = (List<Integer>) s.getField(
-                        this.getProperty(PROPERTY_INPUT_FEATURES_FIELDSNAME));
-                @SuppressWarnings("unchecked")
-                List<Double> tf_idf_x_i = (List<Double>) s.getField(MODULE_INPUT_FIELDS);
-
-                if ((f != null) && (tf_idf_x_i != null)) {
-                  
-                    boolean trainingsample = false;
-                    // create a new DataPoint with these tf-idf values
-                    DataPoint sample = new DataPoint(deseriliseFeatures(tf_idf_x_i));
-
-                    //assign labels to the samples
-                  
-
-                    for (Integer negFeedID : inputNegLearnFeedIDs) {
-                        for (Integer posFeedID : inputPosLearnFeedIDs) {
-                            if (f.contains(negFeedID) && (f.contains(posFeedID))) {
-                                //do not set the label
-                            } else if (f.contains(negFeedID) && !(f.contains(posFeedID))) {
-                                sample.setRealLabel(NEGATIVE_INDEX);
-                                trainingsample = true;
-                            } else if (f.contains(posFeedID) && !(f.contains(negFeedID))) {
-                                sample.setRealLabel(POSITIVE_INDEX);
-                                trainingsample = true;
-                            }
-                        }
-
-                    }
-
-
-                    sample.setID(s.getID());
-
-                    // Add the result of the classifier in a new field
-                    if (outputField != null) {
-                        storageLayer.addFieldToDoc(sample.getID(),
-                                outputField,
-                                prediction(sample, onlineLearning));
-                    }
-
-                    // Only for positive instances add a new tag
-                    if (outputTags.size() > 1) {
-                        if (prediction(sample, onlineLearning)
-                                >= onlineLearning.getDecisionThreshold()) {
-                            storageLayer.addTagsToDoc(s.getID(),
-                                    outputTags.get(1)); // Positive prediction tag
-                        }														// must be second in list!
-                    }
-                    if (trainingsample) {
-                        dataProcessed++;
-                        System.out.println("Trainining Procedure...");
-                        training(sample, onlineLearning);
+            }
 
-                        // display on the screen the statistical information
-                        onlineLearning.statsPrintConfusionMatrix();
+            @Override
+            public void addFieldToDoc(Object docID, String fieldName, Double fieldValue) throws Exception {
+                if (stageDocs != null) {
+                    stageDocs.get(docID).addFieldToDoc(fieldName, fieldValue);
+                } else {
+                    storageLayer.addFieldToDoc(docID, fieldName, fieldValue);
+                }
+            }
 
-                        double N_hat_Pos = onlineLearning.expMovAvGetPositives();
-                        double N_hat_Neg = onlineLearning.expMovAvGetNegatives();
-                        double display_ALL = N_hat_Pos + N_hat_Neg;
+            @Override
+            public void removeTagsFromDoc(Object docID, List<Integer> tagIDs) throws Exception {
+                if (stageDocs != null) {
+                    stageDocs.get(docID).removeTagsFromDoc(tagIDs);
+                } else {
+                    storageLayer.removeTagsFromDoc(docID, tagIDs);
+                }
+            }
+        };
+        batch = new ClassifierBatch(onlineLearning, annotations, inputTag_List,
+                outputTags, outputField, learningResults);
+    }
 
-                        // information on the screen
-                        String str = "\t #POS \t #NEG \t #ALL \n" + "\t " + N_hat_Pos + "\t "
-                                + N_hat_Neg + "\t " + display_ALL + "\t";
-                        System.out.println(str);
+    /**
+     * Writes the word clouds and saves the model and its log
+     * @throws Exception
+     */
+    private void saveModel() throws Exception {
+        printTopLeastWords(SUB_FOLDER,
+                fileName + ".WordCloud",
+                this.getProperty(PROPERTY_VOCABULARY), onlineLearning.getLinearModel());
 
-                        //calculate precision, recall and f-measure
-                        str = calculatePrintStatistics(onlineLearning);
 
-                        // if we wish to have a performance file
-                        if (performance == true) {
-                            // because in file the header is printed only on the beginning
-                            System.out.println(header);
-                            // inform the file which holds the corresponding statistical info
-                            writingStatisticsInFile(onlineLearning,
-                                    learningResults,
-                                    str);
-                        }
+        //save the weights changed during the day (the whole model from time to time)
+        onlineLearning.saveCheckpoint(fileName);
 
+        //save log file
+        onlineLearning.saveLog(this.getProperty(PROPERTY_MODEL_FILENAME));
+        System.out.println("DONE");
+    }
 
-                    }
-                    if (performance == true) {
-                        learningResults.Flush();
+    /**
+     * Adds a document to the batch, with its labelled sample if it is a training sample
+     * @param s:The document
+     * @param sample:Its features (null for a document without features)
+     */
+    private void addToBatch(BBDoc s, DataPoint sample) {
+        onlineLearning.incrementN_overall(1);
+        @SuppressWarnings("unchecked")
+        List<Integer> f = (List<Integer>) s.getField(
+                this.getProperty(PROPERTY_INPUT_FEATURES_FIELDSNAME));
+
+        boolean trainingsample = false;
+        if ((f != null) && (sample != null)) {
+            //assign labels to the samples
+            for (Integer negFeedID : inputNegLearnFeedIDs) {
+                for (Integer posFeedID : inputPosLearnFeedIDs) {
+                    if (f.contains(negFeedID) && (f.contains(posFeedID))) {
+                        //do not set the label
+                    } else if (f.contains(negFeedID) && !(f.contains(posFeedID))) {
+                        sample.setRealLabel(NEGATIVE_INDEX);
+                        trainingsample = true;
+                    } else if (f.contains(posFeedID) && !(f.contains(negFeedID))) {
+                        sample.setRealLabel(POSITIVE_INDEX);
+                        trainingsample = true;
                     }
                 }
-                storageLayer.removeTagsFromDoc(s.getID(),
-                        inputTag_List);
-
-                storageLayer.addTagsToDoc(s.getID(),
-                        outputTags.get(0));
-
             }
-            System.out.println("TRAINING DONE");
 
+            sample.setID(s.getID());
+        } else {
+            sample = null;
+        }
+        batch.add(s, sample, trainingsample);
+    }
 
+    @Override
+    public void openStage(BlackBoardDateBased bb) throws Exception {
+        inputBB = bb;
+        outputBB = bb;
+        openModel();
+        stageDocs = new HashMap<Object, PipelineDoc>();
+    }
 
-            printTopLeastWords(subFolder,
-                    txtFilenameWords,
-                    voc_filename, model);
+    @Override
+    public List<Integer> getStageInputTags() {
+        return inputTag_List;
+    }
 
+    @Override
+    public List<String> getStageInputFields() {
+        List<String> inputFields = new ArrayList<String>();
+        inputFields.add(this.getProperty(PROPERTY_INPUT_FEATURES_FIELDSNAME));
+        inputFields.add(MODULE_INPUT_FIELDS);
+        return inputFields;
+    }
 
-            //save model
-            onlineLearning.saveModel(fileName);
+    /**
+     * The model is trained in the order of the documents, by one thread
+     */
+    @Override
+    public int getMaxStageThreads() {
+        return 1;
+    }
 
-            //save log file
-            onlineLearning.saveLog(this.getProperty(PROPERTY_MODEL_FILENAME));
-            System.out.println("DONE");
+    @Override
+    public void processStageDoc(PipelineDoc doc, Output output) throws Exception {
+        stageDocs.put(doc.getID(), doc);
+        // the features as handed by the previous stage, or decoded from the field
+        addToBatch(doc.getDoc(), doc.getFeatures(MODULE_INPUT_FIELDS));
+        if (batch.size() >= batchSize) {
+            emitStageBatch(output);
+        }
+    }
 
-            saveLastDate(lastDateFilename, dtToDate);
+    @Override
+    public void closeStage(Output output) throws Exception {
+        if (!batch.isEmpty()) {
+            emitStageBatch(output);
         }
-        if (performance == true) {
+        System.out.println("TRAINING DONE");
+        saveModel();
+        if (learningResults != null) {
             learningResults.SaveOutput();
         }
-        // display the number of input items and the number of output items
-        this.saveModuleResults(dataRead, dataProcessed);
+    }
+
+    /**
+     * Processes the batch of documents of the stage and hands them to the next stage
+     * @param output:The next stage
+     * @throws Exception
+     */
+    private void emitStageBatch(Output output) throws Exception {
+        List<BBDoc> docs = new ArrayList<BBDoc>(batch.getDocs());
+        batch.process();
+        for (BBDoc s : docs) {
+            output.emit(stageDocs.remove(s.getID()));
+        }
     }
 
     /**
@@ -608,106 +711,6 @@ public class OnlineClassifierPerceptron extends BaseModule {
         return outTag_List;
     }
 
-    /**
-     * Transforms the input features to a features Map based on TF-IDF.
-     *
-     * @param featuresAsString the string text that you wand to transform into a Map based on TF
-     * @return the map  of the words' IDs and their TF-IDF
-     * @throws InterruptedException
-     */
-    public Map<Integer, Double> deseriliseFeatures(List<Double> features_list) throws Exception {
-        Map<Integer, Double> feat = new TreeMap<Integer, Double>();
-        int index;
-        double value;
-        for (int f = 0; f < features_list.size(); f += 2) {
-            index = (int) Math.round(features_list.get(f));
-            value = features_list.get(f + 1);
-            feat.put(index, value);
-        }
-        return feat;
-    }
-
-    /**
-     * Predicts the output of the model given the specific DataPoint
-     * @param sample:The DataPoint we want to classify
-     * @return The number calculated for the input DataPoint given the model
-     * @throws Exception
-     */
-    double prediction(DataPoint sample, OnlineLearning onlineLearning) throws Exception {
-        sample.setPredictedLabel_Value(onlineLearning.predict(sample));
-        return sample.getPredictedLabel_Value();
-    }
-
-    /**
-     * Training the model with the specific DataPoint
-     * @param sample:The DataPoint we want the model to be trained of
-     * @param onlineLearning:The object with the model
-     * @throws Exception
-     */
-    void training(DataPoint sample,
-            OnlineLearning onlineLearning) throws Exception {
-        onlineLearning.train(sample);
-    }
-
-    /**
-     * This function calculates precision, recall and f-measure according to TP,FP,TN,FN
-     * @param onlineLearning:The object which hold the information of interest
-     * @return A string which contains the right statistical information
-     * @throws Exception
-     */
-    private String calculatePrintStatistics(OnlineLearning onlineLearning) throws Exception {
-
-        double precision = 0.0, recall = 0.0, f_measure = 0;
-        precision = onlineLearning.statsGetPrecision();
-        recall = onlineLearning.statsGetRecall();
-        if (precision + recall != 0) {
-            f_measure = 2 * precision * recall / (precision + recall);
-        } else {
-            f_measure = 0.0;
-        }
-
-        return precision + " \t " + recall + " \t "
-                + f_measure + " \t ";
-    }
-
-    /**
-     * This function calculates the statistical information according to the matrix's
-     * values (precision, recall, f-measure, etc.). Then it informs the right file
-     *
-     * @param Statistics : The values of the confusion matrix
-     * @param learningResults : The file which is going to be informed with these information
-     * @throws Exception
-     */
-    private void writingStatisticsInFile(OnlineLearning onlineLearning,
-            Results learningResults, String str) throws Exception {
-        double N_hat_Pos = onlineLearning.expMovAvGetPositives();
-        double N_hat_Neg = onlineLearning.expMovAvGetNegatives();
-        double display_ALL = N_hat_Pos + N_hat_Neg;
-
-        learningResults.print(str);
-        learningResults.print(Long.toString(onlineLearning.statsGetTP()));
-        learningResults.print(" \t ");
-        learningResults.print(Long.toString(onlineLearning.statsGetFP()));
-        learningResults.print(" \t ");
-        learningResults.print(Long.toString(onlineLearning.statsGetTN()));
-        learningResults.print(" \t ");
-        learningResults.print(Long.toString(onlineLearning.statsGetFN()));
-        learningResults.print(" \t ");
-        learningResults.print(Double.toString(
-                onlineLearning.expMovAvGetError()));
-        learningResults.print(" \t ");
-        learningResults.print(Double.toString(N_hat_Pos));
-        learningResults.print(" \t ");
-        learningResults.print(Double.toString(N_hat_Neg));
-        learningResults.print(" \t ");
-        learningResults.print(Double.toString((double) N_hat_Pos / display_ALL));
-        learningResults.print(" \t ");
-        learningResults.print(Double.toString(onlineLearning.getAUC()));
-        learningResults.print(" \t ");
-        learningResults.println(Double.toString(
-                onlineLearning.getDecisionThreshold()));
-    }
-
     /**
      *
      * @param args The settings file that contains I/O and parameters info.
@@ -17,7 +17,7 @@ import macsy.blackBoardsSystem.BlackBoardDateBased;
  * Last update: 12-03-2014
  *
  */
-public class OnlineClassifier_StorageLayer {
+public class OnlineClassifier_StorageLayer implements ClassifierBatch.Annotations {
 	private BlackBoardDateBased inputbb = null;
 	private BlackBoardDateBased outputbb = null;
 	
@@ -89,6 +89,23 @@ public class OnlineClassifier_StorageLayer {
 	public BBDocSet getDocSetWithTags(Date fromDate, Date toDate,
 			List<Integer> inputTag_List, 
 			int limit) throws Exception
+	{
+		return getDocSetWithTags(fromDate, toDate, inputTag_List, null, limit);
+	}	
+	
+	/**
+	 * Get the set of docs with the specified tags (more than one) and the specified
+	 * period of days, fetching only the specified fields
+	 * @param inputTag_List
+	 * @param fields The fields to fetch (null for all)
+	 * @param limit
+	 * @return
+	 * @throws Exception
+	 */
+	public BBDocSet getDocSetWithTags(Date fromDate, Date toDate,
+			List<Integer> inputTag_List, 
+			List<String> fields,
+			int limit) throws Exception
 	{
 		return inputbb.findDocsByFieldsTagsSet(fromDate, 
 				toDate, 
@@ -96,6 +113,7 @@ public class OnlineClassifier_StorageLayer {
 				null, 
 				inputTag_List, 
 				null, 
+				fields,
 				limit);
 	}	
 	
@@ -9,14 +9,16 @@ package macsy.module.onlineClassification;
  * 
  */
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 
-import macsy.lib.BasicLinearModel;
 import macsy.lib.DataPoint;
 import macsy.lib.Helpers;
+import macsy.lib.LinearModel;
 import macsy.lib.Results;
 import macsy.lib.Helpers.BinaryLabel;
 import macsy.lib.Helpers.ModuleMode;
@@ -24,6 +26,7 @@ import macsy.lib.Helpers.Months;
 import macsy.lib.Helpers.SGDLearningRateStrategy;
 import macsy.lib.Helpers.SGDLoss;
 import macsy.lib.onlineLearning.OnlineLearning;
+import macsy.lib.onlineLearning.ParallelSGDTrainer;
 import macsy.lib.onlineLearning.SGD;
 import macsy.module.BaseOnlineLearnerModule;
 
@@ -34,9 +37,22 @@ public class articleSGDClassifier extends BaseOnlineLearnerModule {
 	public static final String PROPERTY_SGD_UPDATE_BIAS = "SGD_UPDATE_BIAS";
 	public static final String PROPERTY_SGD_REGULARIZATION_FACTOR = "SGD_REGULARIZATION_FACTOR";
 	public static final String PROPERTY_SGD_LEARNING_RATE_STRATEGY = "SGD_LEARNING_RATE_STRATEGY";
+	// optional, false by default
+	public static final String PROPERTY_SGD_LAZY_REGULARIZATION = "SGD_LAZY_REGULARIZATION";
+	// optional, 1 by default (a step per sample)
+	public static final String PROPERTY_SGD_MINI_BATCH_SIZE = "SGD_MINI_BATCH_SIZE";
+	// optional, 1 by default. With more threads the samples of a day are
+	// trained together at the end of the day by a ParallelSGDTrainer
+	public static final String PROPERTY_SGD_THREADS = "SGD_THREADS";
 
 	protected OnlineLearning _perceptron;
 	protected Results _learningResults;
+	protected ParallelSGDTrainer _parallelTrainer;
+	// the samples of the day, with a ParallelSGDTrainer
+	protected List<DataPoint> _daySamples;
+	protected String _daySamplesDate;
+	// the date of the last sample kept by SGD for the next mini-batch step
+	protected String _pendingDate;
 
 	public articleSGDClassifier(String propertiesFilename,
 			ModuleMode mode) throws Exception {
@@ -45,6 +61,10 @@ public class articleSGDClassifier extends BaseOnlineLearnerModule {
 		_binaryTask = true;
 		_perceptron = null;
 		_learningResults = null;
+		_parallelTrainer = null;
+		_daySamples = new ArrayList<DataPoint>();
+		_daySamplesDate = null;
+		_pendingDate = null;
 	}
 
 	@Override
@@ -89,6 +109,23 @@ public class articleSGDClassifier extends BaseOnlineLearnerModule {
 				.parseDouble(getProperty(PROPERTY_SGD_REGULARIZATION_FACTOR)));
 		((SGD) _perceptron).setLoss(SGDLoss.valueOf(getProperty(
 				PROPERTY_SGD_LOSS).toUpperCase()));
+		((SGD) _perceptron).setLazyRegularization(Boolean
+				.parseBoolean(getProperty(PROPERTY_SGD_LAZY_REGULARIZATION)));
+		Helpers.outputConsole("SGD lazy regularization ["
+				+ Boolean.parseBoolean(getProperty(PROPERTY_SGD_LAZY_REGULARIZATION))
+				+ "]");
+		if (getProperty(PROPERTY_SGD_MINI_BATCH_SIZE) != null)
+			((SGD) _perceptron).setMiniBatchSize(Integer
+					.parseInt(getProperty(PROPERTY_SGD_MINI_BATCH_SIZE)));
+		Helpers.outputConsole("SGD mini-batch size ["
+				+ ((SGD) _perceptron).getMiniBatchSize() + "]");
+		if (getProperty(PROPERTY_SGD_THREADS) != null
+				&& Integer.parseInt(getProperty(PROPERTY_SGD_THREADS)) > 1)
+			_parallelTrainer = new ParallelSGDTrainer((SGD) _perceptron,
+					Integer.parseInt(getProperty(PROPERTY_SGD_THREADS)));
+		Helpers.outputConsole("SGD threads ["
+				+ (_parallelTrainer == null ? 1 : _parallelTrainer
+						.getThreads()) + "]");
 	}
 
 	@Override
@@ -98,6 +135,8 @@ public class articleSGDClassifier extends BaseOnlineLearnerModule {
 
 	@Override
 	protected void saveModel() throws Exception {
+		trainDaySamples();
+		flushMiniBatch();
 		((SGD) _perceptron).saveAll(_modelPath);
 		_learningResults.SaveOutput();
 	}
@@ -115,10 +154,20 @@ public class articleSGDClassifier extends BaseOnlineLearnerModule {
 				.valueOf(articleLabels.iterator().next());
 		sample.setRealLabel(label.numericValue);
 
-		_perceptron.train(sample);
 		String date = _dateFormat.format(Helpers
 				.extractDateFromArticleId((ObjectId) sample.getID()));
-		saveModulePerfs(date);
+		if (_parallelTrainer != null) {
+			// trained with the other samples of the day in trainModuleOnDay()
+			_daySamples.add(sample);
+			_daySamplesDate = date;
+			return 1;
+		}
+
+		_perceptron.train(sample);
+		// in mini-batch mode the statistics change once per mini-batch
+		_pendingDate = date;
+		if (((SGD) _perceptron).getPendingSampleCount() == 0)
+			saveModulePerfs(date);
 		return 1;
 
 	}
@@ -127,11 +176,37 @@ public class articleSGDClassifier extends BaseOnlineLearnerModule {
 	protected Integer trainModuleOnDay() throws Exception {
 		/*
 		 * articleClasherClassifer process samples as they arrive, implement
-		 * trainModuleOnSample !
+		 * trainModuleOnSample ! (but with SGD_THREADS the samples of the day
+		 * are trained here, and were counted by trainModuleOnSample)
 		 */
+		trainDaySamples();
 		return 0;
 	}
 
+	/**
+	 * Trains the samples kept by trainModuleOnSample() with the
+	 * ParallelSGDTrainer, if any.
+	 */
+	private void trainDaySamples() throws Exception {
+		if (_daySamples.isEmpty())
+			return;
+		_parallelTrainer.train(_daySamples);
+		saveModulePerfs(_daySamplesDate);
+		_daySamples.clear();
+	}
+
+	/**
+	 * Trains the samples of the incomplete mini-batch, if any, and saves the
+	 * performance.
+	 */
+	protected void flushMiniBatch() throws Exception {
+		SGD sgd = (SGD) _perceptron;
+		if (sgd.getPendingSampleCount() == 0)
+			return;
+		sgd.flushMiniBatch();
+		saveModulePerfs(_pendingDate);
+	}
+
 	@Override
 	protected Double getModuleError() throws Exception {
 		return _perceptron.expMovAvGetError();
@@ -202,7 +277,7 @@ public class articleSGDClassifier extends BaseOnlineLearnerModule {
 		_learningResults.print(" \t ");
 		_learningResults.print(Double.toString(_perceptron.getBias()));
 		_learningResults.print(" \t ");
-		BasicLinearModel m = (BasicLinearModel) _perceptron.getLinearModel();
+		LinearModel m = _perceptron.getLinearModel();
 		m.calculateMagnitude();
 		_learningResults.print(Double.toString(m.getMagnitude()));
 		_learningResults.print(" \t ");
@@ -12,9 +12,12 @@ import macsy.blackBoardsSystem.BBDoc;
 import macsy.blackBoardsSystem.BBDocSet;
 import macsy.blackBoardsSystem.BlackBoardDateBased;
 import macsy.lib.DataPoint;
+import macsy.lib.FeatureVectorCodec;
 import macsy.lib.LinearModel;
 import macsy.lib.Results;
 import macsy.lib.onlineLearning.OnlineLearning;
+import macsy.lib.onlineLearning.PairwiseLearning;
+import macsy.lib.onlineLearning.PairwiseRankingTrainer;
 import macsy.lib.onlineLearning.PocketPerceptron;
 import macsy.module.BaseModule;
 
@@ -52,9 +55,14 @@ import macsy.module.BaseModule;
  * VOCABULARY=The filename with the words of the language (for the word clouds)
  * MODEL_FILENAME=The name of the model that the module will read (if exists) the weights
  * at the beginning and store them after termination.
+ * MODEL_FORMAT=TEXT or BINARY, the format in which the model is saved (optional, by default
+ * the format of the existing model file, TEXT for a new model). BINARY is much faster for
+ * large models; LinearModel.exportText() writes the text format for the word clouds.
  * MODEL_LAST_DATE_FILENAME=The name of the file storing the last date that the model is updated.
  * PERFORMANCE=The boolean flag to specify if we want a large file with the performance
  * of the classifier per document
+ * PAIRS_PER_DAY=The max number of pairs (x_i, x_j) used for training per day, sampled
+ * at random (optional, all pairs by default)
  *
  * Output:
  * OUTPUT_BLACKBOARD=Output BlackBoard
@@ -86,6 +94,7 @@ public class OnlineRankerPocketPerceptron extends BaseModule {
     static final String PROPERTY_UPDATE_LEARNING_FACTOR = "UPDATE_LEARNING_FACTOR";
     static final String PROPERTY_VOCABULARY = "VOCABULARY";
     static final String PROPERTY_PERFORMANCE = "PERFORMANCE";
+    static final String PROPERTY_PAIRS_PER_DAY = "PAIRS_PER_DAY";
     //File to store the pocket parameters. Specify the file path.
     static final String pocket_parameters_file = "";
     private BlackBoardDateBased inputBB;
@@ -148,9 +157,19 @@ public class OnlineRankerPocketPerceptron extends BaseModule {
         }
 
 
-        OnlineLearning onlineLearning =
+        PairwiseLearning onlineLearning =
                 new PocketPerceptron(fileName);
 
+        // trains on the pairs (x_i, x_j) without building their differences,
+        // which are not normalised
+        PairwiseRankingTrainer pairTrainer =
+                new PairwiseRankingTrainer(onlineLearning);
+        pairTrainer.setNormalizePairs(false);
+        if (this.getProperty(PROPERTY_PAIRS_PER_DAY) != null) {
+            pairTrainer.setPairBudget(
+                    Integer.parseInt(this.getProperty(PROPERTY_PAIRS_PER_DAY)));
+        }
+
         PocketPerceptron pocket_perceptron = new PocketPerceptron();
         File logFile = new File(fileName + ".log");
         if (!logFile.exists()) {
@@ -187,6 +206,7 @@ public class OnlineRankerPocketPerceptron extends BaseModule {
 
         String txtFilenameWords = fileName + ".WordCloud";
         LinearModel model = onlineLearning.getLinearModel();
+        setModelFormat(model);
         String voc_filename = this.getProperty(PROPERTY_VOCABULARY);
         model.wordCloudSetVocabulary(voc_filename);
 
@@ -264,9 +284,8 @@ public class OnlineRankerPocketPerceptron extends BaseModule {
             BBDoc doc;
             while ((doc = docSet.getNext()) != null) {
                 dataRead++;
-                @SuppressWarnings("unchecked")
-                List<Double> tf_idf_x_i =
-                        (List<Double>) doc.getField(MODULE_INPUT_FIELDS);
+                // the features, as a list or in a binary format
+                Object tf_idf_x_i = doc.getField(MODULE_INPUT_FIELDS);
 
                 if (tf_idf_x_i != null) {
                     if (dataProcessed++ % 1000 == 0) {
@@ -307,7 +326,7 @@ public class OnlineRankerPocketPerceptron extends BaseModule {
                 // the training procedure from the already extracted lists
                 trainingProcedure(list_x_i,
                         list_x_j,
-                        onlineLearning,
+                        pairTrainer,
                         performance,
                         learningResults,
                         header);
@@ -520,10 +539,9 @@ public class OnlineRankerPocketPerceptron extends BaseModule {
      *
      * @throws Exception
      */
-    private double predict(List<Double> tf_idf_x_i,
+    private double predict(Object tf_idf_x_i,
             OnlineLearning onlineLearning, Object ID) throws Exception {
-        DataPoint sample = new DataPoint(
-                deseriliseFeatures(tf_idf_x_i));
+        DataPoint sample = FeatureVectorCodec.toDataPoint(tf_idf_x_i);
         sample.setID(ID);
         // training with the specified instance
         return onlineLearning.predict(sample);
@@ -543,15 +561,14 @@ public class OnlineRankerPocketPerceptron extends BaseModule {
      * @param list_x_j:The list with the documents tagged as TAG1_AND_NOT_TAG2.
      * @throws Exception
      */
-    private void createList(List<Double> tf_idf_x_i,
+    private void createList(Object tf_idf_x_i,
             BBDoc s,
             List<Integer> docFieldId,
             List<Integer> withFieldValues,
             List<Integer> tagForCombination,
             List<DataPoint> list_x_i,
             List<DataPoint> list_x_j) throws Exception {
-        DataPoint sample = new DataPoint(
-                deseriliseFeatures(tf_idf_x_i));
+        DataPoint sample = FeatureVectorCodec.toDataPoint(tf_idf_x_i);
 
         if (docFieldId != null) {
             for (Integer e : withFieldValues) {
@@ -580,24 +597,22 @@ public class OnlineRankerPocketPerceptron extends BaseModule {
      *
      * @param list_x_i:The list with the documents tagged as TAG1_AND_TAG2.
      * @param list_x_j:The list with the documents tagged as TAG1_AND_NOT_TAG2.
-     * @param onlinelearning:The model of interest (used for the training procedure).
+     * @param pairTrainer:The trainer of the model of interest.
      *
      * @throws Exception
      */
     private void trainingProcedure(List<DataPoint> list_x_i,
-            List<DataPoint> list_x_j, OnlineLearning onlinelearning,
-            boolean performance, Results learningResults, String header)
+            List<DataPoint> list_x_j, PairwiseRankingTrainer pairTrainer,
+            final boolean performance, final Results learningResults,
+            final String header)
             throws Exception {
-        for (DataPoint x_i : list_x_i) {
-
-            for (DataPoint x_j : list_x_j) {
-
-                if (Math.random() >= 0.5) {
-                    Training(x_i, x_j, onlinelearning, 1);
-                } else {
-                    Training(x_j, x_i, onlinelearning, -1);
-
-                }
+        final OnlineLearning onlinelearning = pairTrainer.getLearner();
+        pairTrainer.train(list_x_i, list_x_j,
+                new PairwiseRankingTrainer.PairListener() {
+            public void pairDone(DataPoint x_i, DataPoint x_j, int label,
+                    double prediction) throws Exception {
+                //increment the number of total training samples
+                total_tp++;
                 // display on the screen the statistical information
                 onlinelearning.statsPrintConfusionMatrix();
 
@@ -627,51 +642,10 @@ public class OnlineRankerPocketPerceptron extends BaseModule {
                             str);
                 }
             }
-            if (performance == true) {
-                learningResults.Flush();
-            }
-        }
-    }
-
-    /**
-     * This function is called for the training procedure performed on the difference of
-     * the input DataPoints.
-     *
-     * @param x_i:The first DataPoint of interest that we want the training to perform
-     * @param x_j:The second DataPoint of interest that we want the training to perform
-     * @param onlineLearning:The model of interest.
-     * @param desired_output:The actual label of the difference of the input DataPoints
-     * @throws Exception
-     */
-    private void Training(DataPoint x_i, DataPoint x_j,
-            OnlineLearning onlineLearning,
-            int desired_output) throws Exception {
-        DataPoint sample = DataPoint.difference(x_i, x_j);
-        sample.setRealLabel(desired_output);
-        // training with the specified instance
-        onlineLearning.train(sample);
-        //increment the number of total training samples
-        total_tp++;
-    }
-
-    /**
-     * Transforms the input features to a features Map based on TF-IDF.
-     *
-     * @param featuresAsString the string text that you wand to transform into a Map based on TF
-     * @return the map  of the words' IDs and their TF-IDF
-     * @throws InterruptedException
-     */
-    private Map<Integer, Double> deseriliseFeatures(List<Double> features_list) throws Exception {
-
-        Map<Integer, Double> feat = new TreeMap<Integer, Double>();
-        int index;
-        double value;
-        for (int f = 0; f < features_list.size(); f += 2) {
-            index = (int) Math.round(features_list.get(f));
-            value = features_list.get(f + 1);
-            feat.put(index, value);
+        });
+        if (performance == true) {
+            learningResults.Flush();
         }
-        return feat;
     }
 
     /**
@@ -9,29 +9,36 @@ package macsy.module.onlineRanking;
  * 
  */
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Set;
 import java.util.TreeMap;
 
-import macsy.lib.BasicLinearModel;
 import macsy.lib.DataPoint;
 import macsy.lib.Helpers;
+import macsy.lib.LinearModel;
 import macsy.lib.Results;
-import macsy.lib.Helpers.BinaryLabel;
 import macsy.lib.Helpers.FeatureSpace;
 import macsy.lib.Helpers.ModuleMode;
 import macsy.lib.Helpers.Months;
+import macsy.lib.onlineLearning.PairwiseRankingTrainer;
+import macsy.lib.onlineLearning.PairwiseRankingTrainer.PairListener;
 import macsy.lib.onlineLearning.SGD;
 import macsy.lib.preprocessing.DataSampleBuilderForRanking;
-import macsy.lib.preprocessing.FeatureStandardizer;
+import macsy.lib.preprocessing.StreamingStandardizer;
 import macsy.module.onlineClassification.articleSGDClassifier;
 
 import org.bson.types.ObjectId;
 
 public class articleSGDRanker extends articleSGDClassifier {
+	// optional, max number of pairs per day (all pairs by default)
+	public static final String PROPERTY_PAIRS_PER_DAY = "PAIRS_PER_DAY";
+	// optional, weight of the past days in the statistics of the CONCEPTS
+	// standardisation (0 by default: each day on its own)
+	public static final String PROPERTY_STANDARDIZER_DECAY = "STANDARDIZER_DECAY";
+
 	protected Results _validationResults;
 	protected DataSampleBuilderForRanking _data;
+	protected PairwiseRankingTrainer _pairTrainer;
+	protected StreamingStandardizer _standardizer;
 
 	public articleSGDRanker(String propertiesFilename, ModuleMode mode)
 			throws Exception {
@@ -47,7 +54,22 @@ public class articleSGDRanker extends articleSGDClassifier {
 	@Override
 	protected void initModel() throws Exception {
 		super.initModel();
-		
+
+		_pairTrainer = new PairwiseRankingTrainer((SGD) _perceptron);
+		if (getProperty(PROPERTY_PAIRS_PER_DAY) != null)
+			_pairTrainer.setPairBudget(Integer
+					.parseInt(getProperty(PROPERTY_PAIRS_PER_DAY)));
+		Helpers.outputConsole("Pairs per day ["
+				+ (_pairTrainer.getPairBudget() > 0 ? _pairTrainer
+						.getPairBudget() : "all") + "]");
+
+		_standardizer = new StreamingStandardizer(
+				getProperty(PROPERTY_STANDARDIZER_DECAY) != null ? Double
+						.parseDouble(getProperty(PROPERTY_STANDARDIZER_DECAY))
+						: 0.0);
+		if (_fSpace == FeatureSpace.CONCEPTS)
+			_standardizer.load(_modelPath + ".standardizer");
+
 		_validationResults = new Results(".", _modelPath + ".validation.csv",
 				true, true);
 		_validationResults
@@ -58,13 +80,20 @@ public class articleSGDRanker extends articleSGDClassifier {
 	protected void saveModel() throws Exception {
 		super.saveModel();
 		_validationResults.SaveOutput();
+		if (_fSpace == FeatureSpace.CONCEPTS)
+			_standardizer.save(_modelPath + ".standardizer");
 	}
 
 	@Override
 	protected boolean collectLearningSamples(DataPoint sample,
 			Set<String> articleLabels) throws Exception {
 
-		return _data.collect(sample, articleLabels);
+		if (!_data.collect(sample, articleLabels))
+			return false;
+		// statistics for the standardisation, applied in preProcessInputDay()
+		if (_fSpace == FeatureSpace.CONCEPTS)
+			_standardizer.update(sample);
+		return true;
 	}
 
 	@Override
@@ -87,45 +116,60 @@ public class articleSGDRanker extends articleSGDClassifier {
 	@Override
 	protected void preProcessInputDay() throws Exception {
 		if (_fSpace == FeatureSpace.CONCEPTS) {
-			List<DataPoint> dailyLearningData = new ArrayList<DataPoint>();
-			dailyLearningData.addAll(_data._popularSamples);
-			dailyLearningData.addAll(_data._dislikedSamples);
-			FeatureStandardizer.standardize(dailyLearningData);
+			// the statistics of the day are complete
+			for (DataPoint sample : _data._popularSamples)
+				_standardizer.standardize(sample);
+			for (DataPoint sample : _data._dislikedSamples)
+				_standardizer.standardize(sample);
+			_standardizer.endDay();
 		}
 	}
 
+	/*
+	 * The pairs are not built: see PairwiseRankingTrainer
+	 */
 	@Override
 	protected void validateModuleOnDay() throws Exception {
-		DataPoint pair = null;
-		while (_data.hasNext()) {
-			pair = _data.next();
-			pair.normalize();
-			computeModulePredictionOnSample(pair, true);
-		}
-		_data.nbPopularSamples();
-		_data.nbDislikedSamples();
+		if (_data.nbPopularSamples() > 0 && _data.nbDislikedSamples() > 0)
+			_pairTrainer.validate(_data._popularSamples,
+					_data._dislikedSamples, new PairListener() {
+						public void pairDone(DataPoint popular,
+								DataPoint disliked, int label,
+								double prediction) throws Exception {
+							printValidationResults(popular.getID());
+						}
+					});
 		_data.reset();
 	}
 
 	@Override
 	protected Integer trainModuleOnDay() throws Exception {
-		DataPoint pair = null;
-		while (_data.hasNext()) {
-			pair = _data.next();
-			pair.normalize();
-			BinaryLabel label = BinaryLabel.fromInt(pair.getRealLabel());
-			super.trainModuleOnSample(pair, Helpers.hashSet(label.name()));
-		}
+		// the date of the pairs is the date of their popular sample
+		final Object[] lastPairID = { null };
+		if (_data.nbPopularSamples() > 0 && _data.nbDislikedSamples() > 0)
+			_pairTrainer.train(_data._popularSamples, _data._dislikedSamples,
+					new PairListener() {
+						public void pairDone(DataPoint popular,
+								DataPoint disliked, int label,
+								double prediction) throws Exception {
+							_perceptron.incrementN_overall(1);
+							lastPairID[0] = popular.getID();
+							// once per mini-batch in mini-batch mode
+							_pendingDate = _dateFormat.format(Helpers
+									.extractDateFromArticleId((ObjectId) lastPairID[0]));
+							if (((SGD) _perceptron).getPendingSampleCount() == 0)
+								saveModulePerfs(_pendingDate);
+						}
+					});
 
 		int nbPopular = _data.nbPopularSamples();
 		int nbDisliked = _data.nbDislikedSamples();
 		_data.clear();
-		if (pair != null) {
+		if (lastPairID[0] != null) {
 			String date = _dateFormat.format(Helpers
-					.extractDateFromArticleId((ObjectId) pair.getID()));
+					.extractDateFromArticleId((ObjectId) lastPairID[0]));
 
-			BasicLinearModel linearModel = (BasicLinearModel) ((SGD) _perceptron)
-					.getLinearModel();
+			LinearModel linearModel = ((SGD) _perceptron).getLinearModel();
 			linearModel.setModelFileName(_modelPath + "_words_"
 					+ date.split(" ")[0] + ".csv");
 			linearModel.saveModel("");
@@ -143,29 +187,35 @@ public class articleSGDRanker extends articleSGDClassifier {
 		if (updateValidationError) {
 			_perceptron.update_validationError(prediction,
 					sample.getRealLabel());
-
-			double[] confusionMatrix = _perceptron.getValidationConfusion();
-			double tp = confusionMatrix[0];
-			double tn = confusionMatrix[1];
-			double fp = confusionMatrix[2];
-			double fn = confusionMatrix[3];
-
-			_validationResults.print(_perceptron.expMovAvGetValidationError()
-					+ " ");
-			_validationResults.print(tp + " " + tn + " " + fp + " " + fn + " ");
-			_validationResults
-					.print(_perceptron.getNValidation() + " "
-							+ _perceptron.getNpos() + " "
-							+ _perceptron.getNneg() + " ");
-			_validationResults.print(_dateFormat.format(Helpers
-					.extractDateFromArticleId((ObjectId) sample.getID())));
-			_validationResults.print("\n");
-
-			_validationResults.Flush();
+			printValidationResults(sample.getID());
 		}
 		return score;
 	}
 
+	/**
+	 * Prints the validation statistics after a sample (or pair) with given ID
+	 */
+	protected void printValidationResults(Object sampleID) throws Exception {
+		double[] confusionMatrix = _perceptron.getValidationConfusion();
+		double tp = confusionMatrix[0];
+		double tn = confusionMatrix[1];
+		double fp = confusionMatrix[2];
+		double fn = confusionMatrix[3];
+
+		_validationResults.print(_perceptron.expMovAvGetValidationError()
+				+ " ");
+		_validationResults.print(tp + " " + tn + " " + fp + " " + fn + " ");
+		_validationResults
+				.print(_perceptron.getNValidation() + " "
+						+ _perceptron.getNpos() + " "
+						+ _perceptron.getNneg() + " ");
+		_validationResults.print(_dateFormat.format(Helpers
+				.extractDateFromArticleId((ObjectId) sampleID)));
+		_validationResults.print("\n");
+
+		_validationResults.Flush();
+	}
+
 	public static void main(String[] args) throws Exception {
 		articleSGDRanker module = new articleSGDRanker(args[0],
 				Helpers.ModuleMode.EXPERIMENT);
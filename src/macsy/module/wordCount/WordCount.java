@@ -6,10 +6,11 @@ import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
 
+import macsy.blackBoardsSystem.AnnotationBatch;
 import macsy.blackBoardsSystem.BBDoc;
 import macsy.blackBoardsSystem.BBDocSet;
 import macsy.blackBoardsSystem.BlackBoardDateBased;
-import macsy.module.BaseModule;
+import macsy.module.ParallelBaseModule;
 
 /**
  * Add a field in each document between desired dates, that specifies the number of 
@@ -26,17 +27,24 @@ import macsy.module.BaseModule;
  * Output:
  * OUTPUT_FIELDS=The field's name where the module is going to write the number of words
  * ON_SCREEN=TRUE if you want output also on screen (Optional) 
+ * THREADS=Number of worker threads (Optional, see ParallelBaseModule)
  * 
  * @author Panagiota Antonakaki
  * Last Update: 08-10-2012
  */
 
-public class WordCount extends BaseModule {
+public class WordCount extends ParallelBaseModule {
 	// temporal variables to hold information given by the user
 	static final String PROPERTY_ON_SCREEN = "ON_SCREEN";
 	static final String PROPERTY_ON_START_DATE = "START_DATE";
 	static final String PROPERTY_ON_STOP_DATE = "STOP_DATE";
 	
+	// set by runModuleCore(), used by the worker threads
+	private BlackBoardDateBased bb;
+	private AnnotationBatch batch;
+	private List<Integer> Tag_List;
+	private boolean onScreen;
+	
 	
 	public WordCount(String propertiesFilename ) throws Exception 
 	{
@@ -46,22 +54,18 @@ public class WordCount extends BaseModule {
 	public void runModuleCore() throws Exception 
 	{
 		// see if you want the results to be displayed or not
-		boolean onScreen= false;
+		onScreen= false;
 		String onScreen_str = this.getProperty(PROPERTY_ON_SCREEN);
 		if(onScreen_str.equals("TRUE"))
 			onScreen = true;
 		
 		//Load Black Board of interest (with data based)
-		BlackBoardDateBased bb = _bbAPI.blackBoardLoadDateBased(MODULE_INPUT_BLACKBOARD );
-		
-		// variables to hold information about the number of data that were read and data
-		// that were processed so that the module can print them on the screen
-		int dataRead = 0;
-		int dataProcessed = 0;
+		bb = _bbAPI.blackBoardLoadDateBased(MODULE_INPUT_BLACKBOARD );
+		batch = newAnnotationBatch(bb);
 		
 		//Prepare TAG 
 		String tagNames[] = MODULE_INPUT_TAGS.split(",");
-		List<Integer> Tag_List = new LinkedList<Integer>();		
+		Tag_List = new LinkedList<Integer>();		
 		for(String tagName : tagNames) 
 		{
 			if(!tagName.equals("")){
@@ -79,49 +83,42 @@ public class WordCount extends BaseModule {
 		Date fromDate = df.parse(this.getProperty(PROPERTY_ON_START_DATE));
 		Date toDate = df.parse(this.getProperty(PROPERTY_ON_STOP_DATE));
 		
-		BBDocSet DocSet = bb.findDocsByFieldsTagsSet(fromDate, toDate, null, null, Tag_List, null, this.MODULE_DATA_PROCESS_LIMIT);
+		// process the docs (this also saves the number of input and output items)
+		processInputDocs(bb, fromDate, toDate);
+	}
+	
+	@Override
+	protected BBDocSet findInputDocs(Date fromDate, Date toDate, int maxDocs) throws Exception
+	{
+		// fetch only the field with the text
+		List<String> fields = new LinkedList<String>();
+		fields.add(MODULE_INPUT_FIELDS);
+		
+		return bb.findDocsByFieldsTagsSet(fromDate, toDate, null, null, Tag_List, null, fields, maxDocs);
+	}
+	
+	@Override
+	protected boolean processDoc(BBDoc s) throws Exception
+	{
+		// get the article's doc according to the input field
+		String txt = s.getFieldString(MODULE_INPUT_FIELDS);
+		
+		// check if it's null
+		if(txt==null)
+			return false;
 		
-		// get the next doc in the BBDocSet
-		BBDoc s = DocSet.getNext();
+		// use the split method to split the title into words
+		String[] words = txt.split(" ");
+		// find how many words in the title
+		int count = words.length;
 		
-		// variable to count the number of the words
-		int count = 0;
-			
-		while(s!=null)
-		{
-			// increase the number of the data that were read
-			dataRead++;
-			
-			// get the article's doc according to the input field
-			String txt = s.getFieldString(MODULE_INPUT_FIELDS);
-			
-			// check if it's null
-			if(txt==null){
-				// get the next article
-				s = DocSet.getNext();
-				continue;
-			}
-			
-			// increase the number of the data tat were proceed
-			dataProcessed++;
-			
-			// use the split method to split the title into words
-			String[] words = txt.split(" ");
-			// find how many words in the title
-			count = words.length;
-			
-			// save the output in the desired field in the database
-			bb.addFieldToDoc(s.getID(), MODULE_OUTPUT_FIELDS, count);
-			
-			if(onScreen)
-				System.out.println(count);
-			
-			// get the next doc int the BBDocSet
-			s = DocSet.getNext();
-		}
-
-		// display the number of input items and the number of output items
-		this.saveModuleResults(dataRead, dataProcessed);
+		// save the output in the desired field in the database
+		batch.addFieldToDoc(s.getID(), MODULE_OUTPUT_FIELDS, count);
+		
+		if(onScreen)
+			System.out.println(count);
+		
+		return true;
 	}
 	
 